@@ -0,0 +1,163 @@
+package ddb.io.netarbiter.bench;
+
+import ddb.io.netarbiter.NetArbiter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ * Ack Benchmark
+ * Runs an arbiter in this JVM, and sends it batches of commands that are
+ * only acked. The bytes the arbiter's thread allocates are read from the
+ * JVM's thread statistics, and reported per ack.
+ *
+ * Writes to an unknown connection and FRAMING commands are both carried
+ * out straight from the input buffer, and their acks are encoded straight
+ * into the endpoint's control lane.
+ *
+ * Usage: AckBenchmark (batches) (commands per batch)
+ */
+public class AckBenchmark
+{
+    // Connection the writes go to, which is never opened (and small enough
+    // not to be boxed when it is looked up)
+    private static final int UNKNOWN_CONNECTION = 100;
+
+    public static void main(String[] args) throws Exception
+    {
+        int batches = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        if (!threads.isThreadAllocatedMemorySupported())
+        {
+            System.out.println("This JVM doesn't count allocated bytes per thread");
+            return;
+        }
+
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort()))
+            {
+                socket.setTcpNoDelay(true);
+
+                SocketChannel endpoint = server.accept();
+                NetArbiter arbiter = new NetArbiter(SelectorProvider.provider());
+                Thread arbiterThread = new Thread(() -> arbiter.runEndpoint(endpoint), "bench-arbiter");
+                arbiterThread.setDaemon(true);
+                arbiterThread.start();
+
+                Endpoint driver = new Endpoint(socket);
+
+                for (char packetID : new char[] { 'W', 'M' })
+                {
+                    // Warm up
+                    for (int i = 0; i < batches; i++)
+                        driver.run(packetID, batchSize);
+
+                    long allocated = threads.getThreadAllocatedBytes(arbiterThread.getId());
+                    long start = System.nanoTime();
+
+                    for (int i = 0; i < batches; i++)
+                        driver.run(packetID, batchSize);
+
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    long acks = (long) batches * batchSize;
+                    allocated = threads.getThreadAllocatedBytes(arbiterThread.getId()) - allocated;
+
+                    System.out.printf("%s: %9.0f acks/s, %6.2f bytes allocated per ack%n",
+                            packetID == 'W' ? "Write   " : "Framing ",
+                            acks / seconds, allocated / (double) acks);
+                }
+
+                driver.exit();
+                arbiterThread.join(5000);
+            }
+        }
+    }
+
+    /**
+     * Endpoint sending the commands, and waiting for all of their acks
+     */
+    private static class Endpoint
+    {
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private int sequence = 0;
+
+        Endpoint(Socket socket) throws IOException
+        {
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        }
+
+        void run(char packetID, int count) throws IOException
+        {
+            for (int i = 0; i < count; i++)
+            {
+                if (packetID == 'W')
+                {
+                    // [connID : 2][payload : 4]
+                    out.writeShort(5 + 6);
+                    out.writeShort(sequence++);
+                    out.writeByte(packetID);
+                    out.writeShort(UNKNOWN_CONNECTION);
+                    out.writeInt(i);
+                }
+                else
+                {
+                    // [superFrames : 1]
+                    out.writeShort(5 + 1);
+                    out.writeShort(sequence++);
+                    out.writeByte(packetID);
+                    out.writeByte(0);
+                }
+            }
+
+            out.flush();
+            awaitAcks(count);
+        }
+
+        void exit() throws IOException
+        {
+            out.writeShort(5);
+            out.writeShort(sequence++);
+            out.writeByte('X');
+            out.flush();
+        }
+
+        private void awaitAcks(int count) throws IOException
+        {
+            while (count > 0)
+            {
+                int length = in.readUnsignedShort();
+
+                // Heartbeat
+                if (length == 0)
+                    continue;
+
+                in.readShort();
+                byte packetID = in.readByte();
+                in.skipBytes(length - 5);
+
+                if (packetID == 'E')
+                    count--;
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package ddb.io.netarbiter.bench;
+
+import ddb.io.netarbiter.CaptureJournal;
+import ddb.io.netarbiter.CaptureReader;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ddb.io.netarbiter.Constants.*;
+
+/**
+ * Capture Replay Tool
+ * Feeds a capture taken with "--capture=[directory]" back into an arbiter,
+ * either at the speed it was captured at (or a multiple of it), or as fast
+ * as possible.
+ *
+ * The tool plays the part of the captured endpoint and of every captured
+ * remote:
+ * - Endpoint commands are sent to the arbiter in order, waiting for each
+ *   command's ack like a Turing program would.
+ * - Connect commands are pointed at a sink inside of the tool, which then
+ *   sends the remote's captured frames.
+ * - For every connection the captured arbiter accepted, the tool connects
+ *   to the arbiter's listening port and sends the remote's captured frames.
+ * Connection ids are translated, in case the arbiter hands out different
+ * ones. Remote links are always plaintext.
+ *
+ * Usage: CaptureReplay [segment file] [endpoint port] (speed, 0 = as fast as possible) (listen port)
+ * The listen port only needs to be given if the arbiter was started with
+ * "--listenPort", otherwise it is learnt from the captured Listen command
+ */
+public class CaptureReplay
+{
+    // How long to wait for the arbiter to answer a command
+    private static final long ACK_TIMEOUT = 5000;
+    // Fake remotes keep their links alive at the arbiter's heartbeat rate
+    private static final long POKE_INTERVAL = 100;
+
+    private final double speed;
+
+    private Socket endpoint;
+    private ServerSocket sink;
+    private int listenPort = -1;
+
+    // Arbiter -> endpoint responses
+    private final BlockingQueue<Integer> acks = new LinkedBlockingQueue<>();
+    private volatile int lastAck = -1;
+    private final BlockingQueue<Integer> newConnections = new LinkedBlockingQueue<>();
+    // Connections made by the arbiter to the sink
+    private final BlockingQueue<Socket> sinkConnections = new LinkedBlockingQueue<>();
+
+    // Captured connection id -> replayed connection id & fake remote
+    private final Map<Short, Short> idMap = new HashMap<>();
+    private final Map<Short, Socket> remotes = new HashMap<>();
+    private final List<Socket> allRemotes = new ArrayList<>();
+
+    // Captured command waiting for its ack record
+    private byte lastCommand = 0;
+    private boolean sentExit = false;
+
+    private long framesSent = 0;
+    private long bytesSent = 0;
+    private long maxLag = 0;
+
+    private CaptureReplay(double speed)
+    {
+        this.speed = speed;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: CaptureReplay [segment file] [endpoint port] (speed, 0 = as fast as possible) (listen port)");
+            return;
+        }
+
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        CaptureReplay replay = new CaptureReplay(speed);
+
+        if (args.length > 3)
+            replay.listenPort = Integer.parseInt(args[3]);
+
+        replay.replay(new File(args[0]), Integer.parseInt(args[1]));
+    }
+
+    private void replay(File capture, int endpointPort) throws Exception
+    {
+        sink = new ServerSocket(0);
+        startThread("replay-sink", this::acceptSinks);
+
+        endpoint = new Socket("localhost", endpointPort);
+        endpoint.setTcpNoDelay(true);
+        startThread("replay-endpoint", this::readResponses);
+        startThread("replay-heartbeat", this::pokeRemotes);
+
+        long firstTimestamp = -1;
+        long start = System.nanoTime();
+        long records = 0;
+
+        try (CaptureReader reader = new CaptureReader(capture))
+        {
+            while (reader.next())
+            {
+                records++;
+
+                if (firstTimestamp == -1)
+                    firstTimestamp = reader.getTimestamp();
+
+                // Keep to the captured timing
+                if (speed > 0)
+                {
+                    long due = start + (long) ((reader.getTimestamp() - firstTimestamp) / speed);
+                    long wait = due - System.nanoTime();
+
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    else
+                        maxLag = Math.max(maxLag, -wait);
+                }
+
+                if (reader.getDirection() == CaptureJournal.INBOUND)
+                    replayInbound(reader.getConnectionID(), reader.getFrame());
+                else
+                    followOutbound(reader.getConnectionID(), reader.getFrame());
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        if (!sentExit)
+            sendCommand(ByteBuffer.wrap(new byte[] { 0, 5, 0, 0, ARB_PACKET_EXIT }));
+
+        System.out.printf("Replayed %d records (%d frames, %d bytes sent) in %.1f ms%n", records, framesSent, bytesSent, elapsed / 1e6);
+        if (speed > 0)
+            System.out.printf("Fell behind the capture by up to %.2f ms%n", maxLag / 1e6);
+
+        endpoint.close();
+        sink.close();
+        for (Socket remote : allRemotes)
+            remote.close();
+    }
+
+    /**
+     * Sends a captured frame to the arbiter, from the endpoint or a remote
+     */
+    private void replayInbound(short connID, ByteBuffer frame) throws Exception
+    {
+        if (connID == -1)
+        {
+            byte command = frame.get(4);
+
+            if (command == ARB_PACKET_CONNECT)
+                frame = redirectConnect(frame);
+            else if (command == ARB_PACKET_WRITE || command == ARB_PACKET_DISCONNECT || command == ARB_PACKET_STATUS || command == ARB_PACKET_WEIGHT)
+                frame = translateIDs(frame, 1);
+            else if (command == ARB_PACKET_SPLICE)
+                frame = translateIDs(frame, 2);
+
+            lastCommand = command;
+            sendCommand(frame);
+
+            if (command == ARB_PACKET_EXIT)
+            {
+                sentExit = true;
+                return;
+            }
+
+            // Turing programs only have one command in flight
+            Integer code = acks.poll(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (code == null)
+                throw new IOException("Arbiter didn't answer command '" + (char) command + "'");
+
+            if (command == ARB_PACKET_LISTEN && code > 0)
+                listenPort = code;
+        }
+        else
+        {
+            Socket remote = remotes.get(connID);
+
+            if (remote != null)
+                send(remote, frame);
+        }
+    }
+
+    /**
+     * Follows the captured arbiter's responses, to learn which connections
+     * were made
+     */
+    private void followOutbound(short connID, ByteBuffer frame) throws Exception
+    {
+        if (connID != -1 || frame.remaining() < 11)
+            return;
+
+        byte response = frame.get(4);
+        short capturedID = (short) frame.getInt(7);
+
+        if (response == ARB_PACKET_ENDCMD && lastCommand == ARB_PACKET_CONNECT && capturedID >= 0)
+        {
+            // The arbiter connected to the sink while handling the command
+            Socket remote = sinkConnections.poll(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (remote != null)
+                addRemote(capturedID, remote, lastAck);
+
+            lastCommand = 0;
+        }
+        else if (response == ARB_PACKET_NEWCONN && listenPort > 0)
+        {
+            // Play the part of the remote that connected in
+            Socket remote = new Socket("localhost", listenPort);
+            remote.setTcpNoDelay(true);
+            remote.getOutputStream().write(CLIENT_MAGIC);
+            new DataInputStream(remote.getInputStream()).readFully(new byte[SERVER_MAGIC.length]);
+
+            Integer replayedID = newConnections.poll(ACK_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (replayedID != null)
+                addRemote(capturedID, remote, replayedID);
+        }
+        else if (response == ARB_PACKET_ENDCONN)
+        {
+            Socket remote = remotes.remove(capturedID);
+
+            if (remote != null)
+                remote.close();
+        }
+    }
+
+    private void addRemote(short capturedID, Socket remote, int replayedID)
+    {
+        idMap.put(capturedID, (short) replayedID);
+        remotes.put(capturedID, remote);
+
+        synchronized (allRemotes)
+        {
+            allRemotes.add(remote);
+        }
+
+        startThread("replay-remote-" + capturedID, () -> drain(remote));
+    }
+
+    /**
+     * Points a connect command at the sink, keeping its batching policy
+     */
+    private ByteBuffer redirectConnect(ByteBuffer frame)
+    {
+        byte[] host = "localhost".getBytes(StandardCharsets.US_ASCII);
+        int hostEnd = 8 + Byte.toUnsignedInt(frame.get(7));
+        int policyLength = Math.max(0, frame.remaining() - hostEnd);
+
+        ByteBuffer redirected = ByteBuffer.allocate(8 + host.length + policyLength);
+        redirected.putShort((short) redirected.capacity());
+        redirected.putShort(frame.getShort(2));
+        redirected.put(ARB_PACKET_CONNECT);
+        redirected.putShort((short) sink.getLocalPort());
+        redirected.put((byte) host.length);
+        redirected.put(host);
+
+        for (int i = 0; i < policyLength; i++)
+            redirected.put(frame.get(hostEnd + i));
+
+        redirected.flip();
+        return redirected;
+    }
+
+    /**
+     * Swaps captured connection ids for the replayed ones
+     */
+    private ByteBuffer translateIDs(ByteBuffer frame, int count)
+    {
+        ByteBuffer translated = ByteBuffer.allocate(frame.remaining());
+        translated.put(frame.duplicate());
+
+        for (int i = 0; i < count && 5 + i * 2 + 2 <= translated.capacity(); i++)
+        {
+            short capturedID = translated.getShort(5 + i * 2);
+            translated.putShort(5 + i * 2, idMap.getOrDefault(capturedID, capturedID));
+        }
+
+        translated.flip();
+        return translated;
+    }
+
+    private void sendCommand(ByteBuffer frame) throws IOException
+    {
+        send(endpoint, frame);
+    }
+
+    private void send(Socket socket, ByteBuffer frame) throws IOException
+    {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+
+        synchronized (socket)
+        {
+            socket.getOutputStream().write(bytes);
+        }
+
+        framesSent++;
+        bytesSent += bytes.length;
+    }
+
+    /**
+     * Reads the arbiter's responses to the endpoint
+     */
+    private void readResponses()
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(endpoint.getInputStream());
+
+            while (true)
+            {
+                int length = in.readUnsignedShort();
+
+                if (length == 0)
+                    continue;
+
+                byte[] packet = new byte[length - 2];
+                in.readFully(packet);
+
+                if (packet.length < 9)
+                    continue;
+
+                int code = ByteBuffer.wrap(packet, 5, 4).getInt();
+
+                if (packet[2] == ARB_PACKET_ENDCMD)
+                {
+                    lastAck = code;
+                    acks.add(code);
+                }
+                else if (packet[2] == ARB_PACKET_NEWCONN)
+                {
+                    newConnections.add(code);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // Arbiter went away
+        }
+    }
+
+    /**
+     * Accepts the connections made by the arbiter to the sink
+     */
+    private void acceptSinks()
+    {
+        try
+        {
+            while (true)
+            {
+                Socket remote = sink.accept();
+                remote.setTcpNoDelay(true);
+
+                new DataInputStream(remote.getInputStream()).readFully(new byte[CLIENT_MAGIC.length]);
+                remote.getOutputStream().write(SERVER_MAGIC);
+                sinkConnections.add(remote);
+            }
+        }
+        catch (IOException e)
+        {
+            // Sink closed
+        }
+    }
+
+    /**
+     * Keeps the fake remotes from being declared dead
+     */
+    private void pokeRemotes()
+    {
+        byte[] poke = new byte[2];
+
+        while (true)
+        {
+            List<Socket> current;
+
+            synchronized (allRemotes)
+            {
+                current = new ArrayList<>(allRemotes);
+            }
+
+            for (Socket remote : current)
+            {
+                try
+                {
+                    synchronized (remote)
+                    {
+                        remote.getOutputStream().write(poke);
+                    }
+                }
+                catch (IOException ignored) {}
+            }
+
+            try
+            {
+                Thread.sleep(POKE_INTERVAL);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Throws away whatever the arbiter sends to a fake remote
+     */
+    private static void drain(Socket remote)
+    {
+        byte[] buffer = new byte[8192];
+
+        try
+        {
+            while (remote.getInputStream().read(buffer) != -1);
+        }
+        catch (IOException ignored) {}
+    }
+
+    private static void startThread(String name, Runnable task)
+    {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -0,0 +1,306 @@
+package ddb.io.netarbiter.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write Coalescing Benchmark
+ * Runs two arbiters and plays both of their endpoints. One endpoint sends
+ * small messages to the other over a link with a given coalescing policy.
+ *
+ * Burst: as many messages as possible, reporting the message rate
+ * Sparse: one message at a time, reporting the one-way latency
+ *
+ * Usage: CoalesceBenchmark [arbiter classpath] (messages) (message size)
+ */
+public class CoalesceBenchmark
+{
+    // Policies to compare, as { maxBytes, maxDelay (microseconds) }
+    private static final int[][] POLICIES = {
+            { 0, 0 },
+            { 1400, 100 },
+            { 1400, 1000 },
+            { 16384, 1000 },
+    };
+
+    private static int messageSize;
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: CoalesceBenchmark [arbiter classpath] (messages) (message size)");
+            return;
+        }
+
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+        int receiverPort = freePort(), listenPort = freePort(), senderPort = freePort();
+        Process receiverArbiter = launch(args[0], "--endpointPort=" + receiverPort, "--listenPort=" + listenPort);
+        Process senderArbiter = launch(args[0], "--endpointPort=" + senderPort);
+
+        try (Endpoint receiver = new Endpoint(receiverPort);
+             Endpoint sender = new Endpoint(senderPort))
+        {
+            receiver.startReading();
+            sender.startReading();
+
+            for (int[] policy : POLICIES)
+            {
+                int connID = sender.connect(listenPort, policy[0], policy[1]);
+
+                // Warm up
+                burst(sender, receiver, connID, messages / 4);
+
+                double rate = burst(sender, receiver, connID, messages);
+                long[] latencies = sparse(sender, receiver, connID, 500);
+
+                System.out.printf("%5d bytes / %4d us: %9.0f msg/s, latency median %7.1f us, p99 %7.1f us%n",
+                        policy[0], policy[1], rate,
+                        latencies[latencies.length / 2] / 1e3,
+                        latencies[latencies.length * 99 / 100] / 1e3);
+
+                sender.disconnect(connID);
+            }
+
+            sender.exit();
+            receiver.exit();
+
+            // Let the arbiters finish sending before hanging up
+            receiverArbiter.waitFor(5, TimeUnit.SECONDS);
+            senderArbiter.waitFor(5, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            receiverArbiter.destroy();
+            senderArbiter.destroy();
+        }
+    }
+
+    /**
+     * Sends messages as fast as possible
+     * @return The number of messages received per second
+     */
+    private static double burst(Endpoint sender, Endpoint receiver, int connID, int count) throws Exception
+    {
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++)
+            sender.write(connID, System.nanoTime());
+
+        sender.flush();
+
+        for (int i = 0; i < count; i++)
+            receiver.nextRead();
+
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Sends messages one at a time, waiting for each to arrive
+     * @return The sorted one-way latencies, in nanoseconds
+     */
+    private static long[] sparse(Endpoint sender, Endpoint receiver, int connID, int count) throws Exception
+    {
+        long[] latencies = new long[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            sender.write(connID, System.nanoTime());
+            sender.flush();
+
+            long[] read = receiver.nextRead();
+            latencies[i] = read[1] - read[0];
+        }
+
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static Process launch(String classpath, String... args) throws IOException
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String[] command = new String[4 + args.length];
+        command[0] = java;
+        command[1] = "-cp";
+        command[2] = classpath;
+        command[3] = "ddb.io.netarbiter.NetArbiter";
+        System.arraycopy(args, 0, command, 4, args.length);
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * Fake Turing endpoint
+     */
+    private static class Endpoint implements AutoCloseable
+    {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        // Command responses, as { packetID, response code }
+        private final BlockingQueue<int[]> responses = new ArrayBlockingQueue<>(1024);
+        // Received messages, as { send time, receive time }
+        private final BlockingQueue<long[]> reads = new ArrayBlockingQueue<>(1 << 20);
+        // Write acks still to come, which are skipped over
+        // Commands are acked in order, so these come before any other response
+        private final AtomicInteger pendingWriteAcks = new AtomicInteger();
+        private int sequence = 0;
+
+        Endpoint(int port) throws Exception
+        {
+            Socket connected = null;
+
+            // Wait for the arbiter to come up
+            while (connected == null)
+            {
+                try
+                {
+                    connected = new Socket("localhost", port);
+                }
+                catch (IOException e)
+                {
+                    Thread.sleep(10);
+                }
+            }
+
+            socket = connected;
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        }
+
+        void startReading()
+        {
+            Thread reader = new Thread(this::readLoop, "bench-endpoint-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readLoop()
+        {
+            try
+            {
+                while (true)
+                {
+                    int length = in.readUnsignedShort();
+
+                    if (length == 0)
+                        continue;
+
+                    byte[] frame = new byte[length - 2];
+                    in.readFully(frame);
+                    long now = System.nanoTime();
+
+                    ByteBuffer packet = ByteBuffer.wrap(frame);
+                    packet.getShort();
+                    byte packetID = packet.get();
+                    packet.getShort();
+
+                    if (packetID == 'R')
+                        reads.put(new long[] { packet.getLong(), now });
+                    else if (packetID == 'E' && pendingWriteAcks.getAndUpdate((acks) -> Math.max(acks - 1, 0)) == 0)
+                        responses.put(new int[] { packetID, packet.getInt() });
+                }
+            }
+            catch (IOException | InterruptedException e)
+            {
+                // Arbiter went away
+            }
+        }
+
+        int connect(int port, int maxBytes, int maxDelay) throws Exception
+        {
+            byte[] host = "localhost".getBytes();
+            ByteBuffer payload = ByteBuffer.allocate(2 + 1 + host.length + 6);
+            payload.putShort((short) port).put((byte) host.length).put(host);
+            payload.putShort((short) maxBytes).putInt(maxDelay);
+
+            command('C', payload.array());
+            flush();
+            return awaitResponse();
+        }
+
+        void disconnect(int connID) throws Exception
+        {
+            command('D', new byte[] { (byte) (connID >> 8), (byte) connID });
+            flush();
+            awaitResponse();
+        }
+
+        void exit() throws IOException
+        {
+            command('X', new byte[0]);
+            flush();
+        }
+
+        void write(int connID, long timestamp) throws IOException
+        {
+            ByteBuffer payload = ByteBuffer.allocate(2 + Math.max(messageSize, Long.BYTES));
+            payload.putShort((short) connID).putLong(timestamp);
+            pendingWriteAcks.incrementAndGet();
+            command('W', payload.array());
+        }
+
+        void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        long[] nextRead() throws InterruptedException
+        {
+            long[] read = reads.poll(10, TimeUnit.SECONDS);
+
+            if (read == null)
+                throw new IllegalStateException("Message never arrived");
+
+            return read;
+        }
+
+        private int awaitResponse() throws InterruptedException
+        {
+            int[] response = responses.poll(10, TimeUnit.SECONDS);
+
+            if (response == null)
+                throw new IllegalStateException("Command never finished");
+
+            return response[1];
+        }
+
+        private void command(char packetID, byte[] payload) throws IOException
+        {
+            out.writeShort(5 + payload.length);
+            out.writeShort(sequence++);
+            out.writeByte(packetID);
+            out.write(payload);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+
+}
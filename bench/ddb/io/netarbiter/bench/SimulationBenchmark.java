@@ -0,0 +1,335 @@
+package ddb.io.netarbiter.bench;
+
+import ddb.io.netarbiter.Clock;
+import ddb.io.netarbiter.NetArbiter;
+import ddb.io.netarbiter.bench.sim.LinkProfile;
+import ddb.io.netarbiter.bench.sim.SimNetwork;
+import ddb.io.netarbiter.bench.sim.SimSocketChannel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Simulation Benchmark
+ * Runs two arbiters and plays both of their endpoints on a simulated
+ * network. One endpoint sends timestamped messages as fast as its arbiter
+ * takes them, over a link with the given latency, bandwidth & loss, and the
+ * other one measures how long each message took to arrive. Everything is
+ * timed with the network's virtual clock, so the results only depend on how
+ * the arbiters schedule & hold back the data, not on the machine.
+ *
+ * The scenario is played twice, to check that both runs come out the same.
+ *
+ * Usage: SimulationBenchmark (messages) (message size) (latency in us) (bandwidth in bytes/s) (loss) (seed)
+ */
+public class SimulationBenchmark
+{
+    // Port the receiving arbiter listens on
+    private static final int LISTEN_PORT = 7000;
+    // Longest a run can take, in virtual nanoseconds
+    private static final long TIME_LIMIT = 600 * 1000000000L;
+
+    public static void main(String[] args) throws Exception
+    {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int messageSize = Math.max(8, args.length > 1 ? Integer.parseInt(args[1]) : 256);
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 20000;
+        long bandwidth = args.length > 3 ? Long.parseLong(args[3]) : 1250000;
+        double loss = args.length > 4 ? Double.parseDouble(args[4]) : 0.01;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+
+        LinkProfile profile = new LinkProfile(latency, bandwidth, loss);
+        System.out.printf("%d messages of %d bytes over %s%n", messages, messageSize, profile);
+
+        Result first = new Scenario(messages, messageSize, profile, seed).play();
+        Result second = new Scenario(messages, messageSize, profile, seed).play();
+
+        first.print();
+        System.out.println(first.equals(second) ? "Both runs played out the same" : "Runs differed:");
+
+        if (!first.equals(second))
+            second.print();
+    }
+
+    /**
+     * One run of the benchmark
+     */
+    private static class Scenario
+    {
+        private final int messages;
+        private final int messageSize;
+        private final SimNetwork network;
+
+        // Shared by the endpoints, which only run one at a time
+        private int connID = -1;
+        private boolean isConnectDone = false;
+        private int received = 0;
+        private long firstSent = -1;
+        private long lastReceived = 0;
+        private final long[] latencies;
+
+        Scenario(int messages, int messageSize, LinkProfile profile, long seed)
+        {
+            this.messages = messages;
+            this.messageSize = messageSize;
+            this.latencies = new long[messages];
+            this.network = new SimNetwork(seed, LinkProfile.LOCAL);
+            this.network.setProfile(LISTEN_PORT, profile);
+        }
+
+        Result play()
+        {
+            // Arbiters have to be made on the virtual clock
+            Clock.set(network.getClock());
+
+            try
+            {
+                SimSocketChannel[] receiverLink = network.openPair(LinkProfile.LOCAL);
+                SimSocketChannel[] senderLink = network.openPair(LinkProfile.LOCAL);
+                NetArbiter receiverArbiter = new NetArbiter(network);
+                NetArbiter senderArbiter = new NetArbiter(network);
+                Endpoint receiver = new Endpoint(receiverLink[1]);
+                Endpoint sender = new Endpoint(senderLink[1]);
+
+                network.spawn("receiver-arbiter", () -> receiverArbiter.runEndpoint(receiverLink[0]));
+                network.spawn("sender-arbiter", () -> senderArbiter.runEndpoint(senderLink[0]));
+                network.spawn("receiver", () -> receive(receiver));
+                network.spawn("sender-acks", () -> drainAcks(sender));
+                network.spawn("sender", () -> send(sender));
+
+                long start = System.nanoTime();
+                boolean isDone = network.run(TIME_LIMIT);
+                long realTime = System.nanoTime() - start;
+
+                if (!isDone)
+                    System.out.printf("Stuck after %.1f ms, with %d of %d messages received%n", network.getTime() / 1e6, received, messages);
+
+                return new Result(messages, messageSize, lastReceived - firstSent, latencies,
+                        network.getSegmentsLost(), network.getEventCount(), realTime);
+            }
+            finally
+            {
+                Clock.set(Clock.SYSTEM);
+            }
+        }
+
+        private void receive(Endpoint receiver)
+        {
+            try
+            {
+                ByteBuffer listen = ByteBuffer.allocate(2);
+                listen.putShort((short) LISTEN_PORT).flip();
+                receiver.command('L', listen);
+
+                ByteBuffer frame;
+
+                while ((frame = receiver.nextFrame()) != null)
+                {
+                    byte packetID = frame.get(2);
+
+                    if (packetID == 'R')
+                    {
+                        long stamp = frame.getLong(5);
+                        latencies[received++] = network.getTime() - stamp;
+                        lastReceived = network.getTime();
+                    }
+                    else if (packetID == 'F')
+                    {
+                        // Sender hung up
+                        receiver.command('X', ByteBuffer.allocate(0));
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void drainAcks(Endpoint sender)
+        {
+            try
+            {
+                ByteBuffer frame;
+
+                while ((frame = sender.nextFrame()) != null)
+                {
+                    // The connect ack is the first one
+                    if (frame.get(2) == 'E' && !isConnectDone)
+                    {
+                        connID = frame.getInt(5);
+                        isConnectDone = true;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void send(Endpoint sender)
+        {
+            try
+            {
+                // Give the receiver a moment to start listening
+                network.sleep(1000000L);
+
+                byte[] host = "localhost".getBytes();
+                ByteBuffer connect = ByteBuffer.allocate(2 + 1 + host.length);
+                connect.putShort((short) LISTEN_PORT).put((byte) host.length).put(host).flip();
+                sender.command('C', connect);
+
+                network.waitUntil(() -> isConnectDone);
+
+                if (connID < 0)
+                {
+                    System.out.println("Couldn't connect: " + connID);
+                    sender.command('X', ByteBuffer.allocate(0));
+                    return;
+                }
+
+                ByteBuffer write = ByteBuffer.allocate(2 + messageSize);
+                firstSent = network.getTime();
+
+                for (int i = 0; i < messages; i++)
+                {
+                    write.clear();
+                    write.putShort((short) connID).putLong(network.getTime());
+                    write.position(write.limit()).flip();
+                    sender.command('W', write);
+                }
+
+                network.waitUntil(() -> received == messages);
+                sender.command('X', ByteBuffer.allocate(0));
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Endpoint talking to an arbiter over a blocking channel
+     */
+    private static class Endpoint
+    {
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(5);
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        private int sequence = 0;
+
+        Endpoint(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void command(char packetID, ByteBuffer payload) throws IOException
+        {
+            header.clear();
+            header.putShort((short) (5 + payload.remaining())).putShort((short) sequence++).put((byte) packetID).flip();
+
+            while (header.hasRemaining())
+                channel.write(header);
+
+            while (payload.hasRemaining())
+                channel.write(payload);
+        }
+
+        /**
+         * Reads the next frame, skipping pokes
+         * @return The frame after its length, or null if the arbiter hung up
+         */
+        ByteBuffer nextFrame() throws IOException
+        {
+            int frameLength;
+
+            do
+            {
+                length.clear();
+
+                if (!readFully(length))
+                    return null;
+
+                frameLength = length.getShort(0) & 0xFFFF;
+            } while (frameLength == 0);
+
+            ByteBuffer frame = ByteBuffer.allocate(frameLength - 2);
+            return readFully(frame) ? frame : null;
+        }
+
+        private boolean readFully(ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) == -1)
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Measurements of one run
+     */
+    private static class Result
+    {
+        final int messages;
+        final int messageSize;
+        // Time from the first message sent to the last received, in
+        // virtual nanoseconds
+        final long duration;
+        final long[] latencies;
+        final long segmentsLost;
+        final long events;
+        final long realTime;
+
+        Result(int messages, int messageSize, long duration, long[] latencies, long segmentsLost, long events, long realTime)
+        {
+            this.messages = messages;
+            this.messageSize = messageSize;
+            this.duration = duration;
+            this.latencies = latencies.clone();
+            this.segmentsLost = segmentsLost;
+            this.events = events;
+            this.realTime = realTime;
+        }
+
+        void print()
+        {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+
+            double seconds = duration / 1e9;
+            System.out.printf("Delivered in %.1f ms: %.0f msg/s, %.1f KiB/s%n",
+                    duration / 1e6, messages / seconds, messages * (double) messageSize / 1024 / seconds);
+            System.out.printf("Latency: p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6, sorted[sorted.length - 1] / 1e6);
+            System.out.printf("%d segments lost, %d network events, simulated in %.0f ms%n",
+                    segmentsLost, events, realTime / 1e6);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Result))
+                return false;
+
+            Result result = (Result) other;
+            return duration == result.duration && segmentsLost == result.segmentsLost
+                    && events == result.events && Arrays.equals(latencies, result.latencies);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Arrays.hashCode(latencies);
+        }
+    }
+
+}
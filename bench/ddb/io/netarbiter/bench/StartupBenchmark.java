@@ -0,0 +1,121 @@
+package ddb.io.netarbiter.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup Latency Benchmark
+ * Measures the time from launching the arbiter process until the endpoint
+ * port accepts connections, with and without the class data sharing archive.
+ *
+ * Usage: StartupBenchmark [path to net-arbiter.jar] (runs)
+ * The archive is expected next to the jar as net-arbiter.jsa
+ */
+public class StartupBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: StartupBenchmark [net-arbiter.jar] (runs)");
+            return;
+        }
+
+        File jar = new File(args[0]);
+        File archive = new File(jar.getParentFile(), "net-arbiter.jsa");
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        // Warm up the disk cache
+        measure(jar, null);
+
+        report("Default", jar, null, runs);
+
+        if (archive.exists())
+            report("AppCDS ", jar, archive, runs);
+        else
+            System.out.println("No archive at " + archive + ", run \"ant cds\" first");
+    }
+
+    private static void report(String name, File jar, File archive, int runs) throws Exception
+    {
+        long[] samples = new long[runs];
+
+        for (int i = 0; i < runs; i++)
+            samples[i] = measure(jar, archive);
+
+        Arrays.sort(samples);
+
+        long total = 0;
+        for (long sample : samples)
+            total += sample;
+
+        System.out.printf("%s: min %6.1f ms, median %6.1f ms, mean %6.1f ms%n",
+                name,
+                samples[0] / 1e6,
+                samples[runs / 2] / 1e6,
+                total / (double) runs / 1e6);
+    }
+
+    /**
+     * Launches an arbiter and waits for its endpoint port to accept
+     * @return The time until the connection was accepted, in nanoseconds
+     */
+    private static long measure(File jar, File archive) throws Exception
+    {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            port = probe.getLocalPort();
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-XX:+UseSerialGC");
+
+        if (archive != null)
+            command.add("-XX:SharedArchiveFile=" + archive.getPath());
+
+        command.add("-jar");
+        command.add(jar.getPath());
+        command.add("--endpointPort=" + port);
+
+        long start = System.nanoTime();
+        Process arbiter = new ProcessBuilder(command).inheritIO().start();
+
+        try
+        {
+            while (true)
+            {
+                try (Socket endpoint = new Socket("localhost", port))
+                {
+                    long elapsed = System.nanoTime() - start;
+
+                    // Shut the arbiter down
+                    OutputStream out = endpoint.getOutputStream();
+                    out.write(new byte[] { 0, 5, 0, 0, 'X' });
+                    out.flush();
+
+                    arbiter.waitFor(5, TimeUnit.SECONDS);
+                    return elapsed;
+                }
+                catch (IOException e)
+                {
+                    // Not up yet
+                    Thread.sleep(1);
+                }
+            }
+        }
+        finally
+        {
+            arbiter.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,368 @@
+package ddb.io.netarbiter.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Super-frame Benchmark
+ * Runs two arbiters and plays both of their endpoints. One endpoint sends
+ * small messages as fast as possible, and the other receives them the way
+ * the Turing library does: checking for available data, then reading the
+ * length and the rest of each frame with separate calls. Every call is
+ * charged a fixed cost, standing in for Turing's slow network I/O.
+ *
+ * The messages are received once as single frames, and once packed into
+ * super-frames, reporting the message rate and the calls per message.
+ *
+ * Usage: SuperFrameBenchmark [arbiter classpath] (messages) (message size) (call cost in us)
+ */
+public class SuperFrameBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: SuperFrameBenchmark [arbiter classpath] (messages) (message size) (call cost in us)");
+            return;
+        }
+
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int callCost = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        int receiverPort = freePort(), listenPort = freePort(), senderPort = freePort();
+        Process receiverArbiter = launch(args[0], "--endpointPort=" + receiverPort, "--listenPort=" + listenPort);
+        Process senderArbiter = launch(args[0], "--endpointPort=" + senderPort);
+
+        try (Socket senderSocket = connect(senderPort);
+             Socket receiverSocket = connect(receiverPort))
+        {
+            Sender sender = new Sender(senderSocket);
+            Receiver receiver = new Receiver(receiverSocket, callCost);
+
+            int connID = sender.connect(listenPort);
+            receiver.awaitResponse('N');
+            sender.startDraining();
+
+            byte[] message = new byte[messageSize];
+
+            for (boolean isSuperFramed : new boolean[] { false, true })
+            {
+                receiver.setSuperFrames(isSuperFramed);
+
+                // Warm up
+                run(sender, receiver, connID, message, messages / 4);
+
+                long calls = receiver.calls;
+                long start = System.nanoTime();
+                run(sender, receiver, connID, message, messages);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                System.out.printf("%s: %9.0f msg/s, %5.2f calls per message%n",
+                        isSuperFramed ? "Super-frames " : "Single frames",
+                        messages / seconds, (receiver.calls - calls) / (double) messages);
+            }
+
+            sender.exit();
+            receiver.exit();
+
+            // Let the arbiters finish sending before hanging up
+            receiverArbiter.waitFor(5, TimeUnit.SECONDS);
+            senderArbiter.waitFor(5, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            receiverArbiter.destroy();
+            senderArbiter.destroy();
+        }
+    }
+
+    private static void run(Sender sender, Receiver receiver, int connID, byte[] message, int count) throws Exception
+    {
+        for (int i = 0; i < count; i++)
+            sender.write(connID, message);
+
+        sender.flush();
+        receiver.receive(count);
+    }
+
+    private static Process launch(String classpath, String... args) throws IOException
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String[] command = new String[4 + args.length];
+        command[0] = java;
+        command[1] = "-cp";
+        command[2] = classpath;
+        command[3] = "ddb.io.netarbiter.NetArbiter";
+        System.arraycopy(args, 0, command, 4, args.length);
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static Socket connect(int port) throws Exception
+    {
+        // Wait for the arbiter to come up
+        while (true)
+        {
+            try
+            {
+                Socket socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+            catch (IOException e)
+            {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void command(DataOutputStream out, int sequence, char packetID, byte[] payload) throws IOException
+    {
+        out.writeShort(5 + payload.length);
+        out.writeShort(sequence);
+        out.writeByte(packetID);
+        out.write(payload);
+    }
+
+    /**
+     * Endpoint sending the messages, which throws away its acks
+     */
+    private static class Sender
+    {
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private int sequence = 0;
+
+        Sender(Socket socket) throws IOException
+        {
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        }
+
+        int connect(int port) throws IOException
+        {
+            byte[] host = "localhost".getBytes();
+            ByteBuffer payload = ByteBuffer.allocate(2 + 1 + host.length);
+            payload.putShort((short) port).put((byte) host.length).put(host);
+
+            command(out, sequence++, 'C', payload.array());
+            out.flush();
+
+            // Connect ack is the first response
+            while (true)
+            {
+                int length = in.readUnsignedShort();
+
+                if (length == 0)
+                    continue;
+
+                byte[] frame = new byte[length - 2];
+                in.readFully(frame);
+
+                if (frame[2] == 'E')
+                    return ByteBuffer.wrap(frame, 5, 4).getInt();
+            }
+        }
+
+        void startDraining()
+        {
+            Thread drainer = new Thread(() -> {
+                try
+                {
+                    while (true)
+                        in.skipBytes(Math.max(in.available(), 1));
+                }
+                catch (IOException e)
+                {
+                    // Arbiter went away
+                }
+            }, "bench-sender-drain");
+
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        void write(int connID, byte[] message) throws IOException
+        {
+            ByteBuffer payload = ByteBuffer.allocate(2 + message.length);
+            payload.putShort((short) connID).put(message);
+            command(out, sequence++, 'W', payload.array());
+        }
+
+        void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        void exit() throws IOException
+        {
+            command(out, sequence++, 'X', new byte[0]);
+            out.flush();
+        }
+    }
+
+    /**
+     * Endpoint receiving the messages like the Turing library
+     */
+    private static class Receiver
+    {
+        private final InputStream in;
+        private final DataOutputStream out;
+        private final long callCost;
+        private int sequence = 0;
+        // Calls made to the network so far
+        long calls = 0;
+        // Read frames received since receive was called
+        private int reads = 0;
+        // Packet ID of the last response received
+        private int lastResponse = -1;
+
+        Receiver(Socket socket, int callCost) throws IOException
+        {
+            in = socket.getInputStream();
+            out = new DataOutputStream(socket.getOutputStream());
+            this.callCost = callCost * 1000L;
+        }
+
+        void setSuperFrames(boolean isSuperFramed) throws IOException
+        {
+            command(out, sequence++, 'M', new byte[] { (byte) (isSuperFramed ? 1 : 0) });
+            out.flush();
+            awaitResponse('E');
+        }
+
+        void exit() throws IOException
+        {
+            command(out, sequence++, 'X', new byte[0]);
+            out.flush();
+        }
+
+        void awaitResponse(char packetID) throws IOException
+        {
+            lastResponse = -1;
+
+            while (lastResponse != packetID)
+                handle(nextFrame());
+        }
+
+        void receive(int count) throws IOException
+        {
+            reads = 0;
+
+            while (reads < count)
+            {
+                // Poll first, like Net.BytesAvailable
+                call();
+
+                if (in.available() == 0)
+                    continue;
+
+                handle(nextFrame());
+            }
+        }
+
+        private byte[] nextFrame() throws IOException
+        {
+            int length;
+
+            do
+            {
+                byte[] header = read(2);
+                length = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+            } while (length == 0);
+
+            return read(length - 2);
+        }
+
+        private void handle(byte[] frame)
+        {
+            if (frame[2] != 'T')
+            {
+                handle(frame, 0, frame.length);
+                return;
+            }
+
+            // Take the packets out of memory
+            int offset = 3;
+
+            while (offset + 2 <= frame.length)
+            {
+                int length = ((frame[offset] & 0xFF) << 8) | (frame[offset + 1] & 0xFF);
+
+                if (length == 0)
+                {
+                    offset += 2;
+                    continue;
+                }
+
+                handle(frame, offset + 2, length - 2);
+                offset += length;
+            }
+        }
+
+        private void handle(byte[] frame, int offset, int length)
+        {
+            byte packetID = frame[offset + 2];
+
+            if (packetID == 'R')
+                reads++;
+            else
+                lastResponse = packetID;
+        }
+
+        /**
+         * Reads a whole block of data with a single call
+         */
+        private byte[] read(int size) throws IOException
+        {
+            call();
+
+            byte[] data = new byte[size];
+            int filled = 0;
+
+            while (filled < size)
+            {
+                int amount = in.read(data, filled, size - filled);
+
+                if (amount == -1)
+                    throw new EOFException();
+
+                filled += amount;
+            }
+
+            return data;
+        }
+
+        private void call()
+        {
+            calls++;
+
+            long end = System.nanoTime() + callCost;
+
+            while (System.nanoTime() < end)
+            {
+                // Charge the call's cost
+            }
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package ddb.io.netarbiter.bench;
+
+import ddb.io.netarbiter.TlsContext;
+import ddb.io.netarbiter.TlsSession;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * TLS Link Benchmark
+ * Measures the handshake time of arbiter links with session resumption on
+ * and off, and the throughput of an encrypted link compared to a plaintext
+ * one. Everything runs over loopback inside of a single process.
+ *
+ * Usage: TlsBenchmark [key store] [password] (handshakes) (megabytes)
+ */
+public class TlsBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: TlsBenchmark [key store] [password] (handshakes) (megabytes)");
+            return;
+        }
+
+        int handshakes = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int megabytes = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+
+        TlsContext resumed = new TlsContext(args[0], null, args[1].toCharArray());
+        TlsContext full = new TlsContext(args[0], null, args[1].toCharArray());
+        full.setSessionResumption(false);
+
+        // Warm up both paths
+        measureHandshakes(resumed, handshakes / 4);
+        measureHandshakes(full, handshakes / 4);
+
+        report("Resumption off", measureHandshakes(full, handshakes));
+        report("Resumption on ", measureHandshakes(resumed, handshakes));
+
+        // Warm up the stream
+        measureThroughput(null, megabytes / 4);
+        measureThroughput(resumed, megabytes / 4);
+
+        System.out.printf("Plaintext: %8.1f MB/s%n", measureThroughput(null, megabytes));
+        System.out.printf("TLS:       %8.1f MB/s%n", measureThroughput(resumed, megabytes));
+    }
+
+    private static void report(String name, long[] samples)
+    {
+        Arrays.sort(samples);
+
+        long total = 0;
+        for (long sample : samples)
+            total += sample;
+
+        System.out.printf("%s: median %7.3f ms, p90 %7.3f ms, mean %7.3f ms%n",
+                name,
+                samples[samples.length / 2] / 1e6,
+                samples[samples.length * 9 / 10] / 1e6,
+                total / (double) samples.length / 1e6);
+    }
+
+    /**
+     * Opens & closes connections the way arbiters do: connect, handshake,
+     * then exchange the magic
+     * @return The time taken by each connection, in nanoseconds
+     */
+    private static long[] measureHandshakes(TlsContext context, int count) throws Exception
+    {
+        long[] samples = new long[count];
+
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress("localhost", 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+            Thread acceptor = new Thread(() -> {
+                try
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        try (SocketChannel channel = server.accept())
+                        {
+                            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                            TlsSession session = context.newServerSession();
+                            session.handshake(channel);
+                            readFully(channel, session, ByteBuffer.allocate(2));
+                            writeFully(channel, session, ByteBuffer.wrap(new byte[2]));
+                            session.close(channel);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }, "bench-acceptor");
+            acceptor.start();
+
+            for (int i = 0; i < count; i++)
+            {
+                long start = System.nanoTime();
+
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port)))
+                {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    TlsSession session = context.newClientSession("localhost", port);
+                    session.handshake(channel);
+                    writeFully(channel, session, ByteBuffer.wrap(new byte[2]));
+                    readFully(channel, session, ByteBuffer.allocate(2));
+                    samples[i] = System.nanoTime() - start;
+                    session.close(channel);
+                }
+            }
+
+            acceptor.join();
+        }
+
+        return samples;
+    }
+
+    /**
+     * Streams data over a single link
+     * @param context The TLS configuration, or null for a plaintext link
+     * @return The throughput, in megabytes per second
+     */
+    private static double measureThroughput(TlsContext context, int megabytes) throws Exception
+    {
+        final long total = megabytes * 1024L * 1024L;
+
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress("localhost", 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+            Thread sender = new Thread(() -> {
+                try (SocketChannel channel = server.accept())
+                {
+                    TlsSession session = context != null ? context.newServerSession() : null;
+
+                    if (session != null)
+                        session.handshake(channel);
+
+                    ByteBuffer chunk = ByteBuffer.allocateDirect(16 * 1024);
+
+                    for (long sent = 0; sent < total; sent += chunk.capacity())
+                    {
+                        chunk.clear();
+                        writeFully(channel, session, chunk);
+                    }
+
+                    if (session != null)
+                        session.close(channel);
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }, "bench-sender");
+            sender.start();
+
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port)))
+            {
+                TlsSession session = context != null ? context.newClientSession("localhost", port) : null;
+
+                if (session != null)
+                    session.handshake(channel);
+
+                ByteBuffer chunk = ByteBuffer.allocateDirect(16 * 1024);
+                long received = 0;
+                long start = System.nanoTime();
+
+                while (received < total)
+                {
+                    chunk.clear();
+                    int amount = session != null ? session.read(channel, chunk) : channel.read(chunk);
+
+                    if (amount < 0)
+                        break;
+
+                    received += amount;
+                }
+
+                long elapsed = System.nanoTime() - start;
+
+                if (session != null)
+                    session.close(channel);
+
+                sender.join();
+                return (received / (1024.0 * 1024.0)) / (elapsed / 1e9);
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, TlsSession session, ByteBuffer data) throws IOException
+    {
+        while (data.hasRemaining())
+        {
+            if (session != null)
+                session.write(channel, data);
+            else
+                channel.write(data);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, TlsSession session, ByteBuffer data) throws IOException
+    {
+        while (data.hasRemaining())
+        {
+            int amount = session != null ? session.read(channel, data) : channel.read(data);
+
+            if (amount < 0)
+                throw new IOException("Link closed early");
+        }
+    }
+
+}
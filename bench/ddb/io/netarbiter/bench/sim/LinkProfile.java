@@ -0,0 +1,85 @@
+package ddb.io.netarbiter.bench.sim;
+
+/**
+ * How a simulated link behaves
+ * Data is cut into segments, which take up the link for their size over the
+ * bandwidth, then arrive a fixed latency later. A lost segment is sent
+ * again after the retransmission delay, and holds back everything sent
+ * after it, like TCP does. The reader can only have a window's worth of
+ * data unread (or in flight) before the writer is made to wait.
+ */
+public class LinkProfile
+{
+    // Link between processes on the same machine
+    public static final LinkProfile LOCAL = new LinkProfile(0, 0, 0);
+
+    // Default largest segment sent, in bytes
+    public static final int SEGMENT_SIZE = 1460;
+    // Default most data that can be unread, in bytes
+    public static final int WINDOW = 256 * 1024;
+    // Default time until a lost segment is sent again, in microseconds
+    public static final long RETRANSMIT_DELAY = 200000;
+
+    final long latency;
+    final long bandwidth;
+    final double loss;
+    final long retransmitDelay;
+    final int window;
+    final int segmentSize;
+
+    /**
+     * Creates a new link profile, with the default window & retransmissions
+     * @param latency The one way latency, in microseconds
+     * @param bandwidth The bytes sent every second in each direction, or 0
+     *                  for unlimited
+     * @param loss The chance of losing each segment, between 0 and 1
+     */
+    public LinkProfile(long latency, long bandwidth, double loss)
+    {
+        this(latency, bandwidth, loss, RETRANSMIT_DELAY, WINDOW, SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new link profile
+     * @param latency The one way latency, in microseconds
+     * @param bandwidth The bytes sent every second in each direction, or 0
+     *                  for unlimited
+     * @param loss The chance of losing each segment, between 0 and 1
+     * @param retransmitDelay The time until a lost segment is sent again,
+     *                        in microseconds
+     * @param window The most data that can be unread, in bytes
+     * @param segmentSize The largest segment sent, in bytes
+     */
+    public LinkProfile(long latency, long bandwidth, double loss, long retransmitDelay, int window, int segmentSize)
+    {
+        this.latency = latency * 1000L;
+        this.bandwidth = bandwidth;
+        this.loss = loss;
+        this.retransmitDelay = retransmitDelay * 1000L;
+        this.window = window;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Gets the time a segment takes up the link for
+     * @param size The size of the segment, in bytes
+     * @return The time it takes to send the segment, in nanoseconds
+     */
+    long getTransmitTime(int size)
+    {
+        if (bandwidth <= 0)
+            return 0;
+
+        return size * 1000000000L / bandwidth;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%.1f ms latency, %s, %.2f%% loss",
+                latency / 1e6,
+                bandwidth > 0 ? String.format("%.0f KiB/s", bandwidth / 1024.0) : "unlimited bandwidth",
+                loss * 100);
+    }
+
+}
@@ -0,0 +1,241 @@
+package ddb.io.netarbiter.bench.sim;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * One direction of a simulated connection
+ * Writes wait in a send queue until the link is free, then go out in
+ * segments of whatever is queued (up to the segment size), like a kernel's
+ * send buffer, and arrive on the network's clock in the order they were
+ * written. Everything is done while holding the network's lock.
+ */
+class Pipe
+{
+    private final SimNetwork network;
+    private final LinkProfile profile;
+
+    // Data written that hasn't gone out on the link yet, and how far into
+    // the first chunk has been sent
+    private final ArrayDeque<byte[]> queued = new ArrayDeque<>();
+    private int sendOffset = 0;
+    private int queuedBytes = 0;
+    // Link is busy sending a segment
+    private boolean isSending = false;
+    // End of the stream went out on the link
+    private boolean isEndSent = false;
+
+    // Segments that made it to the reader, and how far into the first one
+    // has been read
+    private final ArrayDeque<byte[]> arrived = new ArrayDeque<>();
+    private int readOffset = 0;
+    // Bytes written that the reader hasn't taken yet, including the ones
+    // still in flight
+    private long unread = 0;
+    // Time the last segment arrives at, as nothing can overtake it
+    private long lastArrival = 0;
+
+    // Writer sent everything it is going to
+    private boolean isShutdown = false;
+    // End of the stream made it to the reader
+    private boolean isEnded = false;
+    // Reader went away, so anything still arriving is thrown away
+    private boolean isReaderClosed = false;
+
+    Pipe(SimNetwork network, LinkProfile profile)
+    {
+        this.network = network;
+        this.profile = profile;
+    }
+
+    boolean isReadable()
+    {
+        return !arrived.isEmpty() || isEnded;
+    }
+
+    boolean isWritable()
+    {
+        return isShutdown || isReaderClosed || unread < profile.window;
+    }
+
+    boolean isShutdown()
+    {
+        return isShutdown;
+    }
+
+    /**
+     * Sends as much as the window allows
+     * @param src The data to send
+     * @return The number of bytes sent
+     */
+    int write(ByteBuffer src)
+    {
+        if (isReaderClosed)
+        {
+            // Nobody is reading, so the data is as good as gone
+            int amount = src.remaining();
+            src.position(src.limit());
+            return amount;
+        }
+
+        int amount = (int) Math.min(src.remaining(), profile.window - unread);
+
+        if (amount <= 0)
+            return 0;
+
+        byte[] chunk = new byte[amount];
+        src.get(chunk);
+        queued.add(chunk);
+        queuedBytes += amount;
+        unread += amount;
+
+        if (!isSending)
+            sendNext();
+
+        return amount;
+    }
+
+    /**
+     * Takes in the data that arrived
+     * @param dst The buffer to put the data in
+     * @return The number of bytes read, or -1 if the writer shut the pipe
+     *         down and everything was read
+     */
+    int read(ByteBuffer dst)
+    {
+        if (arrived.isEmpty())
+            return isEnded ? -1 : 0;
+
+        int total = 0;
+
+        while (dst.hasRemaining() && !arrived.isEmpty())
+        {
+            byte[] segment = arrived.peek();
+            int amount = Math.min(dst.remaining(), segment.length - readOffset);
+
+            dst.put(segment, readOffset, amount);
+            readOffset += amount;
+            total += amount;
+
+            if (readOffset == segment.length)
+            {
+                arrived.poll();
+                readOffset = 0;
+            }
+        }
+
+        unread -= total;
+        return total;
+    }
+
+    /**
+     * Sends the end of the stream after everything written so far
+     */
+    void shutdown()
+    {
+        if (isShutdown)
+            return;
+
+        isShutdown = true;
+
+        if (!isSending)
+            sendNext();
+    }
+
+    /**
+     * Throws away everything that arrived, and everything still to come
+     */
+    void closeReader()
+    {
+        isReaderClosed = true;
+        queued.clear();
+        sendOffset = 0;
+        queuedBytes = 0;
+        arrived.clear();
+        readOffset = 0;
+        unread = 0;
+    }
+
+    /**
+     * Sends out the queued data, a segment at a time
+     * Each segment takes up the link for its transmit time, after which the
+     * next one is cut from whatever was queued in the meantime
+     */
+    private void sendNext()
+    {
+        while (true)
+        {
+            byte[] segment;
+
+            if (queuedBytes > 0)
+                segment = takeSegment();
+            else if (isShutdown && !isEndSent)
+            {
+                // End of the stream goes out after everything else
+                segment = null;
+                isEndSent = true;
+            }
+            else
+            {
+                isSending = false;
+                return;
+            }
+
+            long now = network.getTime();
+            long sendTime = profile.getTransmitTime(segment != null ? segment.length : 0);
+            long arrival = now + sendTime + profile.latency;
+
+            // The end of the stream is never lost, so that both sides always
+            // find out about it
+            while (segment != null && network.isLost(profile))
+                arrival += profile.retransmitDelay;
+
+            // Segments arrive in order, so a lost one holds back the rest
+            arrival = Math.max(arrival, lastArrival);
+            lastArrival = arrival;
+            network.schedule(arrival, () -> arrive(segment));
+
+            if (sendTime > 0)
+            {
+                // Link is busy until the segment is out
+                isSending = true;
+                network.schedule(now + sendTime, this::sendNext);
+                return;
+            }
+        }
+    }
+
+    private byte[] takeSegment()
+    {
+        byte[] segment = new byte[Math.min(queuedBytes, profile.segmentSize)];
+        int filled = 0;
+
+        while (filled < segment.length)
+        {
+            byte[] chunk = queued.peek();
+            int amount = Math.min(segment.length - filled, chunk.length - sendOffset);
+
+            System.arraycopy(chunk, sendOffset, segment, filled, amount);
+            sendOffset += amount;
+            filled += amount;
+
+            if (sendOffset == chunk.length)
+            {
+                queued.poll();
+                sendOffset = 0;
+            }
+        }
+
+        queuedBytes -= segment.length;
+        return segment;
+    }
+
+    private void arrive(byte[] segment)
+    {
+        if (segment == null)
+            isEnded = true;
+        else if (!isReaderClosed)
+            arrived.add(segment);
+    }
+
+}
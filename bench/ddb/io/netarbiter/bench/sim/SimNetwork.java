@@ -0,0 +1,490 @@
+package ddb.io.netarbiter.bench.sim;
+
+import ddb.io.netarbiter.Clock;
+
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.ProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+/**
+ * In-memory network running on virtual time
+ * Arbiters are given the network as their transport, and open their
+ * selectors & channels from it instead of the system. Connections made
+ * through the network are simulated with the link profile of the port they
+ * were made to.
+ *
+ * Everything that uses the network (arbiters, endpoints) runs as one of its
+ * participants. Each participant gets its own thread, but only one of them
+ * runs at a time: when the running participant has to wait on the network,
+ * the next participant that can go ahead (in turn) runs instead. Once none
+ * of them can, the clock jumps ahead to the next segment arriving or the
+ * next wait timing out. Given the same seed, every run plays out exactly
+ * the same, no matter how fast the machine is, and time spent computing
+ * doesn't count.
+ *
+ * Threads that aren't participants can still use the network, but aren't
+ * kept in step with the clock.
+ */
+public class SimNetwork extends SelectorProvider
+{
+    // Wall clock time the virtual clock starts at, in milliseconds
+    private static final long START_MILLIS = 1500000000000L;
+    // Time a poll that found nothing takes, so that busy loops let the
+    // clock move on, in nanoseconds
+    static final long POLL_TIME = 1000;
+    // First port handed out to ports bound to 0 & connecting channels
+    private static final int FIRST_PORT = 40000;
+
+    private final Random random;
+    private final LinkProfile defaultProfile;
+    private final Map<Integer, LinkProfile> profiles = new HashMap<>();
+    private final Map<Integer, SimServerSocketChannel> listeners = new HashMap<>();
+    private int nextPort = FIRST_PORT;
+
+    // Virtual time, in nanoseconds
+    private volatile long time = 0;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long eventCount = 0;
+    private long segmentsLost = 0;
+
+    private final List<Participant> participants = new ArrayList<>();
+    private final ThreadLocal<Participant> self = new ThreadLocal<>();
+    // Participant allowed to run, or null if none are
+    private Participant running = null;
+    // Next participant in turn to run
+    private int turn = 0;
+    private boolean isStarted = false;
+    // Nothing is left to happen, or the time limit was reached
+    private boolean isHalted = false;
+    private long timeLimit = Long.MAX_VALUE;
+
+    private final Clock clock = new Clock()
+    {
+        @Override
+        public long currentTimeMillis()
+        {
+            return START_MILLIS + time / 1000000L;
+        }
+
+        @Override
+        public long nanoTime()
+        {
+            return time;
+        }
+    };
+
+    /**
+     * Creates a new simulated network
+     * @param seed The seed for the segment losses
+     * @param defaultProfile The profile of links made to ports without
+     *                       their own
+     */
+    public SimNetwork(long seed, LinkProfile defaultProfile)
+    {
+        this.random = new Random(seed);
+        this.defaultProfile = defaultProfile;
+    }
+
+    /**
+     * Gets the clock running on the network's virtual time
+     * @return The network's clock
+     */
+    public Clock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Gets the virtual time
+     * @return The time since the network was made, in nanoseconds
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    public long getEventCount()
+    {
+        return eventCount;
+    }
+
+    public long getSegmentsLost()
+    {
+        return segmentsLost;
+    }
+
+    /**
+     * Sets the profile of the links made to a port
+     * @param port The port links are made to
+     * @param profile The profile of the links
+     */
+    public synchronized void setProfile(int port, LinkProfile profile)
+    {
+        profiles.put(port, profile);
+    }
+
+    /**
+     * Makes a connection without going through a listener, such as between
+     * an arbiter and its endpoint
+     * @param profile The profile of the link
+     * @return The channels at both ends of the connection
+     */
+    public synchronized SimSocketChannel[] openPair(LinkProfile profile)
+    {
+        SimSocketChannel first = new SimSocketChannel(this);
+        SimSocketChannel second = new SimSocketChannel(this);
+        Pipe toFirst = new Pipe(this, profile);
+        Pipe toSecond = new Pipe(this, profile);
+        int firstPort = nextPort++, secondPort = nextPort++;
+
+        first.attach(toFirst, toSecond, firstPort, secondPort, time);
+        second.attach(toSecond, toFirst, secondPort, firstPort, time);
+        return new SimSocketChannel[] { first, second };
+    }
+
+    /**
+     * Adds a participant, which runs once the network is (or if it already
+     * is) running
+     * @param name The name of the participant's thread
+     * @param body What the participant does
+     */
+    public synchronized void spawn(String name, Runnable body)
+    {
+        Participant participant = new Participant();
+        participant.thread = new Thread(() -> run(participant, body), name);
+        participant.thread.setDaemon(true);
+        participants.add(participant);
+
+        if (isStarted)
+            participant.thread.start();
+    }
+
+    /**
+     * Runs the participants until all of them are done
+     * @param timeLimit The virtual time to stop at, in nanoseconds
+     * @return True if all of the participants are done, or false if they
+     *         were stuck or ran out of time
+     */
+    public synchronized boolean run(long timeLimit)
+    {
+        this.timeLimit = timeLimit;
+        isStarted = true;
+
+        for (Participant participant : participants)
+            participant.thread.start();
+
+        passTurn();
+
+        while (!participants.isEmpty() && !isHalted)
+            waitQuietly();
+
+        return participants.isEmpty();
+    }
+
+    /**
+     * Waits in virtual time for a condition on state shared by participants
+     * @param isDone The condition to wait for
+     */
+    public void waitUntil(BooleanSupplier isDone)
+    {
+        await(isDone, Long.MAX_VALUE);
+    }
+
+    /**
+     * Lets virtual time pass
+     * @param duration The time to wait for, in nanoseconds
+     */
+    public void sleep(long duration)
+    {
+        await(() -> false, time + duration);
+    }
+
+    /// SelectorProvider ///
+    @Override
+    public DatagramChannel openDatagramChannel()
+    {
+        throw new UnsupportedOperationException("Datagrams aren't simulated");
+    }
+
+    @Override
+    public DatagramChannel openDatagramChannel(ProtocolFamily family)
+    {
+        throw new UnsupportedOperationException("Datagrams aren't simulated");
+    }
+
+    @Override
+    public java.nio.channels.Pipe openPipe()
+    {
+        throw new UnsupportedOperationException("Pipes aren't simulated");
+    }
+
+    @Override
+    public AbstractSelector openSelector()
+    {
+        return new SimSelector(this);
+    }
+
+    @Override
+    public SimServerSocketChannel openServerSocketChannel()
+    {
+        return new SimServerSocketChannel(this);
+    }
+
+    @Override
+    public SimSocketChannel openSocketChannel()
+    {
+        return new SimSocketChannel(this);
+    }
+
+    /// Channels ///
+    /**
+     * Binds a listener to a port
+     * @param listener The listener to bind
+     * @param port The port to bind to, or 0 for any free port
+     * @return The bound port
+     * @throws BindException If the port is already bound
+     */
+    synchronized int bind(SimServerSocketChannel listener, int port) throws BindException
+    {
+        if (port == 0)
+        {
+            while (listeners.containsKey(nextPort))
+                nextPort++;
+
+            port = nextPort++;
+        }
+
+        if (listeners.containsKey(port))
+            throw new BindException("Address already in use");
+
+        listeners.put(port, listener);
+        return port;
+    }
+
+    synchronized void unbind(int port)
+    {
+        listeners.remove(port);
+    }
+
+    /**
+     * Starts connecting a channel to a listener
+     * The listener finds out about the connection after the link's latency,
+     * and the channel is connected after a round trip
+     * @param client The channel connecting
+     * @param port The port the listener is bound to
+     * @throws ConnectException If nothing is listening on the port
+     */
+    synchronized void connect(SimSocketChannel client, int port) throws ConnectException
+    {
+        SimServerSocketChannel listener = listeners.get(port);
+
+        if (listener == null)
+            throw new ConnectException("Connection refused");
+
+        LinkProfile profile = profiles.getOrDefault(port, defaultProfile);
+        SimSocketChannel server = new SimSocketChannel(this);
+        Pipe toClient = new Pipe(this, profile);
+        Pipe toServer = new Pipe(this, profile);
+        int clientPort = nextPort++;
+
+        server.attach(toServer, toClient, port, clientPort, time);
+        client.attach(toClient, toServer, clientPort, port, time + 2 * profile.latency);
+        schedule(time + profile.latency, () -> listener.enqueue(server));
+    }
+
+    /**
+     * Schedules something to happen on the network
+     * @param when The virtual time to do it at
+     * @param action What to do
+     */
+    synchronized void schedule(long when, Runnable action)
+    {
+        events.add(new Event(when, eventCount++, action));
+    }
+
+    /**
+     * Rolls for a segment being lost
+     * @param profile The profile of the segment's link
+     * @return True if the segment was lost
+     */
+    synchronized boolean isLost(LinkProfile profile)
+    {
+        if (profile.loss <= 0 || random.nextDouble() >= profile.loss)
+            return false;
+
+        segmentsLost++;
+        return true;
+    }
+
+    /**
+     * Waits on the network
+     * Participants let the next participant run while they wait, and only
+     * pick back up once it is their turn again
+     * @param isReady The condition to wait for
+     * @param deadline The virtual time to stop waiting at, in nanoseconds
+     */
+    synchronized void await(BooleanSupplier isReady, long deadline)
+    {
+        if (isReady.getAsBoolean() || time >= deadline)
+            return;
+
+        Participant participant = self.get();
+
+        if (participant == null)
+        {
+            // Not kept in step, so just wait for the condition
+            while (!isReady.getAsBoolean() && !isHalted)
+                waitQuietly();
+
+            return;
+        }
+
+        participant.isReady = isReady;
+        participant.deadline = deadline;
+        passTurn();
+
+        while (running != participant)
+            waitQuietly();
+    }
+
+    /**
+     * Hands the turn to the next participant that can run, moving the clock
+     * ahead until one can
+     */
+    private void passTurn()
+    {
+        running = null;
+
+        while (!participants.isEmpty())
+        {
+            int count = participants.size();
+
+            for (int i = 0; i < count; i++)
+            {
+                int index = (turn + i) % count;
+                Participant next = participants.get(index);
+
+                if (next.isReady.getAsBoolean() || time >= next.deadline)
+                {
+                    turn = index + 1;
+                    running = next;
+                    notifyAll();
+                    return;
+                }
+            }
+
+            // Everyone is waiting, so skip to whatever happens next
+            long nextTime = events.isEmpty() ? Long.MAX_VALUE : events.peek().time;
+
+            for (Participant participant : participants)
+                nextTime = Math.min(nextTime, participant.deadline);
+
+            if (nextTime == Long.MAX_VALUE || nextTime > timeLimit)
+            {
+                isHalted = true;
+                break;
+            }
+
+            time = Math.max(time, nextTime);
+
+            while (!events.isEmpty() && events.peek().time <= time)
+                events.poll().action.run();
+        }
+
+        notifyAll();
+    }
+
+    private void run(Participant participant, Runnable body)
+    {
+        self.set(participant);
+
+        synchronized (this)
+        {
+            while (running != participant)
+                waitQuietly();
+        }
+
+        try
+        {
+            body.run();
+        }
+        catch (RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                int index = participants.indexOf(participant);
+                participants.remove(index);
+
+                if (index < turn)
+                    turn--;
+
+                passTurn();
+            }
+        }
+    }
+
+    private void waitQuietly()
+    {
+        try
+        {
+            wait();
+        }
+        catch (InterruptedException e)
+        {
+            // Participants only stop when their turn comes up
+        }
+    }
+
+    /**
+     * Thread using the network
+     */
+    private static class Participant
+    {
+        Thread thread;
+        // Runs as soon as its turn comes up
+        BooleanSupplier isReady = () -> true;
+        long deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Something scheduled to happen on the network
+     */
+    private static class Event implements Comparable<Event>
+    {
+        final long time;
+        // Events at the same time happen in the order they were scheduled
+        final long order;
+        final Runnable action;
+
+        Event(long time, long order, Runnable action)
+        {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other)
+        {
+            if (time != other.time)
+                return Long.compare(time, other.time);
+
+            return Long.compare(order, other.order);
+        }
+    }
+
+}
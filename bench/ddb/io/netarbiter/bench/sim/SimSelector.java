@@ -0,0 +1,270 @@
+package ddb.io.netarbiter.bench.sim;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.nio.channels.spi.AbstractSelector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Selector for channels on a simulated network
+ * Waiting on the selector waits in virtual time. Keys are selected in the
+ * order they were registered, so that the arbiter handles its channels in
+ * the same order on every run.
+ */
+class SimSelector extends AbstractSelector
+{
+    private final SimNetwork network;
+    private final Set<SelectionKey> keys = new LinkedHashSet<>();
+    private final Set<SelectionKey> selectedKeys = new LinkedHashSet<>();
+    private final Set<SelectionKey> publicKeys = Collections.unmodifiableSet(keys);
+    private boolean isWoken = false;
+
+    SimSelector(SimNetwork network)
+    {
+        super(network);
+        this.network = network;
+    }
+
+    @Override
+    protected SelectionKey register(AbstractSelectableChannel channel, int ops, Object attachment)
+    {
+        SimKey key = new SimKey(this, channel);
+        key.interestOps(ops);
+        key.attach(attachment);
+
+        synchronized (network)
+        {
+            keys.add(key);
+        }
+
+        return key;
+    }
+
+    @Override
+    public Set<SelectionKey> keys()
+    {
+        ensureOpen();
+        return publicKeys;
+    }
+
+    @Override
+    public Set<SelectionKey> selectedKeys()
+    {
+        ensureOpen();
+        return selectedKeys;
+    }
+
+    @Override
+    public int selectNow()
+    {
+        // Polls take a little bit of time, otherwise a busy loop would keep
+        // the clock from ever moving
+        return selectUntil(network.getTime() + SimNetwork.POLL_TIME);
+    }
+
+    @Override
+    public int select(long timeout)
+    {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Negative timeout");
+
+        if (timeout == 0)
+            return select();
+
+        return selectUntil(network.getTime() + timeout * 1000000L);
+    }
+
+    @Override
+    public int select()
+    {
+        return selectUntil(Long.MAX_VALUE);
+    }
+
+    @Override
+    public Selector wakeup()
+    {
+        synchronized (network)
+        {
+            isWoken = true;
+            network.notifyAll();
+        }
+
+        return this;
+    }
+
+    @Override
+    protected void implCloseSelector()
+    {
+        synchronized (network)
+        {
+            for (SelectionKey key : new ArrayList<>(keys))
+                deregister((AbstractSelectionKey) key);
+
+            keys.clear();
+            selectedKeys.clear();
+        }
+    }
+
+    /**
+     * Waits for any of the channels to be ready
+     * @param deadline The virtual time to stop waiting at
+     * @return The number of keys that were selected
+     */
+    private int selectUntil(long deadline)
+    {
+        synchronized (network)
+        {
+            ensureOpen();
+            removeCancelledKeys();
+
+            network.await(() -> isWoken || !isOpen() || isAnyReady(), deadline);
+
+            ensureOpen();
+            isWoken = false;
+            removeCancelledKeys();
+            return updateSelectedKeys();
+        }
+    }
+
+    private boolean isAnyReady()
+    {
+        for (SelectionKey key : keys)
+        {
+            if (key.isValid() && (key.interestOps() & getReadyOps(key.channel())) != 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    private int updateSelectedKeys()
+    {
+        int updated = 0;
+
+        for (SelectionKey key : keys)
+        {
+            if (!key.isValid())
+                continue;
+
+            int ready = key.interestOps() & getReadyOps(key.channel());
+
+            if (ready == 0)
+                continue;
+
+            SimKey simKey = (SimKey) key;
+
+            if (selectedKeys.add(key))
+                simKey.readyOps = ready;
+            else
+                simKey.readyOps |= ready;
+
+            updated++;
+        }
+
+        return updated;
+    }
+
+    private void removeCancelledKeys()
+    {
+        Set<SelectionKey> cancelled = cancelledKeys();
+
+        synchronized (cancelled)
+        {
+            for (SelectionKey key : cancelled)
+            {
+                keys.remove(key);
+                selectedKeys.remove(key);
+                deregister((AbstractSelectionKey) key);
+            }
+
+            cancelled.clear();
+        }
+    }
+
+    private void ensureOpen()
+    {
+        if (!isOpen())
+            throw new ClosedSelectorException();
+    }
+
+    private static int getReadyOps(SelectableChannel channel)
+    {
+        if (channel instanceof SimSocketChannel)
+            return ((SimSocketChannel) channel).getReadyOps();
+
+        if (channel instanceof SimServerSocketChannel)
+            return ((SimServerSocketChannel) channel).getReadyOps();
+
+        return 0;
+    }
+
+    /**
+     * Registration of a channel with a simulated selector
+     */
+    private static class SimKey extends AbstractSelectionKey
+    {
+        private final SimSelector selector;
+        private final SelectableChannel channel;
+        private volatile int interestOps = 0;
+        int readyOps = 0;
+
+        SimKey(SimSelector selector, SelectableChannel channel)
+        {
+            this.selector = selector;
+            this.channel = channel;
+        }
+
+        @Override
+        public SelectableChannel channel()
+        {
+            return channel;
+        }
+
+        @Override
+        public Selector selector()
+        {
+            return selector;
+        }
+
+        @Override
+        public int interestOps()
+        {
+            ensureValid();
+            return interestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops)
+        {
+            ensureValid();
+
+            if ((ops & ~channel.validOps()) != 0)
+                throw new IllegalArgumentException("Invalid interest set");
+
+            interestOps = ops;
+            return this;
+        }
+
+        @Override
+        public int readyOps()
+        {
+            ensureValid();
+            return readyOps;
+        }
+
+        private void ensureValid()
+        {
+            if (!isValid())
+                throw new CancelledKeyException();
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package ddb.io.netarbiter.bench.sim;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NotYetBoundException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server socket channel on a simulated network
+ * Connections show up to be accepted once their first packet would have
+ * made it across the link.
+ */
+public class SimServerSocketChannel extends ServerSocketChannel
+{
+    private static final Set<SocketOption<?>> OPTIONS = Collections.unmodifiableSet(new HashSet<>(Collections.singletonList(
+            StandardSocketOptions.SO_REUSEADDR)));
+
+    private final SimNetwork network;
+    private final Map<SocketOption<?>, Object> options = new HashMap<>();
+    private final ArrayDeque<SimSocketChannel> backlog = new ArrayDeque<>();
+    // Bound port, or 0 if not bound yet
+    private int port = 0;
+
+    SimServerSocketChannel(SimNetwork network)
+    {
+        super(network);
+        this.network = network;
+    }
+
+    /**
+     * Adds a connection that made it to the listener
+     * @param channel The listener's end of the connection
+     */
+    void enqueue(SimSocketChannel channel)
+    {
+        // Connections arriving after the listener closed are hung up on
+        if (!isOpen())
+            channel.abort();
+        else
+            backlog.add(channel);
+    }
+
+    /**
+     * Gets the operations the channel is ready for
+     * @return OP_ACCEPT if a connection is waiting, otherwise 0
+     */
+    int getReadyOps()
+    {
+        return backlog.isEmpty() ? 0 : SelectionKey.OP_ACCEPT;
+    }
+
+    @Override
+    public ServerSocketChannel bind(SocketAddress local, int backlog) throws IOException
+    {
+        synchronized (network)
+        {
+            ensureOpen();
+
+            if (port != 0)
+                throw new AlreadyBoundException();
+
+            port = network.bind(this, local != null ? ((InetSocketAddress) local).getPort() : 0);
+        }
+
+        return this;
+    }
+
+    @Override
+    public <T> ServerSocketChannel setOption(SocketOption<T> name, T value) throws IOException
+    {
+        ensureOpen();
+
+        if (!OPTIONS.contains(name))
+            throw new UnsupportedOperationException("'" + name + "' not supported");
+
+        synchronized (network)
+        {
+            options.put(name, value);
+        }
+
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getOption(SocketOption<T> name) throws IOException
+    {
+        ensureOpen();
+
+        if (!OPTIONS.contains(name))
+            throw new UnsupportedOperationException("'" + name + "' not supported");
+
+        synchronized (network)
+        {
+            return (T) options.get(name);
+        }
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions()
+    {
+        return OPTIONS;
+    }
+
+    @Override
+    public ServerSocket socket()
+    {
+        throw new UnsupportedOperationException("Simulated channels don't have sockets");
+    }
+
+    @Override
+    public SocketChannel accept() throws IOException
+    {
+        // Checked outside of the network's lock, see SimSocketChannel.connect
+        boolean isBlocking = isBlocking();
+
+        synchronized (network)
+        {
+            ensureOpen();
+
+            if (port == 0)
+                throw new NotYetBoundException();
+
+            if (isBlocking)
+                network.await(() -> !isOpen() || !backlog.isEmpty(), Long.MAX_VALUE);
+
+            if (!isOpen())
+                throw new AsynchronousCloseException();
+
+            return backlog.poll();
+        }
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException
+    {
+        ensureOpen();
+
+        synchronized (network)
+        {
+            return port != 0 ? SimSocketChannel.getAddress(port) : null;
+        }
+    }
+
+    @Override
+    protected void implCloseSelectableChannel()
+    {
+        synchronized (network)
+        {
+            if (port != 0)
+                network.unbind(port);
+
+            while (!backlog.isEmpty())
+                backlog.poll().abort();
+        }
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block)
+    {
+        // Blocking calls wait on the network instead
+    }
+
+    private void ensureOpen() throws ClosedChannelException
+    {
+        if (!isOpen())
+            throw new ClosedChannelException();
+    }
+
+}
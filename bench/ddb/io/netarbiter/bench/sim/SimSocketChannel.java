@@ -0,0 +1,396 @@
+package ddb.io.netarbiter.bench.sim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ConnectionPendingException;
+import java.nio.channels.NoConnectionPendingException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Socket channel on a simulated network
+ * Closing the channel sends the end of the stream to the other side, and
+ * throws away anything that is still to arrive. Options are kept, but don't
+ * change how the channel behaves.
+ */
+public class SimSocketChannel extends SocketChannel
+{
+    private static final Set<SocketOption<?>> OPTIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            StandardSocketOptions.TCP_NODELAY,
+            StandardSocketOptions.SO_SNDBUF,
+            StandardSocketOptions.SO_RCVBUF,
+            StandardSocketOptions.SO_KEEPALIVE)));
+
+    private final SimNetwork network;
+    private final Map<SocketOption<?>, Object> options = new HashMap<>();
+
+    private Pipe input = null;
+    private Pipe output = null;
+    private int localPort = 0;
+    private int remotePort = 0;
+    // Time the connection is made at, or -1 if it isn't being made
+    private long connectTime = -1;
+    private boolean isConnected = false;
+    private boolean isInputShutdown = false;
+
+    SimSocketChannel(SimNetwork network)
+    {
+        super(network);
+        this.network = network;
+    }
+
+    /**
+     * Hooks the channel up to its connection
+     * @param input The pipe to read from
+     * @param output The pipe to write to
+     * @param localPort The port of this end
+     * @param remotePort The port of the other end
+     * @param connectTime The time the connection is made at
+     */
+    void attach(Pipe input, Pipe output, int localPort, int remotePort, long connectTime)
+    {
+        this.input = input;
+        this.output = output;
+        this.localPort = localPort;
+        this.remotePort = remotePort;
+        this.connectTime = connectTime;
+        this.isConnected = connectTime <= network.getTime();
+    }
+
+    /**
+     * Gets the operations the channel is ready for
+     * @return The ready operations (OP_CONNECT, OP_READ & OP_WRITE)
+     */
+    int getReadyOps()
+    {
+        if (!isConnected)
+            return connectTime >= 0 && network.getTime() >= connectTime ? SelectionKey.OP_CONNECT : 0;
+
+        int ops = 0;
+
+        if (isInputShutdown || input.isReadable())
+            ops |= SelectionKey.OP_READ;
+
+        if (output.isWritable())
+            ops |= SelectionKey.OP_WRITE;
+
+        return ops;
+    }
+
+    /**
+     * Hangs up on a connection that never made it to a listener
+     */
+    void abort()
+    {
+        output.shutdown();
+        input.closeReader();
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) throws IOException
+    {
+        ensureOpen();
+
+        // Ports are handed out when connecting, so the bound one isn't kept
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException
+    {
+        ensureOpen();
+
+        if (!OPTIONS.contains(name))
+            throw new UnsupportedOperationException("'" + name + "' not supported");
+
+        synchronized (network)
+        {
+            options.put(name, value);
+        }
+
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getOption(SocketOption<T> name) throws IOException
+    {
+        ensureOpen();
+
+        if (!OPTIONS.contains(name))
+            throw new UnsupportedOperationException("'" + name + "' not supported");
+
+        synchronized (network)
+        {
+            return (T) options.get(name);
+        }
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions()
+    {
+        return OPTIONS;
+    }
+
+    @Override
+    public SocketChannel shutdownInput() throws IOException
+    {
+        synchronized (network)
+        {
+            ensureConnected();
+            isInputShutdown = true;
+            input.closeReader();
+        }
+
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() throws IOException
+    {
+        synchronized (network)
+        {
+            ensureConnected();
+            output.shutdown();
+        }
+
+        return this;
+    }
+
+    @Override
+    public Socket socket()
+    {
+        throw new UnsupportedOperationException("Simulated channels don't have sockets");
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        synchronized (network)
+        {
+            return isConnected;
+        }
+    }
+
+    @Override
+    public boolean isConnectionPending()
+    {
+        synchronized (network)
+        {
+            return !isConnected && connectTime >= 0;
+        }
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException
+    {
+        // The blocking mode has to be checked outside of the network's lock,
+        // as registering with a selector holds the channel's lock while
+        // taking the network's
+        boolean isBlocking = isBlocking();
+
+        synchronized (network)
+        {
+            ensureOpen();
+
+            if (isConnected)
+                throw new AlreadyConnectedException();
+
+            if (connectTime >= 0)
+                throw new ConnectionPendingException();
+
+            network.connect(this, ((InetSocketAddress) remote).getPort());
+
+            if (isBlocking)
+                network.await(() -> !isOpen() || network.getTime() >= connectTime, connectTime);
+
+            return finishConnect();
+        }
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException
+    {
+        boolean isBlocking = isBlocking();
+
+        synchronized (network)
+        {
+            ensureOpen();
+
+            if (isConnected)
+                return true;
+
+            if (connectTime < 0)
+                throw new NoConnectionPendingException();
+
+            if (isBlocking)
+                network.await(() -> !isOpen() || network.getTime() >= connectTime, connectTime);
+
+            if (!isOpen())
+                throw new AsynchronousCloseException();
+
+            isConnected = network.getTime() >= connectTime;
+            return isConnected;
+        }
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException
+    {
+        ensureOpen();
+        return isConnected() ? getAddress(remotePort) : null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException
+    {
+        ensureOpen();
+        return isConnected() ? getAddress(localPort) : null;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return (int) read(new ByteBuffer[] { dst }, 0, 1);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        boolean isBlocking = isBlocking();
+
+        synchronized (network)
+        {
+            ensureConnected();
+
+            if (isInputShutdown)
+                return -1;
+
+            if (isBlocking)
+                network.await(() -> !isOpen() || input.isReadable(), Long.MAX_VALUE);
+
+            if (!isOpen())
+                throw new AsynchronousCloseException();
+
+            long total = 0;
+
+            for (int i = offset; i < offset + length; i++)
+            {
+                if (!dsts[i].hasRemaining())
+                    continue;
+
+                int amount = input.read(dsts[i]);
+
+                if (amount == -1)
+                    return total > 0 ? total : -1;
+
+                total += amount;
+
+                if (dsts[i].hasRemaining())
+                    break;
+            }
+
+            return total;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        boolean isBlocking = isBlocking();
+
+        synchronized (network)
+        {
+            ensureConnected();
+
+            if (output.isShutdown())
+                throw new ClosedChannelException();
+
+            long total = 0;
+
+            for (int i = offset; i < offset + length; i++)
+            {
+                while (srcs[i].hasRemaining())
+                {
+                    int amount = output.write(srcs[i]);
+                    total += amount;
+
+                    if (amount > 0)
+                        continue;
+
+                    // Blocking writes wait for the reader to catch up
+                    if (!isBlocking)
+                        return total;
+
+                    network.await(() -> !isOpen() || output.isWritable(), Long.MAX_VALUE);
+
+                    if (!isOpen())
+                        throw new AsynchronousCloseException();
+                }
+            }
+
+            return total;
+        }
+    }
+
+    @Override
+    protected void implCloseSelectableChannel()
+    {
+        synchronized (network)
+        {
+            if (output != null)
+                output.shutdown();
+
+            if (input != null)
+                input.closeReader();
+        }
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block)
+    {
+        // Blocking calls wait on the network instead
+    }
+
+    private void ensureOpen() throws ClosedChannelException
+    {
+        if (!isOpen())
+            throw new ClosedChannelException();
+    }
+
+    private void ensureConnected() throws ClosedChannelException
+    {
+        ensureOpen();
+
+        if (!isConnected)
+            throw new NotYetConnectedException();
+    }
+
+    static SocketAddress getAddress(int port)
+    {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+}
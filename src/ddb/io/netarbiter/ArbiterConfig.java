@@ -0,0 +1,77 @@
+package ddb.io.netarbiter;
+
+import java.io.File;
+
+/**
+ * Arbiter Configuration
+ * Settings taken from the command line, handed to each arbiter when it is
+ * made. Every arbiter keeps its own copy, so that the endpoints hosted by
+ * a daemon don't share any settings or state.
+ */
+public class ArbiterConfig
+{
+    // Drive the arbiter with a fake endpoint, for building the startup archive
+    boolean train = false;
+    // Key stores for encrypting links to other arbiters (null = plaintext)
+    String tlsKeyStore = null;
+    String tlsTrustStore = null;
+    String tlsPassword = "";
+    // Control bytes sent to the endpoint for every 1 KiB of read data
+    // (0 = control responses always go first)
+    int controlWeight = 0;
+    // Directory to capture traffic into (null = no capture)
+    File captureDirectory = null;
+    // Time lost links to other arbiters can be resumed in, in milliseconds
+    // (0 = connections are closed as soon as their link is lost)
+    long sessionGrace = Constants.SESSION_GRACE;
+    // Offer remote arbiters to send read frames as deltas of the last one
+    boolean isDeltaCodec = false;
+    // Open connections to the same remote as streams over a single link
+    boolean isMultiplexed = false;
+    // Read limits of each link to a remote arbiter, and of all of them
+    // together, in bytes & frames per second (0 = unlimited)
+    long linkReadBytes = 0;
+    long linkReadFrames = 0;
+    long totalReadBytes = 0;
+    long totalReadFrames = 0;
+    // Bounds of the size of each connection's reads, in bytes
+    int minReceiveSize = ReceiveBuffers.MIN_SIZE;
+    int maxReceiveSize = ReceiveBuffers.MAX_SIZE;
+    // How the event loop waits for its channels
+    WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    // Directory to spill the endpoint's backlog into (null = no spilling),
+    // and how much of it is kept in memory & allowed on disk, in bytes
+    File spillDirectory = null;
+    int spillMemory = SpillQueue.DEFAULT_MEMORY_LIMIT;
+    long spillDisk = SpillQueue.DEFAULT_DISK_LIMIT;
+
+    /**
+     * Makes a copy of the settings, for another arbiter
+     * @return The copy
+     */
+    public ArbiterConfig copy()
+    {
+        ArbiterConfig copy = new ArbiterConfig();
+        copy.train = train;
+        copy.tlsKeyStore = tlsKeyStore;
+        copy.tlsTrustStore = tlsTrustStore;
+        copy.tlsPassword = tlsPassword;
+        copy.controlWeight = controlWeight;
+        copy.captureDirectory = captureDirectory;
+        copy.sessionGrace = sessionGrace;
+        copy.isDeltaCodec = isDeltaCodec;
+        copy.isMultiplexed = isMultiplexed;
+        copy.linkReadBytes = linkReadBytes;
+        copy.linkReadFrames = linkReadFrames;
+        copy.totalReadBytes = totalReadBytes;
+        copy.totalReadFrames = totalReadFrames;
+        copy.minReceiveSize = minReceiveSize;
+        copy.maxReceiveSize = maxReceiveSize;
+        copy.waitStrategy = waitStrategy;
+        copy.spillDirectory = spillDirectory;
+        copy.spillMemory = spillMemory;
+        copy.spillDisk = spillDisk;
+        return copy;
+    }
+
+}
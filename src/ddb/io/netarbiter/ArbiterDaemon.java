@@ -0,0 +1,75 @@
+package ddb.io.netarbiter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Shared arbiter daemon
+ * Hosts the arbiters of many endpoints inside of a single process, instead
+ * of every Turing program launching its own.
+ *
+ * Every endpoint that connects to the daemon port gets its own NetArbiter,
+ * running on its own thread. Each arbiter has an isolated set of connection
+ * ids, and opens its own listening port with the Listen command.
+ */
+public class ArbiterDaemon
+{
+    private final int daemonPort;
+    private final TlsContext tlsContext;
+    private final ArbiterConfig config;
+    private int nextEndpointID = 0;
+
+    /**
+     * Creates a new daemon
+     * @param daemonPort The port endpoints connect to
+     * @param tlsContext The TLS configuration shared by all of the arbiters,
+     *                   or null for plaintext links
+     * @param config The settings each endpoint's arbiter starts out with
+     */
+    ArbiterDaemon(int daemonPort, TlsContext tlsContext, ArbiterConfig config)
+    {
+        this.daemonPort = daemonPort;
+        this.tlsContext = tlsContext;
+        this.config = config;
+    }
+
+    /**
+     * Accepts endpoints until the process is stopped
+     */
+    public void startDaemon()
+    {
+        try (ServerSocketChannel daemonServer = ServerSocketChannel.open())
+        {
+            daemonServer.bind(new InetSocketAddress(daemonPort));
+
+            ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Daemon waiting for endpoints on port {}", daemonPort);
+
+            while (true)
+            {
+                SocketChannel endpoint = daemonServer.accept();
+                int endpointID = nextEndpointID++;
+                // Each arbiter gets its own copy of the settings
+                ArbiterConfig endpointConfig = config.copy();
+                NetArbiter arbiter = new NetArbiter(-1, -1, endpointConfig);
+                arbiter.getConnectionManager().setTlsContext(tlsContext);
+                arbiter.setCaptureJournal(NetArbiter.openCapture(endpointConfig.captureDirectory, "endpoint-" + endpointID));
+                arbiter.setSpillQueue(NetArbiter.openSpill(endpointConfig, "endpoint-" + endpointID));
+
+                // Each endpoint gets its own event loop
+                Thread endpointThread = new Thread(() -> arbiter.runEndpoint(endpoint), "arbiter-endpoint-" + endpointID);
+                endpointThread.start();
+
+                if (ArbiterLog.isDebug())
+                    ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Endpoint #" + endpointID + " connected from " + endpoint.getRemoteAddress());
+            }
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to accept endpoints", e);
+            ArbiterLog.flush();
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+package ddb.io.netarbiter;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log for the arbiter's errors & debug messages
+ * Messages are put into a fixed ring of entries & printed out by a
+ * background thread, so that the event loop never waits on the console.
+ * The entries are handed out by a RingSequencer, and filled in place.
+ * Logging a message doesn't allocate: messages are constant templates, with
+ * up to two numbers filled in for each "{}" once they are printed, and the
+ * connection they are about is kept alongside them.
+ *
+ * The same error (message & exception) logged over and over is only printed
+ * once a second, followed by the number of times it was left out. If the
+ * ring fills up, messages are dropped & counted instead of holding up the
+ * thread logging them.
+ *
+ * Errors go to stderr, and debug messages (only logged with --debug) go to
+ * stdout.
+ */
+public final class ArbiterLog
+{
+    // Connection id for messages that aren't about a connection
+    public static final int NO_CONNECTION = Integer.MIN_VALUE;
+    // Connection id for messages about the endpoint (negative connection
+    // ids belong to multiplexed links)
+    public static final int ENDPOINT = Integer.MIN_VALUE + 1;
+
+    // Number of entries in the ring, a power of 2
+    private static final int CAPACITY = 4096;
+    // Time the same error is only printed once in, in milliseconds
+    private static final long REPEAT_WINDOW = 1000;
+
+    private static final byte DEBUG = 0;
+    private static final byte ERROR = 1;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile boolean isDebug = false;
+
+    // Ring of entries, claimed by any thread & printed by the log thread
+    private static final Entry[] entries = new Entry[CAPACITY];
+    private static final RingSequencer sequencer = new RingSequencer(CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long droppedReported = 0;
+
+    // Errors printed in the current window, and how many were left out
+    private static final Map<String, Repeat> repeats = new HashMap<>();
+
+    private static final Thread printer;
+    private static volatile boolean isPrinterParked = false;
+
+    static
+    {
+        for (int i = 0; i < CAPACITY; i++)
+            entries[i] = new Entry();
+
+        printer = new Thread(ArbiterLog::printLoop, "arbiter-log");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    private ArbiterLog() {}
+
+    public static boolean isDebug()
+    {
+        return isDebug;
+    }
+
+    public static void setDebug(boolean isDebug)
+    {
+        ArbiterLog.isDebug = isDebug;
+    }
+
+    /**
+     * Gets the number of messages that didn't fit in the ring
+     * @return The number of messages dropped so far
+     */
+    public static long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Logs a debug message
+     * @param connID The connection the message is about, or NO_CONNECTION
+     * @param message The message
+     */
+    public static void debug(int connID, String message)
+    {
+        if (isDebug)
+            log(DEBUG, connID, message, 0, 0, null);
+    }
+
+    /**
+     * Logs a debug message with a number
+     * @param connID The connection the message is about, or NO_CONNECTION
+     * @param message The message, with "{}" where the number goes
+     * @param first The number to fill in
+     */
+    public static void debug(int connID, String message, long first)
+    {
+        if (isDebug)
+            log(DEBUG, connID, message, first, 0, null);
+    }
+
+    /**
+     * Logs a debug message with two numbers
+     * @param connID The connection the message is about, or NO_CONNECTION
+     * @param message The message, with "{}" where each number goes
+     * @param first The first number to fill in
+     * @param second The second number to fill in
+     */
+    public static void debug(int connID, String message, long first, long second)
+    {
+        if (isDebug)
+            log(DEBUG, connID, message, first, second, null);
+    }
+
+    /**
+     * Logs an error
+     * @param connID The connection the error happened on, or NO_CONNECTION
+     * @param message What was being done when the error happened
+     * @param error The cause of the error
+     */
+    public static void error(int connID, String message, Throwable error)
+    {
+        log(ERROR, connID, message, 0, 0, error);
+    }
+
+    /**
+     * Logs an error that has no exception behind it, with two numbers
+     * @param connID The connection the error happened on, or NO_CONNECTION
+     * @param message What went wrong, with "{}" where each number goes
+     * @param first The first number to fill in
+     * @param second The second number to fill in
+     */
+    public static void error(int connID, String message, long first, long second)
+    {
+        log(ERROR, connID, message, first, second, null);
+    }
+
+    /**
+     * Prints out everything logged so far on the calling thread, along
+     * with the errors left out so far
+     * Used before the arbiter exits, as the log thread doesn't keep it alive
+     */
+    public static synchronized void flush()
+    {
+        printEntries();
+        printRepeats(Long.MAX_VALUE);
+    }
+
+    private static void log(byte level, int connID, String message, long first, long second, Throwable error)
+    {
+        long position = sequencer.claim();
+
+        // Still holding a message from the last time around
+        if (position < 0)
+        {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        Entry entry = entries[sequencer.slot(position)];
+        entry.time = Clock.get().currentTimeMillis();
+        entry.level = level;
+        entry.connID = connID;
+        entry.message = message;
+        entry.first = first;
+        entry.second = second;
+        entry.error = error;
+        // Hand the entry over to the log thread
+        sequencer.publish(position);
+
+        if (isPrinterParked)
+        {
+            isPrinterParked = false;
+            LockSupport.unpark(printer);
+        }
+    }
+
+    private static void printLoop()
+    {
+        while (true)
+        {
+            boolean isWaiting;
+
+            synchronized (ArbiterLog.class)
+            {
+                printEntries();
+                isWaiting = printRepeats(Clock.get().currentTimeMillis());
+            }
+
+            // Check once more after saying so, as an entry could have been
+            // added before the printer was marked as parked
+            isPrinterParked = true;
+
+            synchronized (ArbiterLog.class)
+            {
+                if (isReady())
+                {
+                    isPrinterParked = false;
+                    continue;
+                }
+            }
+
+            // Come back for the errors left out once their window is over
+            if (isWaiting)
+                LockSupport.parkNanos(REPEAT_WINDOW * 1000000L);
+            else
+                LockSupport.park();
+
+            isPrinterParked = false;
+        }
+    }
+
+    private static boolean isReady()
+    {
+        return sequencer.peek() >= 0;
+    }
+
+    private static void printEntries()
+    {
+        int slot;
+
+        while ((slot = sequencer.peek()) >= 0)
+        {
+            Entry entry = entries[slot];
+            print(entry);
+
+            // Let the entry be claimed again
+            entry.message = null;
+            entry.error = null;
+            sequencer.release();
+        }
+
+        long droppedNow = dropped.get();
+
+        if (droppedNow != droppedReported)
+        {
+            System.err.println("Log dropped " + (droppedNow - droppedReported) + " messages");
+            droppedReported = droppedNow;
+        }
+    }
+
+    private static void print(Entry entry)
+    {
+        PrintStream out = entry.level == ERROR ? System.err : System.out;
+        String line = format(entry);
+
+        if (entry.error == null)
+        {
+            out.println(line);
+            return;
+        }
+
+        // Only the first of the same errors in a window is printed
+        String key = entry.message + ':' + entry.error;
+        Repeat repeat = repeats.get(key);
+
+        if (repeat != null && entry.time - repeat.windowStart < REPEAT_WINDOW)
+        {
+            repeat.left++;
+            return;
+        }
+
+        if (repeat != null && repeat.left > 0)
+            out.println(repeat.line + " (left out " + repeat.left + " more times)");
+
+        repeats.put(key, new Repeat(entry.time, line));
+        out.println(line + ": " + entry.error);
+
+        for (StackTraceElement element : entry.error.getStackTrace())
+            out.println("\tat " + element);
+    }
+
+    /**
+     * Prints how often errors were left out, for the windows that are over
+     * @param now The current time, in milliseconds
+     * @return True if there are still errors in windows that aren't over
+     */
+    private static boolean printRepeats(long now)
+    {
+        boolean isWaiting = false;
+        Iterator<Repeat> iterator = repeats.values().iterator();
+
+        while (iterator.hasNext())
+        {
+            Repeat repeat = iterator.next();
+
+            if (now - repeat.windowStart < REPEAT_WINDOW)
+            {
+                isWaiting = true;
+                continue;
+            }
+
+            if (repeat.left > 0)
+                System.err.println(repeat.line + " (left out " + repeat.left + " more times)");
+
+            iterator.remove();
+        }
+
+        return isWaiting;
+    }
+
+    private static String format(Entry entry)
+    {
+        StringBuilder line = new StringBuilder();
+        line.append(TIME_FORMAT.format(Instant.ofEpochMilli(entry.time)));
+        line.append(entry.level == ERROR ? " ERROR " : " DEBUG ");
+
+        if (entry.connID == ENDPOINT)
+            line.append("Endpoint ");
+        else if (entry.connID < 0 && entry.connID != NO_CONNECTION)
+            line.append("Link #").append(entry.connID).append(' ');
+        else if (entry.connID != NO_CONNECTION)
+            line.append("Connection #").append(entry.connID).append(' ');
+
+        // Fill in the numbers
+        String message = entry.message;
+        int start = 0;
+        int placeholder = message.indexOf("{}");
+
+        for (int i = 0; i < 2 && placeholder != -1; i++)
+        {
+            line.append(message, start, placeholder).append(i == 0 ? entry.first : entry.second);
+            start = placeholder + 2;
+            placeholder = message.indexOf("{}", start);
+        }
+
+        line.append(message, start, message.length());
+        return line.toString();
+    }
+
+    /**
+     * Slot in the ring
+     */
+    private static class Entry
+    {
+        long time;
+        byte level;
+        int connID;
+        String message;
+        long first;
+        long second;
+        Throwable error;
+    }
+
+    /**
+     * Error printed in the current window
+     */
+    private static class Repeat
+    {
+        final long windowStart;
+        final String line;
+        int left = 0;
+
+        Repeat(long windowStart, String line)
+        {
+            this.windowStart = windowStart;
+            this.line = line;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package ddb.io.netarbiter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of direct buffers, grouped by capacity
+ * Used for buffers that are too big to allocate for every connection, like
+ * the encrypt & decrypt buffers of TLS sessions
+ */
+public class BufferPool
+{
+    // Maximum number of idle buffers kept around for each size
+    private static final int MAX_IDLE_BUFFERS = 64;
+
+    private final Map<Integer, ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+
+    /**
+     * Gets a cleared buffer from the pool, allocating one if there are none
+     * @param capacity The capacity of the buffer
+     * @return A buffer with exactly the given capacity
+     */
+    public synchronized ByteBuffer acquire(int capacity)
+    {
+        ArrayDeque<ByteBuffer> buffers = freeBuffers.get(capacity);
+
+        if (buffers == null || buffers.isEmpty())
+            return ByteBuffer.allocateDirect(capacity);
+
+        ByteBuffer buffer = buffers.pop();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer back to the pool
+     * @param buffer The buffer to return
+     */
+    public synchronized void release(ByteBuffer buffer)
+    {
+        if (buffer == null)
+            return;
+
+        ArrayDeque<ByteBuffer> buffers = freeBuffers.computeIfAbsent(buffer.capacity(), (size) -> new ArrayDeque<>());
+
+        if (buffers.size() < MAX_IDLE_BUFFERS)
+            buffers.push(buffer);
+    }
+
+}
@@ -0,0 +1,349 @@
+package ddb.io.netarbiter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traffic Capture Journal
+ * Records every frame that goes through an arbiter into a rolling set of
+ * memory-mapped segment files, so that the traffic can be looked at or
+ * replayed later on.
+ *
+ * Appending a record only copies it into the mapped segment. Segments are
+ * mapped ahead of time and retired by a background thread, so the event
+ * loop never waits on the disk. If the next segment isn't ready when the
+ * current one fills up, records are dropped (and counted) until it is.
+ *
+ * Segment files are named "[name]-[start time].[index].cap", and the
+ * oldest segments of a run are deleted once there are too many of them.
+ *
+ * Segment Format:
+ * magic:          4 bytes ("ARBC")
+ * version:        2 bytes
+ * reserved:       2 bytes
+ * wallClock:      8 bytes (milliseconds since the epoch)
+ * monoClock:      8 bytes (nanoseconds, same clock as the record timestamps)
+ * records:        ...
+ *
+ * Record Format:
+ * frameLength:    2 bytes (0 = end of the segment)
+ * timestamp:      8 bytes (nanoseconds)
+ * connID:         2 bytes (-1 for the endpoint)
+ * direction:      1 byte
+ * frame:          "frameLength" bytes
+ */
+public class CaptureJournal implements Closeable
+{
+    // Frame directions
+    public static final byte INBOUND  = 0;
+    public static final byte OUTBOUND = 1;
+
+    public static final int MAGIC = 0x41524243;
+    public static final short VERSION = 1;
+    public static final int SEGMENT_HEADER_SIZE = 24;
+    public static final int RECORD_HEADER_SIZE = 13;
+    public static final String SEGMENT_SUFFIX = ".cap";
+
+    // Default size of each segment
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // Default number of segments kept around for each run
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private final File directory;
+    private final String runName;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // Maps & retires the segments off of the event loop
+    private final ExecutorService worker;
+
+    private MappedByteBuffer segment;
+    private int segmentIndex = 0;
+    private Future<MappedByteBuffer> nextSegment;
+    // Segment files that couldn't be deleted yet, as they were still mapped
+    // (only touched by the worker)
+    private final List<File> undeleted = new ArrayList<>();
+
+    private long recordCount = 0;
+    private long droppedCount = 0;
+
+    /**
+     * Starts a new capture run
+     * @param directory The directory to put the segment files in
+     * @param name The name of the capture
+     * @param segmentSize The size of each segment file, in bytes
+     * @param maxSegments The number of segment files to keep around
+     * @throws IOException If the first segment couldn't be created
+     */
+    public CaptureJournal(File directory, String name, int segmentSize, int maxSegments) throws IOException
+    {
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + 0xFFFF)
+            throw new IllegalArgumentException("Segments must be able to fit the largest frame");
+
+        if (maxSegments < 2)
+            throw new IllegalArgumentException("At least 2 segments are needed to roll over");
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create the capture directory " + directory);
+
+        this.directory = directory;
+        this.runName = name + "-" + System.currentTimeMillis();
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        this.worker = Executors.newSingleThreadExecutor((task) -> {
+            Thread thread = new Thread(task, "arbiter-capture-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Map the first segment up front, and the next one in the background
+        activate(mapSegment(0));
+        nextSegment = worker.submit(() -> mapSegment(1));
+    }
+
+    /**
+     * Starts a new capture run with the default segment size & count
+     * @param directory The directory to put the segment files in
+     * @param name The name of the capture
+     * @throws IOException If the first segment couldn't be created
+     */
+    public CaptureJournal(File directory, String name) throws IOException
+    {
+        this(directory, name, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Gets the file holding one of the run's segments
+     * @param index The index of the segment
+     * @return The segment's file
+     */
+    public File getSegmentFile(int index)
+    {
+        return new File(directory, String.format("%s.%06d%s", runName, index, SEGMENT_SUFFIX));
+    }
+
+    public long getRecordCount()
+    {
+        return recordCount;
+    }
+
+    public long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Appends a frame to the journal
+     * The source buffer's position & limit are left untouched
+     * @param connID The connection the frame was read from or sent to
+     * @param direction The direction of the frame (INBOUND or OUTBOUND)
+     * @param source The buffer containing the frame
+     * @param offset The offset of the frame in the buffer
+     * @param length The length of the frame
+     */
+    public void record(short connID, byte direction, ByteBuffer source, int offset, int length)
+    {
+        if (segment == null || length <= 0 || length > 0xFFFF)
+            return;
+
+        // Keep room for the end of segment marker
+        if (segment.remaining() < RECORD_HEADER_SIZE + length + 2 && !rollOver())
+        {
+            droppedCount++;
+            return;
+        }
+
+        segment.putShort((short) length);
+        segment.putLong(System.nanoTime());
+        segment.putShort(connID);
+        segment.put(direction);
+
+        int position = source.position();
+        int limit = source.limit();
+
+        source.limit(offset + length);
+        source.position(offset);
+        segment.put(source);
+
+        source.limit(limit);
+        source.position(position);
+
+        recordCount++;
+    }
+
+    /**
+     * Flushes out & closes the journal
+     * Waits for the background thread to finish up any retired segments
+     */
+    @Override
+    public void close()
+    {
+        if (segment == null)
+            return;
+
+        MappedByteBuffer last = segment;
+        int lastIndex = segmentIndex;
+        segment = null;
+
+        worker.execute(() -> retire(last, -1));
+
+        // The segment mapped ahead of time was never used
+        final Future<MappedByteBuffer> unused = nextSegment;
+        worker.execute(() -> {
+            try
+            {
+                unused.get();
+            }
+            catch (InterruptedException | ExecutionException ignored) {}
+
+            delete(getSegmentFile(lastIndex + 1));
+        });
+
+        worker.execute(() -> {
+            // Last resort for files that are still mapped
+            for (File file : undeleted)
+            {
+                ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Unable to delete a capture segment, deleting it on exit");
+                file.deleteOnExit();
+            }
+
+            undeleted.clear();
+        });
+
+        worker.shutdown();
+
+        try
+        {
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (droppedCount > 0)
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Capture dropped {} of {} records", droppedCount, recordCount + droppedCount);
+    }
+
+    /**
+     * Swaps in the segment that was mapped ahead of time
+     * @return False if the next segment isn't ready yet
+     */
+    private boolean rollOver()
+    {
+        if (!nextSegment.isDone())
+            return false;
+
+        MappedByteBuffer next;
+
+        try
+        {
+            next = nextSegment.get();
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            // Try mapping it again, records get dropped in the meantime
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to map the next capture segment", e);
+            final int index = segmentIndex + 1;
+            nextSegment = worker.submit(() -> mapSegment(index));
+            return false;
+        }
+
+        // Mark the end of the full segment, then hand it off
+        if (segment.remaining() >= 2)
+            segment.putShort((short) 0);
+
+        // The new segment pushes the oldest one out of the window
+        final MappedByteBuffer full = segment;
+        final int expired = segmentIndex + 1 - maxSegments;
+        worker.execute(() -> retire(full, expired));
+
+        segmentIndex++;
+        activate(next);
+
+        final int index = segmentIndex + 1;
+        nextSegment = worker.submit(() -> mapSegment(index));
+        return true;
+    }
+
+    /**
+     * Starts appending records to a new segment
+     * @param next The segment to append records to
+     */
+    private void activate(MappedByteBuffer next)
+    {
+        segment = next;
+        segment.putInt(MAGIC);
+        segment.putShort(VERSION);
+        segment.putShort((short) 0);
+        segment.putLong(System.currentTimeMillis());
+        segment.putLong(System.nanoTime());
+    }
+
+    /**
+     * Creates & maps a segment file
+     * New files are zero filled, so a record length of 0 marks the end of
+     * the records written so far
+     * @param index The index of the segment
+     * @return The mapped segment
+     * @throws IOException If the segment couldn't be created
+     */
+    private MappedByteBuffer mapSegment(int index) throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(index), "rw"))
+        {
+            file.setLength(segmentSize);
+            MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+            // Fault the pages in here, rather than in the event loop
+            for (int page = 0; page < segmentSize; page += 4096)
+                mapped.put(page, (byte) 0);
+
+            return mapped;
+        }
+    }
+
+    /**
+     * Writes a full segment out to disk, and deletes the segment that fell
+     * out of the run's window
+     * @param full The segment to write out
+     * @param expired The index of the segment to delete (negative for none)
+     */
+    private void retire(MappedByteBuffer full, int expired)
+    {
+        full.force();
+
+        if (expired >= 0)
+            delete(getSegmentFile(expired));
+    }
+
+    /**
+     * Deletes a segment file, along with the ones that couldn't be deleted
+     * before
+     * A mapping only goes away once its buffer is garbage collected, and
+     * some platforms (Windows) can't delete a mapped file until then, so
+     * those files are tried again on the next delete
+     * @param file The segment file to delete
+     */
+    private void delete(File file)
+    {
+        undeleted.removeIf((retired) -> retired.delete() || !retired.exists());
+
+        if (!file.delete() && file.exists())
+            undeleted.add(file);
+    }
+
+}
@@ -0,0 +1,146 @@
+package ddb.io.netarbiter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static ddb.io.netarbiter.CaptureJournal.*;
+
+/**
+ * Reads back the records of a capture run, in the order they were written
+ * Every segment of the run that is still on disk is read, starting from
+ * the oldest one.
+ */
+public class CaptureReader implements Closeable
+{
+    private final List<File> segmentFiles = new ArrayList<>();
+    private int nextSegment = 0;
+    private MappedByteBuffer segment;
+
+    // Current record
+    private long timestamp;
+    private short connID;
+    private byte direction;
+    private ByteBuffer frame;
+
+    /**
+     * Opens a capture run
+     * @param anySegment Any segment file belonging to the run
+     * @throws IOException If the file isn't a capture segment
+     */
+    public CaptureReader(File anySegment) throws IOException
+    {
+        // Segments are named "[run].[index].cap"
+        String name = anySegment.getName();
+        int indexStart = name.lastIndexOf('.', name.length() - SEGMENT_SUFFIX.length() - 1);
+
+        if (!name.endsWith(SEGMENT_SUFFIX) || indexStart < 0)
+            throw new IOException(anySegment + " isn't a capture segment");
+
+        String runName = name.substring(0, indexStart);
+        File directory = anySegment.getAbsoluteFile().getParentFile();
+
+        // Older segments may have been rolled away, so read whatever is left
+        File[] files = directory.listFiles((dir, file) -> file.startsWith(runName + ".") && file.endsWith(SEGMENT_SUFFIX));
+
+        if (files != null)
+            segmentFiles.addAll(Arrays.asList(files));
+
+        // Indices are zero padded, so they sort by name
+        segmentFiles.sort(Comparator.comparing(File::getName));
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public short getConnectionID()
+    {
+        return connID;
+    }
+
+    public byte getDirection()
+    {
+        return direction;
+    }
+
+    /**
+     * Gets the frame of the current record
+     * @return A read-only view of the frame, only valid until the next record
+     */
+    public ByteBuffer getFrame()
+    {
+        return frame;
+    }
+
+    /**
+     * Moves on to the next record
+     * @return False if there are no records left
+     * @throws IOException If a segment couldn't be read
+     */
+    public boolean next() throws IOException
+    {
+        while (true)
+        {
+            if (segment != null && segment.remaining() >= RECORD_HEADER_SIZE)
+            {
+                int length = Short.toUnsignedInt(segment.getShort());
+
+                if (length != 0 && segment.remaining() >= RECORD_HEADER_SIZE - 2 + length)
+                {
+                    timestamp = segment.getLong();
+                    connID = segment.getShort();
+                    direction = segment.get();
+
+                    frame = segment.slice();
+                    frame.limit(length);
+                    frame = frame.asReadOnlyBuffer();
+
+                    segment.position(segment.position() + length);
+                    return true;
+                }
+            }
+
+            // End of the segment
+            if (nextSegment >= segmentFiles.size())
+                return false;
+
+            segment = openSegment(segmentFiles.get(nextSegment++));
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        segment = null;
+        nextSegment = segmentFiles.size();
+    }
+
+    private static MappedByteBuffer openSegment(File file) throws IOException
+    {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"))
+        {
+            MappedByteBuffer mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+
+            if (mapped.remaining() < SEGMENT_HEADER_SIZE || mapped.getInt() != MAGIC)
+                throw new IOException(file + " isn't a capture segment");
+
+            if (mapped.getShort() != VERSION)
+                throw new IOException(file + " was captured by an unsupported version");
+
+            // Skip the rest of the header
+            mapped.position(SEGMENT_HEADER_SIZE);
+            return mapped;
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package ddb.io.netarbiter;
+
+/**
+ * Source of time for the arbiter
+ * Everything in the arbiter that runs on a timer (heartbeats, dead links,
+ * held back writes, read limits, sessions, lingering links) reads the time
+ * from the current clock instead of the system, so that a simulation can
+ * swap in a virtual clock and run those timers deterministically.
+ *
+ * The clock has to be swapped before any arbiter is started, as timestamps
+ * taken from different clocks can't be compared.
+ */
+public abstract class Clock
+{
+    // Time as the system sees it
+    public static final Clock SYSTEM = new Clock()
+    {
+        @Override
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime()
+        {
+            return System.nanoTime();
+        }
+    };
+
+    private static Clock current = SYSTEM;
+
+    /**
+     * Gets the clock the arbiter runs on
+     * @return The current clock
+     */
+    public static Clock get()
+    {
+        return current;
+    }
+
+    /**
+     * Replaces the clock the arbiter runs on
+     * @param clock The new clock
+     */
+    public static void set(Clock clock)
+    {
+        current = clock;
+    }
+
+    /**
+     * Gets the wall clock time
+     * @return The current time, in milliseconds since the epoch
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Gets the time for measuring intervals
+     * @return The current time, in nanoseconds from an arbitrary origin
+     */
+    public abstract long nanoTime();
+
+}
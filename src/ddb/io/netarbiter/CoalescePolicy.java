@@ -0,0 +1,71 @@
+package ddb.io.netarbiter;
+
+/**
+ * Write coalescing policy of a remote connection
+ * Writes are held back and sent out together once enough data has built
+ * up, or once the oldest write has waited long enough, whichever comes
+ * first. Batching small writes trades a bit of latency for fewer segments.
+ */
+public class CoalescePolicy
+{
+    // Send every write out as soon as it is encoded
+    public static final CoalescePolicy IMMEDIATE = new CoalescePolicy(0, 0);
+
+    private final int maxBytes;
+    private final long maxDelay;
+
+    /**
+     * Creates a new coalescing policy
+     * @param maxBytes The amount of pending data that causes a flush
+     * @param maxDelay The longest time a write can be held back, in
+     *                 microseconds
+     */
+    public CoalescePolicy(int maxBytes, long maxDelay)
+    {
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Gets the policy for the given parameters
+     * @param maxBytes The amount of pending data that causes a flush
+     * @param maxDelay The longest time a write can be held back, in
+     *                 microseconds
+     * @return The policy, or IMMEDIATE if either limit is 0
+     */
+    public static CoalescePolicy of(int maxBytes, long maxDelay)
+    {
+        if (maxBytes <= 0 || maxDelay <= 0)
+            return IMMEDIATE;
+
+        return new CoalescePolicy(maxBytes, maxDelay);
+    }
+
+    public boolean isImmediate()
+    {
+        return maxBytes <= 0 || maxDelay <= 0;
+    }
+
+    /**
+     * Checks if the pending writes should be sent out
+     * @param pendingBytes The amount of data waiting to be sent
+     * @param pendingAge How long the oldest pending write has waited, in
+     *                   nanoseconds
+     * @return True if the pending writes should be flushed
+     */
+    public boolean shouldFlush(int pendingBytes, long pendingAge)
+    {
+        return isImmediate() || pendingBytes >= maxBytes || pendingAge >= maxDelay * 1000L;
+    }
+
+    public int getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+}
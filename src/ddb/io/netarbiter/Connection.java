@@ -1,27 +1,154 @@
 package ddb.io.netarbiter;
 
 import ddb.io.netarbiter.packet.ResponsePacket;
-import ddb.io.netarbiter.packet.WritePacket;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
 
 public class Connection
 {
     // More than 10000ms between heartbeats = dead
     public static final long ARREST_TIMER = 10000;
+    // Never declare a connection dead in under 2000ms
+    public static final long MIN_ARREST_TIMER = 2000;
 
     private boolean isCommand;
     private boolean isActive;
+    // Why the connection was closed (one of the ARB_CLOSE_* reasons)
+    private byte closeReason = Constants.ARB_CLOSE_ENDPOINT;
     private short connID;
-    public Queue<WritePacket> writeQueue;
-    public Queue<ResponsePacket> responseQueue;
+    // Payloads waiting to be written to the remote, as [length : 2][payload]
+    private final FrameRing writeRing = new FrameRing();
+    // Responses waiting to be sent to the endpoint, as complete frames
+    private final FrameRing responseRing = new FrameRing();
+    // Files being sent to the remote, oldest first
+    private final ArrayDeque<FileTransfer> fileTransfers = new ArrayDeque<>();
     public SocketChannel channel;
     // The last time the heartbeat was received or sent, as a timestamp in
     // milliseconds
     private long lastHeartbeat;
     private long lastHeartbeatSent;
+    // Interval between heartbeats on an idle link, in milliseconds
+    // Starts short, and backs off while the remote keeps answering pings
+    private long heartbeatInterval = Constants.HEARBEAT_INTERVAL;
+    // Interval the remote said it will send heartbeats at
+    private long peerHeartbeatInterval = Constants.HEARBEAT_INTERVAL;
+
+    // Traffic statistics, in bytes
+    private long bytesSent;
+    private long bytesReceived;
+
+    // Round trip time estimation
+    // The smoothed round trip time, in microseconds (0 if not measured yet)
+    private long smoothedRTT;
+    // Sequence of the last ping sent, and when it was sent (in nanoseconds)
+    private short pingSequence;
+    private long pingSentTime;
+    private boolean isPingPending;
+
+    // Size of the bulk lane's turn when the lanes are weighted, in bytes
+    private static final int LANE_QUANTUM = 1024;
+
+    // Largest lane that is never shrunk, bigger ones are halved whenever
+    // they empty out with most of them left unused
+    private static final int MAX_IDLE_LANE = 64 * 1024;
+
+    // Encoded data waiting to be written out on the channel (bulk lane)
+    private ByteBuffer outputBuffer;
+    // Encoded control data, which is sent ahead of the bulk lane
+    private ByteBuffer controlBuffer;
+    // Start of the data in each lane that wasn't written yet (the data runs
+    // up to the lane's position, and is only moved back to the start of the
+    // lane once new data doesn't fit behind it)
+    private int outputStart = 0;
+    private int controlStart = 0;
+    // How many bytes of control data can go out for every LANE_QUANTUM
+    // bytes of bulk data (0 = control data always goes first)
+    private int controlWeight = 0;
+    private int controlCredit = 0;
+    // Part of a frame that still needs to be written before the lanes can
+    // be switched, and which lane it belongs to
+    private int frameLeft = 0;
+    private boolean isFrameControl = false;
+    // When the oldest data in the output buffer was encoded, in nanoseconds
+    private long outputSince;
+    // Largest super-frame, which fits any single frame
+    private static final int MAX_SUPER_FRAME = 0xFFFF;
+    // Pack the frames going out into super-frames
+    private boolean isSuperFramed = false;
+    // Super-frame that is being written out, or null if frames are sent one
+    // by one
+    private ByteBuffer superFrame;
+    // Number of super-frames & frames packed into them
+    private long superFramesSent;
+    private long packedFramesSent;
+    // Number of frames in the super-frame being written out
+    private int packedCount;
+    // Write calls & finished frames of the current flush, for the flight
+    // recorder (frames are only counted while it records flushes)
+    private int flushWrites;
+    private int flushFrames;
+    private boolean isFlushRecorded;
+    // When to send out the output buffer
+    private CoalescePolicy coalescePolicy = CoalescePolicy.IMMEDIATE;
+    // Frames waiting to be relayed to the endpoint, while it is backed up
+    private ByteBuffer relayBuffer;
+    // Queue the endpoint's output goes to past its memory limit (null =
+    // output is never spilled)
+    private SpillQueue spillQueue;
+    // Output waiting to go behind the spilled output, while spilling
+    private ByteBuffer spillBuffer;
+    private boolean isSpilling = false;
+    // Remote that read data is passed on to, instead of the endpoint
+    private Connection splicePeer;
+    // Share of the endpoint link compared to other remotes
+    private int relayWeight = 1;
+    // Bytes that can still be relayed in this scheduling round
+    private long deficit;
+    // Fairness measurements for the current window
+    private long windowDelivered;
+    private boolean isWindowBacklogged;
+    // Share of the endpoint link received in the last window, relative to
+    // a fair share, in thousandths
+    private int fairShare = RelayScheduler.FAIR;
+
+    // Buffer the link is read into, which keeps the partial packet left
+    // over from the last read (null if nothing was left over)
+    private ByteBuffer inputBuffer;
+    // Size of the reads from the link, or null if it was never read from
+    private ReceiveSizer receiveSizer;
+    // Encryption for the channel, or null if the link is plaintext
+    private TlsSession tlsSession;
+    // Resumable session of the link, or null if the link can't be resumed
+    private LinkSession linkSession;
+    // Set while the link is lost, and the session is waiting to be resumed
+    private boolean isSuspended = false;
+    // Delta codec negotiated with the remote, or null if it never came up
+    private DeltaCodec deltaCodec;
+
+    // Streams carried by the link, if this is a multiplexed link
+    private StreamTable streamTable;
+    // Link the connection is a stream of, or null if it has its own link
+    private Connection carrier;
+    private short streamID = 0;
+    // Set until the remote is told about the stream
+    private boolean isOpenPending = false;
+    // Set if the remote closed the stream, so it doesn't need to be told
+    private boolean isClosedByRemote = false;
+    // Read payload bytes that can still be sent on the stream
+    private long sendCredit = StreamTable.STREAM_WINDOW;
+    // Read payload bytes received that the remote hasn't been given back yet
+    private long pendingGrant = 0;
+
+    // Read limits of the link, or null if the link isn't limited
+    private TokenBucket readBytes;
+    private TokenBucket readFrames;
+    // Set while the link went over its read limits, and isn't being read from
+    private boolean isReadPaused = false;
+    // Number of times reading was paused for going over the read limits
+    private long shedEvents = 0;
 
     /**
      * Creates a new connection
@@ -32,11 +159,25 @@ public class Connection
     {
         this.connID = connID;
         this.isActive = true;
-        this.writeQueue = new LinkedBlockingQueue<>();
-        this.responseQueue = new LinkedBlockingQueue<>();
         this.channel = channel;
     }
 
+    /**
+     * Creates a new stream over a multiplexed link
+     * @param connID The connection id of the stream
+     * @param carrier The link carrying the stream
+     * @param streamID The id of the stream on the link
+     * @param isOpener True if this side opened the stream, and still has to
+     *                 tell the remote about it
+     */
+    public Connection (short connID, Connection carrier, short streamID, boolean isOpener)
+    {
+        this(connID, (SocketChannel) null);
+        this.carrier = carrier;
+        this.streamID = streamID;
+        this.isOpenPending = isOpener;
+    }
+
     public void setAsCommandConnection(boolean isCommand)
     {
         this.isCommand = isCommand;
@@ -47,6 +188,15 @@ public class Connection
         return isCommand;
     }
 
+    /**
+     * Gets the id to log messages about the connection with
+     * @return The connection id, or ArbiterLog.ENDPOINT for the endpoint
+     */
+    public int getLogID()
+    {
+        return isCommand ? ArbiterLog.ENDPOINT : connID;
+    }
+
     public short getConnectionID()
     {
         return connID;
@@ -54,30 +204,1645 @@ public class Connection
 
     public void closeConnection()
     {
+        closeConnection(Constants.ARB_CLOSE_ENDPOINT);
+    }
+
+    /**
+     * Closes the connection, remembering why
+     * Only the first reason is kept, as the rest follow from it
+     * @param reason Why the connection is closed (one of ARB_CLOSE_*)
+     */
+    public void closeConnection(byte reason)
+    {
+        if (isActive)
+            closeReason = reason;
+
         isActive = false;
     }
 
+    public byte getCloseReason()
+    {
+        return closeReason;
+    }
+
     public boolean isClosed()
     {
         return !isActive;
     }
 
+    /**
+     * Lets the connection survive losing its link
+     * @param linkSession The session negotiated with the remote
+     */
+    public void setLinkSession(LinkSession linkSession)
+    {
+        this.linkSession = linkSession;
+    }
+
+    public LinkSession getLinkSession()
+    {
+        return linkSession;
+    }
+
+    /**
+     * Gets the connection's delta codec, setting one up if there isn't one
+     * @return The connection's delta codec
+     */
+    public DeltaCodec getOrCreateDeltaCodec()
+    {
+        if (deltaCodec == null)
+            deltaCodec = new DeltaCodec();
+
+        return deltaCodec;
+    }
+
+    public DeltaCodec getDeltaCodec()
+    {
+        return deltaCodec;
+    }
+
+    /**
+     * Lets the link carry streams
+     * @param streamTable The streams carried by the link
+     */
+    public void setStreamTable(StreamTable streamTable)
+    {
+        this.streamTable = streamTable;
+    }
+
+    public StreamTable getStreamTable()
+    {
+        return streamTable;
+    }
+
+    public boolean isCarrier()
+    {
+        return streamTable != null;
+    }
+
+    public boolean isStream()
+    {
+        return carrier != null;
+    }
+
+    public Connection getCarrier()
+    {
+        return carrier;
+    }
+
+    /**
+     * Gets the connection owning the link that the connection's frames go
+     * out on
+     * @return The carrier for streams, or the connection itself
+     */
+    public Connection getLink()
+    {
+        return carrier != null ? carrier : this;
+    }
+
+    /**
+     * Gets the id to put in the sequence field of the connection's frames
+     * @return The stream id, or 0 if the connection has its own link
+     */
+    public short getStreamID()
+    {
+        return streamID;
+    }
+
+    public boolean isOpenPending()
+    {
+        return isOpenPending;
+    }
+
+    /**
+     * Marks the remote as told about the stream
+     */
+    public void endOpen()
+    {
+        isOpenPending = false;
+    }
+
+    /**
+     * Closes the stream on the remote's request
+     */
+    public void closeByRemote()
+    {
+        isClosedByRemote = true;
+        closeConnection(Constants.ARB_CLOSE_REMOTE);
+    }
+
+    public boolean isClosedByRemote()
+    {
+        return isClosedByRemote;
+    }
+
+    /**
+     * Checks if a read payload can be sent on the stream
+     * Connections with their own link are only limited by the link
+     * @param length The length of the payload
+     * @return True if the payload fits in the stream's window
+     */
+    public boolean hasSendCredit(int length)
+    {
+        return carrier == null || sendCredit >= length;
+    }
+
+    /**
+     * Accounts for a read payload sent on the stream
+     * Spliced data can't wait, so the credit can go below 0
+     * @param length The length of the payload
+     */
+    public void consumeSendCredit(int length)
+    {
+        sendCredit -= length;
+    }
+
+    /**
+     * Adds credit handed out by the remote
+     * @param credit The number of payload bytes that can be sent
+     */
+    public void addSendCredit(long credit)
+    {
+        sendCredit = Math.min(sendCredit + credit, StreamTable.STREAM_WINDOW);
+    }
+
+    /**
+     * Accounts for a read payload received on the stream
+     * @param length The length of the payload
+     */
+    public void addPendingGrant(int length)
+    {
+        pendingGrant += length;
+    }
+
+    /**
+     * Checks if the remote should be given more credit
+     * Credit is held back while the received data waits for the endpoint
+     * @return True if a grant should be sent now
+     */
+    public boolean shouldGrant()
+    {
+        return pendingGrant >= StreamTable.STREAM_WINDOW / 4 && getRelayBacklog() < StreamTable.STREAM_WINDOW / 4;
+    }
+
+    /**
+     * Takes the credit to hand back to the remote
+     * @return The number of payload bytes to grant
+     */
+    public int takeGrant()
+    {
+        int grant = (int) pendingGrant;
+        pendingGrant = 0;
+        return grant;
+    }
+
+    /**
+     * Limits how fast data is read in from the link
+     * @param readBytes The bucket counting the bytes read, or null
+     * @param readFrames The bucket counting the frames read, or null
+     */
+    public void setReadLimits(TokenBucket readBytes, TokenBucket readFrames)
+    {
+        this.readBytes = readBytes;
+        this.readFrames = readFrames;
+    }
+
+    public TokenBucket getReadBytes()
+    {
+        return readBytes;
+    }
+
+    public TokenBucket getReadFrames()
+    {
+        return readFrames;
+    }
+
+    /**
+     * Stops or starts reading from the link
+     * @param isReadPaused True if the link went over its read limits
+     */
+    public void setReadPaused(boolean isReadPaused)
+    {
+        if (isReadPaused && !this.isReadPaused)
+            shedEvents++;
+
+        // Heartbeats weren't read in while paused, which isn't the remote's fault
+        if (!isReadPaused && this.isReadPaused)
+            updateHeartbeat();
+
+        this.isReadPaused = isReadPaused;
+    }
+
+    public boolean isReadPaused()
+    {
+        if (carrier != null)
+            return carrier.isReadPaused();
+
+        return isReadPaused;
+    }
+
+    public long getShedEvents()
+    {
+        if (carrier != null)
+            return carrier.getShedEvents();
+
+        return shedEvents;
+    }
+
+    public boolean isSuspended()
+    {
+        if (carrier != null)
+            return carrier.isSuspended();
+
+        return isSuspended;
+    }
+
+    /**
+     * Handles the link to the remote being lost
+     * Connections with a resumable session are suspended until a new link
+     * picks up the session, everything else is closed
+     * @param reason Why the link was lost, if the connection is closed
+     *               (one of ARB_CLOSE_*)
+     */
+    public void dropLink(byte reason)
+    {
+        if (linkSession == null || isClosed())
+        {
+            closeConnection(reason);
+            return;
+        }
+
+        if (isSuspended)
+            return;
+
+        isSuspended = true;
+        linkSession.suspend();
+        discardLink();
+    }
+
+    /**
+     * Moves the connection onto a new link
+     * The unacknowledged frames are sent again, starting after the last
+     * frame the remote received
+     * @param newChannel The channel of the new link, with the handshakes done
+     * @param newSession The encryption for the new link, or null
+     * @param peerReceived The number of read frames the remote received
+     */
+    public void resumeLink(SocketChannel newChannel, TlsSession newSession, long peerReceived)
+    {
+        // The old link may not have been noticed as lost yet
+        discardLink();
+
+        channel = newChannel;
+        tlsSession = newSession;
+        isSuspended = false;
+
+        linkSession.resume();
+        linkSession.replayInto(this, peerReceived);
+        updateHeartbeat();
+    }
+
+    /**
+     * Throws away the current link, along with everything in flight on it
+     * Read frames that were waiting to go out are still retained by the
+     * session, and anything else (heartbeats, acks) isn't worth resending
+     */
+    private void discardLink()
+    {
+        try
+        {
+            if (channel.isOpen())
+                closeChannel();
+        }
+        catch (IOException ignored) {}
+
+        tlsSession = null;
+
+        if (outputBuffer != null)
+            outputBuffer.clear();
+
+        outputStart = 0;
+        frameLeft = 0;
+        inputBuffer = null;
+        isPingPending = false;
+    }
+
+    /**
+     * Encrypts all further traffic on the channel
+     * @param tlsSession The session to encrypt the traffic with, with the
+     *                   handshake already done
+     */
+    public void setTlsSession(TlsSession tlsSession)
+    {
+        this.tlsSession = tlsSession;
+    }
+
+    public boolean isEncrypted()
+    {
+        return tlsSession != null;
+    }
+
+    /**
+     * Reads data in from the channel, decrypting it if needed
+     * @param dst The buffer to read into
+     * @return The number of bytes read, or -1 if the channel was closed
+     * @throws IOException If the data couldn't be read
+     */
+    public int read(ByteBuffer dst) throws IOException
+    {
+        if (tlsSession != null)
+            return tlsSession.read(channel, dst);
+
+        return channel.read(dst);
+    }
+
+    /**
+     * Writes data out on the channel, encrypting it if needed
+     * @param src The buffer to write out
+     * @return The number of bytes from src that were written
+     * @throws IOException If the data couldn't be written
+     */
+    public int write(ByteBuffer src) throws IOException
+    {
+        if (tlsSession == null)
+            return channel.write(src);
+
+        // Each call only encrypts a single record
+        int total = 0, amount;
+
+        while (src.hasRemaining() && (amount = tlsSession.write(channel, src)) > 0)
+            total += amount;
+
+        return total;
+    }
+
+    /**
+     * Checks if there is read data that the selector won't report
+     * @return True if read should be called again without waiting
+     */
+    public boolean hasBufferedInput()
+    {
+        return tlsSession != null && tlsSession.hasBufferedInput();
+    }
+
+    /**
+     * Writes out data that was encrypted but couldn't be sent yet
+     * @throws IOException If the data couldn't be written
+     */
+    public void flushEncrypted() throws IOException
+    {
+        if (tlsSession != null && !isSuspended)
+            tlsSession.flush(channel);
+    }
+
+    /**
+     * Closes the channel, ending the TLS session if there is one
+     * @throws IOException If the channel couldn't be closed
+     */
+    public void closeChannel() throws IOException
+    {
+        if (tlsSession != null)
+        {
+            tlsSession.close(channel);
+            tlsSession = null;
+        }
+
+        channel.close();
+    }
+
+    /**
+     * Stops sending on the channel, ending the TLS session if there is one
+     * The channel stays open, so that the remote can still read everything
+     * sent before it. Closing it outright while the remote is sending
+     * resets the link, which throws away whatever wasn't delivered yet
+     * @return The channel, to be closed once the remote hangs up
+     * @throws IOException If the channel couldn't be shut down
+     */
+    public SocketChannel shutdownChannel() throws IOException
+    {
+        if (tlsSession != null)
+        {
+            tlsSession.close(channel);
+            tlsSession = null;
+        }
+
+        channel.shutdownOutput();
+        return channel;
+    }
+
     /**
      * Adds a pending write to the write queue
-     * @param pendingWrite The packet representing the pending write
+     * The payload is copied into the queue, leaving the source buffer's
+     * position & limit as they were
+     * @param data The buffer holding the payload
+     * @param offset The start of the payload in the buffer
+     * @param length The length of the payload
      */
-    public void enqueueWrite(WritePacket pendingWrite)
+    public void enqueueWrite(ByteBuffer data, int offset, int length)
     {
-        writeQueue.add(pendingWrite);
+        ByteBuffer ring = writeRing.reserve(length + 2);
+        int position = data.position();
+        int limit = data.limit();
+
+        ring.putShort((short) (length + 2));
+
+        data.limit(offset + length);
+        data.position(offset);
+        ring.put(data);
+
+        data.limit(limit);
+        data.position(position);
     }
 
     /**
-     * Adds a pending response to the response queue
-     * @param response The packet representing the pending response
+     * Gets the next pending write
+     * Writes queued after a file transfer wait until it is done
+     * @return A view of the payload, or null if there are no pending writes
+     *         that can go out
      */
-    public void enqueueResponse(ResponsePacket response)
+    public ByteBuffer peekWrite()
+    {
+        if (isWriteHeld())
+            return null;
+
+        ByteBuffer write = writeRing.peek();
+
+        if (write != null)
+            write.position(write.position() + 2);
+
+        return write;
+    }
+
+    /**
+     * Gets the length of the next pending write
+     * @return The length of the payload, or -1 if there are no pending writes
+     */
+    public int getNextWriteLength()
+    {
+        if (isWriteHeld())
+            return -1;
+
+        int length = writeRing.peekLength();
+        return length == -1 ? -1 : length - 2;
+    }
+
+    /**
+     * Removes the next pending write, once it was sent
+     */
+    public void removeWrite()
+    {
+        writeRing.remove();
+
+        if (!fileTransfers.isEmpty())
+            fileTransfers.peekFirst().removeWriteAhead();
+    }
+
+    private boolean isWriteHeld()
+    {
+        return !fileTransfers.isEmpty() && fileTransfers.peekFirst().getWritesAhead() == 0;
+    }
+
+    /**
+     * Gets the number of writes queued after every file transfer
+     * @return The number of writes that new file transfers have to wait for
+     */
+    public int getWritesAfterTransfers()
+    {
+        int writes = writeRing.size();
+
+        for (FileTransfer transfer : fileTransfers)
+            writes -= transfer.getWritesAhead();
+
+        return writes;
+    }
+
+    /**
+     * Adds a file transfer behind the writes & transfers already queued
+     * @param transfer The transfer, opened with getWritesAfterTransfers
+     *                 writes ahead of it
+     */
+    public void enqueueFileTransfer(FileTransfer transfer)
+    {
+        fileTransfers.addLast(transfer);
+    }
+
+    /**
+     * Gets the file transfer in progress
+     * @return The oldest file transfer, or null if there are none
+     */
+    public FileTransfer getFileTransfer()
     {
-        responseQueue.add(response);
+        return fileTransfers.peekFirst();
+    }
+
+    /**
+     * Removes the file transfer in progress, closing its file
+     * @return The removed transfer, or null if there were none
+     */
+    public FileTransfer removeFileTransfer()
+    {
+        FileTransfer transfer = fileTransfers.pollFirst();
+
+        if (transfer != null)
+            transfer.close();
+
+        return transfer;
+    }
+
+    /**
+     * Checks if file data can be written straight to the channel
+     * Only plain links where the arbiter doesn't need to see the frames
+     * going out qualify
+     * @return True if the file can skip the output buffer
+     */
+    public boolean canTransferDirectly()
+    {
+        return carrier == null && channel != null && tlsSession == null && linkSession == null
+                && (deltaCodec == null || !deltaCodec.isOffered());
+    }
+
+    /**
+     * Checks if nothing is waiting to go out on the channel, so that a new
+     * frame can be written straight to it
+     * @return True if all of the output was written out
+     */
+    public boolean isFlushed()
+    {
+        return !hasPendingOutput() && !isSuperFramePending();
+    }
+
+    private boolean isFileFrameOpen()
+    {
+        return !fileTransfers.isEmpty() && fileTransfers.peekFirst().isFrameOpen();
+    }
+
+    /**
+     * Adds a pending response to the response queue
+     * The response is encoded into a frame for the endpoint right away
+     * @param response The packet representing the pending response
+     */
+    public void enqueueResponse(ResponsePacket response)
+    {
+        ByteBuffer ring = reserveResponse(connID, response.responseID, response.responseData.length);
+        ring.put(response.responseData);
+    }
+
+    /**
+     * Adds a pending response with a 4 byte code to the response queue
+     * The frame is encoded straight into the response ring, so connection
+     * closures don't allocate anything
+     * @param responseID The packet id of the response
+     * @param responseCode The code to send (a connection id or error code)
+     */
+    public void enqueueResponse(byte responseID, int responseCode)
+    {
+        reserveResponse(connID, responseID, Integer.BYTES).putInt(responseCode);
+    }
+
+    /**
+     * Adds a file transfer progress report to the response queue
+     * @param sourceID The connection the file is being sent to
+     * @param status The status of the transfer (sending, done or an error)
+     * @param sent The number of bytes sent so far
+     */
+    public void enqueueProgress(short sourceID, int status, long sent)
+    {
+        reserveResponse(sourceID, Constants.ARB_PACKET_PROGRESS, 12).putInt(status).putLong(sent);
+    }
+
+    private ByteBuffer reserveResponse(short sourceID, byte responseID, int dataLength)
+    {
+        int frameLength = dataLength + Short.BYTES + PacketView.HEADER_SIZE;
+        ByteBuffer ring = responseRing.reserve(frameLength);
+
+        // Length
+        ring.putShort((short) frameLength);
+        // Sequence (ignored)
+        ring.putShort((short) 0);
+        // PacketID (varies)
+        ring.put(responseID);
+        // Source connection
+        // 0xFFFF/-1 means arbiter origin / command response
+        ring.putShort(sourceID);
+
+        return ring;
+    }
+
+    /**
+     * Gets the next pending response
+     * @return A view of the response frame, or null if there are no
+     *         pending responses
+     */
+    public ByteBuffer peekResponse()
+    {
+        return responseRing.peek();
+    }
+
+    /**
+     * Removes the next pending response, once it was sent
+     */
+    public void removeResponse()
+    {
+        responseRing.remove();
+    }
+
+    public boolean hasPendingResponses()
+    {
+        return !responseRing.isEmpty();
+    }
+
+    /**
+     * Reserves space in the output buffer for encoding data into
+     * The output buffer is grown if there isn't enough space
+     * @param size The number of bytes to reserve
+     * @return The output buffer, with at least "size" bytes remaining
+     */
+    public ByteBuffer reserveOutput(int size)
+    {
+        // Streams share the output of their link
+        if (carrier != null)
+            return carrier.reserveOutput(size);
+
+        // Newer output has to go behind the spilled output
+        if (isSpilling)
+        {
+            spillBuffer = reserve(spillBuffer, size);
+            return spillBuffer;
+        }
+
+        if (!hasPendingOutput())
+            outputSince = Clock.get().nanoTime();
+
+        return reserveLane(false, size);
+    }
+
+    /**
+     * Reserves space in the control lane for encoding a frame into
+     * Control frames are sent ahead of the data in the output buffer
+     * @param size The number of bytes to reserve
+     * @return The control lane's buffer, with at least "size" bytes remaining
+     */
+    public ByteBuffer reserveControlOutput(int size)
+    {
+        if (carrier != null)
+            return carrier.reserveControlOutput(size);
+
+        return reserveLane(true, size);
+    }
+
+    /**
+     * Sets how the control lane is scheduled against the bulk lane
+     * @param controlWeight The number of control bytes sent for every
+     *                      LANE_QUANTUM bulk bytes, or 0 to always send
+     *                      control frames first
+     */
+    public void setControlWeight(int controlWeight)
+    {
+        this.controlWeight = Math.max(controlWeight, 0);
+        this.controlCredit = this.controlWeight * LANE_QUANTUM;
+    }
+
+    /**
+     * Gets the amount of data waiting in the bulk lane
+     * @return The bulk lane's backlog, in bytes
+     */
+    public int getOutputBacklog()
+    {
+        int backlog = outputBuffer != null ? outputBuffer.position() - outputStart : 0;
+        return spillBuffer != null ? backlog + spillBuffer.position() : backlog;
+    }
+
+    /**
+     * Checks if the bulk lane is backed up, so that data for it has to wait
+     * Output that can be spilled never waits, until the spill queue is full
+     * @param limit The backlog the lane is backed up at, in bytes
+     * @return True if the bulk lane is backed up
+     */
+    public boolean isOutputBackedUp(int limit)
+    {
+        if (spillQueue != null && !spillQueue.isFull())
+            return false;
+
+        return getOutputBacklog() >= limit;
+    }
+
+    /**
+     * Lets the bulk lane's output go to disk past a memory limit
+     * @param spillQueue The queue to spill the output into
+     */
+    public void setSpillQueue(SpillQueue spillQueue)
+    {
+        this.spillQueue = spillQueue;
+    }
+
+    public SpillQueue getSpillQueue()
+    {
+        return spillQueue;
+    }
+
+    /**
+     * Moves the bulk lane's output between memory & the spill queue
+     * Once the lane goes over the memory limit, only the frames in the
+     * first half of the limit are kept, and everything after them is
+     * spilled until the queue runs dry. Spilled frames are brought back
+     * whenever the lane drops below half of the limit
+     */
+    public void balanceSpill()
+    {
+        if (spillQueue == null)
+            return;
+
+        int keep = spillQueue.getMemoryLimit() / 2;
+
+        if (!isSpilling && getOutputBacklog() > spillQueue.getMemoryLimit() && !spillQueue.isFull())
+        {
+            // Find the end of the frames to keep, after any frame that was cut off
+            int end = outputStart + (frameLeft > 0 && !isFrameControl ? frameLeft : 0);
+
+            while (end < outputStart + keep && end < outputBuffer.position())
+                end += frameSize(outputBuffer, end);
+
+            end = Math.min(end, outputBuffer.position());
+
+            outputBuffer.flip();
+            outputBuffer.position(end);
+            spillBuffer = reserve(spillBuffer, outputBuffer.remaining());
+            spillBuffer.put(outputBuffer);
+
+            outputBuffer.clear();
+            outputBuffer.position(end);
+            isSpilling = true;
+        }
+
+        if (!isSpilling)
+            return;
+
+        if (hasPendingData(spillBuffer))
+        {
+            spillBuffer.flip();
+            spillQueue.append(spillBuffer);
+            spillBuffer.compact();
+        }
+
+        int backlog = outputBuffer != null ? outputBuffer.position() - outputStart : 0;
+
+        if (backlog >= keep)
+            return;
+
+        // Endpoint caught up, bring the spilled frames back
+        if (!hasPendingOutput())
+            outputSince = Clock.get().nanoTime();
+
+        if (!spillQueue.isEmpty())
+        {
+            spillQueue.read(reserveLane(false, Math.max(keep - backlog, 0xFFFF)), keep - backlog);
+        }
+
+        if (spillQueue.isEmpty())
+        {
+            // Output can go straight into the lane again
+            if (hasPendingData(spillBuffer))
+            {
+                spillBuffer.flip();
+                reserveLane(false, spillBuffer.remaining()).put(spillBuffer);
+            }
+
+            spillBuffer = null;
+            isSpilling = false;
+        }
+    }
+
+    /**
+     * Checks if balanceSpill has output to move right away
+     * @return True if output can be spilled or brought back
+     */
+    public boolean isSpillPending()
+    {
+        if (!isSpilling)
+            return false;
+
+        if (hasPendingData(spillBuffer) && !spillQueue.isFull())
+            return true;
+
+        return outputBuffer == null || outputBuffer.position() - outputStart < spillQueue.getMemoryLimit() / 2;
+    }
+
+    /**
+     * Reserves space in the relay buffer for a frame destined to the endpoint
+     * @param size The number of bytes to reserve
+     * @return The relay buffer, with at least "size" bytes remaining
+     */
+    public ByteBuffer reserveRelayBuffer(int size)
+    {
+        relayBuffer = reserve(relayBuffer, size);
+        return relayBuffer;
+    }
+
+    public boolean hasRelayBacklog()
+    {
+        return hasPendingData(relayBuffer);
+    }
+
+    /**
+     * Gets the amount of data waiting to be relayed to the endpoint
+     * @return The relay backlog, in bytes
+     */
+    public int getRelayBacklog()
+    {
+        return relayBuffer != null ? relayBuffer.position() : 0;
+    }
+
+    /**
+     * Moves whole frames from the relay buffer into another connection's
+     * output
+     * @param destination The connection to move the frames to
+     * @param budget The maximum number of bytes to move
+     * @return The number of bytes moved
+     */
+    public int moveRelayFrames(Connection destination, long budget)
+    {
+        if (!hasRelayBacklog())
+            return 0;
+
+        // Find the frames that fit in the budget
+        int end = 0;
+
+        while (end < relayBuffer.position() && end + frameSize(relayBuffer, end) <= budget)
+            end += frameSize(relayBuffer, end);
+
+        if (end == 0)
+            return 0;
+
+        relayBuffer.flip();
+        int limit = relayBuffer.limit();
+        relayBuffer.limit(end);
+        destination.reserveOutput(end).put(relayBuffer);
+        relayBuffer.limit(limit);
+        relayBuffer.compact();
+
+        return end;
+    }
+
+    /**
+     * Passes all further read data on to another remote
+     * @param splicePeer The remote to pass the data on to
+     */
+    public void spliceWith(Connection splicePeer)
+    {
+        this.splicePeer = splicePeer;
+    }
+
+    public Connection getSplicePeer()
+    {
+        return splicePeer;
+    }
+
+    public int getRelayWeight()
+    {
+        return relayWeight;
+    }
+
+    /**
+     * Sets the connection's share of the endpoint link
+     * @param relayWeight The share compared to other remotes (at least 1)
+     */
+    public void setRelayWeight(int relayWeight)
+    {
+        this.relayWeight = Math.max(relayWeight, 1);
+    }
+
+    public long getDeficit()
+    {
+        return deficit;
+    }
+
+    public void setDeficit(long deficit)
+    {
+        this.deficit = deficit;
+    }
+
+    /**
+     * Accounts for data handed over to the endpoint's output
+     * @param amount The number of bytes handed over
+     */
+    public void addDelivered(int amount)
+    {
+        windowDelivered += amount;
+    }
+
+    public long getWindowDelivered()
+    {
+        return windowDelivered;
+    }
+
+    /**
+     * Checks if data was waiting for the endpoint when the window started
+     * @return True if the connection was backlogged at the window's start
+     */
+    public boolean wasBacklogged()
+    {
+        return isWindowBacklogged;
+    }
+
+    /**
+     * Starts a new fairness measurement window
+     */
+    public void resetWindow()
+    {
+        windowDelivered = 0;
+        isWindowBacklogged = hasRelayBacklog();
+    }
+
+    public int getFairShare()
+    {
+        return fairShare;
+    }
+
+    public void setFairShare(int fairShare)
+    {
+        this.fairShare = fairShare;
+    }
+
+    public boolean hasPendingOutput()
+    {
+        return hasPendingData(outputBuffer) || hasPendingData(controlBuffer);
+    }
+
+    public void setCoalescePolicy(CoalescePolicy coalescePolicy)
+    {
+        this.coalescePolicy = coalescePolicy;
+    }
+
+    public CoalescePolicy getCoalescePolicy()
+    {
+        return coalescePolicy;
+    }
+
+    /**
+     * Checks if the output buffer should be sent out, according to the
+     * coalescing policy
+     * @return True if there is output that should be flushed
+     */
+    public boolean shouldFlushOutput()
+    {
+        if (hasPendingData(controlBuffer) || isSuperFramePending())
+            return true;
+
+        return hasPendingData(outputBuffer) && coalescePolicy.shouldFlush(outputBuffer.position() - outputStart, Clock.get().nanoTime() - outputSince);
+    }
+
+    /**
+     * Gets the time until held back output has to be sent out
+     * @return The time until the coalescing policy flushes the output, in
+     *         nanoseconds, or Long.MAX_VALUE if no output is held back
+     */
+    public long getFlushDelay()
+    {
+        if (!hasPendingData(outputBuffer) || shouldFlushOutput())
+            return Long.MAX_VALUE;
+
+        return Math.max(0, coalescePolicy.getMaxDelay() * 1000L - (Clock.get().nanoTime() - outputSince));
+    }
+
+    /**
+     * Checks if output that is due is still waiting for the channel to take
+     * it, so that the channel has to be waited on for writing
+     * @return True if the channel didn't take all of the due output
+     */
+    public boolean hasUnsentOutput()
+    {
+        if (carrier != null || isSuspended || channel == null)
+            return false;
+
+        return shouldFlushOutput() || isFileFrameOpen() || (tlsSession != null && tlsSession.hasPendingOutput());
+    }
+
+    /**
+     * Sets whether the frames going out are packed into super-frames
+     * Each flush packs everything waiting in the lanes into as few
+     * super-frames as it fits in, so that the receiver can take all of
+     * them in with a single read
+     * @param isSuperFramed True to pack the frames into super-frames
+     */
+    public void setSuperFramed(boolean isSuperFramed)
+    {
+        this.isSuperFramed = isSuperFramed;
+
+        if (isSuperFramed && superFrame == null)
+        {
+            superFrame = ByteBuffer.allocateDirect(MAX_SUPER_FRAME);
+            superFrame.limit(0);
+        }
+    }
+
+    public boolean isSuperFramed()
+    {
+        return isSuperFramed;
+    }
+
+    public long getSuperFramesSent()
+    {
+        return superFramesSent;
+    }
+
+    public long getPackedFramesSent()
+    {
+        return packedFramesSent;
+    }
+
+    /**
+     * Writes out as much of the output as the channel will accept
+     * The lanes are only switched between frames, and anything that
+     * couldn't be written is kept for the next flush
+     * @return The number of bytes written
+     * @throws IOException If the data couldn't be written
+     */
+    public int flushOutput() throws IOException
+    {
+        // Held on to until the link is resumed, or a frame sent straight
+        // from a file is finished
+        if (isSuspended || isFileFrameOpen())
+            return 0;
+
+        Object event = FlightEvents.beginFlush();
+        isFlushRecorded = event != null;
+        flushWrites = 0;
+        flushFrames = 0;
+
+        int total = writeLanes();
+
+        addBytesSent(total);
+        FlightEvents.endFlush(event, connID, total, flushFrames, flushWrites);
+        return total;
+    }
+
+    /**
+     * Writes out as much of the lanes as the channel takes
+     * @return The number of bytes written
+     * @throws IOException If the data couldn't be written
+     */
+    private int writeLanes() throws IOException
+    {
+        int total = 0;
+
+        // Frames are only packed once any frame that was cut off is done
+        if (superFrame != null && frameLeft == 0)
+        {
+            total = flushSuperFrames();
+
+            if (isSuperFramed || isSuperFramePending())
+                return total;
+
+            // Back to single frames, now that the last super-frame is out
+            superFrame = null;
+        }
+
+        while (hasPendingOutput())
+        {
+            // Finish the frame that was cut off
+            int budget = frameLeft > 0 ? frameLeft : pickLane();
+            boolean useControl = isFrameControl;
+
+            ByteBuffer lane = useControl ? controlBuffer : outputBuffer;
+            int start = useControl ? controlStart : outputStart;
+            int chunk = frameLeft > 0 ? frameLeft : alignToFrames(lane, start, budget);
+
+            int end = lane.position();
+            lane.limit(start + chunk);
+            lane.position(start);
+            int amount = write(lane);
+            flushWrites++;
+
+            lane.limit(lane.capacity());
+            lane.position(end);
+
+            if (isFlushRecorded)
+                flushFrames += frameLeft > 0 ? (amount == frameLeft ? 1 : 0) : countFrames(lane, start, amount);
+
+            // Remember if a frame was cut off
+            if (frameLeft > 0)
+                frameLeft -= amount;
+            else
+                frameLeft = frameEnd(lane, start, amount) - amount;
+
+            consumeLane(useControl, amount);
+
+            if (useControl && controlWeight > 0)
+                controlCredit -= amount;
+
+            total += amount;
+
+            // Channel is full
+            if (amount < chunk)
+                break;
+        }
+
+        return total;
+    }
+
+    /**
+     * Packs the frames waiting in the lanes into super-frames, and writes
+     * them out
+     * A super-frame in flight is always finished before more frames are
+     * packed, so the channel only ever sees whole super-frames
+     * @return The number of bytes written
+     * @throws IOException If the data couldn't be written
+     */
+    private int flushSuperFrames() throws IOException
+    {
+        int total = 0;
+
+        while (isSuperFramePending() || (isSuperFramed && hasPendingOutput()))
+        {
+            if (!isSuperFramePending())
+                packSuperFrame();
+
+            total += write(superFrame);
+            flushWrites++;
+
+            // Channel is full
+            if (superFrame.hasRemaining())
+                break;
+
+            flushFrames += packedCount;
+        }
+
+        return total;
+    }
+
+    /**
+     * Moves as many whole frames out of the lanes as fit into a super-frame
+     * The lanes take turns the same way as when frames are sent one by one.
+     * A lone frame is sent as is, since the super-frame header wouldn't
+     * save anything
+     *
+     * Super-frame Format:
+     * length:   2 bytes
+     * count:    2 bytes (in place of the sequence)
+     * packetID: 1 byte ('T')
+     * frames:   length - 5 bytes, each with its own header
+     */
+    private void packSuperFrame()
+    {
+        int count = 0;
+        boolean isOversized = false;
+
+        superFrame.clear();
+        superFrame.position(PacketView.HEADER_SIZE);
+
+        while (hasPendingOutput() && !isOversized)
+        {
+            int budget = pickLane();
+            ByteBuffer lane = isFrameControl ? controlBuffer : outputBuffer;
+            int start = isFrameControl ? controlStart : outputStart;
+            int chunk = Math.min(alignToFrames(lane, start, budget), fitFrames(lane, start, superFrame.remaining()));
+
+            if (chunk == 0)
+            {
+                // Super-frame is full
+                if (count > 0)
+                    break;
+
+                // Frame is too big to be packed, so it goes out on its own
+                superFrame.clear();
+                chunk = frameSize(lane, start);
+                isOversized = true;
+            }
+
+            for (int offset = start; offset < start + chunk; offset += frameSize(lane, offset))
+                count++;
+
+            int end = lane.position();
+            lane.limit(start + chunk);
+            lane.position(start);
+            superFrame.put(lane);
+            lane.limit(lane.capacity());
+            lane.position(end);
+
+            if (isFrameControl && controlWeight > 0)
+                controlCredit -= chunk;
+
+            consumeLane(isFrameControl, chunk);
+        }
+
+        superFrame.flip();
+        packedCount = count;
+
+        if (isOversized)
+            return;
+
+        if (count == 1)
+        {
+            // Header wouldn't save anything
+            superFrame.position(PacketView.HEADER_SIZE);
+            return;
+        }
+
+        superFrame.putShort(0, (short) superFrame.limit());
+        superFrame.putShort(2, (short) count);
+        superFrame.put(4, Constants.ARB_PACKET_FRAMES);
+
+        superFramesSent++;
+        packedFramesSent += count;
+    }
+
+    /**
+     * Picks the lane to send from next, between frames
+     * @return The number of bytes the picked lane can send, with
+     *         isFrameControl telling which lane was picked
+     */
+    private int pickLane()
+    {
+        if (!hasPendingData(controlBuffer) || !hasPendingData(outputBuffer))
+        {
+            // Only one lane has anything to send
+            isFrameControl = hasPendingData(controlBuffer);
+            return Integer.MAX_VALUE;
+        }
+
+        if (controlWeight == 0 || controlCredit > 0)
+        {
+            isFrameControl = true;
+            return controlWeight == 0 ? Integer.MAX_VALUE : controlCredit;
+        }
+
+        // Bulk lane's turn, then give the control lane more credit
+        isFrameControl = false;
+        controlCredit = controlWeight * LANE_QUANTUM;
+        return LANE_QUANTUM;
+    }
+
+    private boolean isSuperFramePending()
+    {
+        return superFrame != null && superFrame.hasRemaining();
+    }
+
+    private static boolean hasPendingData(ByteBuffer buffer)
+    {
+        return buffer != null && buffer.position() > 0;
+    }
+
+    private static ByteBuffer reserve(ByteBuffer buffer, int size)
+    {
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(Math.max(size, 1024));
+
+        if (buffer.remaining() >= size)
+            return buffer;
+
+        // Grow the buffer to fit the new data
+        int newSize = Math.max(buffer.capacity() * 2, buffer.position() + size);
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(newSize);
+
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+
+    /**
+     * Reserves space at the end of a lane
+     * The unsent data is moved back to the start of the lane when the new
+     * data doesn't fit behind it, and the lane only grows if the unsent &
+     * new data would take up more than half of it
+     * @param isControl True for the control lane, false for the bulk lane
+     * @param size The number of bytes to reserve
+     * @return The lane's buffer, with at least "size" bytes remaining
+     */
+    private ByteBuffer reserveLane(boolean isControl, int size)
+    {
+        ByteBuffer lane = isControl ? controlBuffer : outputBuffer;
+
+        if (lane != null && lane.remaining() >= size)
+            return lane;
+
+        if (lane == null)
+        {
+            lane = ByteBuffer.allocateDirect(Math.max(size, 1024));
+        }
+        else
+        {
+            int start = isControl ? controlStart : outputStart;
+            int pending = lane.position() - start;
+
+            lane.flip();
+            lane.position(start);
+
+            if (pending + size <= lane.capacity() / 2)
+            {
+                lane.compact();
+            }
+            else
+            {
+                // Grow the lane to fit the new data
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(lane.capacity() * 2, pending + size));
+                larger.put(lane);
+                lane = larger;
+            }
+        }
+
+        if (isControl)
+        {
+            controlBuffer = lane;
+            controlStart = 0;
+        }
+        else
+        {
+            outputBuffer = lane;
+            outputStart = 0;
+        }
+
+        return lane;
+    }
+
+    /**
+     * Drops data that was sent from the front of a lane
+     * An empty lane starts over at the start, and a lane that grew for a
+     * burst is shrunk back down, a half at a time, once the data going
+     * through it only takes up a small part of it
+     * @param isControl True for the control lane, false for the bulk lane
+     * @param amount The number of bytes that were sent
+     */
+    private void consumeLane(boolean isControl, int amount)
+    {
+        ByteBuffer lane = isControl ? controlBuffer : outputBuffer;
+        int start = (isControl ? controlStart : outputStart) + amount;
+
+        if (start == lane.position())
+        {
+            // Give back the space a burst took up
+            if (lane.capacity() > MAX_IDLE_LANE && lane.position() < lane.capacity() / 4)
+                lane = ByteBuffer.allocateDirect(lane.capacity() / 2);
+
+            start = 0;
+            lane.clear();
+        }
+
+        if (isControl)
+        {
+            controlBuffer = lane;
+            controlStart = start;
+        }
+        else
+        {
+            outputBuffer = lane;
+            outputStart = start;
+        }
+    }
+
+    /**
+     * Gets the size of the whole frames at the start of a lane's unsent
+     * data, covering at least "budget" bytes
+     * @param lane The lane's buffer (in fill mode)
+     * @param start The start of the unsent data
+     * @param budget The number of bytes to cover
+     * @return The size of the frames, or the size of all pending data if
+     *         the budget covers it
+     */
+    private static int alignToFrames(ByteBuffer lane, int start, int budget)
+    {
+        int pending = lane.position() - start;
+        int end = 0;
+
+        while (end < budget && end < pending)
+            end += frameSize(lane, start + end);
+
+        return Math.min(end, pending);
+    }
+
+    /**
+     * Gets the size of the whole frames at the start of a lane's unsent
+     * data that fit in the given room
+     * @param lane The lane's buffer (in fill mode)
+     * @param start The start of the unsent data
+     * @param room The number of bytes the frames have to fit in
+     * @return The size of the frames, or 0 if not even the first one fits
+     */
+    private static int fitFrames(ByteBuffer lane, int start, int room)
+    {
+        int pending = lane.position() - start;
+        int end = 0;
+
+        while (end < pending && end + frameSize(lane, start + end) <= room)
+            end += frameSize(lane, start + end);
+
+        return end;
+    }
+
+    /**
+     * Gets the end of the frame containing the given offset
+     * @param lane The lane's buffer
+     * @param start The start of a frame in the lane
+     * @param offset The offset from the start
+     * @return The offset of the end of the frame, from the start
+     */
+    private static int frameEnd(ByteBuffer lane, int start, int offset)
+    {
+        int end = 0;
+
+        while (end < offset)
+            end += frameSize(lane, start + end);
+
+        return end;
+    }
+
+    /**
+     * Counts the whole frames in part of a lane
+     * @param lane The lane's buffer
+     * @param start The start of a frame in the lane
+     * @param length The number of bytes to look at
+     * @return The number of frames that end within the given length
+     */
+    private static int countFrames(ByteBuffer lane, int start, int length)
+    {
+        int count = 0;
+
+        for (int end = 0; end < length && end + frameSize(lane, start + end) <= length; end += frameSize(lane, start + end))
+            count++;
+
+        return count;
+    }
+
+    private static int frameSize(ByteBuffer lane, int offset)
+    {
+        int length = Short.toUnsignedInt(lane.getShort(offset));
+
+        // Empty heartbeat frames are only the length
+        return length == 0 ? 2 : length;
+    }
+
+    public ByteBuffer getInputBuffer()
+    {
+        return inputBuffer;
+    }
+
+    public void setInputBuffer(ByteBuffer inputBuffer)
+    {
+        this.inputBuffer = inputBuffer;
+    }
+
+    public ReceiveSizer getReceiveSizer()
+    {
+        return receiveSizer;
+    }
+
+    public void setReceiveSizer(ReceiveSizer receiveSizer)
+    {
+        this.receiveSizer = receiveSizer;
+    }
+
+    /**
+     * Gets the number of packets waiting to be written to the remote
+     * @return The write queue depth
+     */
+    public int getWriteDepth()
+    {
+        return writeRing.size();
+    }
+
+    /**
+     * Gets the number of packets waiting to be sent to the endpoint
+     * @return The response queue depth
+     */
+    public int getResponseDepth()
+    {
+        return responseRing.size();
+    }
+
+    /**
+     * Accounts for data that was written out on the channel
+     * @param amount The number of bytes written
+     */
+    public void addBytesSent(int amount)
+    {
+        if (amount > 0)
+        {
+            bytesSent += amount;
+            // Any data sent out doubles as a heartbeat
+            updateSentHeartbeat();
+        }
+    }
+
+    /**
+     * Accounts for data that was read in from the channel
+     * @param amount The number of bytes read
+     */
+    public void addBytesReceived(int amount)
+    {
+        if (amount > 0)
+            bytesReceived += amount;
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    /**
+     * Checks if a new ping can be sent out
+     * Only one ping is kept in flight, unless the previous one was lost
+     * @return True if a ping should be sent instead of a plain heartbeat
+     */
+    public boolean canPing()
+    {
+        return !isPingPending || (Clock.get().nanoTime() - pingSentTime) > Constants.PING_TIMEOUT * 1000000L;
+    }
+
+    /**
+     * Starts a new round trip time measurement
+     * @return The sequence number to send the ping with
+     */
+    public short beginPing()
+    {
+        // Previous ping was lost, probe the link more often
+        if (isPingPending)
+            heartbeatInterval = Constants.HEARBEAT_INTERVAL;
+
+        pingSequence++;
+        pingSentTime = Clock.get().nanoTime();
+        isPingPending = true;
+        return pingSequence;
+    }
+
+    /**
+     * Finishes a round trip time measurement
+     * Stale or unknown pongs are ignored
+     * @param sequence The sequence number echoed back by the remote
+     */
+    public void endPing(short sequence)
+    {
+        if (!isPingPending || sequence != pingSequence)
+            return;
+
+        long sample = (Clock.get().nanoTime() - pingSentTime) / 1000L;
+        isPingPending = false;
+
+        // Smooth out the samples (RFC 6298, alpha = 1/8)
+        if (smoothedRTT == 0)
+            smoothedRTT = Math.max(sample, 1);
+        else
+            smoothedRTT += (sample - smoothedRTT) / 8;
+
+        // Link is healthy, back off the idle heartbeats
+        heartbeatInterval = Math.min(heartbeatInterval * 2, Constants.MAX_HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Gets the interval between heartbeats while the link is idle
+     * @return The heartbeat interval, in milliseconds
+     */
+    public long getHeartbeatInterval()
+    {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Updates the interval the remote will be sending heartbeats at
+     * @param interval The remote's heartbeat interval, in milliseconds
+     */
+    public void setPeerHeartbeatInterval(long interval)
+    {
+        peerHeartbeatInterval = Math.min(Math.max(interval, 1), ARREST_TIMER);
+    }
+
+    /**
+     * Gets the time without a heartbeat after which the connection is dead
+     * Derived from the remote's heartbeat interval and the round trip time,
+     * bounded by ARREST_TIMER
+     * @return The death threshold, in milliseconds
+     */
+    public long getDeathThreshold()
+    {
+        long threshold = peerHeartbeatInterval * Constants.MISSED_HEARTBEATS + (4 * smoothedRTT) / 1000;
+        return Math.min(Math.max(threshold, MIN_ARREST_TIMER), ARREST_TIMER);
+    }
+
+    /**
+     * Gets the estimated round trip time to the remote
+     * @return The smoothed round trip time in microseconds, or 0 if unknown
+     */
+    public long getRTT()
+    {
+        if (carrier != null)
+            return carrier.getRTT();
+
+        return smoothedRTT;
+    }
+
+    /**
+     * Gets the time since the last heartbeat was received
+     * @return The time since the last received heartbeat, in milliseconds
+     */
+    public long getHeartbeatAge()
+    {
+        if (carrier != null)
+            return carrier.getHeartbeatAge();
+
+        return Clock.get().currentTimeMillis() - lastHeartbeat;
     }
 
     /**
@@ -85,7 +1850,7 @@ public class Connection
      */
     public void updateHeartbeat()
     {
-        lastHeartbeat = System.currentTimeMillis();
+        lastHeartbeat = Clock.get().currentTimeMillis();
     }
 
     /**
@@ -93,7 +1858,7 @@ public class Connection
      */
     public void updateSentHeartbeat()
     {
-        lastHeartbeatSent = System.currentTimeMillis();
+        lastHeartbeatSent = Clock.get().currentTimeMillis();
     }
 
     /**
@@ -102,17 +1867,19 @@ public class Connection
      */
     public long getLastSentBeat()
     {
-        return System.currentTimeMillis() - lastHeartbeatSent;
+        return Clock.get().currentTimeMillis() - lastHeartbeatSent;
     }
 
     /**
      * Checks if the connection hasn't sent a heartbeat
-     * If the connection is a command connection, it will never die
+     * If the connection is a command connection, or its link is waiting to
+     * be resumed, it will never die. Streams die along with their link, and
+     * links that aren't being read from can't be judged
      * @return If the connection is dead or not
      */
     public boolean isDead()
     {
-        return !isCommand && (System.currentTimeMillis() - lastHeartbeat) > ARREST_TIMER;
+        return !isCommand && carrier == null && !isSuspended && !isReadPaused && (Clock.get().currentTimeMillis() - lastHeartbeat) > getDeathThreshold();
     }
 
 }
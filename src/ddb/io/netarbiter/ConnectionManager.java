@@ -1,30 +1,74 @@
 package ddb.io.netarbiter;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 import static ddb.io.netarbiter.Constants.*;
 
 public class ConnectionManager
 {
+    // Returned instead of a connection id while the connection's link is
+    // still being made
+    public static final int CONNECT_PENDING = Integer.MIN_VALUE;
+    // Maximum time the handshakes of a new link can take, in milliseconds
+    private static final long HANDSHAKE_TIMEOUT = 5000;
+    // Maximum time a reconnect attempt can take, in milliseconds
+    private static final long RESUME_TIMEOUT = 2000;
+    // Maximum time to wait for a remote to hang up on a closed link, in milliseconds
+    private static final long LINGER_TIMEOUT = 2000;
+
     private Map<Integer, Connection> activeConnections;
     private Stack<Integer> freeRemoteIDs;
     private int nextRemoteID = 0;
+    // Multiplexed links get ids below the command connection's, which are
+    // never handed to the endpoint
+    private Stack<Integer> freeCarrierIDs;
+    private int nextCarrierID = -2;
     private Selector channels;
+    // Opens the channels to remote arbiters
+    private final SelectorProvider transport;
+    private TlsContext tlsContext;
+    // Coalescing policy given to accepted connections
+    private CoalescePolicy acceptPolicy = CoalescePolicy.IMMEDIATE;
+    // Time a lost link has to be resumed in (0 = links aren't resumable)
+    private long sessionGrace = 0;
+    // New connections go over multiplexed links, where the remote allows it
+    private boolean isMultiplexed = false;
+    // Remotes ("host:port") that can't multiplex links
+    private final Set<String> plainRemotes = new HashSet<>();
+    // Links still going through their handshakes (new links & reconnects)
+    private final List<LinkHandshake> handshakes = new ArrayList<>();
+    // Outcome of the last connection addConnection started
+    private int connectResult = CONNECT_PENDING;
+    // Links of closed connections waiting for the remote to hang up, and
+    // when to give up on waiting
+    private final Map<SocketChannel, Long> lingeringLinks = new HashMap<>();
 
-    ConnectionManager()
+    ConnectionManager(SelectorProvider transport)
     {
+        this.transport = transport;
         this.activeConnections = new LinkedHashMap<>();
         this.freeRemoteIDs = new Stack<>();
+        this.freeCarrierIDs = new Stack<>();
     }
 
     public void init(Selector selector)
@@ -53,6 +97,18 @@ public class ConnectionManager
         return id;
     }
 
+    /**
+     * Allocates an id for a multiplexed link
+     * @return An id below -1
+     */
+    private int allocateCarrierID()
+    {
+        if (!freeCarrierIDs.isEmpty())
+            return freeCarrierIDs.pop();
+
+        return nextCarrierID--;
+    }
+
     public void freeID(int connID)
     {
         if (connID >= 0)
@@ -60,6 +116,11 @@ public class ConnectionManager
             // Free remote id
             freeRemoteIDs.push(connID);
         }
+        else if (connID < -1)
+        {
+            // Free carrier id
+            freeCarrierIDs.push(connID);
+        }
     }
 
     /**
@@ -74,8 +135,8 @@ public class ConnectionManager
         assert (connection != null && channel != null);
         channel.configureBlocking(false);
         channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
-        // Listen for both reads and writes
-        channel.register(channels, SelectionKey.OP_READ | SelectionKey.OP_WRITE, connection);
+        // Writes are only waited on once the channel stops taking them
+        channel.register(channels, SelectionKey.OP_READ, connection);
         activeConnections.put((int) connection.getConnectionID(), connection);
 
         // Update the heartbeat to now
@@ -84,66 +145,832 @@ public class ConnectionManager
         return connection.getConnectionID();
     }
 
-    public int addConnection(String hostname, int port)
+    /**
+     * Adds a connection whose link finished its handshakes
+     * @param connection The connection to add
+     * @param channel The connection's associated channel
+     * @param handshake The flight recorder event started with the link
+     * @param isAccepted True if the remote opened the link
+     * @return The connection id of the new connection
+     * @throws IOException If the channel couldn't be made unblocking
+     */
+    private int addLink(Connection connection, SocketChannel channel, Object handshake, boolean isAccepted) throws IOException
+    {
+        int connID = addConnection(connection, channel);
+        FlightEvents.endHandshake(handshake, connection, isAccepted, false);
+        return connID;
+    }
+
+    /**
+     * Starts opening a connection to a remote arbiter
+     * The link's handshakes are driven by the event loop, and the outcome is
+     * picked up with getConnectResult
+     * @param hostname The hostname of the remote arbiter
+     * @param port The port of the remote arbiter
+     * @param policy The write coalescing policy of the new connection
+     * @return The connection id of the new connection, CONNECT_PENDING if
+     *         the link is still being made, or an error code
+     */
+    public int addConnection(String hostname, int port, CoalescePolicy policy)
     {
-        try
+        if (isMultiplexed && !plainRemotes.contains(hostname + ":" + port))
+            return openStream(hostname, port, policy);
+
+        return startConnect(LinkHandshake.CONNECT, hostname, port, policy, sessionGrace > 0);
+    }
+
+    /**
+     * Gets the outcome of the connection that addConnection started
+     * @return The connection id of the new connection, CONNECT_PENDING if
+     *         the link is still being made, or an error code
+     */
+    public int getConnectResult()
+    {
+        return connectResult;
+    }
+
+    /**
+     * Opens a stream to a remote arbiter, over the link already made to it
+     * if there is one
+     * A new link falls back to a connection with its own link if the remote
+     * can't multiplex links
+     * @return The connection id of the new stream, CONNECT_PENDING if the
+     *         link is still being made, or an error code
+     */
+    private int openStream(String hostname, int port, CoalescePolicy policy)
+    {
+        Connection carrier = null;
+
+        for (Connection connection : activeConnections.values())
         {
-            // Connect to the remote host
-            SocketAddress remoteAddr = new InetSocketAddress(hostname, port);
-            SocketChannel channel = SocketChannel.open();
-            channel.connect(remoteAddr);
+            if (connection.isCarrier() && !connection.isClosed() && connection.getStreamTable().isLinkTo(hostname, port))
+                carrier = connection;
+        }
 
-            final ByteBuffer temp = ByteBuffer.allocateDirect(2);
-            final byte[] readBytes = new byte[2];
+        if (carrier == null)
+            return startConnect(LinkHandshake.CARRIER, hostname, port, policy, true);
 
-            temp.clear();
-            temp.put(CLIENT_MAGIC);
-            temp.flip();
+        return openStream(carrier);
+    }
 
-            // Send out the client magic
-            channel.configureBlocking(true);
-            channel.write(temp);
+    /**
+     * Opens a stream on a multiplexed link
+     * @param carrier The link to open the stream on
+     * @return The connection id of the new stream
+     */
+    private int openStream(Connection carrier)
+    {
+        StreamTable streamTable = carrier.getStreamTable();
+        Connection stream = new Connection((short) allocateID(false), carrier, streamTable.allocateStreamID(), true);
+        return addStream(stream);
+    }
 
-            // Expect the server magic back
-            temp.flip();
-            channel.read(temp);
+    /**
+     * Accepts a stream that the remote opened on a multiplexed link
+     * @param carrier The link the stream was opened on
+     * @param streamID The id of the stream on the link
+     * @return The connection id of the new stream
+     */
+    public int acceptStream(Connection carrier, short streamID)
+    {
+        Connection stream = new Connection((short) allocateID(false), carrier, streamID, false);
+        return addStream(stream);
+    }
+
+    /**
+     * Adds a stream to the active connections, and to its link
+     * @param stream The stream to add
+     * @return The connection id of the stream
+     */
+    private int addStream(Connection stream)
+    {
+        stream.getCarrier().getStreamTable().add(stream);
+        activeConnections.put((int) stream.getConnectionID(), stream);
+        return stream.getConnectionID();
+    }
+
+    /**
+     * Starts making a link to a remote arbiter
+     * @param kind CONNECT for a link of its own, or CARRIER for a
+     *             multiplexed link
+     * @param isResumable True to ask for a session (always done for
+     *                    multiplexed links)
+     * @return CONNECT_PENDING, or an error code if the link couldn't be
+     *         started
+     */
+    private int startConnect(int kind, String hostname, int port, CoalescePolicy policy, boolean isResumable)
+    {
+        SocketChannel channel = null;
+
+        try
+        {
+            // Connect to the remote host
+            SocketAddress remoteAddr = new InetSocketAddress(hostname, port);
+            channel = transport.openSocketChannel();
             channel.configureBlocking(false);
-            temp.flip();
-            temp.get(readBytes);
+            channel.connect(remoteAddr);
+            // Handshake messages shouldn't wait on delayed acks
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
 
-            if (!Arrays.equals(readBytes, SERVER_MAGIC))
+            TlsSession session = tlsContext != null ? tlsContext.newClientSession(hostname, port) : null;
+            LinkHandshake handshake = new LinkHandshake(kind, channel, session, Clock.get().currentTimeMillis() + HANDSHAKE_TIMEOUT);
+            handshake.hostname = hostname;
+            handshake.port = port;
+            handshake.policy = policy;
+            handshake.isResumable = isResumable;
+
+            if (kind == LinkHandshake.CARRIER || isResumable)
             {
-                // Bad server magic
-                return Constants.ARB_ERROR_CONNECT_REFUSED;
+                // Ask for a new session
+                handshake.send(hello(kind == LinkHandshake.CARRIER ? CLIENT_MUX_MAGIC : CLIENT_RESUME_MAGIC, 0, 0));
+                handshake.expect(SERVER_MAGIC.length + LinkSession.HELLO_SIZE);
+            }
+            else
+            {
+                handshake.send(ByteBuffer.wrap(CLIENT_MAGIC));
+                handshake.expect(SERVER_MAGIC.length);
             }
 
-            // Connection finalized, add to active connections
-            return addConnection(new Connection((short)allocateID(false), channel), channel);
+            handshake.step = LinkHandshake.STEP_REPLY;
+            channel.register(channels, handshake.getInterestOps(), handshake);
+            handshakes.add(handshake);
+
+            connectResult = CONNECT_PENDING;
+            return CONNECT_PENDING;
         }
         catch (UnresolvedAddressException e)
         {
-            e.printStackTrace();
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to resolve the remote's address", e);
+            abandon(channel, null);
             // Unresolved address
             return Constants.ARB_ERROR_BAD_ADDRESS;
         }
         catch (ConnectException | ClosedChannelException e)
         {
-            e.printStackTrace();
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to connect to the remote", e);
+            abandon(channel, null);
             // Connection Refused
             return Constants.ARB_ERROR_CONNECT_REFUSED;
         }
         catch (IOException e)
         {
-            // Unknown error
-            e.printStackTrace();
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to connect to the remote", e);
+            abandon(channel, null);
             return Constants.ARB_ERROR_UNKNOWN_ERROR;
         }
     }
 
+    /**
+     * Starts accepting a connection from a remote arbiter
+     * The link's handshakes are driven by the event loop, and the endpoint
+     * is told about the connection once they are done
+     * @param channel The newly accepted channel
+     */
+    public void acceptConnection(SocketChannel channel)
+    {
+        try
+        {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            TlsSession session = tlsContext != null ? tlsContext.newServerSession() : null;
+            LinkHandshake handshake = new LinkHandshake(LinkHandshake.ACCEPT, channel, session, Clock.get().currentTimeMillis() + HANDSHAKE_TIMEOUT);
+
+            // Listen for the client magic
+            handshake.expect(CLIENT_MAGIC.length);
+            handshake.step = LinkHandshake.STEP_MAGIC;
+            channel.register(channels, handshake.getInterestOps(), handshake);
+            handshakes.add(handshake);
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to accept a remote", e);
+            abandon(channel, null);
+        }
+    }
+
+    /**
+     * Moves a link's handshakes along, once its channel is ready
+     * @param handshake The handshakes of the link
+     * @return The connection id of a new connection the remote opened, or
+     *         -1 if there is no new connection to tell the endpoint about
+     */
+    public int advanceHandshake(LinkHandshake handshake)
+    {
+        try
+        {
+            // Data read along with the last step may already finish the next
+            while (handshake.advance())
+            {
+                if (!nextStep(handshake))
+                    return finishHandshake(handshake);
+            }
+
+            handshake.channel.keyFor(channels).interestOps(handshake.getInterestOps());
+        }
+        catch (IOException e)
+        {
+            failHandshake(handshake, e);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Goes on to the next step of the magic exchange, after the last one
+     * @param handshake The handshakes of the link
+     * @return False once there are no steps left
+     * @throws IOException If the remote sent the wrong magic
+     */
+    private boolean nextStep(LinkHandshake handshake) throws IOException
+    {
+        ByteBuffer input = handshake.takeInput();
+
+        switch (handshake.step)
+        {
+            case LinkHandshake.STEP_MAGIC:
+            {
+                byte[] magic = input.array();
+                handshake.isCarrier = Arrays.equals(magic, CLIENT_MUX_MAGIC);
+
+                if (handshake.isCarrier || Arrays.equals(magic, CLIENT_RESUME_MAGIC))
+                {
+                    handshake.expect(LinkSession.HELLO_SIZE);
+                    handshake.step = LinkHandshake.STEP_HELLO;
+                }
+                else if (Arrays.equals(magic, CLIENT_MAGIC))
+                {
+                    // Write back the server magic
+                    handshake.send(ByteBuffer.wrap(SERVER_MAGIC));
+                    handshake.step = LinkHandshake.STEP_ANSWER;
+                }
+                else
+                {
+                    // Refuse the connection
+                    throw new ProtocolException("Bad client magic");
+                }
+
+                return true;
+            }
+            case LinkHandshake.STEP_HELLO:
+            {
+                long token = input.getLong();
+                long received = input.getLong();
+
+                if (token != 0)
+                {
+                    // Session is gone if nothing has it, and the remote has to give up on it
+                    handshake.resumed = findSession(token, received);
+                    handshake.peerReceived = received;
+                    handshake.send(hello(SERVER_MAGIC, handshake.resumed != null ? token : 0,
+                            handshake.resumed != null ? handshake.resumed.getLinkSession().getReceivedFrames() : 0));
+                    handshake.isRefused = handshake.resumed == null;
+                }
+                else
+                {
+                    // Start a new session, unless sessions are turned off
+                    if (sessionGrace > 0)
+                        handshake.linkSession = new LinkSession(LinkSession.newToken(), null, 0);
+
+                    handshake.send(hello(SERVER_MAGIC, handshake.linkSession != null ? handshake.linkSession.getToken() : 0, 0));
+                }
+
+                handshake.step = LinkHandshake.STEP_ANSWER;
+                return true;
+            }
+            case LinkHandshake.STEP_REPLY:
+            {
+                byte[] magic = new byte[SERVER_MAGIC.length];
+                input.get(magic);
+
+                if (!Arrays.equals(magic, SERVER_MAGIC))
+                    throw new ProtocolException("Bad server magic");
+
+                // Session token & received count, if a hello was sent
+                if (input.hasRemaining())
+                {
+                    handshake.token = input.getLong();
+                    handshake.peerReceived = input.getLong();
+                }
+
+                return false;
+            }
+            default:
+                // Answer went out
+                return false;
+        }
+    }
+
+    /**
+     * Finds the connection a session token belongs to
+     * @param token The session token the remote presented
+     * @param received The number of read frames the remote received
+     * @return The connection, or null if the session can't be picked up
+     */
+    private Connection findSession(long token, long received)
+    {
+        Connection resumed = null;
+
+        for (Connection connection : activeConnections.values())
+        {
+            LinkSession linkSession = connection.getLinkSession();
+
+            if (linkSession != null && linkSession.getToken() == token && !connection.isClosed())
+                resumed = connection;
+        }
+
+        if (resumed == null || !resumed.getLinkSession().canReplayFrom(received))
+            return null;
+
+        return resumed;
+    }
+
+    /**
+     * Makes the connection of a link that finished its handshakes
+     * @param handshake The handshakes of the link
+     * @return The connection id of a new connection the remote opened, or
+     *         -1 if there is no new connection to tell the endpoint about
+     * @throws IOException If the channel couldn't be selected on
+     */
+    private int finishHandshake(LinkHandshake handshake) throws IOException
+    {
+        SocketChannel channel = handshake.channel;
+        TlsSession session = handshake.session;
+
+        handshakes.remove(handshake);
+
+        if (handshake.kind == LinkHandshake.ACCEPT)
+        {
+            if (handshake.isRefused || (handshake.resumed != null && handshake.resumed.isClosed()))
+            {
+                abandon(channel, session);
+                return -1;
+            }
+
+            if (handshake.resumed != null)
+            {
+                attachLink(handshake.resumed, channel, session, handshake.peerReceived);
+                FlightEvents.endHandshake(handshake.event, handshake.resumed, true, true);
+                return -1;
+            }
+
+            // Accept the new connection
+            Connection connection = new Connection((short) (handshake.isCarrier ? allocateCarrierID() : allocateID(false)), channel);
+            connection.setTlsSession(session);
+            connection.setLinkSession(handshake.linkSession);
+            connection.setCoalescePolicy(acceptPolicy);
+
+            // Streams show up on their own, the link doesn't
+            if (handshake.isCarrier)
+            {
+                connection.setStreamTable(new StreamTable(null, 0));
+                addLink(connection, channel, handshake.event, true);
+                return -1;
+            }
+
+            return addLink(connection, channel, handshake.event, true);
+        }
+
+        if (handshake.kind == LinkHandshake.RESUME)
+        {
+            resumeLink(handshake);
+            return -1;
+        }
+
+        // Remote has sessions turned off if it gave no token
+        LinkSession linkSession = handshake.token != 0 ? new LinkSession(handshake.token, handshake.hostname, handshake.port) : null;
+
+        if (handshake.kind == LinkHandshake.CARRIER)
+        {
+            Connection link = new Connection((short) allocateCarrierID(), channel);
+            link.setTlsSession(session);
+            link.setStreamTable(new StreamTable(handshake.hostname, handshake.port));
+            link.setCoalescePolicy(handshake.policy);
+            link.setLinkSession(linkSession);
+
+            addLink(link, channel, handshake.event, false);
+            connectResult = openStream(link);
+            return -1;
+        }
+
+        // Connection finalized, add to active connections
+        Connection connection = new Connection((short) allocateID(false), channel);
+        connection.setTlsSession(session);
+        connection.setLinkSession(linkSession);
+        connection.setCoalescePolicy(handshake.policy);
+        connectResult = addLink(connection, channel, handshake.event, false);
+        return -1;
+    }
+
+    /**
+     * Gives up on a link whose handshakes failed
+     * Links to remotes that hung up on the session hello (older arbiters)
+     * are made again without one, and the outcome of a connect command is
+     * set otherwise
+     * @param handshake The handshakes of the link
+     * @param e What went wrong
+     */
+    private void failHandshake(LinkHandshake handshake, IOException e)
+    {
+        handshakes.remove(handshake);
+        abandon(handshake.channel, handshake.session);
+
+        if (handshake.kind == LinkHandshake.ACCEPT)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to accept a remote", e);
+            return;
+        }
+
+        if (handshake.kind == LinkHandshake.RESUME)
+        {
+            Connection connection = handshake.resumed;
+
+            if (connection.isClosed())
+                return;
+
+            // Nothing is listening anymore, or the remote hung up on the
+            // session hello
+            if (e instanceof ConnectException || e instanceof EOFException || e instanceof ProtocolException)
+                connection.closeConnection(Constants.ARB_CLOSE_EXPIRED);
+            else
+                connection.getLinkSession().endAttempt();
+
+            return;
+        }
+
+        boolean isTimeout = e instanceof SocketTimeoutException;
+
+        if (handshake.isExchanging() && !isTimeout)
+        {
+            if (handshake.kind == LinkHandshake.CARRIER)
+            {
+                // Remote can't multiplex links
+                plainRemotes.add(handshake.hostname + ":" + handshake.port);
+                connectResult = startConnect(LinkHandshake.CONNECT, handshake.hostname, handshake.port, handshake.policy, sessionGrace > 0);
+            }
+            else if (handshake.isResumable)
+            {
+                // Older arbiters hang up on the session hello, so try
+                // again without one
+                connectResult = startConnect(LinkHandshake.CONNECT, handshake.hostname, handshake.port, handshake.policy, false);
+            }
+            else
+            {
+                // Bad server magic
+                connectResult = Constants.ARB_ERROR_CONNECT_REFUSED;
+            }
+
+            return;
+        }
+
+        // Unknown errors include failed TLS handshakes
+        ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to connect to the remote", e);
+        connectResult = isTimeout || e instanceof ConnectException || e instanceof ClosedChannelException
+                ? Constants.ARB_ERROR_CONNECT_REFUSED
+                : Constants.ARB_ERROR_UNKNOWN_ERROR;
+    }
+
+    /**
+     * Gives up on the links that took too long to finish their handshakes
+     */
+    public void expireHandshakes()
+    {
+        if (handshakes.isEmpty())
+            return;
+
+        long now = Clock.get().currentTimeMillis();
+
+        // Going backwards, as failed links are taken out of the list
+        for (int i = handshakes.size() - 1; i >= 0; i--)
+        {
+            LinkHandshake handshake = handshakes.get(i);
+
+            if (now >= handshake.deadline)
+                failHandshake(handshake, new SocketTimeoutException("Handshake timed out"));
+        }
+    }
+
+    /**
+     * Closes the links that are still going through their handshakes
+     */
+    public void abandonHandshakes()
+    {
+        for (LinkHandshake handshake : handshakes)
+            abandon(handshake.channel, handshake.session);
+
+        handshakes.clear();
+    }
+
+    /**
+     * Moves a connection onto a new link, and starts selecting on it
+     */
+    private void attachLink(Connection connection, SocketChannel channel, TlsSession session, long received) throws IOException
+    {
+        connection.resumeLink(channel, session, received);
+
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(channels, SelectionKey.OP_READ, connection);
+
+        ArbiterLog.debug(connection.getLogID(), "resumed");
+    }
+
+    /**
+     * Moves a lost connection onto a link that was reconnected
+     * @param handshake The handshakes of the reconnected link
+     */
+    private void resumeLink(LinkHandshake handshake)
+    {
+        Connection connection = handshake.resumed;
+        LinkSession linkSession = connection.getLinkSession();
+
+        if (connection.isClosed() || !connection.isSuspended())
+        {
+            abandon(handshake.channel, handshake.session);
+        }
+        else if (handshake.token != linkSession.getToken())
+        {
+            // Remote doesn't have the session anymore
+            abandon(handshake.channel, handshake.session);
+            connection.closeConnection(Constants.ARB_CLOSE_EXPIRED);
+        }
+        else
+        {
+            try
+            {
+                attachLink(connection, handshake.channel, handshake.session, handshake.peerReceived);
+                FlightEvents.endHandshake(handshake.event, connection, false, true);
+            }
+            catch (IOException e)
+            {
+                ArbiterLog.error(connection.getLogID(), "Unable to resume the link", e);
+                connection.dropLink(Constants.ARB_CLOSE_FAILED);
+                linkSession.endAttempt();
+            }
+        }
+    }
+
+    /**
+     * Looks after the connections whose links were lost
+     * New reconnect attempts are started, and connections that ran out of
+     * time are closed
+     */
+    public void resumeSessions()
+    {
+        for (Connection connection : activeConnections.values())
+        {
+            // Streams are resumed along with their link
+            if (!connection.isSuspended() || connection.isClosed() || connection.isStream())
+                continue;
+
+            LinkSession linkSession = connection.getLinkSession();
+
+            if (linkSession.isOverrun() || linkSession.getSuspendedTime() > sessionGrace)
+            {
+                // Too late to pick the session up
+                connection.closeConnection(Constants.ARB_CLOSE_EXPIRED);
+            }
+            else if (linkSession.shouldAttempt())
+            {
+                linkSession.beginAttempt();
+                startReconnect(connection);
+            }
+        }
+    }
+
+    /**
+     * Starts reconnecting a lost link
+     * The link's handshakes are driven by the event loop like those of a
+     * new link, and are given up on after the resume timeout
+     * @param connection The connection to reconnect
+     */
+    private void startReconnect(Connection connection)
+    {
+        LinkSession linkSession = connection.getLinkSession();
+        SocketChannel channel = null;
+
+        try
+        {
+            channel = transport.openSocketChannel();
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(linkSession.getHostname(), linkSession.getPort()));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            TlsSession session = tlsContext != null ? tlsContext.newClientSession(linkSession.getHostname(), linkSession.getPort()) : null;
+            LinkHandshake handshake = new LinkHandshake(LinkHandshake.RESUME, channel, session, Clock.get().currentTimeMillis() + RESUME_TIMEOUT);
+            handshake.resumed = connection;
+
+            // Ask for the session, with the frames received so far
+            handshake.send(hello(CLIENT_RESUME_MAGIC, linkSession.getToken(), linkSession.getReceivedFrames()));
+            handshake.expect(SERVER_MAGIC.length + LinkSession.HELLO_SIZE);
+            handshake.step = LinkHandshake.STEP_REPLY;
+            channel.register(channels, handshake.getInterestOps(), handshake);
+            handshakes.add(handshake);
+        }
+        catch (ConnectException e)
+        {
+            // Nothing is listening anymore
+            abandon(channel, null);
+            connection.closeConnection(Constants.ARB_CLOSE_EXPIRED);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Link is still down
+            abandon(channel, null);
+            linkSession.endAttempt();
+        }
+    }
+
+    /**
+     * Closes a connection's link once the remote has read everything
+     * The link is half closed, and whatever the remote still sends (acks,
+     * heartbeats) is thrown away until it hangs up too
+     * @param connection The closed connection
+     */
+    public void lingerConnection(Connection connection)
+    {
+        try
+        {
+            SocketChannel channel = connection.shutdownChannel();
+            SelectionKey key = channel.keyFor(channels);
+
+            if (key != null)
+                key.cancel();
+
+            lingeringLinks.put(channel, Clock.get().currentTimeMillis() + LINGER_TIMEOUT);
+        }
+        catch (IOException e)
+        {
+            try
+            {
+                connection.closeChannel();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Closes the lingering links that the remote hung up on, or that waited
+     * for too long
+     * @param closeAll True to close all of the lingering links right away
+     */
+    public void closeLingeringLinks(boolean closeAll)
+    {
+        if (lingeringLinks.isEmpty())
+            return;
+
+        final ByteBuffer discard = ByteBuffer.allocate(1024);
+        final long now = Clock.get().currentTimeMillis();
+        Iterator<Map.Entry<SocketChannel, Long>> iterator = lingeringLinks.entrySet().iterator();
+
+        while (iterator.hasNext())
+        {
+            Map.Entry<SocketChannel, Long> link = iterator.next();
+            SocketChannel channel = link.getKey();
+            boolean isDone = closeAll || now >= link.getValue();
+
+            try
+            {
+                int amt;
+
+                do
+                {
+                    discard.clear();
+                    amt = channel.read(discard);
+                } while (amt > 0);
+
+                if (amt == -1)
+                    isDone = true;
+            }
+            catch (IOException e)
+            {
+                isDone = true;
+            }
+
+            if (!isDone)
+                continue;
+
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ignored) {}
+
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Gets the time until a lost link, lingering link or new link needs
+     * looking after
+     * Lingering links are checked every heartbeat interval
+     * @return The time until the next reconnect attempt, session expiry,
+     *         lingering link check or handshake timeout, in milliseconds, or
+     *         Long.MAX_VALUE if there is nothing to look after
+     */
+    public long getWaitTime()
+    {
+        long waitTime = lingeringLinks.isEmpty() ? Long.MAX_VALUE : Constants.HEARBEAT_INTERVAL;
+
+        if (!handshakes.isEmpty())
+        {
+            long now = Clock.get().currentTimeMillis();
+
+            for (LinkHandshake handshake : handshakes)
+                waitTime = Math.min(waitTime, Math.max(0, handshake.deadline - now));
+        }
+
+        for (Connection connection : activeConnections.values())
+        {
+            if (!connection.isSuspended() || connection.isClosed() || connection.isStream())
+                continue;
+
+            LinkSession linkSession = connection.getLinkSession();
+            long expiry = Math.max(0, sessionGrace + 1 - linkSession.getSuspendedTime());
+            waitTime = Math.min(waitTime, Math.min(expiry, linkSession.getAttemptDelay()));
+        }
+
+        return waitTime;
+    }
+
+    /**
+     * Sets how long lost links can be resumed for
+     * @param sessionGrace The grace window in milliseconds, or 0 to close
+     *                     connections as soon as their link is lost
+     */
+    public void setSessionGrace(long sessionGrace)
+    {
+        this.sessionGrace = Math.max(sessionGrace, 0);
+    }
+
+    /**
+     * Sets whether new connections go over multiplexed links
+     * @param isMultiplexed True to open connections to the same remote as
+     *                      streams over a single link
+     */
+    public void setMultiplexed(boolean isMultiplexed)
+    {
+        this.isMultiplexed = isMultiplexed;
+    }
+
+    /**
+     * Sets the TLS configuration used for new remote connections
+     * @param tlsContext The TLS configuration, or null for plaintext links
+     */
+    public void setTlsContext(TlsContext tlsContext)
+    {
+        this.tlsContext = tlsContext;
+    }
+
+    /**
+     * Sets the write coalescing policy given to accepted connections
+     * @param acceptPolicy The policy for new accepted connections
+     */
+    public void setAcceptPolicy(CoalescePolicy acceptPolicy)
+    {
+        this.acceptPolicy = acceptPolicy;
+    }
+
+    /**
+     * Encodes a magic followed by a session hello
+     */
+    private static ByteBuffer hello(byte[] magic, long token, long received)
+    {
+        return ByteBuffer.wrap(ByteBuffer.allocate(magic.length + LinkSession.HELLO_SIZE)
+                .put(magic)
+                .putLong(token)
+                .putLong(received)
+                .array());
+    }
+
+    /**
+     * Closes a channel that failed to finish the handshakes
+     */
+    private static void abandon(SocketChannel channel, TlsSession session)
+    {
+        if (channel == null)
+            return;
+
+        if (session != null)
+            session.close(channel);
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored) {}
+    }
+
     // ID -> Connection
     public Connection getConnection(int connID)
     {
-        return activeConnections.get(connID);
+        Connection connection = activeConnections.get(connID);
+
+        // Multiplexed links aren't visible to the endpoint
+        if (connection != null && connection.isCarrier())
+            return null;
+
+        return connection;
     }
 
     /**
@@ -153,7 +980,7 @@ public class ConnectionManager
      */
     public int closeConnection(int connID)
     {
-        Connection connection = activeConnections.get(connID);
+        Connection connection = getConnection(connID);
 
         if (connection == null)
             return Constants.ARB_ERROR_INVALID_ID;
@@ -172,7 +999,7 @@ public class ConnectionManager
     {
         activeConnections.values().forEach((connection) -> {
             if (connection.isDead())
-                connection.closeConnection();
+                connection.dropLink(Constants.ARB_CLOSE_DEAD);
         });
     }
 
@@ -5,24 +5,69 @@ public class Constants
     // Magic
     public static final byte[] CLIENT_MAGIC = new byte[] { (byte) 0xAB, (byte) 0x1C };
     public static final byte[] SERVER_MAGIC = new byte[] { (byte) 0xCA, (byte) 0xC0 };
+    // Client magic followed by a session hello
+    public static final byte[] CLIENT_RESUME_MAGIC = new byte[] { (byte) 0xAB, (byte) 0x1D };
+    // Client magic followed by a session hello, for a multiplexed link
+    public static final byte[] CLIENT_MUX_MAGIC = new byte[] { (byte) 0xAB, (byte) 0x1E };
 
     // Minimum 100ms between heartbeats
     public static final long HEARBEAT_INTERVAL = 100;
+    // Idle links back off up to 1600ms between heartbeats
+    public static final long MAX_HEARTBEAT_INTERVAL = 1600;
+    // Number of heartbeats that can be missed before a connection is dead
+    public static final long MISSED_HEARTBEATS = 4;
+    // Maximum time to wait for a ping to be answered before sending a new one
+    public static final long PING_TIMEOUT = 1000;
+    // Time a lost link has to be resumed in before the connection is closed
+    public static final long SESSION_GRACE = 10000;
 
     // Command packets
     public static final byte ARB_PACKET_CONNECT       = (byte) 'C';
     public static final byte ARB_PACKET_DISCONNECT    = (byte) 'D';
+    public static final byte ARB_PACKET_LISTEN        = (byte) 'L';
     public static final byte ARB_PACKET_STATUS        = (byte) 'S';
     public static final byte ARB_PACKET_WRITE         = (byte) 'W';
+    public static final byte ARB_PACKET_WEIGHT        = (byte) 'Q';
+    public static final byte ARB_PACKET_SPLICE        = (byte) 'J';
+    public static final byte ARB_PACKET_FRAMING       = (byte) 'M';
+    public static final byte ARB_PACKET_SENDFILE      = (byte) 'Y';
     public static final byte ARB_PACKET_EXIT          = (byte) 'X';
 
     // Remote packets
     public static final byte ARB_PACKET_READ          = (byte) 'R';
+    public static final byte ARB_PACKET_PING          = (byte) 'H';
+    public static final byte ARB_PACKET_PONG          = (byte) 'K';
+    public static final byte ARB_PACKET_ACK           = (byte) 'A';
+    public static final byte ARB_PACKET_BYE           = (byte) 'B';
+    public static final byte ARB_PACKET_CODEC         = (byte) 'V';
+    public static final byte ARB_PACKET_DELTA         = (byte) 'Z';
+    public static final byte ARB_PACKET_OPEN          = (byte) 'O';
+    public static final byte ARB_PACKET_UNLINK        = (byte) 'U';
+    public static final byte ARB_PACKET_GRANT         = (byte) 'G';
 
     // Response packets
     public static final byte ARB_PACKET_ENDCMD        = (byte) 'E';
     public static final byte ARB_PACKET_ENDCONN       = (byte) 'F';
     public static final byte ARB_PACKET_NEWCONN       = (byte) 'N';
+    public static final byte ARB_PACKET_FRAMES        = (byte) 'T';
+    public static final byte ARB_PACKET_PROGRESS      = (byte) 'I';
+
+    // Status snapshot
+    public static final int ARB_STATUS_ALL            = 0xFFFF;
+    public static final byte ARB_CONN_ACTIVE          = 0;
+    public static final byte ARB_CONN_CLOSING         = 1;
+    public static final byte ARB_CONN_SPLICED         = 2;
+    public static final byte ARB_CONN_RESUMING        = 3;
+    public static final byte ARB_CONN_THROTTLED       = 4;
+
+    // Close reasons
+    public static final byte ARB_CLOSE_ENDPOINT       = 0;
+    public static final byte ARB_CLOSE_REMOTE         = 1;
+    public static final byte ARB_CLOSE_DEAD           = 2;
+    public static final byte ARB_CLOSE_FAILED         = 3;
+    public static final byte ARB_CLOSE_EXPIRED        = 4;
+    public static final byte ARB_CLOSE_PEER           = 5;
+    public static final byte ARB_CLOSE_IDLE           = 6;
 
     // Errors
     public static final int ARB_ERROR_NONE            =  0;
@@ -32,4 +77,12 @@ public class Constants
     // Connection related
     public static final int ARB_ERROR_CONNECT_REFUSED = -3;
     public static final int ARB_ERROR_BAD_ADDRESS     = -4;
+    public static final int ARB_ERROR_LISTEN_FAILED   = -5;
+
+    // File transfer related
+    public static final int ARB_ERROR_FILE            = -6;
+    public static final int ARB_ERROR_FILE_ABORTED    = -7;
+
+    // Command related
+    public static final int ARB_ERROR_INVALID_ARG     = -8;
 }
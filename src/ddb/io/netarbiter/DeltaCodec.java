@@ -0,0 +1,281 @@
+package ddb.io.netarbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Delta codec for the read frames of a remote link
+ * Payloads are XORed against the previous payload sent in the same
+ * direction, and the runs of unchanged (zero) bytes are left out. Game
+ * state sent every tick only differs in a few places, so most of it never
+ * goes over the link.
+ *
+ * The codec is negotiated with a codec frame. The side that wants to send
+ * deltas offers the codec, and starts keeping its sent payloads. The other
+ * side starts keeping its received payloads when it sees the offer, and
+ * accepts it. Deltas are only sent once the offer is accepted. Links are
+ * in order (and resumed links are replayed in order), so both sides always
+ * agree on the previous payload.
+ *
+ * Codec Frame Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (ignored)
+ * packetID:       1 byte ('V')
+ * features:       1 byte (FEATURE_DELTA)
+ * isAccept:       1 byte (0 = offer, 1 = accept)
+ *
+ * Delta Frame Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (ignored)
+ * packetID:       1 byte ('Z')
+ * payloadLength:  2 bytes (length of the rebuilt payload)
+ * runs:           ... (until the end of the frame)
+ *
+ * Each run is made of:
+ * unchanged:      1 byte (bytes to copy from the previous payload)
+ * changed:        1 byte (number of XORed bytes that follow)
+ * xored:          "changed" bytes
+ * Anything past the last run is unchanged. The previous payload is treated
+ * as zeros past its end.
+ */
+public class DeltaCodec
+{
+    public static final byte FEATURE_DELTA = 1;
+    // Size of the delta frame header, before the runs
+    public static final int DELTA_HEADER_SIZE = 7;
+    // Unchanged bytes worth ending a run of changed bytes for
+    private static final int MIN_UNCHANGED_RUN = 3;
+
+    // Sent payloads are being kept for the remote
+    private boolean isOffered = false;
+    // Remote can rebuild deltas
+    private boolean isAccepted = false;
+    // Remote sends deltas, so received payloads are being kept
+    private boolean isReceiving = false;
+
+    private byte[] lastSent = new byte[0];
+    private int lastSentLength = 0;
+    private byte[] lastReceived = new byte[0];
+    private int lastReceivedLength = 0;
+
+    // Traffic statistics, in bytes
+    private long plainBytes = 0;
+    private long encodedBytes = 0;
+
+    /**
+     * Starts keeping sent payloads, right before the offer goes out
+     */
+    public void offer()
+    {
+        isOffered = true;
+    }
+
+    public boolean isOffered()
+    {
+        return isOffered;
+    }
+
+    /**
+     * Starts sending deltas, after the remote accepted the offer
+     */
+    public void accept()
+    {
+        if (isOffered)
+            isAccepted = true;
+    }
+
+    public boolean isAccepted()
+    {
+        return isAccepted;
+    }
+
+    /**
+     * Starts keeping received payloads, right after the remote's offer came in
+     */
+    public void startReceiving()
+    {
+        isReceiving = true;
+    }
+
+    public boolean isReceiving()
+    {
+        return isReceiving;
+    }
+
+    /**
+     * Encodes a payload against the last one sent
+     * The runs are put at the output's position, and the position is left
+     * untouched if the delta wouldn't be smaller than the plain payload
+     * @param payload The buffer containing the payload
+     * @param offset The offset of the payload in the buffer
+     * @param length The length of the payload
+     * @param output The buffer to put the runs into
+     * @return The size of the runs, or -1 if the plain payload should be sent
+     */
+    public int encode(ByteBuffer payload, int offset, int length, ByteBuffer output)
+    {
+        // Frame has to end up smaller than a plain read frame
+        final int budget = length - (DELTA_HEADER_SIZE - PacketView.HEADER_SIZE) - 1;
+        final int start = output.position();
+        int written = 0;
+        int i = 0;
+
+        if (budget < 0)
+            return -1;
+
+        while (i < length)
+        {
+            // Unchanged bytes
+            int unchanged = 0;
+
+            while (i + unchanged < length && unchanged < 0xFF && xorAt(payload, offset, i + unchanged) == 0)
+                unchanged++;
+
+            // Rest of the payload is unchanged
+            if (i + unchanged == length)
+                break;
+
+            // Changed bytes, up to a run of unchanged ones
+            int changed = 0;
+
+            while (i + unchanged + changed < length && changed < 0xFF && !isUnchangedRun(payload, offset, length, i + unchanged + changed))
+                changed++;
+
+            if (written + 2 + changed > budget)
+            {
+                output.position(start);
+                return -1;
+            }
+
+            output.put((byte) unchanged);
+            output.put((byte) changed);
+
+            for (int j = i + unchanged; j < i + unchanged + changed; j++)
+                output.put(xorAt(payload, offset, j));
+
+            written += 2 + changed;
+            i += unchanged + changed;
+        }
+
+        return written;
+    }
+
+    /**
+     * Keeps a payload as the one the next payload is encoded against
+     */
+    public void rememberSent(ByteBuffer payload, int offset, int length)
+    {
+        if (lastSent.length < length)
+            lastSent = new byte[length];
+
+        copy(payload, offset, length, lastSent);
+        lastSentLength = length;
+    }
+
+    /**
+     * Rebuilds a payload from a delta frame's runs
+     * @param input The buffer containing the delta frame
+     * @param offset The offset of the frame's payload length field
+     * @param length The length of the payload length field & runs
+     * @param output The buffer to put the rebuilt payload into, at its position
+     * @return The length of the rebuilt payload, or -1 if the delta is invalid
+     */
+    public int decode(ByteBuffer input, int offset, int length, ByteBuffer output)
+    {
+        if (!isReceiving || length < 2)
+            return -1;
+
+        final int payloadLength = Short.toUnsignedInt(input.getShort(offset));
+        final int end = offset + length;
+
+        if (payloadLength > output.remaining())
+            return -1;
+
+        int read = offset + 2;
+        int i = 0;
+
+        while (read < end)
+        {
+            if (read + 2 > end)
+                return -1;
+
+            int unchanged = Byte.toUnsignedInt(input.get(read++));
+            int changed = Byte.toUnsignedInt(input.get(read++));
+
+            if (i + unchanged + changed > payloadLength || read + changed > end)
+                return -1;
+
+            for (int j = 0; j < unchanged; j++, i++)
+                output.put(receivedAt(i));
+
+            for (int j = 0; j < changed; j++, i++)
+                output.put((byte) (receivedAt(i) ^ input.get(read++)));
+        }
+
+        while (i < payloadLength)
+            output.put(receivedAt(i++));
+
+        return payloadLength;
+    }
+
+    /**
+     * Keeps a payload as the one the next delta is rebuilt against
+     */
+    public void rememberReceived(ByteBuffer payload, int offset, int length)
+    {
+        if (lastReceived.length < length)
+            lastReceived = new byte[length];
+
+        copy(payload, offset, length, lastReceived);
+        lastReceivedLength = length;
+    }
+
+    /**
+     * Accounts for a sent payload
+     * @param plain The size of the payload
+     * @param encoded The size it took on the link
+     */
+    public void addSent(int plain, int encoded)
+    {
+        plainBytes += plain;
+        encodedBytes += encoded;
+    }
+
+    public long getPlainBytes()
+    {
+        return plainBytes;
+    }
+
+    public long getEncodedBytes()
+    {
+        return encodedBytes;
+    }
+
+    private byte xorAt(ByteBuffer payload, int offset, int index)
+    {
+        byte previous = index < lastSentLength ? lastSent[index] : 0;
+        return (byte) (payload.get(offset + index) ^ previous);
+    }
+
+    private byte receivedAt(int index)
+    {
+        return index < lastReceivedLength ? lastReceived[index] : 0;
+    }
+
+    private boolean isUnchangedRun(ByteBuffer payload, int offset, int length, int index)
+    {
+        int run = 0;
+
+        while (index + run < length && run < MIN_UNCHANGED_RUN && xorAt(payload, offset, index + run) == 0)
+            run++;
+
+        // A short run at the very end is as good as a long one
+        return run == MIN_UNCHANGED_RUN || (run > 0 && index + run == length);
+    }
+
+    private static void copy(ByteBuffer source, int offset, int length, byte[] dest)
+    {
+        for (int i = 0; i < length; i++)
+            dest[i] = source.get(offset + i);
+    }
+
+}
@@ -0,0 +1,272 @@
+package ddb.io.netarbiter;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File Transfer
+ * Sends part of a local file to a remote as ordinary read frames, so the
+ * file's data never goes through the endpoint. On plain links, only each
+ * frame's header is written by the arbiter, and the payload goes straight
+ * from the file to the socket (FileChannel.transferTo, sendfile on most
+ * systems). Links that need to see every frame (resumable sessions,
+ * encryption, the delta codec, streams & captures) get each chunk read
+ * into a buffer and encoded like any other write instead.
+ *
+ * Writes queued after the transfer wait for it to finish, so that the
+ * remote gets everything in the order it was sent in.
+ */
+public class FileTransfer implements Closeable
+{
+    // Largest chunk in a single frame, which the remote can still relay to
+    // its endpoint along with the source connection
+    public static final int CHUNK_SIZE = 0xFFFF - PacketView.HEADER_SIZE - Short.BYTES;
+    // Bytes sent between progress reports
+    public static final long PROGRESS_INTERVAL = 1024 * 1024;
+
+    // Progress report statuses (errors are reported as is)
+    public static final int STATUS_SENDING = 0;
+    public static final int STATUS_DONE    = 1;
+
+    private final FileChannel file;
+    private final long start;
+    private final long end;
+    // Next byte of the file to send
+    private long position;
+    // When to send the next progress report
+    private long nextProgress = PROGRESS_INTERVAL;
+
+    // Header of the frame being sent straight from the file, and how much of
+    // its payload is still left
+    private final ByteBuffer header = ByteBuffer.allocateDirect(PacketView.HEADER_SIZE);
+    private int payloadLeft = 0;
+    // Chunk read in for links that can't be sent to straight from the file
+    private ByteBuffer chunk;
+
+    // Writes queued before the transfer, which have to go out first
+    private int writesAhead;
+
+    private FileTransfer(FileChannel file, long start, long end, int writesAhead)
+    {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+        this.writesAhead = writesAhead;
+
+        header.limit(0);
+    }
+
+    /**
+     * Opens part of a file for sending
+     * @param path The path of the file
+     * @param offset The offset of the first byte to send
+     * @param length The number of bytes to send, or 0 for the rest of the file
+     * @param writesAhead The number of writes that have to go out first
+     * @return The transfer, ready to be sent
+     * @throws IOException If the file couldn't be opened, or doesn't hold
+     *                     the requested part
+     */
+    public static FileTransfer open(String path, long offset, long length, int writesAhead) throws IOException
+    {
+        FileChannel file;
+
+        try
+        {
+            file = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        }
+        catch (InvalidPathException e)
+        {
+            throw new IOException("Invalid path " + path, e);
+        }
+
+        long size = file.size();
+
+        if (length == 0)
+            length = size - offset;
+
+        if (offset < 0 || length < 0 || offset > size || length > size - offset)
+        {
+            file.close();
+            throw new IOException("Range " + offset + "+" + length + " is outside of " + path);
+        }
+
+        return new FileTransfer(file, offset, offset + length, writesAhead);
+    }
+
+    public int getWritesAhead()
+    {
+        return writesAhead;
+    }
+
+    /**
+     * Accounts for a write queued before the transfer going out
+     */
+    public void removeWriteAhead()
+    {
+        if (writesAhead > 0)
+            writesAhead--;
+    }
+
+    /**
+     * Gets the number of bytes handed over to the link so far
+     * @return The number of bytes sent
+     */
+    public long getSent()
+    {
+        return position - start;
+    }
+
+    public long getLength()
+    {
+        return end - start;
+    }
+
+    public boolean isDone()
+    {
+        return position == end && !isFrameOpen();
+    }
+
+    /**
+     * Checks if a frame sent straight from the file was cut off, so that
+     * nothing else can go out on the link until it is finished
+     * @return True if part of a frame is still left
+     */
+    public boolean isFrameOpen()
+    {
+        return header.hasRemaining() || payloadLeft > 0;
+    }
+
+    /**
+     * Gets the length of the next chunk to send
+     * @return The payload length of the next frame
+     */
+    public int getNextChunkLength()
+    {
+        return (int) Math.min(CHUNK_SIZE, end - position);
+    }
+
+    /**
+     * Checks if a progress report is due, and schedules the next one
+     * @return True if a progress report should be sent
+     */
+    public boolean takeProgress()
+    {
+        if (getSent() < nextProgress)
+            return false;
+
+        nextProgress = getSent() + PROGRESS_INTERVAL;
+        return true;
+    }
+
+    /**
+     * Sends frames straight from the file, until the channel is full
+     * Only for plain links, where nothing else is written to the channel
+     * while a frame is open
+     * @param channel The channel of the link
+     * @param streamID The id to put in the frames' sequence field
+     * @param budget The number of bytes to send before giving the other
+     *               connections a turn
+     * @return The number of bytes written to the channel
+     * @throws IOException If the file couldn't be read, or the channel
+     *                     couldn't be written to
+     */
+    public long transferTo(SocketChannel channel, short streamID, long budget) throws IOException
+    {
+        long total = 0;
+
+        while (total < budget)
+        {
+            if (!isFrameOpen())
+            {
+                if (position == end)
+                    break;
+
+                payloadLeft = getNextChunkLength();
+
+                header.clear();
+                // Length
+                header.putShort((short) (payloadLeft + PacketView.HEADER_SIZE));
+                // Sequence (stream id on multiplexed links)
+                header.putShort(streamID);
+                // PacketID ('R')
+                header.put(Constants.ARB_PACKET_READ);
+                header.flip();
+            }
+
+            if (header.hasRemaining())
+            {
+                total += channel.write(header);
+
+                // Channel is full
+                if (header.hasRemaining())
+                    break;
+            }
+
+            long amount = file.transferTo(position, payloadLeft, channel);
+
+            // The file got shorter after it was opened, and the frame can't
+            // be finished anymore
+            if (amount == 0 && position >= file.size())
+                throw new EOFException("File ended early");
+
+            position += amount;
+            payloadLeft -= (int) amount;
+            total += amount;
+
+            // Channel is full
+            if (payloadLeft > 0)
+                break;
+        }
+
+        return total;
+    }
+
+    /**
+     * Reads the next chunk of the file
+     * @return A buffer holding the chunk, valid until the next call
+     * @throws IOException If the file couldn't be read
+     */
+    public ByteBuffer readChunk() throws IOException
+    {
+        if (chunk == null)
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+        chunk.clear();
+        chunk.limit(getNextChunkLength());
+
+        while (chunk.hasRemaining())
+        {
+            if (file.read(chunk, position + chunk.position()) < 0)
+                throw new EOFException("File ended early");
+        }
+
+        chunk.flip();
+        position += chunk.remaining();
+        return chunk;
+    }
+
+    /**
+     * Closes the file, whether or not everything was sent
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            file.close();
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to close a sent file", e);
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package ddb.io.netarbiter;
+
+/**
+ * Flight Recorder Events
+ * Reports what the event loop is doing to the JDK Flight Recorder, so that
+ * recordings of real sessions show where latency spikes and garbage come
+ * from. While nothing records an event, reporting it only costs a check.
+ * On JVMs without the flight recorder, the event classes are never loaded
+ * and every call returns right away. The event classes (JfrEvents) are left
+ * out of builds made on JDKs without jdk.jfr, which act the same way.
+ *
+ * Events, all in the "Net Arbiter" category:
+ * ddb.netarbiter.FrameDecoded:       A frame read in from a connection.
+ *                                    Off by default, as there is one per frame
+ * ddb.netarbiter.CommandExecuted:    An endpoint command, and how long it took
+ * ddb.netarbiter.OutboundFlush:      Output written out on a connection, with
+ *                                    the bytes, frames & write calls
+ * ddb.netarbiter.HandshakeCompleted: A link that was set up or resumed, and
+ *                                    how long the handshakes took
+ * ddb.netarbiter.ConnectionClosed:   A connection going away, and why
+ */
+public final class FlightEvents
+{
+    // Reports the events, or null if the JVM has no flight recorder
+    private static final Recorder RECORDER = loadRecorder();
+    private static final boolean IS_AVAILABLE = RECORDER != null;
+
+    private FlightEvents() {}
+
+    public static boolean isAvailable()
+    {
+        return IS_AVAILABLE;
+    }
+
+    /**
+     * Reports a frame read in from a connection
+     * @param connID The connection the frame was read from
+     * @param packetID The packet id of the frame
+     * @param length The length of the frame
+     */
+    public static void frameDecoded(int connID, byte packetID, int length)
+    {
+        if (IS_AVAILABLE)
+            RECORDER.frameDecoded(connID, packetID, length);
+    }
+
+    /**
+     * Starts timing a command
+     * @return The event to pass to endCommand, or null if it isn't recorded
+     */
+    public static Object beginCommand()
+    {
+        return IS_AVAILABLE ? RECORDER.beginCommand() : null;
+    }
+
+    /**
+     * Reports a command that was carried out
+     * @param event The event from beginCommand
+     * @param command The class of the command packet
+     * @param sequence The sequence number of the command
+     * @param result The code the command was acked with
+     */
+    public static void endCommand(Object event, Class<?> command, int sequence, int result)
+    {
+        if (event != null)
+            RECORDER.endCommand(event, command, sequence, result);
+    }
+
+    /**
+     * Starts timing a flush of a connection's output
+     * @return The event to pass to endFlush, or null if it isn't recorded
+     */
+    public static Object beginFlush()
+    {
+        return IS_AVAILABLE ? RECORDER.beginFlush() : null;
+    }
+
+    /**
+     * Reports a flush of a connection's output
+     * @param event The event from beginFlush
+     * @param connID The connection that was flushed
+     * @param bytes The number of bytes written
+     * @param frames The number of frames that were finished
+     * @param writes The number of write calls made
+     */
+    public static void endFlush(Object event, int connID, int bytes, int frames, int writes)
+    {
+        if (event != null)
+            RECORDER.endFlush(event, connID, bytes, frames, writes);
+    }
+
+    /**
+     * Starts timing the handshakes of a new link
+     * @return The event to pass to endHandshake, or null if it isn't recorded
+     */
+    public static Object beginHandshake()
+    {
+        return IS_AVAILABLE ? RECORDER.beginHandshake() : null;
+    }
+
+    /**
+     * Reports a link that finished its handshakes
+     * @param event The event from beginHandshake
+     * @param connection The connection the link belongs to
+     * @param isAccepted True if the remote opened the link
+     * @param isResumed True if the link picked up an existing connection
+     */
+    public static void endHandshake(Object event, Connection connection, boolean isAccepted, boolean isResumed)
+    {
+        if (event != null)
+            RECORDER.endHandshake(event, connection, isAccepted, isResumed);
+    }
+
+    /**
+     * Reports a connection that was closed
+     * @param connection The closed connection
+     */
+    public static void connectionClosed(Connection connection)
+    {
+        if (IS_AVAILABLE)
+            RECORDER.connectionClosed(connection);
+    }
+
+    private static Recorder loadRecorder()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event", false, FlightEvents.class.getClassLoader());
+
+            // Only there if the arbiter was built on a JDK with jdk.jfr
+            Class<?> events = Class.forName("ddb.io.netarbiter.JfrEvents", true, FlightEvents.class.getClassLoader());
+            return (Recorder) events.getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Reports the events to the flight recorder, implemented by JfrEvents
+     * The begin methods return null if the event isn't recorded
+     */
+    interface Recorder
+    {
+        void frameDecoded(int connID, byte packetID, int length);
+
+        Object beginCommand();
+
+        void endCommand(Object begun, Class<?> command, int sequence, int result);
+
+        Object beginFlush();
+
+        void endFlush(Object begun, int connID, int bytes, int frames, int writes);
+
+        Object beginHandshake();
+
+        void endHandshake(Object begun, Connection connection, boolean isAccepted, boolean isResumed);
+
+        void connectionClosed(Connection connection);
+    }
+
+}
@@ -0,0 +1,208 @@
+package ddb.io.netarbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of frames waiting to go out on a connection
+ * Frames are encoded straight into the ring when they are queued, and each
+ * one starts with its length (including the length itself). A frame never
+ * wraps around the end of the ring: if it doesn't fit there, the rest of
+ * the end is skipped (marked with a length of 0 if there is room for it).
+ * The ring grows when it runs out of space, and shrinks back once it is
+ * empty. Only used by the event loop, so nothing is synchronized.
+ */
+public class FrameRing
+{
+    // Size of a new ring
+    private static final int INITIAL_CAPACITY = 256;
+    // Largest empty ring kept around, bigger ones shrink back down
+    private static final int MAX_IDLE_CAPACITY = 64 * 1024;
+
+    private ByteBuffer ring = ByteBuffer.allocate(INITIAL_CAPACITY);
+    // Views of the frames handed out by reserve & peek
+    private ByteBuffer writer = ring.duplicate();
+    private ByteBuffer view = ring.duplicate();
+    // Start of the oldest frame, and where the next one goes
+    private int head = 0;
+    private int tail = 0;
+    private int count = 0;
+
+    /**
+     * Reserves space for encoding a frame into
+     * The caller has to put exactly "length" bytes, starting with the
+     * frame's length as 2 bytes
+     * @param length The length of the frame, at most 65535 bytes
+     * @return A view positioned at the start of the frame, and limited to
+     *         its end
+     */
+    public ByteBuffer reserve(int length)
+    {
+        if (length < 2 || length > 0xFFFF)
+            throw new IllegalArgumentException("Frame length out of range: " + length);
+
+        if (count == 0)
+        {
+            head = 0;
+            tail = 0;
+        }
+
+        int start = findSpace(length);
+
+        if (start == -1)
+        {
+            grow(length);
+            start = tail;
+        }
+
+        tail = start + length;
+        count++;
+
+        writer.limit(tail);
+        writer.position(start);
+        return writer;
+    }
+
+    /**
+     * Gets the oldest frame in the ring, without removing it
+     * @return A view positioned at the start of the frame, and limited to
+     *         its end, or null if the ring is empty
+     */
+    public ByteBuffer peek()
+    {
+        if (count == 0)
+            return null;
+
+        skipEnd();
+
+        int length = Short.toUnsignedInt(ring.getShort(head));
+        view.limit(head + length);
+        view.position(head);
+        return view;
+    }
+
+    /**
+     * Gets the length of the oldest frame in the ring
+     * @return The length of the frame, or -1 if the ring is empty
+     */
+    public int peekLength()
+    {
+        if (count == 0)
+            return -1;
+
+        skipEnd();
+        return Short.toUnsignedInt(ring.getShort(head));
+    }
+
+    /**
+     * Removes the oldest frame from the ring
+     */
+    public void remove()
+    {
+        if (count == 0)
+            return;
+
+        skipEnd();
+        head += Short.toUnsignedInt(ring.getShort(head));
+        count--;
+
+        // Give back the space a burst took up
+        if (count == 0 && ring.capacity() > MAX_IDLE_CAPACITY)
+            setRing(ByteBuffer.allocate(INITIAL_CAPACITY));
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Gets the number of frames in the ring
+     * @return The number of frames
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Finds a place for a frame after the newest one
+     * @param length The length of the frame
+     * @return The start of the space, or -1 if the ring needs to grow
+     */
+    private int findSpace(int length)
+    {
+        int capacity = ring.capacity();
+
+        if (count == 0 || tail > head)
+        {
+            // Free space is at the end, then at the start
+            if (capacity - tail >= length)
+                return tail;
+
+            if (head >= length)
+            {
+                if (capacity - tail >= 2)
+                    ring.putShort(tail, (short) 0);
+
+                return 0;
+            }
+
+            return -1;
+        }
+
+        // Free space is between the newest & oldest frames
+        return head - tail >= length ? tail : -1;
+    }
+
+    /**
+     * Moves the oldest frame pointer to the start once it reaches the
+     * skipped part at the end
+     */
+    private void skipEnd()
+    {
+        if (head > ring.capacity() - 2 || ring.getShort(head) == 0)
+            head = 0;
+    }
+
+    /**
+     * Copies the frames, in order, into a ring with room for another one
+     * @param length The length of the frame that didn't fit
+     */
+    private void grow(int length)
+    {
+        int capacity = ring.capacity() * 2;
+
+        while (capacity < ring.capacity() + length)
+            capacity *= 2;
+
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        int frames = count;
+
+        for (int i = 0; i < frames; i++)
+        {
+            skipEnd();
+            int frameLength = Short.toUnsignedInt(ring.getShort(head));
+
+            view.limit(head + frameLength);
+            view.position(head);
+            larger.put(view);
+            head += frameLength;
+        }
+
+        int end = larger.position();
+        setRing(larger);
+        count = frames;
+        tail = end;
+    }
+
+    private void setRing(ByteBuffer ring)
+    {
+        this.ring = ring;
+        this.writer = ring.duplicate();
+        this.view = ring.duplicate();
+        this.head = 0;
+        this.tail = 0;
+        this.count = 0;
+    }
+
+}
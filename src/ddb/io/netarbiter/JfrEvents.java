@@ -0,0 +1,289 @@
+package ddb.io.netarbiter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Flight recorder event types
+ * Only loaded through FlightEvents, once it found the flight recorder, so
+ * that the arbiter still runs on JVMs without one. Built by its own step,
+ * as JDKs without jdk.jfr can't compile it. Events are only made
+ * while their type is being recorded, so nothing is allocated otherwise,
+ * and none of them take a stack trace, as they all come from the event
+ * loop.
+ */
+final class JfrEvents implements FlightEvents.Recorder
+{
+    private static final String[] CLOSE_REASONS = {
+            "Closed by the endpoint",
+            "Closed by the remote",
+            "Heartbeat timed out",
+            "Link failed",
+            "Session expired",
+            "Peer closed",
+            "Link idle"
+    };
+
+    private static final EventType FRAME_DECODED = EventType.getEventType(FrameDecoded.class);
+    private static final EventType COMMAND_EXECUTED = EventType.getEventType(CommandExecuted.class);
+    private static final EventType OUTBOUND_FLUSH = EventType.getEventType(OutboundFlush.class);
+    private static final EventType HANDSHAKE_COMPLETED = EventType.getEventType(HandshakeCompleted.class);
+    private static final EventType CONNECTION_CLOSED = EventType.getEventType(ConnectionClosed.class);
+
+    // Names of the commands, without the "Packet" suffix
+    private static final ClassValue<String> COMMAND_NAMES = new ClassValue<String>()
+    {
+        @Override
+        protected String computeValue(Class<?> command)
+        {
+            return command.getSimpleName().replace("Packet", "");
+        }
+    };
+
+    JfrEvents() {}
+
+    @Override
+    public void frameDecoded(int connID, byte packetID, int length)
+    {
+        if (!FRAME_DECODED.isEnabled())
+            return;
+
+        FrameDecoded event = new FrameDecoded();
+        event.connectionID = connID;
+        event.packetID = (char) packetID;
+        event.length = length;
+        event.commit();
+    }
+
+    @Override
+    public Object beginCommand()
+    {
+        if (!COMMAND_EXECUTED.isEnabled())
+            return null;
+
+        CommandExecuted event = new CommandExecuted();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endCommand(Object begun, Class<?> command, int sequence, int result)
+    {
+        CommandExecuted event = (CommandExecuted) begun;
+        event.end();
+
+        if (!event.shouldCommit())
+            return;
+
+        event.command = COMMAND_NAMES.get(command);
+        event.sequence = sequence;
+        event.result = result;
+        event.commit();
+    }
+
+    @Override
+    public Object beginFlush()
+    {
+        if (!OUTBOUND_FLUSH.isEnabled())
+            return null;
+
+        OutboundFlush event = new OutboundFlush();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endFlush(Object begun, int connID, int bytes, int frames, int writes)
+    {
+        OutboundFlush event = (OutboundFlush) begun;
+        event.end();
+
+        // Nothing was waiting to go out
+        if (writes == 0 || !event.shouldCommit())
+            return;
+
+        event.connectionID = connID;
+        event.bytes = bytes;
+        event.frames = frames;
+        event.writes = writes;
+        event.commit();
+    }
+
+    @Override
+    public Object beginHandshake()
+    {
+        if (!HANDSHAKE_COMPLETED.isEnabled())
+            return null;
+
+        HandshakeCompleted event = new HandshakeCompleted();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endHandshake(Object begun, Connection connection, boolean isAccepted, boolean isResumed)
+    {
+        HandshakeCompleted event = (HandshakeCompleted) begun;
+        event.end();
+
+        if (!event.shouldCommit())
+            return;
+
+        event.connectionID = connection.getConnectionID();
+        event.remote = getRemote(connection);
+        event.accepted = isAccepted;
+        event.resumed = isResumed;
+        event.encrypted = connection.isEncrypted();
+        event.resumable = connection.getLinkSession() != null;
+        event.multiplexed = connection.isCarrier();
+        event.commit();
+    }
+
+    @Override
+    public void connectionClosed(Connection connection)
+    {
+        if (!CONNECTION_CLOSED.isEnabled())
+            return;
+
+        ConnectionClosed event = new ConnectionClosed();
+        event.connectionID = connection.getConnectionID();
+        event.reason = CLOSE_REASONS[connection.getCloseReason()];
+        event.bytesSent = connection.getBytesSent();
+        event.bytesReceived = connection.getBytesReceived();
+        event.commit();
+    }
+
+    private static String getRemote(Connection connection)
+    {
+        try
+        {
+            SocketAddress address = connection.channel != null ? connection.channel.getRemoteAddress() : null;
+            return address != null ? address.toString() : null;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    @Name("ddb.netarbiter.FrameDecoded")
+    @Label("Frame Decoded")
+    @Category("Net Arbiter")
+    @Description("A frame read in from a connection")
+    @Enabled(false)
+    @StackTrace(false)
+    static class FrameDecoded extends Event
+    {
+        @Label("Connection")
+        int connectionID;
+
+        @Label("Packet ID")
+        char packetID;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+    }
+
+    @Name("ddb.netarbiter.CommandExecuted")
+    @Label("Command Executed")
+    @Category("Net Arbiter")
+    @Description("An endpoint command that was carried out")
+    @StackTrace(false)
+    static class CommandExecuted extends Event
+    {
+        @Label("Command")
+        String command;
+
+        @Label("Sequence")
+        int sequence;
+
+        @Label("Result")
+        int result;
+    }
+
+    @Name("ddb.netarbiter.OutboundFlush")
+    @Label("Outbound Flush")
+    @Category("Net Arbiter")
+    @Description("Output written out on a connection")
+    @StackTrace(false)
+    static class OutboundFlush extends Event
+    {
+        @Label("Connection")
+        int connectionID;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        @Label("Frames")
+        @Description("Frames finished by the flush")
+        int frames;
+
+        @Label("Writes")
+        @Description("Write calls made on the channel")
+        int writes;
+    }
+
+    @Name("ddb.netarbiter.HandshakeCompleted")
+    @Label("Handshake Completed")
+    @Category("Net Arbiter")
+    @Description("A link to a remote that was set up or resumed")
+    @StackTrace(false)
+    static class HandshakeCompleted extends Event
+    {
+        @Label("Connection")
+        int connectionID;
+
+        @Label("Remote")
+        String remote;
+
+        @Label("Accepted")
+        boolean accepted;
+
+        @Label("Resumed")
+        boolean resumed;
+
+        @Label("Encrypted")
+        boolean encrypted;
+
+        @Label("Resumable")
+        boolean resumable;
+
+        @Label("Multiplexed")
+        boolean multiplexed;
+    }
+
+    @Name("ddb.netarbiter.ConnectionClosed")
+    @Label("Connection Closed")
+    @Category("Net Arbiter")
+    @Description("A connection to a remote that went away")
+    @StackTrace(false)
+    static class ConnectionClosed extends Event
+    {
+        @Label("Connection")
+        int connectionID;
+
+        @Label("Reason")
+        String reason;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        long bytesSent;
+
+        @Label("Bytes Received")
+        @DataAmount
+        long bytesReceived;
+    }
+
+}
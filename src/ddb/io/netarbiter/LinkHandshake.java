@@ -0,0 +1,221 @@
+package ddb.io.netarbiter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Handshakes of a link that is being made
+ * Drives the TCP connect, the TLS handshake and the magic exchange of a
+ * new link without ever waiting on the channel, so that the event loop
+ * can go on with the other connections. Each call to advance goes as far
+ * as the channel allows, and getInterestOps tells what to wait on before
+ * the next one.
+ *
+ * The magic exchange is made up of steps: data to send, followed by an
+ * amount of data to read back. The connection manager decides on the next
+ * step once the last one is done.
+ */
+public class LinkHandshake
+{
+    // What the link is being made for
+    // Remote opened the link
+    public static final int ACCEPT = 0;
+    // Link for a connect command, with a session hello if resumable
+    public static final int CONNECT = 1;
+    // Multiplexed link for a connect command
+    public static final int CARRIER = 2;
+    // Reconnect of a lost link, picking its session back up
+    public static final int RESUME = 3;
+
+    // Magic exchange steps
+    // Waiting on the client magic (accepting side)
+    public static final int STEP_MAGIC = 0;
+    // Waiting on the session hello (accepting side)
+    public static final int STEP_HELLO = 1;
+    // Waiting on the server magic, and the session hello if one was sent
+    // (connecting side)
+    public static final int STEP_REPLY = 2;
+    // Waiting on the last of the answer to go out (accepting side)
+    public static final int STEP_ANSWER = 3;
+
+    final int kind;
+    final SocketChannel channel;
+    final TlsSession session;
+    // When to give up on the handshakes, in milliseconds
+    final long deadline;
+    // Flight recorder event, started with the link
+    final Object event;
+
+    // Where the link goes (connecting side)
+    String hostname;
+    int port;
+    CoalescePolicy policy;
+    boolean isResumable;
+
+    // Current step of the magic exchange
+    int step;
+    // Accepted link is multiplexed
+    boolean isCarrier;
+    // Connection the link resumes: the lost one for a reconnect, or the one
+    // an accepted link's hello named
+    Connection resumed;
+    // Read frames the remote received, from its session hello
+    long peerReceived;
+    // Session asked for is gone, so the link is closed once it was told
+    boolean isRefused;
+    // Session started for an accepted link
+    LinkSession linkSession;
+    // Session token the remote answered with (connecting side)
+    long token;
+
+    private boolean isConnected;
+    private boolean isSecured;
+    // Data waiting to be sent (drain mode)
+    private ByteBuffer output = null;
+    // Data being read in (fill mode)
+    private ByteBuffer input = null;
+
+    /**
+     * Starts the handshakes of a link
+     * @param kind What the link is being made for
+     * @param channel The link's channel, connected or with a connect pending
+     * @param session The encryption for the link, or null for plaintext
+     * @param deadline When to give up on the handshakes, in milliseconds
+     */
+    LinkHandshake(int kind, SocketChannel channel, TlsSession session, long deadline)
+    {
+        this.kind = kind;
+        this.channel = channel;
+        this.session = session;
+        this.deadline = deadline;
+        this.event = FlightEvents.beginHandshake();
+        this.isConnected = channel.isConnected();
+        this.isSecured = session == null;
+    }
+
+    /**
+     * Queues up data to send in the current step
+     * @param data The data to send (drain mode)
+     */
+    void send(ByteBuffer data)
+    {
+        this.output = data;
+    }
+
+    /**
+     * Reads in an amount of data in the current step, once everything
+     * queued up was sent
+     * @param length The number of bytes to read
+     */
+    void expect(int length)
+    {
+        this.input = ByteBuffer.allocate(length);
+    }
+
+    /**
+     * Moves the handshakes along as far as the channel allows
+     * @return True once the current step is done: the channel is connected
+     *         and secured, the queued up data was sent, and the expected
+     *         data was read in
+     * @throws IOException If the remote hung up, or a handshake failed
+     */
+    boolean advance() throws IOException
+    {
+        if (!isConnected)
+        {
+            if (!channel.finishConnect())
+                return false;
+
+            isConnected = true;
+        }
+
+        if (!isSecured)
+        {
+            if (!session.advanceHandshake(channel))
+                return false;
+
+            isSecured = true;
+        }
+
+        if (output != null)
+        {
+            if (session != null)
+            {
+                session.write(channel, output);
+
+                if (output.hasRemaining() || !session.flush(channel))
+                    return false;
+            }
+            else
+            {
+                channel.write(output);
+
+                if (output.hasRemaining())
+                    return false;
+            }
+
+            output = null;
+        }
+
+        if (input != null && input.hasRemaining())
+        {
+            int amount = session != null ? session.read(channel, input) : channel.read(input);
+
+            if (amount < 0)
+                throw new EOFException("Remote hung up during the handshake");
+
+            if (input.hasRemaining())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes the data read in by the last step
+     * @return The data (ready for reading), or null if none was expected
+     */
+    ByteBuffer takeInput()
+    {
+        ByteBuffer data = input;
+        input = null;
+
+        if (data != null)
+            data.flip();
+
+        return data;
+    }
+
+    /**
+     * Checks if the magic exchange was started, meaning the channel is
+     * connected and secured
+     * @return True if a failure comes from the remote's answer to the
+     *         magic, instead of the connect or TLS handshake
+     */
+    boolean isExchanging()
+    {
+        return isConnected && isSecured;
+    }
+
+    /**
+     * Gets what to wait on before the handshakes can go on
+     * @return The selection key operations to wait on
+     */
+    int getInterestOps()
+    {
+        if (!isConnected)
+            return SelectionKey.OP_CONNECT;
+
+        if (!isSecured)
+            return session.hasPendingOutput() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+
+        if (output != null || (session != null && session.hasPendingOutput()))
+            return SelectionKey.OP_WRITE;
+
+        return SelectionKey.OP_READ;
+    }
+
+}
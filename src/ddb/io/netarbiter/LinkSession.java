@@ -0,0 +1,328 @@
+package ddb.io.netarbiter;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Resumable session of a remote link
+ * Lets a connection outlive its TCP link: when the link drops, the
+ * connection is suspended instead of closed, and a new link that presents
+ * the session's token within the grace window takes its place.
+ *
+ * Each side counts the read frames it sends & receives, and keeps the sent
+ * frames that the remote hasn't acknowledged yet. When the link is resumed,
+ * both sides say how many frames they received, and only the frames after
+ * that are sent again.
+ *
+ * Session Hello Format (after the client magic):
+ * token:          8 bytes (0 = new session)
+ * received:       8 bytes (read frames received so far)
+ *
+ * The server answers with the same fields after the server magic. A token
+ * of 0 means the server doesn't know the session (or doesn't do sessions).
+ */
+public class LinkSession
+{
+    // Size of the session hello
+    public static final int HELLO_SIZE = 16;
+    // Maximum amount of unacknowledged frames kept for replaying
+    public static final int RETRANSMIT_LIMIT = 512 * 1024;
+    // Read frames are acknowledged after this many bytes are received
+    public static final int ACK_INTERVAL = 64 * 1024;
+    // Time between reconnect attempts, in milliseconds
+    public static final long RETRY_INTERVAL = 250;
+
+    private static final SecureRandom tokenSource = new SecureRandom();
+
+    private final long token;
+    // Where to reconnect to, if this side made the connection
+    private final String hostname;
+    private final int port;
+
+    // Read frames sent & received over the session's lifetime
+    private long sentFrames = 0;
+    private long receivedFrames = 0;
+    // Bytes received since the last acknowledgement was sent
+    private int unackedBytes = 0;
+
+    // Sent frames that haven't been acknowledged yet (fill mode)
+    private ByteBuffer retained;
+    // Number of the first frame in the retained buffer
+    private long firstRetained = 1;
+    // Set once frames sent while suspended had to be thrown away
+    private boolean isOverrun = false;
+
+    // When the link was lost (0 = not suspended), in milliseconds
+    private long suspendedSince = 0;
+    private long nextAttempt = 0;
+    private boolean isAttemptPending = false;
+
+    /**
+     * Creates a session
+     * @param token The session's token
+     * @param hostname The host to reconnect to, or null if the remote
+     *                 connected to this side
+     * @param port The port to reconnect to
+     */
+    public LinkSession(long token, String hostname, int port)
+    {
+        this.token = token;
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    /**
+     * Creates a token for a new session
+     * @return A random, non-zero token
+     */
+    public static long newToken()
+    {
+        long token;
+
+        do
+        {
+            token = tokenSource.nextLong();
+        } while (token == 0);
+
+        return token;
+    }
+
+    public long getToken()
+    {
+        return token;
+    }
+
+    public boolean isClient()
+    {
+        return hostname != null;
+    }
+
+    public String getHostname()
+    {
+        return hostname;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public long getReceivedFrames()
+    {
+        return receivedFrames;
+    }
+
+    /**
+     * Keeps a copy of a read frame that was just encoded for the remote
+     * The oldest frames are thrown away if the retransmit buffer is full,
+     * so a link that didn't receive them can't pick up the session
+     * @param source The buffer containing the frame
+     * @param offset The offset of the frame in the buffer
+     * @param length The length of the frame
+     */
+    public void retainSent(ByteBuffer source, int offset, int length)
+    {
+        sentFrames++;
+
+        if (retained == null)
+            retained = ByteBuffer.allocate(Math.min(Math.max(length, 4096), RETRANSMIT_LIMIT));
+
+        if (retained.remaining() < length && retained.capacity() < RETRANSMIT_LIMIT)
+        {
+            // Grow the buffer, up to the limit
+            int newSize = Math.min(Math.max(retained.capacity() * 2, retained.position() + length), RETRANSMIT_LIMIT);
+            ByteBuffer newBuffer = ByteBuffer.allocate(newSize);
+
+            retained.flip();
+            newBuffer.put(retained);
+            retained = newBuffer;
+        }
+
+        // Make room by dropping the oldest frames
+        int dropped = 0;
+
+        while (retained.remaining() + dropped < length && dropped < retained.position())
+        {
+            dropped += Short.toUnsignedInt(retained.getShort(dropped));
+            firstRetained++;
+        }
+
+        discard(dropped);
+
+        // Nothing sent while suspended has reached the remote yet
+        if (dropped > 0 && suspendedSince != 0)
+            isOverrun = true;
+
+        int position = source.position();
+        int limit = source.limit();
+
+        source.limit(offset + length);
+        source.position(offset);
+        retained.put(source);
+
+        source.limit(limit);
+        source.position(position);
+    }
+
+    /**
+     * Drops the frames the remote said it received
+     * @param received The number of frames the remote received
+     */
+    public void acknowledge(long received)
+    {
+        if (retained == null)
+        {
+            firstRetained = Math.max(firstRetained, received + 1);
+            return;
+        }
+
+        int acked = 0;
+
+        while (firstRetained <= received && acked < retained.position())
+        {
+            acked += Short.toUnsignedInt(retained.getShort(acked));
+            firstRetained++;
+        }
+
+        discard(acked);
+    }
+
+    /**
+     * Counts a read frame received from the remote
+     * @param length The length of the frame
+     * @return True if the frames received should be acknowledged now
+     */
+    public boolean countReceived(int length)
+    {
+        receivedFrames++;
+        unackedBytes += length;
+
+        if (unackedBytes < ACK_INTERVAL)
+            return false;
+
+        unackedBytes = 0;
+        return true;
+    }
+
+    /**
+     * Checks if a link presenting the given count can pick up the session
+     * @param received The number of frames the remote received
+     * @return True if every frame after that is still retained
+     */
+    public boolean canReplayFrom(long received)
+    {
+        return !isOverrun && received >= firstRetained - 1 && received <= sentFrames;
+    }
+
+    /**
+     * Copies the frames after the ones the remote received into an output
+     * buffer, to be sent again on a new link
+     * @param connection The connection to encode the frames into
+     * @param received The number of frames the remote received
+     * @return The number of frames replayed
+     */
+    public long replayInto(Connection connection, long received)
+    {
+        acknowledge(received);
+
+        if (retained == null || retained.position() == 0)
+            return 0;
+
+        // Frames stay retained until they are acknowledged on the new link
+        int end = retained.position();
+
+        retained.flip();
+        connection.reserveOutput(end).put(retained);
+        retained.limit(retained.capacity());
+        retained.position(end);
+
+        return sentFrames - received;
+    }
+
+    public boolean isOverrun()
+    {
+        return isOverrun;
+    }
+
+    /**
+     * Marks the session's link as lost
+     */
+    public void suspend()
+    {
+        if (suspendedSince == 0)
+            suspendedSince = Clock.get().currentTimeMillis();
+
+        nextAttempt = 0;
+        unackedBytes = 0;
+    }
+
+    /**
+     * Marks the session as running on a new link
+     */
+    public void resume()
+    {
+        suspendedSince = 0;
+        isAttemptPending = false;
+    }
+
+    /**
+     * Gets the time since the link was lost
+     * @return The time the session has been suspended for, in milliseconds
+     */
+    public long getSuspendedTime()
+    {
+        return Clock.get().currentTimeMillis() - suspendedSince;
+    }
+
+    /**
+     * Checks if a reconnect should be attempted now
+     * @return True if this side reconnects, and the last attempt finished
+     *         long enough ago
+     */
+    public boolean shouldAttempt()
+    {
+        return isClient() && !isAttemptPending && Clock.get().currentTimeMillis() >= nextAttempt;
+    }
+
+    /**
+     * Gets the time until the next reconnect attempt is due
+     * @return The time until shouldAttempt is true, in milliseconds, or
+     *         Long.MAX_VALUE if an attempt is running or this side doesn't
+     *         reconnect
+     */
+    public long getAttemptDelay()
+    {
+        if (!isClient() || isAttemptPending)
+            return Long.MAX_VALUE;
+
+        return Math.max(0, nextAttempt - Clock.get().currentTimeMillis());
+    }
+
+    /**
+     * Marks a reconnect attempt as started
+     */
+    public void beginAttempt()
+    {
+        isAttemptPending = true;
+    }
+
+    /**
+     * Marks a reconnect attempt as failed, so that another one is made later
+     */
+    public void endAttempt()
+    {
+        isAttemptPending = false;
+        nextAttempt = Clock.get().currentTimeMillis() + RETRY_INTERVAL;
+    }
+
+    private void discard(int amount)
+    {
+        if (amount == 0)
+            return;
+
+        retained.flip();
+        retained.position(amount);
+        retained.compact();
+    }
+
+}
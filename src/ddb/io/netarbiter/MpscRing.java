@@ -0,0 +1,65 @@
+package ddb.io.netarbiter;
+
+/**
+ * Bounded ring for handing objects over to the event loop
+ * Any number of threads can offer, but only the event loop polls. Slots
+ * are handed out by a RingSequencer, so offering only takes a
+ * compare-and-set, and nothing is allocated past the ring itself.
+ * @param <T> The type of object handed over
+ */
+public class MpscRing<T>
+{
+    private final Object[] items;
+    private final RingSequencer sequencer;
+
+    /**
+     * Creates a new ring
+     * @param capacity The number of objects the ring holds, a power of 2
+     */
+    public MpscRing(int capacity)
+    {
+        this.sequencer = new RingSequencer(capacity);
+        this.items = new Object[capacity];
+    }
+
+    /**
+     * Adds an object to the ring
+     * @param item The object to add
+     * @return False if the ring is full
+     */
+    public boolean offer(T item)
+    {
+        long position = sequencer.claim();
+
+        // Slot is still holding an object from the last time around
+        if (position < 0)
+            return false;
+
+        items[sequencer.slot(position)] = item;
+        // Hand the slot over to the polling thread
+        sequencer.publish(position);
+        return true;
+    }
+
+    /**
+     * Takes the oldest object out of the ring
+     * Must only be called by one thread
+     * @return The object, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        int slot = sequencer.peek();
+
+        if (slot < 0)
+            return null;
+
+        T item = (T) items[slot];
+        items[slot] = null;
+        // Let the slot be offered to again
+        sequencer.release();
+
+        return item;
+    }
+
+}
@@ -1,6 +1,7 @@
 package ddb.io.netarbiter;
 
 import ddb.io.netarbiter.packet.CommandPacket;
+import ddb.io.netarbiter.packet.FramingPacket;
 import ddb.io.netarbiter.packet.Packet;
 import ddb.io.netarbiter.packet.ResponsePacket;
 import ddb.io.netarbiter.packet.WritePacket;
@@ -9,8 +10,9 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.channels.spi.SelectorProvider;
+import java.security.GeneralSecurityException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
 
 import static ddb.io.netarbiter.Constants.*;
 
@@ -41,6 +43,12 @@ public class NetArbiter {
     // \ SendBack: CommandAck + data -> New connID
     // 'W' Write (connID, len, payload): Writes the payload data to the active connection
     // \ SendBack: CommandAck
+    // 'Q' Weight (connID, weight):     Sets the connection's share of the endpoint link
+    // \ SendBack: CommandAck
+    // 'J' Splice (connA, connB):        Passes data between two connections inside of the arbiter
+    // \ SendBack: CommandAck
+    // 'L' Listen (port):                 Starts accepting connections from remote arbiters
+    // \ SendBack: CommandAck + data -> Bound port
     // 'X' Exit ():                      Shuts down the arbiter
     // \ SendBack: None
 
@@ -49,7 +57,11 @@ public class NetArbiter {
     // ConnectionChange (connID): Notification of a connection status change (New Connection, Disconnected)
     // Read (connID, len, payload): Packet recieved
 
-    private static boolean DEBUG = false;
+    // Size of the kernel send buffer for the endpoint connection
+    private static final int ENDPOINT_SEND_BUFFER = 64 * 1024;
+    // Longest time the event loop waits without checking its timers, in
+    // milliseconds
+    private static final long MAX_WAIT = Constants.MAX_HEARTBEAT_INTERVAL;
 
     private boolean isRunning = true;
     private int endpointPort, listenPort;
@@ -57,15 +69,49 @@ public class NetArbiter {
     private ServerSocketChannel endpointServer;
     private ServerSocketChannel arbiterServer;
     private Selector channels;
+    // Opens the arbiter's selector & channels
+    private final SelectorProvider transport;
 
     private ConnectionManager connectionManager;
+    private final PacketView packetView = new PacketView();
+    // Read frames rebuilt from deltas, before they are passed on
+    private final PacketView deltaView = new PacketView();
+    private final ByteBuffer deltaScratch = ByteBuffer.allocate(0xFFFF);
+    private final RelayScheduler relayScheduler = new RelayScheduler();
+    // Settings of this arbiter, never shared with other arbiters
+    private final ArbiterConfig config;
+    private final ReceiveBuffers receiveBuffers;
+    private final ReadLimiter readLimiter;
+    private CaptureJournal captureJournal = null;
+    private SpillQueue spillQueue = null;
+    // Command waiting for its connection to be made, holding back the
+    // commands after it so that acks stay in order
+    private CommandPacket pendingCommand = null;
+    private Object pendingEvent = null;
+
+    NetArbiter(int endpoint, int listen, ArbiterConfig config) {
+        this(endpoint, listen, SelectorProvider.provider(), config);
+    }
+
+    /**
+     * Creates an arbiter for an endpoint that is handed to runEndpoint
+     * @param transport The provider to open the arbiter's selector and
+     *                  channels with, such as a simulated network
+     */
+    public NetArbiter(SelectorProvider transport) {
+        this(-1, -1, transport, new ArbiterConfig());
+    }
 
-    private NetArbiter(int endpoint, int listen) {
+    private NetArbiter(int endpoint, int listen, SelectorProvider transport, ArbiterConfig config) {
         this.endpointPort = endpoint;
         this.listenPort = listen;
+        this.transport = transport;
+        this.config = config;
+        this.receiveBuffers = new ReceiveBuffers(config.minReceiveSize, config.maxReceiveSize);
+        this.readLimiter = new ReadLimiter(config.linkReadBytes, config.linkReadFrames, config.totalReadBytes, config.totalReadFrames);
 
         // Connection manager
-        connectionManager = new ConnectionManager();
+        connectionManager = new ConnectionManager(transport);
     }
 
     // Gets
@@ -74,20 +120,91 @@ public class NetArbiter {
         return connectionManager;
     }
 
+    public RelayScheduler getRelayScheduler()
+    {
+        return relayScheduler;
+    }
+
+    public Connection getCommandConnection()
+    {
+        return cmdConnection;
+    }
+
+    /**
+     * Records every frame that goes through the arbiter into a journal
+     * The arbiter closes the journal once it shuts down
+     * @param journal The journal to record frames into
+     */
+    void setCaptureJournal(CaptureJournal journal)
+    {
+        this.captureJournal = journal;
+    }
+
+    /**
+     * Spills the endpoint's backlog to disk once it goes over the queue's
+     * memory limit
+     * The arbiter closes the queue once it shuts down
+     * @param queue The queue to spill into
+     */
+    void setSpillQueue(SpillQueue queue)
+    {
+        this.spillQueue = queue;
+    }
+
+    /**
+     * Starts accepting connections from remote arbiters
+     * @param port The port to listen on, or 0 to pick any free port
+     * @return The port being listened on, or an error code
+     */
+    public int openListener(int port)
+    {
+        if (arbiterServer != null)
+            return ARB_ERROR_LISTEN_FAILED;
+
+        try
+        {
+            arbiterServer = transport.openServerSocketChannel();
+            arbiterServer.bind(new InetSocketAddress(port));
+            arbiterServer.configureBlocking(false);
+            arbiterServer.register(channels, SelectionKey.OP_ACCEPT);
+
+            listenPort = ((InetSocketAddress) arbiterServer.getLocalAddress()).getPort();
+            return listenPort;
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to listen for remote arbiters", e);
+
+            try
+            {
+                arbiterServer.close();
+            }
+            catch (IOException ignored) {}
+
+            arbiterServer = null;
+            return ARB_ERROR_LISTEN_FAILED;
+        }
+    }
+
     /// Arbiter ///
     private void initArbiter() throws IOException
     {
-        endpointServer = ServerSocketChannel.open();
+        // Bind the endpoint port before anything else, so that the endpoint
+        // can start connecting as early as possible. The rest of the setup
+        // happens while the connection is in flight
+        endpointServer = transport.openServerSocketChannel();
         endpointServer.bind(new InetSocketAddress(endpointPort));
 
+        openSelector();
+
         if (listenPort != -1)
         {
-            arbiterServer = ServerSocketChannel.open();
+            arbiterServer = transport.openServerSocketChannel();
             arbiterServer.bind(new InetSocketAddress(listenPort));
         }
     }
 
-    private void processPackets(ByteBuffer readBuffer, SocketChannel channel, Connection connection, Queue<CommandPacket> commandQueue) throws IOException
+    private void processPackets(Connection connection, Queue<CommandPacket> commandQueue) throws IOException
     {
         // Parse the packet
 
@@ -95,107 +212,842 @@ public class NetArbiter {
         // length:  2 bytes
         // payload: length - 2 bytes
 
-        // Read in packets
-        assert (!readBuffer.hasRemaining());
-        readBuffer.clear();
+        // Read in packets, after any partial packet left from the last read
+        // Only reads that weren't held back say anything about the link
+        boolean isBackedUp = isBackedUp(connection);
+        int allowance = connection.isCommandConnection() ? Integer.MAX_VALUE : readLimiter.getReadAllowance(connection);
+        ByteBuffer input = receiveBuffers.getInputBuffer(connection, isBackedUp, allowance);
+        int space = input.remaining();
+
+        int amt = connection.read(input);
+
+        if (!isBackedUp && allowance == Integer.MAX_VALUE)
+            receiveBuffers.recordRead(connection, amt, space);
 
-        int amt = channel.read(readBuffer);
         if (amt == -1)
         {
-            // Connection has been closed
-            connection.closeConnection();
+            receiveBuffers.release(connection);
+
+            // Link has been closed, which only ends the connection if the
+            // remote said goodbye first or the link can't be resumed
+            connection.dropLink(ARB_CLOSE_REMOTE);
             return;
         }
 
-        readBuffer.flip();
+        connection.addBytesReceived(amt);
+
+        if (!connection.isCommandConnection())
+            readLimiter.addBytes(connection, amt);
+
+        input.flip();
 
-        // Process packets
-        while (readBuffer.hasRemaining())
+        // Size of the packet that couldn't be completely read in
+        int needed = 0;
+
+        // Process packets in place
+        while (input.remaining() >= 2)
         {
-            //System.out.println("Data Recv: " + readBuffer.remaining());
+            //System.out.println("Data Recv: " + input.remaining());
+
+            int packetStart = input.position();
+            int packetLength = Short.toUnsignedInt(input.getShort(packetStart));
+
+            // Update the recieved heartbeat
+            connection.updateHeartbeat();
 
-            // Check if enough time has passed since the last heartbeat was sent
-            if (!connection.isCommandConnection() && connection.getLastSentBeat() > HEARBEAT_INTERVAL)
+            // Skip empty / heartbeat packets
+            if (packetLength == 0)
             {
-                final ByteBuffer poke = ByteBuffer.allocateDirect(2);
-                poke.clear();
-                channel.write(poke);
-                connection.updateSentHeartbeat();
+                input.position(packetStart + 2);
+                continue;
             }
 
-            // Fetch initial packet length
-            if (readBuffer.remaining() < 2)
+            // Wait for the rest of the packet
+            if (input.remaining() < packetLength)
             {
-                readBuffer.compact();
-                readBuffer.limit(2);
-                channel.read(readBuffer);
-                readBuffer.flip();
+                needed = packetLength;
+                break;
             }
 
-            int packetLength = Short.toUnsignedInt(readBuffer.getShort());
+            input.position(packetStart + packetLength);
 
-            // Update the recieved heartbeat
-            connection.updateHeartbeat();
+            // Skip malformed packets
+            if (packetLength < PacketView.HEADER_SIZE)
+                continue;
 
-            // Skip empty / heartbeat packets
-            if (packetLength == 0)
+            packetView.wrap(input, packetStart);
+            FlightEvents.frameDecoded(connection.getConnectionID(), packetView.getPacketID(), packetLength);
+
+            if (captureJournal != null)
+                captureJournal.record(connection.getConnectionID(), CaptureJournal.INBOUND, input, packetStart, packetLength);
+
+            if (!connection.isCommandConnection())
+            {
+                byte packetID = packetView.getPacketID();
+
+                readLimiter.addFrame(connection);
+
+                // Count the frame, so that a resumed link knows where to pick up
+                if (isCountedFrame(connection, packetID) && connection.getLinkSession() != null && connection.getLinkSession().countReceived(packetLength))
+                    writeAck(connection);
+
+                // Frames of multiplexed streams go to the stream
+                Connection source = connection;
+
+                if (connection.isCarrier() && StreamTable.isStreamFrame(packetID))
+                {
+                    short streamID = (short) packetView.getSequence();
+                    source = connection.getStreamTable().get(streamID);
+
+                    if (packetID == ARB_PACKET_OPEN)
+                    {
+                        openStream(connection, streamID);
+                        continue;
+                    }
+
+                    // Stream was already closed on this side
+                    if (source == null)
+                        continue;
+
+                    source.addBytesReceived(packetLength);
+                }
+
+                // Answer pings, and measure the round trip time from pongs
+                if (packetID == ARB_PACKET_PING)
+                {
+                    // Pings carry the interval the remote sends heartbeats at
+                    if (packetView.getPayloadLength() >= 2)
+                        connection.setPeerHeartbeatInterval(Short.toUnsignedInt(input.getShort(packetStart + PacketView.HEADER_SIZE)));
+
+                    // ... and the read frames the remote received, if there is a session
+                    if (packetView.getPayloadLength() >= 10 && connection.getLinkSession() != null)
+                        connection.getLinkSession().acknowledge(input.getLong(packetStart + PacketView.HEADER_SIZE + 2));
+
+                    writeHeartbeat(connection, ARB_PACKET_PONG, (short) packetView.getSequence());
+                    continue;
+                }
+                else if (packetID == ARB_PACKET_PONG)
+                {
+                    connection.endPing((short) packetView.getSequence());
+                    continue;
+                }
+                else if (packetID == ARB_PACKET_ACK)
+                {
+                    if (packetView.getPayloadLength() >= 8 && connection.getLinkSession() != null)
+                        connection.getLinkSession().acknowledge(input.getLong(packetStart + PacketView.HEADER_SIZE));
+
+                    continue;
+                }
+                else if (packetID == ARB_PACKET_BYE)
+                {
+                    // Remote is closing the connection on purpose
+                    connection.closeConnection(ARB_CLOSE_REMOTE);
+                    continue;
+                }
+                else if (packetID == ARB_PACKET_UNLINK && source.isStream())
+                {
+                    // Remote closed the stream
+                    source.closeByRemote();
+                    continue;
+                }
+                else if (packetID == ARB_PACKET_GRANT && source.isStream())
+                {
+                    if (packetView.getPayloadLength() >= 4)
+                        source.addSendCredit(Integer.toUnsignedLong(input.getInt(packetView.getPayloadOffset())));
+
+                    continue;
+                }
+                else if (packetID == ARB_PACKET_CODEC)
+                {
+                    answerCodec(source, packetView);
+                    continue;
+                }
+                else if (packetID == ARB_PACKET_READ || packetID == ARB_PACKET_DELTA)
+                {
+                    PacketView read = packetView;
+                    DeltaCodec codec = source.getDeltaCodec();
+
+                    if (packetID == ARB_PACKET_DELTA)
+                        read = rebuildDelta(source, packetView);
+                    else if (codec != null && codec.isReceiving())
+                        codec.rememberReceived(input, packetView.getPayloadOffset(), packetView.getPayloadLength());
+
+                    if (read == null)
+                    {
+                        // Later deltas can't be rebuilt either
+                        ArbiterLog.debug(source.getLogID(), "sent a bad delta, closing");
+                        source.closeConnection(ARB_CLOSE_FAILED);
+                        continue;
+                    }
+
+                    // Give the credit back once the data is on its way
+                    if (source.isStream())
+                        source.addPendingGrant(read.getPayloadLength());
+
+                    // Pass the data on without building a packet
+                    if (source.getSplicePeer() != null)
+                        spliceRead(source.getSplicePeer(), read);
+                    else
+                        relayRead(source, read);
+
+                    continue;
+                }
+            }
+
+            // Writes are the bulk of the commands, so they go straight into
+            // the remote's queue, unless other commands have to go first
+            if (connection.isCommandConnection() && packetView.getPacketID() == ARB_PACKET_WRITE
+                    && packetView.getPayloadLength() >= 2 && commandQueue.isEmpty() && pendingCommand == null)
+            {
+                queueWrite(input, packetView);
                 continue;
+            }
+
+            // Framing only flips a switch, so it is done in place as well
+            if (connection.isCommandConnection() && packetView.getPacketID() == ARB_PACKET_FRAMING
+                    && packetView.getPayloadLength() == 1 && commandQueue.isEmpty() && pendingCommand == null)
+            {
+                setFraming(input, packetView);
+                continue;
+            }
+
+            Packet packet = PacketParser.parsePacket(packetView);
+
+            // Enqueue the command if the current connection is a write
+            if (packet instanceof CommandPacket && connection.isCommandConnection())
+                commandQueue.add((CommandPacket)packet);
+            else if (packet instanceof ResponsePacket)
+                connection.enqueueResponse((ResponsePacket) packet);
+        }
+
+        // Keep the incomplete packet around for the next read
+        receiveBuffers.carryInput(connection, input, needed);
+        connection.updateHeartbeat();
+    }
+
+    /**
+     * Checks if the data read from a remote is still waiting to be sent on
+     * @param connection The connection being read from
+     * @return True if earlier reads are waiting for the endpoint (or the
+     *         spliced remote) to catch up
+     */
+    private boolean isBackedUp(Connection connection)
+    {
+        if (connection.isCommandConnection())
+            return false;
+
+        if (connection.isCarrier())
+        {
+            for (Connection stream : connection.getStreamTable().getStreams())
+            {
+                if (isBackedUp(stream))
+                    return true;
+            }
+
+            return false;
+        }
+
+        if (connection.getSplicePeer() != null)
+            return connection.getSplicePeer().getOutputBacklog() >= RelayScheduler.ENDPOINT_BACKLOG;
+
+        return connection.hasRelayBacklog() || cmdConnection.isOutputBackedUp(RelayScheduler.ENDPOINT_BACKLOG);
+    }
+
+    /**
+     * Relays data read from a remote to the endpoint
+     * The data goes straight into the endpoint's output unless the endpoint
+     * is backed up, in which case the relay scheduler hands it over later
+     * @param source The connection the data was read from
+     * @param view The view of the read packet
+     */
+    private void relayRead(Connection source, PacketView view)
+    {
+        // Response adds on the source connection
+        int dataLen = view.getLength() + Short.BYTES;
+
+        // Data can't be dropped without the endpoint missing part of the
+        // stream, so the connection goes instead
+        if (dataLen > 0xFFFF)
+        {
+            ArbiterLog.error(source.getLogID(), "sent a {} byte read, too long to relay in a frame of at most {} bytes, closing",
+                    view.getLength(), 0xFFFF - Short.BYTES);
+            source.closeConnection(ARB_CLOSE_FAILED);
+            return;
+        }
+
+        ByteBuffer output = relayScheduler.reserveRelay(source, cmdConnection, dataLen);
+        int frameStart = output.position();
+
+        // Length
+        output.putShort((short) dataLen);
+        // Sequence (ignored)
+        output.putShort((short) 0);
+        // PacketID ('R')
+        output.put(ARB_PACKET_READ);
+        // Source connection
+        output.putShort(source.getConnectionID());
+        // Response data
+        view.copyPayload(output);
+
+        captureOutput(cmdConnection, output, frameStart);
+    }
+
+    /**
+     * Passes data read from a remote straight on to the remote it is
+     * spliced with
+     * Remote read packets have the same format in both directions, so the
+     * payload goes straight from the read buffer into the other output
+     * @param destination The remote the data is passed on to
+     * @param view The view of the read packet
+     */
+    private void spliceRead(Connection destination, PacketView view)
+    {
+        if (destination.isClosed())
+            return;
+
+        writeRead(destination, view.getBuffer(), view.getPayloadOffset(), view.getPayloadLength());
+    }
+
+    /**
+     * Encodes a read frame for a remote
+     * Once the remote accepted the delta codec, the payload is sent as a
+     * delta of the last one whenever that comes out smaller
+     * @param destination The remote the payload is sent to
+     * @param payload The buffer containing the payload
+     * @param offset The offset of the payload in the buffer
+     * @param length The length of the payload
+     */
+    private void writeRead(Connection destination, ByteBuffer payload, int offset, int length)
+    {
+        final DeltaCodec codec = destination.getDeltaCodec();
+        final int dataLen = length + PacketView.HEADER_SIZE;
+        ByteBuffer output = destination.reserveOutput(dataLen);
+        int frameStart = output.position();
+        int encoded = -1;
+
+        if (codec != null && codec.isAccepted() && length > DeltaCodec.DELTA_HEADER_SIZE - PacketView.HEADER_SIZE)
+        {
+            output.position(frameStart + DeltaCodec.DELTA_HEADER_SIZE);
+            encoded = codec.encode(payload, offset, length, output);
+        }
+
+        if (encoded >= 0)
+        {
+            // Length
+            output.putShort(frameStart, (short) (DeltaCodec.DELTA_HEADER_SIZE + encoded));
+            // Sequence (stream id on multiplexed links)
+            output.putShort(frameStart + 2, destination.getStreamID());
+            // PacketID ('Z')
+            output.put(frameStart + 4, ARB_PACKET_DELTA);
+            // Rebuilt payload length
+            output.putShort(frameStart + 5, (short) length);
+        }
+        else
+        {
+            output.position(frameStart);
+
+            // Length
+            output.putShort((short) dataLen);
+            // Sequence (stream id on multiplexed links)
+            output.putShort(destination.getStreamID());
+            // PacketID ('R')
+            output.put(ARB_PACKET_READ);
+
+            // Payload
+            int position = payload.position();
+            int limit = payload.limit();
+
+            payload.limit(offset + length);
+            payload.position(offset);
+            output.put(payload);
+
+            payload.limit(limit);
+            payload.position(position);
+        }
+
+        // The remote keeps every payload after the offer, deltas or not
+        if (codec != null && codec.isOffered())
+        {
+            codec.rememberSent(payload, offset, length);
+            codec.addSent(dataLen, output.position() - frameStart);
+        }
+
+        if (destination.isStream())
+        {
+            destination.consumeSendCredit(length);
+            destination.addBytesSent(output.position() - frameStart);
+        }
+
+        retainSent(destination, output, frameStart);
+        captureOutput(destination, output, frameStart);
+    }
+
+    /**
+     * Rebuilds the read frame a delta frame stands for
+     * @param source The connection the delta was read from
+     * @param view The view of the delta frame
+     * @return A view of the rebuilt read frame, valid until the next delta,
+     *         or null if the delta is invalid
+     */
+    private PacketView rebuildDelta(Connection source, PacketView view)
+    {
+        DeltaCodec codec = source.getDeltaCodec();
+
+        if (codec == null)
+            return null;
+
+        deltaScratch.clear();
+        deltaScratch.position(PacketView.HEADER_SIZE);
+
+        int length = codec.decode(view.getBuffer(), view.getPayloadOffset(), view.getPayloadLength(), deltaScratch);
+
+        if (length < 0)
+            return null;
+
+        // Length
+        deltaScratch.putShort(0, (short) (length + PacketView.HEADER_SIZE));
+        // Sequence (ignored)
+        deltaScratch.putShort(2, (short) 0);
+        // PacketID ('R')
+        deltaScratch.put(4, ARB_PACKET_READ);
+
+        codec.rememberReceived(deltaScratch, PacketView.HEADER_SIZE, length);
+        return deltaView.wrap(deltaScratch, 0);
+    }
+
+    /**
+     * Writes out a codec offer, or the acceptance of the remote's offer
+     * Sent payloads are kept from the offer onwards, since the remote keeps
+     * every payload after it
+     * @param connection The connection to negotiate the codec on
+     * @param isAccept True to accept the remote's offer, false to offer
+     */
+    private void writeCodec(Connection connection, boolean isAccept)
+    {
+        if (!isAccept)
+            connection.getOrCreateDeltaCodec().offer();
+
+        ByteBuffer output = connection.reserveOutput(7);
+        int frameStart = output.position();
+
+        output.putShort((short) 7);
+        output.putShort(connection.getStreamID());
+        output.put(ARB_PACKET_CODEC);
+        output.put(DeltaCodec.FEATURE_DELTA);
+        output.put((byte) (isAccept ? 1 : 0));
+
+        // Stream frames are resent if the link is resumed
+        if (connection.isStream())
+            retainSent(connection, output, frameStart);
+
+        captureOutput(connection, output, frameStart);
+    }
+
+    /**
+     * Writes out a stream frame without a payload
+     * @param stream The stream the frame is for
+     * @param packetID The type of frame (ARB_PACKET_OPEN or ARB_PACKET_UNLINK)
+     */
+    private void writeStreamFrame(Connection stream, byte packetID)
+    {
+        ByteBuffer output = stream.reserveOutput(5);
+        int frameStart = output.position();
+
+        output.putShort((short) 5);
+        output.putShort(stream.getStreamID());
+        output.put(packetID);
+
+        retainSent(stream, output, frameStart);
+        captureOutput(stream, output, frameStart);
+    }
+
+    /**
+     * Hands the remote more credit for sending on a stream
+     * @param stream The stream to hand out credit for
+     */
+    private void writeGrant(Connection stream)
+    {
+        ByteBuffer output = stream.reserveOutput(9);
+        int frameStart = output.position();
+
+        output.putShort((short) 9);
+        output.putShort(stream.getStreamID());
+        output.put(ARB_PACKET_GRANT);
+        output.putInt(stream.takeGrant());
+
+        retainSent(stream, output, frameStart);
+        captureOutput(stream, output, frameStart);
+    }
+
+    /**
+     * Accepts a stream that the remote opened on a multiplexed link, and
+     * tells the endpoint about it
+     * @param carrier The link the stream was opened on
+     * @param streamID The id of the stream
+     */
+    private void openStream(Connection carrier, short streamID)
+    {
+        // Open frames are only resent along with the rest of the stream
+        if (carrier.getStreamTable().get(streamID) != null)
+            return;
+
+        int connID = connectionManager.acceptStream(carrier, streamID);
+        writeControlResponse(Constants.ARB_PACKET_NEWCONN, connID, null);
+    }
+
+    /**
+     * Checks if a frame counts towards the frames a resumed link picks up
+     * after
+     * @param link The connection the frame was read from
+     * @param packetID The frame's packet id
+     * @return True for read frames, and every stream frame on multiplexed links
+     */
+    private static boolean isCountedFrame(Connection link, byte packetID)
+    {
+        if (link.isCarrier())
+            return StreamTable.isStreamFrame(packetID);
+
+        return packetID == ARB_PACKET_READ || packetID == ARB_PACKET_DELTA;
+    }
+
+    /**
+     * Handles a codec frame from a remote
+     * Offers are always accepted, sending deltas is what is opt-in
+     * @param connection The connection the frame was read from
+     * @param view The view of the codec frame
+     */
+    private void answerCodec(Connection connection, PacketView view)
+    {
+        if (view.getPayloadLength() < 2 || (view.getBuffer().get(view.getPayloadOffset()) & DeltaCodec.FEATURE_DELTA) == 0)
+            return;
+
+        DeltaCodec codec = connection.getOrCreateDeltaCodec();
+
+        if (view.getBuffer().get(view.getPayloadOffset() + 1) != 0)
+        {
+            codec.accept();
+        }
+        else if (!codec.isReceiving())
+        {
+            codec.startReceiving();
+            writeCodec(connection, true);
+        }
+    }
+
+    /**
+     * Copies a response, encoded when it was queued, into the endpoint's
+     * output
+     * Queued responses (read data, file progress & connection closures)
+     * stay in the bulk lane, in order with the connection's data
+     * @param frame The response frame
+     */
+    private void writeResponse(ByteBuffer frame)
+    {
+        ByteBuffer output = cmdConnection.reserveOutput(frame.remaining());
+        int frameStart = output.position();
+
+        output.put(frame);
+
+        captureOutput(cmdConnection, output, frameStart);
+    }
+
+    /**
+     * Encodes a control response straight into the endpoint's control lane
+     * Command acks & new connection notifications never wait behind read
+     * data, so they skip the response queue, and aren't copied again
+     * @param responseID The packet id of the response
+     * @param responseCode The code to send (a connection id or error code)
+     * @param responseData The data to send after the code, or null for none
+     */
+    private void writeControlResponse(byte responseID, int responseCode, ByteBuffer responseData)
+    {
+        int frameLength = PacketView.HEADER_SIZE + Short.BYTES + Integer.BYTES + (responseData != null ? responseData.remaining() : 0);
+        ByteBuffer output = cmdConnection.reserveControlOutput(frameLength);
+        int frameStart = output.position();
+
+        output.putShort((short) frameLength);
+        // Sequence (ignored)
+        output.putShort((short) 0);
+        output.put(responseID);
+        // Command responses come from the arbiter itself
+        output.putShort(cmdConnection.getConnectionID());
+        output.putInt(responseCode);
+
+        if (responseData != null)
+            output.put(responseData);
+
+        captureOutput(cmdConnection, output, frameStart);
+    }
+
+    /**
+     * Queues up a write command's payload for its remote, skipping the
+     * command packet
+     * Only done while no other commands are waiting, so that commands are
+     * still carried out in order
+     * @param input The buffer holding the command
+     * @param view The write command
+     */
+    private void queueWrite(ByteBuffer input, PacketView view)
+    {
+        Object event = FlightEvents.beginCommand();
+        int offset = view.getPayloadOffset();
+        Connection connection = connectionManager.getConnection(input.getShort(offset));
+
+        if (connection == null)
+        {
+            writeControlResponse(Constants.ARB_PACKET_ENDCMD, Constants.ARB_ERROR_INVALID_ID, null);
+            FlightEvents.endCommand(event, WritePacket.class, view.getSequence(), Constants.ARB_ERROR_INVALID_ID);
+            return;
+        }
+
+        connection.enqueueWrite(input, offset + 2, view.getPayloadLength() - 2);
+        writeControlResponse(Constants.ARB_PACKET_ENDCMD, 0, null);
+        FlightEvents.endCommand(event, WritePacket.class, view.getSequence(), 0);
+    }
+
+    /**
+     * Carries out a framing command straight from the input buffer,
+     * skipping the command packet
+     * Only done while no other commands are waiting, so that commands are
+     * still carried out in order
+     * @param input The buffer holding the command
+     * @param view The framing command
+     */
+    private void setFraming(ByteBuffer input, PacketView view)
+    {
+        Object event = FlightEvents.beginCommand();
+
+        cmdConnection.setSuperFramed(input.get(view.getPayloadOffset()) != 0);
+        writeControlResponse(Constants.ARB_PACKET_ENDCMD, Constants.ARB_ERROR_NONE, null);
+        FlightEvents.endCommand(event, FramingPacket.class, view.getSequence(), Constants.ARB_ERROR_NONE);
+    }
+
+    /**
+     * Checks if the next part of a file can be sent to a remote
+     * New frames only start once everything before them went out, and
+     * streams also need the credit for them
+     * @param connection The connection the file is sent to
+     * @return True if sendFile can make progress
+     */
+    private boolean canSendFile(Connection connection)
+    {
+        FileTransfer transfer = connection.getFileTransfer();
+
+        if (transfer == null || transfer.getWritesAhead() > 0 || connection.isClosed() || connection.isSuspended())
+            return false;
+
+        // Finish the frame that was cut off, as soon as the channel takes it
+        if (transfer.isFrameOpen() || transfer.isDone())
+            return true;
+
+        return connection.getLink().isFlushed() && connection.hasSendCredit(transfer.getNextChunkLength());
+    }
+
+    /**
+     * Sends the next part of a file to a remote
+     * On plain links, the file is written straight to the socket. Anywhere
+     * else, each chunk is read in and encoded like a write, so that it can
+     * be kept for resuming, encrypted, delta coded or captured
+     * @param connection The connection the file is sent to
+     * @throws IOException If the link couldn't be written to
+     */
+    private void sendFile(Connection connection) throws IOException
+    {
+        FileTransfer transfer = connection.getFileTransfer();
+        Connection link = connection.getLink();
+        long budget = FileTransfer.PROGRESS_INTERVAL;
+
+        if (captureJournal == null && connection.canTransferDirectly())
+        {
+            try
+            {
+                connection.addBytesSent((int) transfer.transferTo(connection.channel, connection.getStreamID(), budget));
+            }
+            catch (IOException e)
+            {
+                failFile(connection, e);
+                return;
+            }
+        }
+        else
+        {
+            // One chunk at a time, each once the last one went out
+            while (budget > 0 && !transfer.isDone() && link.isFlushed() && connection.hasSendCredit(transfer.getNextChunkLength()))
+            {
+                ByteBuffer chunk;
+
+                try
+                {
+                    chunk = transfer.readChunk();
+                }
+                catch (IOException e)
+                {
+                    failFile(connection, e);
+                    return;
+                }
+
+                budget -= chunk.remaining();
+                writeRead(connection, chunk, 0, chunk.remaining());
+                link.flushOutput();
+            }
+        }
+
+        if (transfer.isDone())
+            endFile(connection, FileTransfer.STATUS_DONE);
+        else if (transfer.takeProgress())
+            cmdConnection.enqueueProgress(connection.getConnectionID(), FileTransfer.STATUS_SENDING, transfer.getSent());
+    }
+
+    /**
+     * Gives up on a connection's file transfer in progress
+     * @param connection The connection the file was sent to
+     * @param e The error the transfer ran into
+     */
+    private void failFile(Connection connection, IOException e)
+    {
+        ArbiterLog.error(connection.getLogID(), "Unable to send a file", e);
+
+        // The remote can't make sense of a frame that was cut off
+        if (connection.getFileTransfer().isFrameOpen())
+            connection.closeConnection(ARB_CLOSE_FAILED);
+
+        endFile(connection, ARB_ERROR_FILE);
+    }
+
+    /**
+     * Finishes a connection's file transfer in progress, and tells the
+     * endpoint how it went
+     * @param connection The connection the file was sent to
+     * @param status The final status of the transfer (done, or an error)
+     */
+    private void endFile(Connection connection, int status)
+    {
+        FileTransfer transfer = connection.removeFileTransfer();
+        cmdConnection.enqueueProgress(connection.getConnectionID(), status, transfer.getSent());
+
+        ArbiterLog.debug(connection.getLogID(), "sent {} of {} file bytes", transfer.getSent(), transfer.getLength());
+    }
+
+    /**
+     * Writes out a heartbeat ping, pong or poke to a remote connection
+     * Pings also tell the remote how often heartbeats will be sent, so that
+     * it knows when to consider the connection dead
+     * Heartbeats go out right away, along with any held back writes
+     * @param connection The connection to send the heartbeat to
+     * @param packetID The type of heartbeat (ARB_PACKET_PING, ARB_PACKET_PONG,
+     *                 or 0 for an empty poke)
+     * @param sequence The sequence number of the ping
+     * @throws IOException If the heartbeat couldn't be written
+     */
+    private void writeHeartbeat(Connection connection, byte packetID, short sequence) throws IOException
+    {
+        if (packetID == 0)
+        {
+            // Empty packet, only keeps the connection alive
+            connection.reserveOutput(2).putShort((short) 0);
+        }
+        else
+        {
+            final LinkSession linkSession = connection.getLinkSession();
+            final int beatLength = packetID != ARB_PACKET_PING ? 5 : linkSession != null ? 15 : 7;
+            final ByteBuffer beat = connection.reserveOutput(beatLength);
+            beat.putShort((short) beatLength);
+            beat.putShort(sequence);
+            beat.put(packetID);
+
+            if (packetID == ARB_PACKET_PING)
+                beat.putShort((short) connection.getHeartbeatInterval());
+
+            // Pings double as acknowledgements on idle links
+            if (packetID == ARB_PACKET_PING && linkSession != null)
+                beat.putLong(linkSession.getReceivedFrames());
+
+            captureOutput(connection, beat, beat.position() - beatLength);
+        }
 
-            ByteBuffer processBuffer;
+        connection.flushOutput();
+    }
 
-            // Allocate a bigger buffer if the current one can't hold the data
-            if (readBuffer.capacity() < (packetLength - 2))
-            {
-                readBuffer.position(readBuffer.position() - 2);
-                readBuffer.compact();
-                readBuffer.flip();
-
-                processBuffer = ByteBuffer.allocate(packetLength);
-                processBuffer.put(readBuffer);
-                channel.read(processBuffer);
-                processBuffer.flip();
-                processBuffer.position(2);
-            }
-            // Fetch the rest of the packet if there's not enough data
-            else if (readBuffer.remaining() < (packetLength - 2))
-            {
-                // Read in the remaining packet
-                readBuffer.position(readBuffer.position() - 2);
-                readBuffer.compact();
-                readBuffer.limit(packetLength);
-                channel.read(readBuffer);
-                assert (!readBuffer.hasRemaining());
-                readBuffer.flip();
-                readBuffer.position(2);
-                processBuffer = readBuffer;
-            }
-            else {
-                processBuffer = readBuffer;
-            }
+    /**
+     * Tells the remote how many read frames were received, so that it can
+     * stop holding on to them
+     * @param connection The connection to acknowledge the frames on
+     */
+    private void writeAck(Connection connection)
+    {
+        ByteBuffer output = connection.reserveOutput(13);
+        int frameStart = output.position();
+        output.putShort((short) 13);
+        output.putShort((short) 0);
+        output.put(ARB_PACKET_ACK);
+        output.putLong(connection.getLinkSession().getReceivedFrames());
+        captureOutput(connection, output, frameStart);
+    }
 
-            //System.out.println("Dl " + processBuffer.remaining() + ", " + packetLength);
+    /**
+     * Tells the remote that the connection is being closed on purpose, so
+     * that it doesn't wait for the link to be resumed
+     * Anything left in the output goes out along with it, if the remote
+     * still listens
+     * @param connection The connection being closed
+     */
+    private void writeGoodbye(Connection connection)
+    {
+        if (connection.isStream())
+        {
+            // Only the stream is closed, the link stays up
+            if (!connection.getCarrier().isClosed() && !connection.isClosedByRemote() && !connection.isOpenPending())
+                writeStreamFrame(connection, ARB_PACKET_UNLINK);
 
-            // Copy the entire packet
-            byte[] data = new byte[packetLength];
-            processBuffer.position(processBuffer.position() - 2);
-            processBuffer.get(data);
+            return;
+        }
 
-            Packet packet = PacketParser.parsePacket(data);
+        if (connection.getLinkSession() != null && !connection.isSuspended())
+        {
+            ByteBuffer output = connection.reserveOutput(5);
+            int frameStart = output.position();
+            output.putShort((short) 5).putShort((short) 0).put(ARB_PACKET_BYE);
+            captureOutput(connection, output, frameStart);
+        }
 
-            // Enqueue the command if the current connection is a write
-            if (packet instanceof CommandPacket && connection.isCommandConnection())
-                commandQueue.add((CommandPacket)packet);
-            else if (packet instanceof ResponsePacket)
-                connection.enqueueResponse((ResponsePacket) packet);
+        try
+        {
+            connection.flushOutput();
         }
+        catch (IOException ignored) {}
+    }
 
-        connection.updateHeartbeat();
+    /**
+     * Keeps a copy of a read frame that was just encoded for a remote, so
+     * that it can be sent again if the link is lost
+     * @param destination The connection the frame is being sent to
+     * @param output The output buffer the frame was encoded into
+     * @param frameStart The offset of the frame in the output buffer
+     */
+    private void retainSent(Connection destination, ByteBuffer output, int frameStart)
+    {
+        LinkSession linkSession = destination.getLink().getLinkSession();
+
+        if (linkSession != null)
+            linkSession.retainSent(output, frameStart, output.position() - frameStart);
+    }
+
+    /**
+     * Records a frame that was just encoded into a connection's output
+     * @param destination The connection the frame is being sent to
+     * @param output The output buffer the frame was encoded into
+     * @param frameStart The offset of the frame in the output buffer
+     */
+    private void captureOutput(Connection destination, ByteBuffer output, int frameStart)
+    {
+        if (captureJournal != null)
+            captureJournal.record(destination.getConnectionID(), CaptureJournal.OUTBOUND, output, frameStart, output.position() - frameStart);
     }
 
-    private void processInbound(ByteBuffer readBuffer, ByteBuffer writeBuffer, Queue<CommandPacket> commandQueue) throws IOException
+    private void processInbound(Queue<CommandPacket> commandQueue) throws IOException
     {
         // Process inbound packets
-        if (channels.select() > 0)
+        if (config.waitStrategy.select(channels, getWaitTime()) > 0)
         {
             Set<SelectionKey> keys = channels.selectedKeys();
             Iterator<SelectionKey> iterator = keys.iterator();
@@ -204,297 +1056,443 @@ public class NetArbiter {
             while (iterator.hasNext())
             {
                 SelectionKey key = iterator.next();
+                iterator.remove();
+
+                // Accepted links can take over a connection, dropping its old link
+                if (!key.isValid())
+                    continue;
 
                 if (key.isAcceptable())
                 {
-                    final byte[] readBytes = new byte[2];
                     SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
 
-                    // Listen for the client magic
-                    readBuffer.clear();
-                    channel.configureBlocking(true);
-                    channel.read(readBuffer);
-                    readBuffer.flip();
-                    readBuffer.get(readBytes);
+                    // The endpoint is told about the connection once its
+                    // handshakes are done
+                    if (channel != null)
+                        connectionManager.acceptConnection(channel);
+                }
+
+                if (key.attachment() instanceof LinkHandshake)
+                {
+                    // Accepted connections send back connID as a response
+                    // Refused connections are already closed
+                    int connID = connectionManager.advanceHandshake((LinkHandshake) key.attachment());
 
-                    if (!Arrays.equals(readBytes, CLIENT_MAGIC))
-                    {
-                        // Refuse the connection & continue
-                        channel.close();
-                    }
-                    else
-                    {
-                        // Write back the server magic
-                        writeBuffer.clear();
-                        writeBuffer.put(SERVER_MAGIC);
-                        writeBuffer.flip();
-                        channel.write(writeBuffer);
-                        channel.configureBlocking(false);
-
-                        // Accept the new connection, sending back connID as a response
-                        short localID = (short) connectionManager.allocateID(false);
-                        int connID = connectionManager.addConnection(new Connection(localID, channel), channel);
-                        ResponsePacket response = new ResponsePacket(0, Constants.ARB_PACKET_NEWCONN, connID);
-                        cmdConnection.enqueueResponse(response);
-                    }
+                    if (connID >= 0)
+                        writeControlResponse(Constants.ARB_PACKET_NEWCONN, connID, null);
+
+                    continue;
                 }
 
-                if (key.isReadable())
+                if (key.isValid() && key.isReadable())
                 {
                     // Read packets from the connection
-                    SocketChannel channel = (SocketChannel) key.channel();
                     Connection connection = (Connection) key.attachment();
 
-                    try
-                    {
-                        processPackets(readBuffer, channel, connection, commandQueue);
-                    } catch (IOException e)
-                    {
-                        e.printStackTrace();
-                        connection.closeConnection();
-                    }
+                    readLink(connection, commandQueue);
                 }
+            }
+        }
 
-
-                iterator.remove();
+        // Pick up reading from links that are back under their limits
+        if (readLimiter.isLimited())
+        {
+            for (Connection link : readLimiter.resumeLinks(channels))
+            {
+                // Decrypted data left over from before the pause won't be
+                // reported by the selector
+                if (link.hasBufferedInput())
+                    readLink(link, commandQueue);
             }
         }
     }
 
-    private void processOutbound(ByteBuffer poke, ByteBuffer writeBuffer) throws IOException
+    /**
+     * Reads & processes everything available on a connection's link
+     * Links that go over their read limits aren't read from any further
+     * @param connection The connection to read from
+     * @param commandQueue The queue to put parsed commands into
+     */
+    private void readLink(Connection connection, Queue<CommandPacket> commandQueue)
+    {
+        try
+        {
+            // Decrypted data may be left over after a read
+            do
+            {
+                processPackets(connection, commandQueue);
+            } while (connection.hasBufferedInput() && !connection.isClosed() && !readLimiter.isOverLimit(connection));
+        } catch (IOException e)
+        {
+            ArbiterLog.error(connection.getLogID(), "read failed", e);
+            connection.dropLink(ARB_CLOSE_FAILED);
+        }
+
+        // Leave the rest of the data waiting in the kernel
+        if (!connection.isCommandConnection() && !connection.isClosed() && readLimiter.isOverLimit(connection))
+        {
+            readLimiter.pause(connection, channels);
+
+            ArbiterLog.debug(connection.getLogID(), "paused reads ({} total)", readLimiter.getShedEvents());
+        }
+    }
+
+    private void processOutbound() throws IOException
     {
+        // Pick up lost links that were reconnected
+        connectionManager.resumeSessions();
+        connectionManager.expireHandshakes();
+        connectionManager.closeLingeringLinks(false);
+
         // Process connection queues & check heartbeats
         for (Connection connection : connectionManager.getActiveConnections().values())
         {
             try
             {
-                // Send the heartbeat
-                if (!connection.isClosed() && !connection.isCommandConnection() && connection.getLastSentBeat() > HEARBEAT_INTERVAL)
-                {
-                    poke.clear();
-                    connection.channel.write(poke);
-                    connection.updateSentHeartbeat();
-                }
-
-                assert (!writeBuffer.hasRemaining());
-                writeBuffer.clear();
+                ByteBuffer response;
 
-                while (!connection.responseQueue.isEmpty())
+                while ((response = connection.peekResponse()) != null)
                 {
                     // Process all of the response packets (remote -> command or arbiter -> command)
                     // Forward the responses to the command connection
+                    // All responses share the endpoint's output, keeping them in order
+                    writeResponse(response);
+                    connection.removeResponse();
+                }
+
+                // Tell the remote about new streams before anything else
+                if (connection.isOpenPending() && !connection.isClosed())
+                {
+                    writeStreamFrame(connection, ARB_PACKET_OPEN);
+                    connection.endOpen();
+                }
 
-                    // Clump as many responses as possible (for TCP connections)
-                    ResponsePacket packet = connection.responseQueue.remove();
-                    byte[] payload = packet.getPayload();
+                // Offer the delta codec before any data goes out
+                if (config.isDeltaCodec && !connection.isCommandConnection() && !connection.isCarrier() && !connection.isClosed() && !connection.isSuspended()
+                        && (connection.getDeltaCodec() == null || !connection.getDeltaCodec().isOffered()))
+                    writeCodec(connection, false);
 
-                    int dataLen = payload.length + Short.BYTES + 5;
+                // Streams only send what fits in their window
+                ByteBuffer write;
 
-                    if (writeBuffer.remaining() < dataLen)
-                    {
-                        // Send the current data out
-                        writeBuffer.flip();
-                        cmdConnection.channel.write(writeBuffer);
-                        writeBuffer.clear();
-                    }
+                while ((write = connection.peekWrite()) != null && connection.hasSendCredit(write.remaining()))
+                {
+                    // Process all of the writes (command -> remote)
+                    writeRead(connection, write, write.position(), write.remaining());
+                    connection.removeWrite();
 
-                    // Length
-                    writeBuffer.putShort((short) dataLen);
-                    // Sequence (ignored)
-                    writeBuffer.putShort((short) 0);
-                    // PacketID (varies)
-                    writeBuffer.put(packet.responseID);
-                    // Source connection
-                    // 0xFFFF/-1 means arbiter origin / command response
-                    writeBuffer.putShort(connection.getConnectionID());
-                    // Response data
-                    writeBuffer.put(packet.responseData);
-
-                    // If the queue will be empty, write out the remaining packets
-                    //if (connection.responseQueue.isEmpty())
-                    //{
-                    writeBuffer.flip();
-                    cmdConnection.channel.write(writeBuffer);
-                    //}
+                    // Clump writes together, as the connection's policy allows
+                    if (connection.shouldFlushOutput())
+                        connection.flushOutput();
                 }
 
-                assert (!writeBuffer.hasRemaining());
-                writeBuffer.clear();
+                // Carry on with the file being sent, once the writes ahead
+                // of it went out
+                if (canSendFile(connection))
+                    sendFile(connection);
 
-                while (!connection.writeQueue.isEmpty())
-                {
-                    // Process all of the write packets (command -> remote)
-                    // Clump as many writes as possible (for TCP connections)
-                    WritePacket packet = connection.writeQueue.remove();
+                // Send out held back writes once their deadline passes
+                if (connection.shouldFlushOutput())
+                    connection.flushOutput();
 
-                    byte[] payload = packet.getPayload();
-                    int dataLen = payload.length + 5;
+                // Send out any data left over from the last encryption
+                connection.flushEncrypted();
 
-                    if (writeBuffer.remaining() < dataLen)
-                    {
-                        // Send the current data out
-                        writeBuffer.flip();
-                        connection.channel.write(writeBuffer);
-                        writeBuffer.clear();
-                    }
+                // Let the remote send more once the data it sent moved on
+                if (connection.isStream() && !connection.isClosed() && connection.shouldGrant())
+                    writeGrant(connection);
 
-                    // Check again if the data length is too big
-                    if (writeBuffer.capacity() < dataLen)
-                    {
-                        // Allocate a new temporary buffer
-                        ByteBuffer temp = ByteBuffer.allocateDirect(dataLen);
-
-                        // Send out the remote read packet
-                        // Length
-                        temp.putShort((short) dataLen);
-                        // Sequence
-                        temp.putShort((short) packet.sequence);
-                        // PacketID ('R')
-                        temp.put(Constants.ARB_PACKET_READ);
-                        // Payload
-                        temp.put(payload);
-
-                        // Write out the buffer
-                        temp.flip();
-                        connection.channel.write(temp);
-
-                        // Move to the next packet
-                        continue;
-                    }
+                // Close links that no stream used for a while
+                if (connection.isCarrier() && connection.getStreamTable().isIdle())
+                    connection.closeConnection(ARB_CLOSE_IDLE);
+
+                // Send the heartbeat, only if nothing else went out recently
+                // Streams share the heartbeats of their link
+                if (!connection.isClosed() && !connection.isSuspended() && !connection.isCommandConnection() && !connection.isStream() && connection.getLastSentBeat() > connection.getHeartbeatInterval())
+                {
+                    // Measure the round trip time if there isn't a ping in flight
+                    if (connection.canPing())
+                        writeHeartbeat(connection, ARB_PACKET_PING, connection.beginPing());
+                    else
+                        writeHeartbeat(connection, (byte) 0, (short) 0);
 
-                    // Add on to the small queue
-                    // Length
-                    writeBuffer.putShort((short) dataLen);
-                    // Sequence (ignored)
-                    writeBuffer.putShort((short) 0);
-                    // PacketID ('R')
-                    writeBuffer.put(Constants.ARB_PACKET_READ);
-                    // Payload
-                    writeBuffer.put(payload);
-
-                    // If the queue will be empty, write out the remaining
-                    // packets
-                    //if (connection.writeQueue.isEmpty())
-                    //{
-                    writeBuffer.flip();
-                    connection.channel.write(writeBuffer);
-                    //}
+                    connection.updateSentHeartbeat();
                 }
+
+                updateWriteInterest(connection);
             } catch (IOException e)
             {
-                // Exception occurred, close the connection
-                e.printStackTrace();
-                connection.closeConnection();
+                // Exception occurred, close the connection (or wait for it
+                // to be resumed)
+                ArbiterLog.error(connection.getLogID(), "write failed", e);
+                connection.dropLink(ARB_CLOSE_FAILED);
             }
 
             // Check if the connection is dead or closed
             if (connection.isClosed())
             {
                 if (connection.isDead())
-                    if (DEBUG) System.out.println("Connection #" + connection.getConnectionID() + " died, closing");
+                    ArbiterLog.debug(connection.getLogID(), "died, closing");
                 else
-                    if (DEBUG) System.out.println("Connection #" + connection.getConnectionID() + " was closed");
+                    ArbiterLog.debug(connection.getLogID(), "was closed");
+
+                DeltaCodec codec = connection.getDeltaCodec();
+
+                if (codec != null && codec.getPlainBytes() > 0)
+                    ArbiterLog.debug(connection.getLogID(), "sent {} of {} read bytes", codec.getEncodedBytes(), codec.getPlainBytes());
+
+                if (!connection.isCommandConnection())
+                    FlightEvents.connectionClosed(connection);
 
+                // Files still being sent won't make it
+                while (connection.getFileTransfer() != null)
+                    endFile(connection, ARB_ERROR_FILE_ABORTED);
+
+                if (connection.isCarrier())
+                {
+                    // Streams go down along with their link
+                    for (Connection stream : connection.getStreamTable().getStreams())
+                        stream.closeConnection(ARB_CLOSE_PEER);
+
+                    writeGoodbye(connection);
+                }
                 // Alert the endpoint of the connection closure
-                if (connection.getConnectionID() != -1)
+                else if (!connection.isCommandConnection())
                 {
-                    ResponsePacket closure = new ResponsePacket(0, Constants.ARB_PACKET_ENDCONN, connection.getConnectionID());
-                    cmdConnection.enqueueResponse(closure);
+                    // Send out what's left for the remote, if it still listens
+                    writeGoodbye(connection);
+
+                    // A spliced pair goes down together
+                    if (connection.getSplicePeer() != null)
+                        connection.getSplicePeer().closeConnection(ARB_CLOSE_PEER);
+
+                    // Data that was already read comes before the closure
+                    relayScheduler.drain(connection, cmdConnection);
+
+                    cmdConnection.enqueueResponse(Constants.ARB_PACKET_ENDCONN, connection.getConnectionID());
                 }
 
                 // Perform cleanup
                 connection.closeConnection();
-                connection.channel.close();
+                receiveBuffers.release(connection);
+
+                if (connection.isStream())
+                    connection.getCarrier().getStreamTable().remove(connection);
+                else if (!connection.isCommandConnection() && !connection.isSuspended())
+                    connectionManager.lingerConnection(connection);
+                else
+                    connection.closeChannel();
+
                 connectionManager.freeID(connection.getConnectionID());
             }
         }
 
+        // Give each remote its share of the endpoint link
+        relayScheduler.schedule(cmdConnection);
+        relayScheduler.updateFairness(connectionManager.getActiveConnections().values());
+
+        // Send out everything destined for the endpoint
+        try
+        {
+            if (!cmdConnection.isClosed())
+            {
+                cmdConnection.balanceSpill();
+                cmdConnection.flushOutput();
+                updateWriteInterest(cmdConnection);
+            }
+        } catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.ENDPOINT, "write failed", e);
+            cmdConnection.closeConnection();
+        }
+
         // Prune all the dead connections
         connectionManager.pruneConnections();
     }
 
+    /**
+     * Waits for a connection's channel to take more output, only while it
+     * has output that it didn't take
+     * The channel is almost always writable, so waiting on it otherwise
+     * would never let the event loop wait
+     * @param connection The connection that was just flushed
+     */
+    private void updateWriteInterest(Connection connection)
+    {
+        SelectionKey key = connection.channel != null ? connection.channel.keyFor(channels) : null;
+
+        if (key == null || !key.isValid())
+            return;
+
+        int interestOps = key.interestOps();
+        int newOps = connection.hasUnsentOutput() ? interestOps | SelectionKey.OP_WRITE : interestOps & ~SelectionKey.OP_WRITE;
+
+        if (newOps != interestOps)
+            key.interestOps(newOps);
+    }
+
+    /**
+     * Gets how long the event loop can wait for its channels
+     * Waiting ends early once any timer is due: held back writes, heartbeats,
+     * dead links, idle multiplexed links, lost links & paused reads
+     * @return The time until the next timer is due, in nanoseconds, or 0 if
+     *         there is work that can be done right away
+     */
+    private long getWaitTime()
+    {
+        long waitTime = MAX_WAIT;
+        long flushDelay = Long.MAX_VALUE;
+
+        for (Connection connection : connectionManager.getActiveConnections().values())
+        {
+            // Queued up after their connection was looked at
+            if (connection.isClosed() || connection.isOpenPending() || connection.hasPendingResponses())
+                return 0;
+
+            if (connection.isSpillPending())
+                return 0;
+
+            int writeLength = connection.getNextWriteLength();
+
+            if (writeLength >= 0 && connection.hasSendCredit(writeLength))
+                return 0;
+
+            if (canSendFile(connection) && !connection.getLink().hasUnsentOutput())
+                return 0;
+
+            if (connection.isStream() && connection.shouldGrant())
+                return 0;
+
+            // More relayed data can go out, as the endpoint took everything
+            if (connection.hasRelayBacklog() && !cmdConnection.hasUnsentOutput())
+                return 0;
+
+            flushDelay = Math.min(flushDelay, connection.getFlushDelay());
+
+            if (connection.isCarrier())
+                waitTime = Math.min(waitTime, connection.getStreamTable().getIdleDelay());
+
+            // Streams share the heartbeats of their link
+            if (connection.isCommandConnection() || connection.isStream() || connection.isSuspended())
+                continue;
+
+            waitTime = Math.min(waitTime, Math.max(0, connection.getHeartbeatInterval() + 1 - connection.getLastSentBeat()));
+
+            if (!connection.isReadPaused())
+                waitTime = Math.min(waitTime, Math.max(0, connection.getDeathThreshold() + 1 - connection.getHeartbeatAge()));
+        }
+
+        waitTime = Math.min(waitTime, connectionManager.getWaitTime());
+
+        if (readLimiter.getResumeDelay() >= 0)
+            waitTime = Math.min(waitTime, readLimiter.getResumeDelay());
+
+        return Math.min(waitTime * 1000000L, flushDelay);
+    }
+
     private void processCommands(Queue<CommandPacket> commandQueue)
     {
+        if (pendingCommand != null)
+        {
+            int result = connectionManager.getConnectResult();
+
+            if (result == ConnectionManager.CONNECT_PENDING)
+                return;
+
+            endCommand(pendingCommand, pendingEvent, result);
+            pendingCommand = null;
+            pendingEvent = null;
+        }
+
         // Process the pending command packets
         while (!commandQueue.isEmpty())
         {
             CommandPacket packet = commandQueue.remove();
 
-            // Execute connect command:
-            // \ Connect to a remote host
-            //  \ Perform a connection w/ SocketChannel
-            //  \ Allocate a connection id
-            // \ Perform version handshake
-            //  \ If incompat, fail conn
-            // \ Send back a response
-            //  \ Send back the sequence id with the connID as payload (if success)
-            //  \ Send back the sequence id with the error as payload (if failure)
-
-            // TODO: Execute disconnect command:
-            // \ Validate connID
-            //  \ If invalid, make command invalid
-            // \ Disconnect remote host
-            //  \ Perform a disconnection w/ SocketChannel
-            //  \ Free the connection id
-            // \ Send back a response
-            //  \ Send back the sequence id with 0 as payload (if success)
-            //  \ Send back the sequence id with the error as payload (if failure)
-
-            // Execute write command:
-            // \ Validate connID
-            //  \ If invalid, make command invalid
-            // \ Send the data to the connection (or append on to channel's write queue)
-            // \ Send back a response
-            //  \ Send back the sequence id with 0 as payload (if success)
-            //  \ Send back the sequence id with the error as payload (if failure)
-            ResponsePacket response = packet.execute(this);
-            // Enqueue the response
-            cmdConnection.enqueueResponse(response);
-        }
-    }
-
-    private void processChannels() throws IOException
-    {
-        if (DEBUG) System.out.println("Waiting for connections");
-
-        channels = Selector.open();
+            Object event = FlightEvents.beginCommand();
+            int result = packet.execute(this);
+
+            if (result == ConnectionManager.CONNECT_PENDING)
+            {
+                // Acked once the link is made
+                pendingCommand = packet;
+                pendingEvent = event;
+                return;
+            }
+
+            endCommand(packet, event, result);
+        }
+    }
+
+    /**
+     * Acks a command that was carried out
+     * @param packet The command
+     * @param event The flight recorder event started with the command
+     * @param result The code to ack the command with
+     */
+    private void endCommand(CommandPacket packet, Object event, int result)
+    {
+        FlightEvents.endCommand(event, packet.getClass(), packet.sequence, result);
+
+        // Enqueue the ack
+        writeControlResponse(Constants.ARB_PACKET_ENDCMD, result, packet.getResponseData());
+    }
+
+    private void openSelector() throws IOException
+    {
+        if (channels != null)
+            return;
+
+        channels = transport.openSelector();
         connectionManager.init(channels);
+    }
 
-        SocketChannel endpoint = endpointServer.accept();
-        ByteBuffer poke = ByteBuffer.allocateDirect(2);
-        ByteBuffer readBuffer = ByteBuffer.allocateDirect(256);
-        ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1024);
+    private void processChannels(SocketChannel endpoint) throws IOException
+    {
+        openSelector();
 
         // Initialize the command connection
         short localCmdID = (short) connectionManager.allocateID(true);
         cmdConnection = new Connection(localCmdID, endpoint);
         cmdConnection.setAsCommandConnection(true);
+        cmdConnection.setControlWeight(config.controlWeight);
+        cmdConnection.setSpillQueue(spillQueue);
+        connectionManager.setSessionGrace(config.sessionGrace);
+        connectionManager.setMultiplexed(config.isMultiplexed);
         connectionManager.addConnection(cmdConnection, endpoint);
 
-        if (listenPort != -1)
+        // Keep the kernel's queue to the endpoint short, so that backed up
+        // data waits in the lanes where control responses can overtake it
+        endpoint.setOption(StandardSocketOptions.SO_SNDBUF, ENDPOINT_SEND_BUFFER);
+
+        if (arbiterServer != null)
         {
             // Add the arbiter server
             arbiterServer.configureBlocking(false);
             arbiterServer.register(channels, SelectionKey.OP_ACCEPT);
         }
 
-        Queue<CommandPacket> commandQueue = new LinkedBlockingDeque<>();
+        // Only ever touched by the event loop
+        Queue<CommandPacket> commandQueue = new ArrayDeque<>();
 
-        if (DEBUG) System.out.println("Connection with endpoint established");
+        ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Connection with endpoint established");
 
         while(isRunning)
         {
             processCommands(commandQueue);
-            processOutbound(poke, writeBuffer);
+            processOutbound();
 
             // Check if the command connection was closed
             if (cmdConnection.isClosed())
             {
-                if (DEBUG) System.out.println("Shutting down");
+                ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Shutting down");
+                if (readLimiter.isLimited()) ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Reads were paused {} times", readLimiter.getShedEvents());
+                if (cmdConnection.getSuperFramesSent() > 0) ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Packed {} responses into {} super-frames", cmdConnection.getPackedFramesSent(), cmdConnection.getSuperFramesSent());
+                if (spillQueue != null && spillQueue.getTotalBytes() > 0) ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Spilled {} bytes, at most {} at once", spillQueue.getTotalBytes(), spillQueue.getPeakBytes());
                 break;
             }
 
-            processInbound(readBuffer, writeBuffer, commandQueue);
+            processInbound(commandQueue);
 
             // Update the dead status
             // Update here to allow a chance for the heartbeat to be updated
@@ -503,35 +1501,154 @@ public class NetArbiter {
         }
     }
 
+    /**
+     * Closes all of the channels owned by the arbiter
+     */
+    private void closeChannels()
+    {
+        try
+        {
+            connectionManager.abandonHandshakes();
+            connectionManager.closeLingeringLinks(true);
+
+            for (Connection connection : connectionManager.getActiveConnections().values())
+            {
+                // Remotes shouldn't wait around for the links to be resumed
+                if (!connection.isCommandConnection())
+                    writeGoodbye(connection);
+
+                while (connection.getFileTransfer() != null)
+                    connection.removeFileTransfer();
+
+                if (!connection.isStream())
+                    connection.closeChannel();
+            }
+
+            if (arbiterServer != null)
+                arbiterServer.close();
+
+            if (channels != null)
+                channels.close();
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to close the channels", e);
+        }
+    }
+
+    /**
+     * Serves an endpoint until it exits or disconnects
+     * @param endpoint The channel connected to the endpoint
+     */
+    public void runEndpoint(SocketChannel endpoint)
+    {
+        try
+        {
+            processChannels(endpoint);
+        }
+        catch (Exception e)
+        {
+            // Catch all exceptions
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Event loop stopped", e);
+        }
+        finally
+        {
+            closeChannels();
+
+            if (captureJournal != null)
+                captureJournal.close();
+
+            if (spillQueue != null)
+                spillQueue.close();
+
+            // Nothing is logged after this, so don't leave it to the log thread
+            ArbiterLog.flush();
+        }
+    }
+
     private void startArbiter()
     {
         try
         {
             initArbiter();
-            processChannels();
-            // TODO: Shutdown remote channels
+
+            if (config.train)
+                StartupTrainer.start(((InetSocketAddress) endpointServer.getLocalAddress()).getPort());
+
+            ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Waiting for connections");
+            SocketChannel endpoint = endpointServer.accept();
+            runEndpoint(endpoint);
         }
         catch (Exception e)
         {
             // Catch all exceptions
-            e.printStackTrace();
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to start the arbiter", e);
+            ArbiterLog.flush();
+        }
+    }
+
+    /**
+     * Starts capturing traffic, if a capture directory was given
+     * @param directory The directory to capture into, or null
+     * @param name The name of the capture
+     * @return The capture journal, or null if there is no capture
+     */
+    static CaptureJournal openCapture(File directory, String name)
+    {
+        if (directory == null)
+            return null;
+
+        try
+        {
+            return new CaptureJournal(directory, name);
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to start capturing traffic", e);
+            return null;
+        }
+    }
+
+    /**
+     * Makes a queue to spill an endpoint's backlog into, if a spill
+     * directory was given
+     * @param config The settings of the arbiter the queue is for
+     * @param name The name of the queue
+     * @return The spill queue, or null if there is no spilling
+     */
+    static SpillQueue openSpill(ArbiterConfig config, String name)
+    {
+        if (config.spillDirectory == null)
+            return null;
+
+        try
+        {
+            return new SpillQueue(config.spillDirectory, name, config.spillMemory, config.spillDisk);
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to spill the endpoint backlog", e);
+            return null;
         }
     }
 
-    private static boolean parseArgs(String[] args, int[] ports) {
-        int connectionPort = -1, listenPort = -1;
+    private static boolean parseArgs(String[] args, int[] ports, ArbiterConfig config) {
+        int connectionPort = -1, listenPort = -1, daemonPort = -1;
 
         for (String arg : args) {
-            String[] components = arg.split("=");
+            String[] components = arg.split("=", 2);
             // Strip the "--"
             components[0] = components[0].replaceFirst("--", "");
 
-            if (components.length != 2) {
+            if (components.length != 2 && !components[0].equals("debug") && !components[0].equals("train") && !components[0].equals("deltaCodec") && !components[0].equals("multiplex")) {
                 System.out.println("Invalid formatting: " + arg);
                 return false;
             }
 
             switch (components[0]) {
+                case "daemonPort":
+                    daemonPort = Integer.parseInt(components[1]);
+                    break;
                 case "endpointPort":
                     connectionPort = Integer.parseInt(components[1]);
                     break;
@@ -539,7 +1656,94 @@ public class NetArbiter {
                     listenPort = Integer.parseInt(components[1]);
                     break;
                 case "debug":
-                    DEBUG = true;
+                    ArbiterLog.setDebug(true);
+                    break;
+                case "deltaCodec":
+                    config.isDeltaCodec = true;
+                    break;
+                case "multiplex":
+                    config.isMultiplexed = true;
+                    break;
+                case "tlsKeyStore":
+                    config.tlsKeyStore = components[1];
+                    break;
+                case "tlsTrustStore":
+                    config.tlsTrustStore = components[1];
+                    break;
+                case "tlsPassword":
+                    config.tlsPassword = components[1];
+                    break;
+                case "controlWeight":
+                    config.controlWeight = Integer.parseInt(components[1]);
+                    break;
+                case "capture":
+                    config.captureDirectory = new File(components[1]);
+                    break;
+                case "sessionGrace":
+                    config.sessionGrace = Long.parseLong(components[1]);
+                    break;
+                case "receiveBuffer": {
+                    // Smallest & biggest read size
+                    String[] sizes = components[1].split(",", 2);
+                    config.minReceiveSize = Integer.parseInt(sizes[0]);
+                    config.maxReceiveSize = sizes.length > 1 ? Integer.parseInt(sizes[1]) : Math.max(config.minReceiveSize, config.maxReceiveSize);
+
+                    if (config.minReceiveSize < 16 || config.maxReceiveSize < config.minReceiveSize || config.maxReceiveSize > 0x100000) {
+                        System.out.println("Receive buffer sizes need to be in the range of 16 - 1048576, smallest first");
+                        return false;
+                    }
+                    break;
+                }
+                case "readLimit":
+                case "totalReadLimit": {
+                    // Bytes per second, optionally followed by frames per second
+                    String[] rates = components[1].split(",", 2);
+                    long bytes = Long.parseLong(rates[0]);
+                    long frames = rates.length > 1 ? Long.parseLong(rates[1]) : 0;
+
+                    if (bytes < 0 || frames < 0) {
+                        System.out.println("Read limits can't be negative");
+                        return false;
+                    }
+
+                    if (components[0].equals("readLimit")) {
+                        config.linkReadBytes = bytes;
+                        config.linkReadFrames = frames;
+                    } else {
+                        config.totalReadBytes = bytes;
+                        config.totalReadFrames = frames;
+                    }
+                    break;
+                }
+                case "wait": {
+                    // Strategy, optionally followed by the spin time
+                    String[] strategy = components[1].split(",", 2);
+                    long spinTime = strategy.length > 1 ? Long.parseLong(strategy[1]) : WaitStrategy.SPIN_TIME;
+                    config.waitStrategy = WaitStrategy.of(strategy[0], spinTime);
+
+                    if (config.waitStrategy == null || spinTime < 0) {
+                        System.out.println("Wait strategy needs to be block, poll or spin(,[microseconds])");
+                        return false;
+                    }
+                    break;
+                }
+                case "spill": {
+                    // Directory, optionally followed by the memory & disk limits
+                    String[] spill = components[1].split(",", 3);
+                    config.spillDirectory = new File(spill[0]);
+                    config.spillMemory = spill.length > 1 ? Integer.parseInt(spill[1]) : config.spillMemory;
+                    config.spillDisk = spill.length > 2 ? Long.parseLong(spill[2]) : config.spillDisk;
+
+                    if (config.spillMemory < 0x20000 || config.spillDisk < SpillQueue.SEGMENT_SIZE) {
+                        System.out.println("Spilling needs at least 131072 bytes of memory and 16777216 bytes of disk");
+                        return false;
+                    }
+                    break;
+                }
+                case "train":
+                    // Any free port will do
+                    config.train = true;
+                    connectionPort = 0;
                     break;
                 default:
                     System.out.println("Unknown argument \"" + components[0] + "\"");
@@ -547,6 +1751,36 @@ public class NetArbiter {
             }
         }
 
+        if (config.controlWeight < 0) {
+            System.out.println("Control weight can't be negative");
+            return false;
+        }
+
+        if (config.sessionGrace < 0) {
+            System.out.println("Session grace can't be negative");
+            return false;
+        }
+
+        if (config.tlsTrustStore != null && config.tlsKeyStore == null) {
+            System.out.println("A trust store needs a key store to go with it");
+            return false;
+        }
+
+        if (daemonPort != -1) {
+            if (daemonPort < 0 || daemonPort > 0xFFFF) {
+                System.out.println("Daemon port needs to be in the range of 0 - 65535");
+                return false;
+            }
+
+            if (connectionPort != -1 || listenPort != -1) {
+                System.out.println("Daemon mode can't be combined with other ports, endpoints choose their own listening port");
+                return false;
+            }
+
+            ports[2] = daemonPort;
+            return true;
+        }
+
         if (connectionPort == -1) {
             System.out.println("Connection port needs to be specified");
             return false;
@@ -570,21 +1804,49 @@ public class NetArbiter {
 
     public static void main(String[] args) {
         // Gather connection information
-        if (args.length < 1 || args.length > 2) {
-            System.out.println("Usage: arbiter [--endpointPort=[port]] (--listenPort=[port]) (--debug)");
+        // Unknown options are turned away by parseArgs
+        if (args.length < 1) {
+            System.out.println("Usage: arbiter [--endpointPort=[port]] (--listenPort=[port]) (--controlWeight=[weight]) (--sessionGrace=[ms]) (--capture=[directory]) (--deltaCodec) (--multiplex) (--debug) (TLS options) (read limits) (read sizes) (wait strategy) (spilling)");
+            System.out.println("       arbiter [--daemonPort=[port]] (--controlWeight=[weight]) (--sessionGrace=[ms]) (--capture=[directory]) (--deltaCodec) (--multiplex) (--debug) (TLS options) (read limits) (read sizes) (wait strategy) (spilling)");
+            System.out.println("TLS options: --tlsKeyStore=[file] (--tlsTrustStore=[file]) (--tlsPassword=[password])");
+            System.out.println("Read limits: (--readLimit=[bytes/s](,[frames/s])) (--totalReadLimit=[bytes/s](,[frames/s]))");
+            System.out.println("Read sizes: (--receiveBuffer=[min bytes](,[max bytes]))");
+            System.out.println("Wait strategy: (--wait=[block|poll|spin](,[spin microseconds]))");
+            System.out.println("Spilling: (--spill=[directory](,[memory bytes](,[disk bytes])))");
             return;
         }
 
         // Acquire the ports
-        int[] ports = new int[2];
-        if(!parseArgs(args, ports)) {
+        int[] ports = new int[] { -1, -1, -1 };
+        ArbiterConfig config = new ArbiterConfig();
+        if(!parseArgs(args, ports, config)) {
+            return;
+        }
+
+        TlsContext tlsContext = null;
+
+        if (config.tlsKeyStore != null) {
+            try {
+                tlsContext = new TlsContext(config.tlsKeyStore, config.tlsTrustStore, config.tlsPassword.toCharArray());
+            } catch (GeneralSecurityException | IOException e) {
+                System.out.println("Unable to set up TLS: " + e.getMessage());
+                return;
+            }
+        }
+
+        if (ports[2] != -1) {
+            // Host many endpoints in this process
+            new ArbiterDaemon(ports[2], tlsContext, config).startDaemon();
             return;
         }
 
-        if (DEBUG) System.out.println("Is server: " + (ports[1] != -1));
+        ArbiterLog.debug(ArbiterLog.NO_CONNECTION, ports[1] != -1 ? "Is server: true" : "Is server: false");
 
         // Launch the arbiter
-        NetArbiter arbiter = new NetArbiter(ports[0], ports[1]);
+        NetArbiter arbiter = new NetArbiter(ports[0], ports[1], config);
+        arbiter.getConnectionManager().setTlsContext(tlsContext);
+        arbiter.setCaptureJournal(openCapture(config.captureDirectory, "arbiter"));
+        arbiter.setSpillQueue(openSpill(config, "arbiter"));
         arbiter.startArbiter();
     }
 
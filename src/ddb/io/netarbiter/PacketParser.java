@@ -2,13 +2,18 @@ package ddb.io.netarbiter;
 
 import ddb.io.netarbiter.packet.*;
 
-import java.util.Arrays;
-
 public class PacketParser
 {
     private PacketParser() {}
 
-    public static Packet parsePacket(byte[] packetData)
+    /**
+     * Parses a packet that is still inside of the read buffer
+     * Only the payload is copied out, and only if the packet needs it
+     * @param view The view of the packet to parse
+     * @return The parsed packet, an InvalidCommandPacket if a command's
+     *         payload is malformed, or null if the packet ID is unknown
+     */
+    public static Packet parsePacket(PacketView view)
     {
         // Arbiter Packet Format:
         // length:         2 bytes
@@ -20,15 +25,8 @@ public class PacketParser
         // |    len    |    seq    |
         // | cID |   payload ...   |
 
-        int packetLength = (packetData[0] << 8) | packetData[1];
-        int packetSequence =  (packetData[2] << 8) | packetData[3];
-        char packetID =    (char) packetData[4];
-        byte[] payload;
-
-        if ((packetLength - 5) > 0)
-            payload = Arrays.copyOfRange(packetData, 5, packetLength);
-        else
-            payload = new byte[0];
+        int packetSequence = view.getSequence();
+        char packetID =      (char) view.getPacketID();
 
         Packet packet = null;
 
@@ -37,16 +35,23 @@ public class PacketParser
             // Command packets
             case 'C': packet = new ConnectPacket(packetSequence);    break;
             case 'D': packet = new DisconnectPacket(packetSequence); break;
-            case 'S': /*System.out.println("Fetching status of ...");*/  break; // StatusPacket
+            case 'L': packet = new ListenPacket(packetSequence);     break;
+            case 'S': packet = new StatusPacket(packetSequence);     break;
             case 'W': packet = new WritePacket(packetSequence);      break;
+            case 'Q': packet = new WeightPacket(packetSequence);     break;
+            case 'J': packet = new SplicePacket(packetSequence);     break;
+            case 'M': packet = new FramingPacket(packetSequence);    break;
+            case 'Y': packet = new SendFilePacket(packetSequence);   break;
             case 'X': packet = new ExitPacket(packetSequence);       break;
             // Remote packets
             case 'R': packet = new ResponsePacket(packetSequence, Constants.ARB_PACKET_READ); break; // ReadPacket
             case 'F': packet = new ResponsePacket(packetSequence, Constants.ARB_PACKET_ENDCONN); break; // StatusNotifyPacket
         }
 
-        if (packet != null)
-            packet.parsePayload(payload);
+        // Malformed commands are acked with an error instead of being
+        // carried out, and malformed responses are dropped
+        if (packet != null && !view.parsePayload(packet))
+            return packet instanceof CommandPacket ? new InvalidCommandPacket(packetSequence) : null;
 
         return packet;
     }
@@ -0,0 +1,132 @@
+package ddb.io.netarbiter;
+
+import ddb.io.netarbiter.packet.Packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view over a packet that is still inside of a read buffer
+ * Header fields are read straight from the buffer, so looking at a packet
+ * doesn't require copying it out first.
+ *
+ * Arbiter Packet Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes
+ * packetID:       1 byte
+ * payload:        length - 5 bytes
+ */
+public class PacketView
+{
+    // Size of the common packet header
+    public static final int HEADER_SIZE = 5;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * Points the view at a new packet
+     * @param buffer The buffer containing the packet
+     * @param offset The offset of the packet's length field in the buffer
+     * @return This view
+     */
+    public PacketView wrap(ByteBuffer buffer, int offset)
+    {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    public int getLength()
+    {
+        return Short.toUnsignedInt(buffer.getShort(offset));
+    }
+
+    public int getSequence()
+    {
+        return Short.toUnsignedInt(buffer.getShort(offset + 2));
+    }
+
+    public byte getPacketID()
+    {
+        return buffer.get(offset + 4);
+    }
+
+    public int getPayloadLength()
+    {
+        return getLength() - HEADER_SIZE;
+    }
+
+    public ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Gets where the payload starts in the underlying buffer
+     * @return The offset of the payload in the buffer
+     */
+    public int getPayloadOffset()
+    {
+        return offset + HEADER_SIZE;
+    }
+
+    /**
+     * Lets a packet parse its payload directly from the underlying buffer
+     * The buffer's position and limit are restored afterwards
+     * @param packet The packet to parse the payload into
+     * @return True if the payload was valid
+     */
+    public boolean parsePayload(Packet packet)
+    {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        buffer.limit(offset + getLength());
+        buffer.position(offset + HEADER_SIZE);
+
+        try
+        {
+            return packet.parsePayload(buffer);
+        }
+        finally
+        {
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Copies the whole packet into another buffer
+     * @param dest The buffer to copy the packet into
+     */
+    public void copyPacket(ByteBuffer dest)
+    {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        buffer.limit(offset + getLength());
+        buffer.position(offset);
+        dest.put(buffer);
+
+        buffer.limit(limit);
+        buffer.position(position);
+    }
+
+    /**
+     * Copies the payload into another buffer
+     * @param dest The buffer to copy the payload into
+     */
+    public void copyPayload(ByteBuffer dest)
+    {
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        buffer.limit(offset + getLength());
+        buffer.position(offset + HEADER_SIZE);
+        dest.put(buffer);
+
+        buffer.limit(limit);
+        buffer.position(position);
+    }
+
+}
@@ -0,0 +1,257 @@
+package ddb.io.netarbiter;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Read limits of the links to remote arbiters
+ * Every link gets its own token buckets for the bytes and frames read from
+ * it, and all of the links share another pair. Once a link runs any of its
+ * buckets dry, reading from it is paused by taking away its read interest,
+ * so that the data waits in the kernel (and eventually the remote) instead
+ * of in the arbiter. The link is read from again once all of its buckets
+ * have built back up a bit, so that it isn't paused for every read.
+ *
+ * A single remote can then only take up its share of the event loop, no
+ * matter how fast it sends.
+ */
+public class ReadLimiter
+{
+    // Per link limits, in bytes & frames per second (0 = unlimited)
+    private final long linkByteRate;
+    private final long linkFrameRate;
+    // Limits shared by all links, or null if unlimited
+    private final TokenBucket totalBytes;
+    private final TokenBucket totalFrames;
+
+    private final List<Connection> pausedLinks = new ArrayList<>();
+    // Number of times any link was paused
+    private long shedEvents = 0;
+
+    /**
+     * Creates a new read limiter
+     * @param linkByteRate The bytes each link can be read at per second
+     * @param linkFrameRate The frames each link can be read at per second
+     * @param totalByteRate The bytes all links can be read at per second
+     * @param totalFrameRate The frames all links can be read at per second
+     * Any of the rates can be 0 to leave it unlimited
+     */
+    public ReadLimiter(long linkByteRate, long linkFrameRate, long totalByteRate, long totalFrameRate)
+    {
+        this.linkByteRate = linkByteRate;
+        this.linkFrameRate = linkFrameRate;
+        this.totalBytes = totalByteRate > 0 ? new TokenBucket(totalByteRate) : null;
+        this.totalFrames = totalFrameRate > 0 ? new TokenBucket(totalFrameRate) : null;
+    }
+
+    public boolean isLimited()
+    {
+        return linkByteRate > 0 || linkFrameRate > 0 || totalBytes != null || totalFrames != null;
+    }
+
+    /**
+     * Accounts for data read in from a link
+     * @param link The link the data was read from
+     * @param amount The number of bytes read
+     */
+    public void addBytes(Connection link, int amount)
+    {
+        if (!isLimited() || amount <= 0)
+            return;
+
+        setupLimits(link);
+
+        if (link.getReadBytes() != null)
+            link.getReadBytes().take(amount);
+
+        if (totalBytes != null)
+            totalBytes.take(amount);
+    }
+
+    /**
+     * Accounts for a frame read in from a link
+     * @param link The link the frame was read from
+     */
+    public void addFrame(Connection link)
+    {
+        if (!isLimited())
+            return;
+
+        setupLimits(link);
+
+        if (link.getReadFrames() != null)
+            link.getReadFrames().take(1);
+
+        if (totalFrames != null)
+            totalFrames.take(1);
+    }
+
+    /**
+     * Checks if a link went over any of its limits
+     * @param link The link to check
+     * @return True if reading from the link should be paused
+     */
+    public boolean isOverLimit(Connection link)
+    {
+        if (!isLimited())
+            return false;
+
+        return isEmpty(link.getReadBytes()) || isEmpty(link.getReadFrames())
+                || isEmpty(totalBytes) || isEmpty(totalFrames);
+    }
+
+    /**
+     * Gets how much can be read from a link without going over its limits
+     * Frames are counted as the smallest frame that counts, so that a read
+     * full of tiny frames can't run far past the frame limit
+     * @param link The link about to be read from
+     * @return The most bytes the next read should take in
+     */
+    public int getReadAllowance(Connection link)
+    {
+        if (!isLimited())
+            return Integer.MAX_VALUE;
+
+        setupLimits(link);
+
+        long allowance = Integer.MAX_VALUE;
+        allowance = Math.min(allowance, getAllowance(link.getReadBytes(), 1));
+        allowance = Math.min(allowance, getAllowance(totalBytes, 1));
+        allowance = Math.min(allowance, getAllowance(link.getReadFrames(), PacketView.HEADER_SIZE));
+        allowance = Math.min(allowance, getAllowance(totalFrames, PacketView.HEADER_SIZE));
+
+        // Something has to be read in for the link to make progress
+        return (int) Math.max(allowance, 1);
+    }
+
+    /**
+     * Stops reading from a link until its buckets fill back up
+     * @param link The link to pause
+     * @param selector The selector the link's channel is registered with
+     */
+    public void pause(Connection link, Selector selector)
+    {
+        // Suspended links have nothing to read from, but stay paused once
+        // they are resumed
+        SelectionKey key = link.channel != null ? link.channel.keyFor(selector) : null;
+
+        if (key != null && key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        if (link.isReadPaused())
+            return;
+
+        link.setReadPaused(true);
+        pausedLinks.add(link);
+        shedEvents++;
+    }
+
+    /**
+     * Starts reading from the paused links that are back under their limits
+     * @param selector The selector the links' channels are registered with
+     * @return The links that were resumed, which may have input buffered
+     */
+    public List<Connection> resumeLinks(Selector selector)
+    {
+        List<Connection> resumed = new ArrayList<>();
+        Iterator<Connection> iterator = pausedLinks.iterator();
+
+        while (iterator.hasNext())
+        {
+            Connection link = iterator.next();
+
+            if (!link.isClosed() && !isRefilled(link))
+            {
+                // A resumed session registers the new channel for reading
+                SelectionKey key = link.channel != null ? link.channel.keyFor(selector) : null;
+
+                if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0)
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+                continue;
+            }
+
+            iterator.remove();
+            link.setReadPaused(false);
+
+            if (link.isClosed())
+                continue;
+
+            SelectionKey key = link.channel != null ? link.channel.keyFor(selector) : null;
+
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+            resumed.add(link);
+        }
+
+        return resumed;
+    }
+
+    /**
+     * Gets the time until a paused link might be read from again
+     * @return The time until the first bucket refills, in milliseconds, or
+     *         -1 if no links are paused
+     */
+    public long getResumeDelay()
+    {
+        long delay = -1;
+
+        for (Connection link : pausedLinks)
+        {
+            long linkDelay = Math.max(
+                    Math.max(getRefillDelay(link.getReadBytes()), getRefillDelay(link.getReadFrames())),
+                    Math.max(getRefillDelay(totalBytes), getRefillDelay(totalFrames)));
+
+            if (delay == -1 || linkDelay < delay)
+                delay = linkDelay;
+        }
+
+        return delay;
+    }
+
+    public long getShedEvents()
+    {
+        return shedEvents;
+    }
+
+    private void setupLimits(Connection link)
+    {
+        if (link.getReadBytes() != null || link.getReadFrames() != null)
+            return;
+
+        link.setReadLimits(
+                linkByteRate > 0 ? new TokenBucket(linkByteRate) : null,
+                linkFrameRate > 0 ? new TokenBucket(linkFrameRate) : null);
+    }
+
+    private boolean isRefilled(Connection link)
+    {
+        return isRefilled(link.getReadBytes()) && isRefilled(link.getReadFrames())
+                && isRefilled(totalBytes) && isRefilled(totalFrames);
+    }
+
+    private static boolean isRefilled(TokenBucket bucket)
+    {
+        return bucket == null || bucket.isRefilled();
+    }
+
+    private static boolean isEmpty(TokenBucket bucket)
+    {
+        return bucket != null && bucket.isEmpty();
+    }
+
+    private static long getAllowance(TokenBucket bucket, int bytesPerToken)
+    {
+        return bucket != null ? bucket.getTokens() * bytesPerToken : Integer.MAX_VALUE;
+    }
+
+    private static long getRefillDelay(TokenBucket bucket)
+    {
+        return bucket != null ? bucket.getRefillDelay() : 0;
+    }
+
+}
@@ -0,0 +1,168 @@
+package ddb.io.netarbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receive buffers of the arbiter's connections
+ * Every connection reads into its own direct buffer, sized by the
+ * connection's ReceiveSizer, so that each read takes in as much as is
+ * waiting in a single call. Frames are processed in place, and a partial
+ * frame at the end stays in the buffer for the next read to complete.
+ *
+ * Links whose data is already waiting on its way out only read up to the
+ * end of the frame in progress (or the smallest read size, between frames),
+ * so that the rest of the data waits in the kernel, instead of piling up in
+ * the arbiter where every frame handed on has to move it around.
+ *
+ * Buffers are only held while a partial frame is left over. Once everything
+ * read was processed, the buffer goes back to the pool, so idle connections
+ * don't hold on to any memory. Sizes are kept to powers of two, so that the
+ * pool only has a few sizes to keep around.
+ */
+public class ReceiveBuffers
+{
+    // Default bounds of the read size, in bytes
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    private final BufferPool bufferPool = new BufferPool();
+    private final int minSize;
+    private final int maxSize;
+
+    /**
+     * Creates a new set of receive buffers
+     * @param minSize The smallest read size, rounded up to a power of two
+     * @param maxSize The biggest read size, rounded up to a power of two
+     */
+    public ReceiveBuffers(int minSize, int maxSize)
+    {
+        this.minSize = roundSize(minSize);
+        this.maxSize = Math.max(this.minSize, roundSize(maxSize));
+    }
+
+    /**
+     * Gets the buffer to read new data into
+     * If part of a packet was left over from the last read, the rest of the
+     * packet is read in after it
+     * @param connection The connection being read from
+     * @param isBackedUp True if the data read from the connection is
+     *                   waiting to be sent on
+     * @param allowance The most bytes the read should take in
+     * @return The buffer to read into, ready for reading
+     */
+    public ByteBuffer getInputBuffer(Connection connection, boolean isBackedUp, int allowance)
+    {
+        if (connection.getReceiveSizer() == null)
+            connection.setReceiveSizer(new ReceiveSizer(minSize, maxSize));
+
+        int size = connection.getReceiveSizer().getSize();
+        ByteBuffer input = connection.getInputBuffer();
+
+        if (input == null)
+        {
+            input = bufferPool.acquire(size);
+            connection.setInputBuffer(input);
+        }
+        else if (input.capacity() < size)
+        {
+            // Reads got bigger while a partial packet was waiting
+            input = moveInput(connection, input, size);
+        }
+
+        if (isBackedUp)
+            input.limit(Math.min(input.capacity(), getFrameEnd(input)));
+
+        if (input.remaining() > allowance)
+            input.limit(input.position() + allowance);
+
+        return input;
+    }
+
+    /**
+     * Accounts for a read, to size the next one
+     * @param connection The connection that was read from
+     * @param amount The number of bytes read
+     * @param space The room there was in the buffer for the read
+     */
+    public void recordRead(Connection connection, int amount, int space)
+    {
+        if (amount >= 0 && connection.getReceiveSizer() != null)
+            connection.getReceiveSizer().record(amount, space);
+    }
+
+    /**
+     * Keeps the unprocessed part of a read for the next read
+     * @param connection The connection that was read from
+     * @param input The buffer that was processed, positioned at the start
+     *              of the incomplete packet
+     * @param needed The total size of the incomplete packet, if known
+     */
+    public void carryInput(Connection connection, ByteBuffer input, int needed)
+    {
+        if (!input.hasRemaining())
+        {
+            // Everything was processed
+            release(connection);
+            return;
+        }
+
+        int size = Math.max(input.remaining(), needed);
+
+        if (input.capacity() >= size)
+        {
+            input.compact();
+            return;
+        }
+
+        // The packet doesn't fit, so move it into a buffer that holds all of it
+        input.compact();
+        moveInput(connection, input, size);
+    }
+
+    /**
+     * Gives a connection's buffer back to the pool, along with any partial
+     * packet in it
+     * @param connection The connection that won't be read from anymore
+     */
+    public void release(Connection connection)
+    {
+        bufferPool.release(connection.getInputBuffer());
+        connection.setInputBuffer(null);
+    }
+
+    /**
+     * Gets the end of the frame at the start of a buffer
+     * @param input The buffer, holding the start of the frame
+     * @return The offset of the end of the frame, or the smallest read size
+     *         if the frame's length isn't known yet
+     */
+    private int getFrameEnd(ByteBuffer input)
+    {
+        if (input.position() < 2)
+            return minSize;
+
+        int length = Short.toUnsignedInt(input.getShort(0));
+        return length > input.position() ? length : minSize;
+    }
+
+    private ByteBuffer moveInput(Connection connection, ByteBuffer input, int size)
+    {
+        ByteBuffer moved = bufferPool.acquire(roundSize(size));
+
+        input.flip();
+        moved.put(input);
+        bufferPool.release(input);
+
+        connection.setInputBuffer(moved);
+        return moved;
+    }
+
+    private static int roundSize(int size)
+    {
+        if (size <= 1)
+            return 1;
+
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+}
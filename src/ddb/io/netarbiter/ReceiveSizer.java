@@ -0,0 +1,71 @@
+package ddb.io.netarbiter;
+
+/**
+ * Read size of a single connection
+ * Follows how much recent reads got: a read that fills the buffer means
+ * more data was waiting, so the next read is made a lot bigger, and the size
+ * only comes back down once a few reads in a row would have fit in half of
+ * it. Bulk links end up reading many frames per call, while chatty links
+ * keep small buffers.
+ */
+public class ReceiveSizer
+{
+    // Times bigger the next read gets after a read fills the buffer
+    private static final int GROWTH = 4;
+    // Reads in a row that have to fit in half the size before it shrinks
+    private static final int SHRINK_READS = 2;
+
+    private final int minSize;
+    private final int maxSize;
+    private int size;
+    private int shortReads = 0;
+
+    /**
+     * Creates a new sizer, starting out at the smallest size
+     * @param minSize The smallest read size
+     * @param maxSize The biggest read size
+     */
+    public ReceiveSizer(int minSize, int maxSize)
+    {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.size = minSize;
+    }
+
+    /**
+     * Gets the size the next read should be able to fill
+     * @return The read size, in bytes
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Accounts for a read
+     * @param amount The number of bytes read
+     * @param space The room there was in the buffer for the read
+     */
+    public void record(int amount, int space)
+    {
+        if (amount >= space)
+        {
+            size = Math.min(maxSize, size * GROWTH);
+            shortReads = 0;
+            return;
+        }
+
+        if (amount > size / 2 || size <= minSize)
+        {
+            shortReads = 0;
+            return;
+        }
+
+        if (++shortReads >= SHRINK_READS)
+        {
+            size = Math.max(minSize, size / 2);
+            shortReads = 0;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package ddb.io.netarbiter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Deficit round robin scheduler for data relayed to the endpoint
+ * All remotes share the single link to the endpoint. While that link keeps
+ * up, read data goes straight into the endpoint's output. Once it backs up,
+ * each remote's data waits in its own relay buffer, and the scheduler hands
+ * the endpoint's output a fair, weighted share from every remote.
+ *
+ * Fairness is measured over windows of FAIRNESS_WINDOW milliseconds, using
+ * Jain's fairness index over the weighted throughput of the remotes that
+ * had data waiting for the whole window. Remotes that only had to wait
+ * briefly got everything they asked for, and aren't counted.
+ */
+public class RelayScheduler
+{
+    // Bytes a remote with a weight of 1 can hand over each round
+    public static final int RELAY_QUANTUM = 4096;
+    // Amount of data allowed to wait in the endpoint's output, before
+    // the remaining data waits in the relay buffers
+    public static final int ENDPOINT_BACKLOG = 64 * 1024;
+    // Length of a fairness measurement window, in milliseconds
+    public static final long FAIRNESS_WINDOW = 250;
+    // Fairness values are in thousandths
+    public static final int FAIR = 1000;
+
+    // Remotes with data waiting in their relay buffers, in round order
+    private final ArrayDeque<Connection> backlogged = new ArrayDeque<>();
+
+    private long windowStart = Clock.get().currentTimeMillis();
+    // Fairness index of the last window
+    private int fairness = FAIR;
+
+    /**
+     * Gets the buffer to encode data relayed from a remote into
+     * The data goes straight into the endpoint's output when nothing else
+     * is waiting to be sent
+     * @param source The remote the data was read from
+     * @param endpoint The endpoint's connection
+     * @param size The size of the encoded data
+     * @return The buffer to encode the data into
+     */
+    public ByteBuffer reserveRelay(Connection source, Connection endpoint, int size)
+    {
+        if (!source.hasRelayBacklog() && backlogged.isEmpty() && !endpoint.isOutputBackedUp(ENDPOINT_BACKLOG))
+        {
+            source.addDelivered(size);
+            return endpoint.reserveOutput(size);
+        }
+
+        if (!source.hasRelayBacklog())
+        {
+            // Start with a clean slate in this round
+            source.setDeficit(0);
+            backlogged.add(source);
+        }
+
+        return source.reserveRelayBuffer(size);
+    }
+
+    /**
+     * Moves waiting data into the endpoint's output, for as long as the
+     * endpoint keeps up
+     * @param endpoint The endpoint's connection
+     */
+    public void schedule(Connection endpoint)
+    {
+        while (!backlogged.isEmpty() && !endpoint.isOutputBackedUp(ENDPOINT_BACKLOG))
+        {
+            Connection source = backlogged.remove();
+            source.setDeficit(source.getDeficit() + (long) RELAY_QUANTUM * source.getRelayWeight());
+
+            // Hand over whole frames that fit in the deficit
+            int moved = source.moveRelayFrames(endpoint, source.getDeficit());
+            source.setDeficit(source.getDeficit() - moved);
+            source.addDelivered(moved);
+
+            if (source.hasRelayBacklog())
+                backlogged.add(source);
+            else
+                source.setDeficit(0);
+        }
+    }
+
+    /**
+     * Moves all of a remote's waiting data into the endpoint's output
+     * Used when the remote is closed, so that its data still comes before
+     * the closure notification
+     * @param source The remote being closed
+     * @param endpoint The endpoint's connection
+     */
+    public void drain(Connection source, Connection endpoint)
+    {
+        if (!backlogged.remove(source))
+            return;
+
+        source.addDelivered(source.moveRelayFrames(endpoint, Long.MAX_VALUE));
+        source.setDeficit(0);
+    }
+
+    /**
+     * Updates the fairness measurements once a window has passed
+     * @param connections All of the active connections
+     */
+    public void updateFairness(Collection<Connection> connections)
+    {
+        long now = Clock.get().currentTimeMillis();
+
+        if (now - windowStart < FAIRNESS_WINDOW)
+            return;
+
+        windowStart = now;
+
+        // Weighted throughput of every remote that kept data waiting
+        double sum = 0, sumSquares = 0;
+        int count = 0;
+
+        for (Connection connection : connections)
+        {
+            if (isSaturated(connection))
+            {
+                double share = connection.getWindowDelivered() / (double) connection.getRelayWeight();
+                sum += share;
+                sumSquares += share * share;
+                count++;
+            }
+        }
+
+        double mean = count > 0 ? sum / count : 0;
+
+        for (Connection connection : connections)
+        {
+            if (isSaturated(connection) && mean > 0)
+                connection.setFairShare((int) Math.round(FAIR * (connection.getWindowDelivered() / (double) connection.getRelayWeight()) / mean));
+            else
+                connection.setFairShare(FAIR); // Got everything it asked for
+
+            connection.resetWindow();
+        }
+
+        // Jain's fairness index: 1 when every remote gets its weighted share
+        fairness = sumSquares > 0 ? (int) Math.round(FAIR * (sum * sum) / (count * sumSquares)) : FAIR;
+    }
+
+    private static boolean isSaturated(Connection connection)
+    {
+        return connection.wasBacklogged() && connection.hasRelayBacklog();
+    }
+
+    /**
+     * Gets the fairness index of the last measurement window
+     * @return Jain's fairness index, in thousandths (1000 = perfectly fair)
+     */
+    public int getFairness()
+    {
+        return fairness;
+    }
+
+}
@@ -0,0 +1,111 @@
+package ddb.io.netarbiter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sequencer for a bounded ring with many producers & one consumer
+ * Only hands out slot indices, so the ring's slots can hold anything: the
+ * objects offered to an MpscRing, or entries that are filled in place.
+ * Each slot has a sequence number saying whose turn it is, so claiming a
+ * slot only takes a compare-and-set, and nothing is allocated.
+ *
+ * A producer claims a position, fills in the slot, then publishes the
+ * position. The consumer peeks at the oldest slot once it is published,
+ * and releases it once it is done with it.
+ */
+public final class RingSequencer
+{
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    // Only touched by the consumer
+    private long tail = 0;
+
+    /**
+     * Creates a new sequencer
+     * @param capacity The number of slots in the ring, a power of 2
+     */
+    public RingSequencer(int capacity)
+    {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity needs to be a power of 2: " + capacity);
+
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+    }
+
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Gets the slot a position lands in
+     * @param position A claimed position
+     * @return The index of the slot
+     */
+    public int slot(long position)
+    {
+        return (int) (position & mask);
+    }
+
+    /**
+     * Claims the next slot for a producer
+     * @return The claimed position, or -1 if the ring is full
+     */
+    public long claim()
+    {
+        while (true)
+        {
+            long position = head.get();
+            long sequence = sequences.get(slot(position));
+
+            if (sequence == position)
+            {
+                if (head.compareAndSet(position, position + 1))
+                    return position;
+            }
+            else if (sequence < position)
+            {
+                // Slot is still in use from the last time around
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Hands a filled in slot over to the consumer
+     * Everything written to the slot before is visible to the consumer
+     * @param position The position from claim
+     */
+    public void publish(long position)
+    {
+        sequences.set(slot(position), position + 1);
+    }
+
+    /**
+     * Gets the oldest published slot
+     * Must only be called by the consumer
+     * @return The index of the slot, or -1 if nothing is published
+     */
+    public int peek()
+    {
+        int slot = slot(tail);
+        return sequences.get(slot) == tail + 1 ? slot : -1;
+    }
+
+    /**
+     * Lets the slot returned by peek be claimed again
+     * Must only be called by the consumer
+     */
+    public void release()
+    {
+        sequences.set(slot(tail), tail + mask + 1);
+        tail++;
+    }
+
+}
@@ -0,0 +1,298 @@
+package ddb.io.netarbiter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spill Queue
+ * Holds frames for the endpoint on disk while it isn't keeping up, so that
+ * a stalled endpoint doesn't fill up the heap. Frames are appended to
+ * memory-mapped segment files, and read back in the same order once the
+ * endpoint catches up. Segment files are deleted as soon as everything in
+ * them was read back (or later on, where mapped files can't be deleted), and
+ * the queue stops taking frames once the disk limit is reached.
+ *
+ * Segment files are named "[name]-[start time].[index].spill". A frame
+ * never straddles two segments, and nothing but the frames is stored, as
+ * the files don't outlive the arbiter.
+ */
+public class SpillQueue implements Closeable
+{
+    public static final String SEGMENT_SUFFIX = ".spill";
+
+    // Size of each segment
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    // Default amount of endpoint output kept in memory before spilling
+    public static final int DEFAULT_MEMORY_LIMIT = 1024 * 1024;
+    // Default amount of spilled output allowed on disk
+    public static final long DEFAULT_DISK_LIMIT = 256L * 1024 * 1024;
+
+    // Largest frame (an empty heartbeat frame is only its length)
+    private static final int MAX_FRAME = 0xFFFF;
+
+    private final File directory;
+    private final String runName;
+    private final int memoryLimit;
+    private final long diskLimit;
+
+    // Segments holding frames, oldest first
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private int nextIndex = 0;
+    // Segment files that couldn't be deleted yet, as they were still mapped
+    private final List<File> undeleted = new ArrayList<>();
+    // Set once a segment couldn't be made, after which nothing is spilled
+    private boolean isBroken = false;
+
+    // Bytes waiting on disk, the most there were at once, and everything
+    // that was ever spilled
+    private long spilledBytes = 0;
+    private long peakBytes = 0;
+    private long totalBytes = 0;
+
+    /**
+     * Creates a new spill queue
+     * Segments are only made once the first frame is spilled
+     * @param directory The directory to put the segment files in
+     * @param name The name of the queue
+     * @param memoryLimit The amount of output kept in memory before spilling
+     * @param diskLimit The amount of output allowed on disk
+     * @throws IOException If the directory couldn't be created
+     */
+    public SpillQueue(File directory, String name, int memoryLimit, long diskLimit) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create the spill directory " + directory);
+
+        this.directory = directory;
+        this.runName = name + "-" + System.currentTimeMillis();
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+    }
+
+    public int getMemoryLimit()
+    {
+        return memoryLimit;
+    }
+
+    public long getDiskLimit()
+    {
+        return diskLimit;
+    }
+
+    public long getSpilledBytes()
+    {
+        return spilledBytes;
+    }
+
+    public long getPeakBytes()
+    {
+        return peakBytes;
+    }
+
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    public boolean isEmpty()
+    {
+        return spilledBytes == 0;
+    }
+
+    /**
+     * Checks if the queue can't take any more frames
+     * @return True if the largest frame wouldn't fit under the disk limit,
+     *         or segments can't be made
+     */
+    public boolean isFull()
+    {
+        return isBroken || spilledBytes + MAX_FRAME + 2 > diskLimit;
+    }
+
+    /**
+     * Appends whole frames to the queue, stopping once it is full
+     * @param frames The buffer holding the frames, ready for reading. Its
+     *               position is moved past the frames that were taken
+     */
+    public void append(ByteBuffer frames)
+    {
+        int limit = frames.limit();
+
+        while (frames.remaining() >= 2 && !isFull())
+        {
+            int frameSize = frameSize(frames, frames.position());
+            Segment segment = segments.peekLast();
+
+            if (segment == null || segment.mapped.capacity() - segment.writeOffset < frameSize)
+            {
+                segment = addSegment();
+
+                if (segment == null)
+                    break;
+            }
+
+            frames.limit(frames.position() + frameSize);
+            segment.mapped.position(segment.writeOffset);
+            segment.mapped.put(frames);
+            frames.limit(limit);
+
+            segment.writeOffset += frameSize;
+            spilledBytes += frameSize;
+            totalBytes += frameSize;
+        }
+
+        peakBytes = Math.max(peakBytes, spilledBytes);
+    }
+
+    /**
+     * Reads whole frames back out of the queue, oldest first
+     * At least one frame is read if there are any, as long as it fits in
+     * the destination
+     * @param dest The buffer to put the frames in
+     * @param maxBytes The most bytes to read, unless the first frame is bigger
+     * @return The number of bytes read
+     */
+    public int read(ByteBuffer dest, int maxBytes)
+    {
+        int total = 0;
+
+        if (!undeleted.isEmpty())
+            deleteRetired();
+
+        while (!segments.isEmpty())
+        {
+            Segment segment = segments.peekFirst();
+
+            if (segment.readOffset == segment.writeOffset)
+            {
+                // Only the segment being appended to can run dry
+                if (segments.size() == 1)
+                    break;
+
+                retire(segments.removeFirst());
+                continue;
+            }
+
+            int frameSize = frameSize(segment.mapped, segment.readOffset);
+
+            if (frameSize > dest.remaining() || (total > 0 && total + frameSize > maxBytes))
+                break;
+
+            segment.mapped.limit(segment.readOffset + frameSize);
+            segment.mapped.position(segment.readOffset);
+            dest.put(segment.mapped);
+            segment.mapped.limit(segment.mapped.capacity());
+
+            segment.readOffset += frameSize;
+            spilledBytes -= frameSize;
+            total += frameSize;
+        }
+
+        // Nothing is left, so the last segment can go too
+        if (spilledBytes == 0 && !segments.isEmpty())
+            retire(segments.removeFirst());
+
+        return total;
+    }
+
+    /**
+     * Deletes the segment files, throwing away anything still in them
+     */
+    @Override
+    public void close()
+    {
+        while (!segments.isEmpty())
+            retire(segments.removeFirst());
+
+        spilledBytes = 0;
+        deleteRetired();
+
+        // Last resort for files that are still mapped
+        for (File file : undeleted)
+        {
+            ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Unable to delete a spill segment, deleting it on exit");
+            file.deleteOnExit();
+        }
+
+        undeleted.clear();
+    }
+
+    /**
+     * Makes a new segment to append to
+     * @return The segment, or null if it couldn't be made
+     */
+    private Segment addSegment()
+    {
+        File file = new File(directory, String.format("%s.%06d%s", runName, nextIndex++, SEGMENT_SUFFIX));
+
+        try (RandomAccessFile segmentFile = new RandomAccessFile(file, "rw"))
+        {
+            segmentFile.setLength(SEGMENT_SIZE);
+            MappedByteBuffer mapped = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+
+            Segment segment = new Segment(file, mapped);
+            segments.addLast(segment);
+            return segment;
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Unable to make a spill segment, no longer spilling", e);
+            isBroken = true;
+
+            if (!file.delete())
+                ArbiterLog.debug(ArbiterLog.NO_CONNECTION, "Unable to delete the broken spill segment");
+
+            return null;
+        }
+    }
+
+    private void retire(Segment segment)
+    {
+        // The mapping only goes away once the buffer is garbage collected,
+        // and some platforms (Windows) can't delete a mapped file until then
+        if (!segment.file.delete())
+            undeleted.add(segment.file);
+    }
+
+    /**
+     * Tries again to delete the segment files that were still mapped
+     */
+    private void deleteRetired()
+    {
+        undeleted.removeIf((file) -> file.delete() || !file.exists());
+    }
+
+    private static int frameSize(ByteBuffer buffer, int offset)
+    {
+        int length = Short.toUnsignedInt(buffer.getShort(offset));
+
+        // Empty heartbeat frames are only the length
+        return length == 0 ? 2 : length;
+    }
+
+    /**
+     * Segment file, and how far into it was appended to & read back
+     */
+    private static class Segment
+    {
+        final File file;
+        final MappedByteBuffer mapped;
+        int writeOffset = 0;
+        int readOffset = 0;
+
+        Segment(File file, MappedByteBuffer mapped)
+        {
+            this.file = file;
+            this.mapped = mapped;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package ddb.io.netarbiter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static ddb.io.netarbiter.Constants.*;
+
+/**
+ * Startup Trainer
+ * Plays the part of both an endpoint and a remote arbiter, walking the
+ * arbiter through the commands a Turing program uses right after startup.
+ *
+ * Used by the "cds" build target, so that every class on the startup path
+ * ends up in the class data sharing archive shipped next to the jar.
+ */
+class StartupTrainer implements Runnable
+{
+    private final int endpointPort;
+    private int sequence = 0;
+
+    private StartupTrainer(int endpointPort)
+    {
+        this.endpointPort = endpointPort;
+    }
+
+    /**
+     * Starts training the arbiter at the given endpoint port
+     * @param endpointPort The port the arbiter's endpoint server is bound to
+     */
+    static void start(int endpointPort)
+    {
+        Thread trainer = new Thread(new StartupTrainer(endpointPort), "arbiter-trainer");
+        trainer.setDaemon(true);
+        trainer.start();
+    }
+
+    @Override
+    public void run()
+    {
+        try (Socket endpoint = new Socket("localhost", endpointPort))
+        {
+            DataOutputStream toArbiter = new DataOutputStream(endpoint.getOutputStream());
+            DataInputStream fromArbiter = new DataInputStream(endpoint.getInputStream());
+
+            // Start listening for remote arbiters
+            sendCommand(toArbiter, ARB_PACKET_LISTEN, new byte[] { 0, 0 });
+            int listenPort = readResponse(fromArbiter);
+
+            // Pretend to be a remote arbiter connecting in
+            try (Socket remote = new Socket("localhost", listenPort))
+            {
+                DataOutputStream toRemote = new DataOutputStream(remote.getOutputStream());
+                DataInputStream fromRemote = new DataInputStream(remote.getInputStream());
+
+                toRemote.write(CLIENT_MAGIC);
+                fromRemote.readFully(new byte[SERVER_MAGIC.length]);
+
+                // New connection notification
+                short connID = (short) readResponse(fromArbiter);
+
+                // Remote -> endpoint data
+                byte[] data = "train".getBytes();
+                ByteBuffer read = ByteBuffer.allocate(5 + data.length);
+                read.putShort((short) read.capacity()).putShort((short) 0).put(ARB_PACKET_READ).put(data);
+                toRemote.write(read.array());
+                readResponse(fromArbiter);
+
+                // Endpoint -> remote data
+                ByteBuffer write = ByteBuffer.allocate(2 + data.length);
+                write.putShort(connID).put(data);
+                sendCommand(toArbiter, ARB_PACKET_WRITE, write.array());
+                readResponse(fromArbiter);
+
+                // Connection statistics
+                sendCommand(toArbiter, ARB_PACKET_STATUS, new byte[] { (byte) 0xFF, (byte) 0xFF });
+                readResponse(fromArbiter);
+
+                // Close down the remote
+                sendCommand(toArbiter, ARB_PACKET_DISCONNECT, new byte[] { (byte) (connID >> 8), (byte) connID });
+                readResponse(fromArbiter);
+            }
+
+            sendCommand(toArbiter, ARB_PACKET_EXIT, new byte[0]);
+        }
+        catch (IOException e)
+        {
+            ArbiterLog.error(ArbiterLog.NO_CONNECTION, "Startup training failed", e);
+        }
+    }
+
+    private void sendCommand(DataOutputStream out, byte packetID, byte[] payload) throws IOException
+    {
+        out.writeShort(5 + payload.length);
+        out.writeShort(sequence++);
+        out.writeByte(packetID);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Reads the next response, skipping over any heartbeats
+     * @return The response code, or the first 4 bytes of the data
+     */
+    private int readResponse(DataInputStream in) throws IOException
+    {
+        int length;
+
+        do
+        {
+            length = in.readUnsignedShort();
+        } while (length == 0);
+
+        byte[] response = new byte[length - 2];
+        in.readFully(response);
+
+        if (response.length < 9)
+            return 0;
+
+        return ByteBuffer.wrap(response, 5, 4).getInt();
+    }
+
+}
@@ -0,0 +1,172 @@
+package ddb.io.netarbiter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static ddb.io.netarbiter.Constants.*;
+
+/**
+ * Streams carried over a multiplexed link
+ * A multiplexed link (the "carrier") carries many connections to the same
+ * remote arbiter over a single TCP link, so that they share the link's
+ * handshakes, heartbeats & session. Frames belonging to a stream carry the
+ * stream's id in the sequence field, everything else belongs to the link.
+ *
+ * Only the side that made the link opens streams on it. Opening a stream
+ * only sends an open frame, so the stream can be written to right away.
+ *
+ * Each stream can have STREAM_WINDOW bytes of read data in flight. The
+ * receiving side hands out more credit as the data is passed on, and holds
+ * it back while the data is stuck waiting for its endpoint, so a backed up
+ * stream doesn't hold up the rest of the link.
+ *
+ * Link Hello:
+ * magic:          2 bytes (0xAB 0x1E)
+ * session hello:  16 bytes (same as the resumable link hello)
+ *
+ * Stream Open Frame:
+ * length:         2 bytes
+ * streamID:       2 bytes
+ * packetID:       1 byte ('O')
+ *
+ * Stream Unlink Frame:
+ * length:         2 bytes
+ * streamID:       2 bytes
+ * packetID:       1 byte ('U')
+ *
+ * Stream Grant Frame:
+ * length:         2 bytes
+ * streamID:       2 bytes
+ * packetID:       1 byte ('G')
+ * credit:         4 bytes (bytes of read payloads that can be sent)
+ */
+public class StreamTable
+{
+    // Read data each stream can have in flight, in bytes
+    public static final int STREAM_WINDOW = 256 * 1024;
+    // Time an opened link is kept around without any streams, in milliseconds
+    public static final long IDLE_TIMEOUT = 5000;
+
+    private final Map<Short, Connection> streams = new HashMap<>();
+    // Where the link goes, if this side made it
+    private final String hostname;
+    private final int port;
+
+    private short nextStreamID = 0;
+    // When the last stream was removed (0 = streams are open)
+    private long idleSince = Clock.get().currentTimeMillis();
+
+    /**
+     * Creates a stream table for a carrier
+     * @param hostname The host the link was made to, or null if the remote
+     *                 made the link
+     * @param port The port the link was made to
+     */
+    public StreamTable(String hostname, int port)
+    {
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    /**
+     * Checks if a frame belongs to a stream, instead of the link
+     * @param packetID The frame's packet id
+     * @return True if the frame's sequence field holds a stream id
+     */
+    public static boolean isStreamFrame(byte packetID)
+    {
+        return packetID == ARB_PACKET_READ
+                || packetID == ARB_PACKET_DELTA
+                || packetID == ARB_PACKET_CODEC
+                || packetID == ARB_PACKET_OPEN
+                || packetID == ARB_PACKET_UNLINK
+                || packetID == ARB_PACKET_GRANT;
+    }
+
+    /**
+     * Checks if new streams to a remote can go over this link
+     * @param hostname The host of the remote
+     * @param port The port of the remote
+     * @return True if this side made the link to the remote
+     */
+    public boolean isLinkTo(String hostname, int port)
+    {
+        return this.hostname != null && this.hostname.equals(hostname) && this.port == port;
+    }
+
+    public boolean isOpener()
+    {
+        return hostname != null;
+    }
+
+    /**
+     * Picks an id for a new stream
+     * Ids are handed out in order, so that frames of a closed stream that
+     * are still in flight can't be mistaken for a new stream's
+     * @return An id that isn't in use
+     */
+    public short allocateStreamID()
+    {
+        while (streams.containsKey(nextStreamID))
+            nextStreamID++;
+
+        return nextStreamID++;
+    }
+
+    public void add(Connection stream)
+    {
+        streams.put(stream.getStreamID(), stream);
+        idleSince = 0;
+    }
+
+    public void remove(Connection stream)
+    {
+        if (streams.get(stream.getStreamID()) != stream)
+            return;
+
+        streams.remove(stream.getStreamID());
+
+        if (streams.isEmpty())
+            idleSince = Clock.get().currentTimeMillis();
+    }
+
+    public Connection get(short streamID)
+    {
+        return streams.get(streamID);
+    }
+
+    /**
+     * Gets all of the streams on the link
+     * @return A copy of the streams, which is safe to close streams from
+     */
+    public Collection<Connection> getStreams()
+    {
+        return new ArrayList<>(streams.values());
+    }
+
+    /**
+     * Checks if the link went unused for long enough to be closed
+     * @return True if this side made the link, and it had no streams for
+     *         IDLE_TIMEOUT milliseconds
+     */
+    public boolean isIdle()
+    {
+        return isOpener() && idleSince != 0 && Clock.get().currentTimeMillis() - idleSince > IDLE_TIMEOUT;
+    }
+
+    /**
+     * Gets the time until the link counts as idle
+     * @return The time until isIdle is true, in milliseconds, or
+     *         Long.MAX_VALUE if the link is in use or never closed by this side
+     */
+    public long getIdleDelay()
+    {
+        if (!isOpener() || idleSince == 0)
+            return Long.MAX_VALUE;
+
+        return Math.max(0, idleSince + IDLE_TIMEOUT + 1 - Clock.get().currentTimeMillis());
+    }
+
+}
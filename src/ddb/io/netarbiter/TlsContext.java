@@ -0,0 +1,107 @@
+package ddb.io.netarbiter;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS configuration shared by all of the links of an arbiter
+ * Links to other arbiters are encrypted when a key store is given on the
+ * command line. Both arbiters need to have TLS enabled.
+ */
+public class TlsContext
+{
+    // Number of sessions kept around for resumption, and for how long (in seconds)
+    private static final int SESSION_CACHE_SIZE = 256;
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private final SSLContext sslContext;
+    private final BufferPool bufferPool = new BufferPool();
+    private boolean resumeSessions = true;
+
+    /**
+     * Creates a new TLS context
+     * @param keyStorePath The key store with the arbiter's key & certificate
+     * @param trustStorePath The key store with the trusted certificates, or
+     *                       null to trust the certificates in the key store
+     * @param password The password of the key stores
+     * @throws GeneralSecurityException If the key stores couldn't be used
+     * @throws IOException If the key stores couldn't be read
+     */
+    public TlsContext(String keyStorePath, String trustStorePath, char[] password) throws GeneralSecurityException, IOException
+    {
+        KeyStore keyStore = loadKeyStore(keyStorePath, password);
+        KeyStore trustStore = trustStorePath != null ? loadKeyStore(trustStorePath, password) : keyStore;
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+
+        sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+        sslContext.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        sslContext.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+    }
+
+    /**
+     * Sets if client sessions should be resumed when reconnecting
+     * @param resumeSessions True to resume sessions, false to always perform
+     *                       a full handshake
+     */
+    public void setSessionResumption(boolean resumeSessions)
+    {
+        this.resumeSessions = resumeSessions;
+    }
+
+    /**
+     * Creates a session for a link opened to a remote arbiter
+     * The client session cache is keyed by host:port, so reconnecting to an
+     * arbiter resumes the last session instead of doing a full handshake
+     * @param hostname The hostname of the remote arbiter
+     * @param port The port of the remote arbiter
+     * @return The new session
+     */
+    public TlsSession newClientSession(String hostname, int port)
+    {
+        SSLEngine engine = resumeSessions ? sslContext.createSSLEngine(hostname, port) : sslContext.createSSLEngine();
+        engine.setUseClientMode(true);
+
+        return new TlsSession(engine, bufferPool);
+    }
+
+    /**
+     * Creates a session for a link accepted from a remote arbiter
+     * @return The new session
+     */
+    public TlsSession newServerSession()
+    {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+
+        return new TlsSession(engine, bufferPool);
+    }
+
+    private static KeyStore loadKeyStore(String path, char[] password) throws GeneralSecurityException, IOException
+    {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+
+        try (InputStream in = new FileInputStream(path))
+        {
+            keyStore.load(in, password);
+        }
+
+        return keyStore;
+    }
+
+}
@@ -0,0 +1,326 @@
+package ddb.io.netarbiter;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS session for a link between two arbiters
+ * Wraps an SSLEngine so that data can be encrypted & decrypted on the
+ * non-blocking path. The handshake is driven by the event loop along with
+ * the magic exchange, a step at a time as the channel becomes ready.
+ */
+public class TlsSession
+{
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final BufferPool bufferPool;
+
+    // Encrypted data read in from the channel (fill mode)
+    private ByteBuffer netIn;
+    // Encrypted data waiting to be written out (drain mode)
+    private ByteBuffer netOut;
+    // Decrypted data waiting to be handed out (fill mode)
+    private ByteBuffer appIn;
+    // There may still be whole records in netIn that haven't been decrypted
+    private boolean hasPendingRecords;
+    private boolean isHandshakeStarted = false;
+
+    TlsSession(SSLEngine engine, BufferPool bufferPool)
+    {
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+
+        SSLSession session = engine.getSession();
+        netIn = bufferPool.acquire(session.getPacketBufferSize());
+        netOut = bufferPool.acquire(session.getPacketBufferSize());
+        appIn = bufferPool.acquire(session.getApplicationBufferSize());
+        netOut.flip();
+    }
+
+    /**
+     * Performs the TLS handshake
+     * The channel must be in blocking mode
+     * @param channel The channel to perform the handshake over
+     * @throws IOException If the handshake failed
+     */
+    public void handshake(SocketChannel channel) throws IOException
+    {
+        // Blocking reads & writes never leave the handshake waiting
+        while (!advanceHandshake(channel));
+    }
+
+    /**
+     * Moves the TLS handshake along as far as the channel allows, without
+     * waiting on it
+     * Once this returns false, the channel has to be waited on for writing
+     * if hasPendingOutput, or for reading otherwise
+     * @param channel The channel to perform the handshake over
+     * @return True once the handshake is done
+     * @throws IOException If the handshake failed
+     */
+    public boolean advanceHandshake(SocketChannel channel) throws IOException
+    {
+        if (!isHandshakeStarted)
+        {
+            engine.beginHandshake();
+            isHandshakeStarted = true;
+        }
+
+        // The last handshake message has to go out first
+        if (!flush(channel))
+            return false;
+
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+        {
+            SSLEngineResult result;
+
+            switch (status)
+            {
+                case NEED_TASK:
+                    runTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    netOut.clear();
+                    result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SSLException("Remote closed the TLS session during the handshake");
+
+                    if (!flush(channel))
+                        return false;
+
+                    status = result.getHandshakeStatus();
+                    break;
+                default:
+                    // Need to unwrap
+                    netIn.flip();
+                    result = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+                    {
+                        // Need more data to finish the record
+                        int amount = channel.read(netIn);
+
+                        if (amount < 0)
+                            throw new EOFException("Remote closed the channel during the handshake");
+
+                        if (amount == 0)
+                            return false;
+                    }
+                    else if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    {
+                        throw new SSLException("Remote closed the TLS session during the handshake");
+                    }
+                    else
+                    {
+                        status = result.getHandshakeStatus();
+                    }
+                    break;
+            }
+        }
+
+        // The remote may have sent data right after the handshake
+        hasPendingRecords = netIn.position() > 0;
+        return true;
+    }
+
+    /**
+     * Reads in & decrypts data from the channel
+     * @param channel The channel to read from
+     * @param dst The buffer to put the decrypted data into
+     * @return The number of bytes decrypted, or -1 if the channel was closed
+     * @throws IOException If the data couldn't be read or decrypted
+     */
+    public int read(SocketChannel channel, ByteBuffer dst) throws IOException
+    {
+        int amount = 0;
+
+        // Only go to the channel once the last records have been decrypted
+        // & handed out, as blocking reads would wait on data already here
+        if (!hasPendingRecords && appIn.position() == 0)
+            amount = channel.read(netIn);
+
+        boolean isClosed = false;
+        hasPendingRecords = false;
+        netIn.flip();
+
+        while (netIn.hasRemaining())
+        {
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+                break;
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+            {
+                // Hand out the decrypted data first
+                hasPendingRecords = true;
+                break;
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+            {
+                isClosed = true;
+                break;
+            }
+
+            handlePostHandshake(channel, result);
+        }
+
+        netIn.compact();
+
+        int produced = drainInput(dst);
+
+        if (produced == 0 && (amount < 0 || isClosed))
+            return -1;
+
+        return produced;
+    }
+
+    /**
+     * Encrypts & writes data out to the channel
+     * Encrypted data that couldn't be written is kept for the next write or
+     * flush, and no new data is taken until it has been sent
+     * @param channel The channel to write to
+     * @param src The data to encrypt
+     * @return The number of bytes taken from src
+     * @throws IOException If the data couldn't be encrypted or written
+     */
+    public int write(SocketChannel channel, ByteBuffer src) throws IOException
+    {
+        if (!flush(channel) || !src.hasRemaining())
+            return 0;
+
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(src, netOut);
+        netOut.flip();
+
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+            throw new ClosedChannelException();
+
+        flush(channel);
+        handlePostHandshake(channel, result);
+
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Writes out any encrypted data left from the last write
+     * @param channel The channel to write to
+     * @return True if there is nothing left to write
+     * @throws IOException If the data couldn't be written
+     */
+    public boolean flush(SocketChannel channel) throws IOException
+    {
+        if (netOut.hasRemaining())
+            channel.write(netOut);
+
+        return !netOut.hasRemaining();
+    }
+
+    /**
+     * Checks if there is decrypted data that hasn't been handed out yet
+     * The channel won't be selected as readable for this data
+     * @return True if read should be called again
+     */
+    public boolean hasBufferedInput()
+    {
+        return appIn.position() > 0 || hasPendingRecords;
+    }
+
+    public boolean hasPendingOutput()
+    {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Closes the session, returning the buffers to the pool
+     * The remote is notified of the closure if the channel will take it
+     * @param channel The channel the session is over
+     */
+    public void close(SocketChannel channel)
+    {
+        engine.closeOutbound();
+
+        try
+        {
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        }
+        catch (IOException ignored) {}
+
+        bufferPool.release(netIn);
+        bufferPool.release(netOut);
+        bufferPool.release(appIn);
+        netIn = netOut = appIn = null;
+    }
+
+    private int drainInput(ByteBuffer dst)
+    {
+        appIn.flip();
+        int produced = Math.min(appIn.remaining(), dst.remaining());
+
+        if (produced == appIn.remaining())
+        {
+            dst.put(appIn);
+        }
+        else
+        {
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + produced);
+            dst.put(appIn);
+            appIn.limit(limit);
+        }
+
+        appIn.compact();
+        return produced;
+    }
+
+    /**
+     * Deals with handshake messages that arrive after the handshake, like
+     * session tickets or key updates
+     */
+    private void handlePostHandshake(SocketChannel channel, SSLEngineResult result) throws IOException
+    {
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK)
+        {
+            runTasks();
+            status = engine.getHandshakeStatus();
+        }
+
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP && flush(channel))
+        {
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            flush(channel);
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+}
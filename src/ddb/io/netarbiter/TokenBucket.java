@@ -0,0 +1,105 @@
+package ddb.io.netarbiter;
+
+/**
+ * Token bucket rate limit
+ * Tokens build up at a fixed rate, up to a second's worth, and are taken
+ * out as the limited thing happens. The bucket can go into debt, since data
+ * that was already read in can't be put back, and it stays empty until the
+ * debt is paid back.
+ */
+public class TokenBucket
+{
+    // Fraction of a second's worth of tokens an empty bucket has to refill
+    // before it counts as refilled, so that it isn't emptied a token at a time
+    private static final int REFILL_FRACTION = 20;
+
+    private final long rate;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a new bucket, starting out full
+     * @param rate The number of tokens added every second
+     */
+    public TokenBucket(long rate)
+    {
+        this.rate = rate;
+        this.tokens = rate;
+        this.lastRefill = Clock.get().nanoTime();
+    }
+
+    /**
+     * Takes tokens out of the bucket, even if there aren't enough of them
+     * @param amount The number of tokens to take
+     */
+    public void take(long amount)
+    {
+        refill();
+        tokens -= amount;
+    }
+
+    /**
+     * Checks if the bucket ran dry
+     * @return True if there isn't a whole token left
+     */
+    public boolean isEmpty()
+    {
+        refill();
+        return tokens < 1;
+    }
+
+    /**
+     * Gets the number of whole tokens in the bucket
+     * @return The tokens left, or 0 if the bucket is empty or in debt
+     */
+    public long getTokens()
+    {
+        refill();
+        return Math.max(0, (long) tokens);
+    }
+
+    /**
+     * Checks if an empty bucket has built back up
+     * @return True if there is at least 1/REFILL_FRACTION of a second's
+     *         worth of tokens
+     */
+    public boolean isRefilled()
+    {
+        refill();
+        return tokens >= getRefillLevel();
+    }
+
+    /**
+     * Gets the time until the bucket is refilled
+     * @return The time until the debt is paid back & the bucket built back
+     *         up, in milliseconds
+     */
+    public long getRefillDelay()
+    {
+        refill();
+
+        if (tokens >= getRefillLevel())
+            return 0;
+
+        // Round up, so that the bucket isn't still short once the time passes
+        return (long) Math.ceil((getRefillLevel() - tokens) * 1000.0 / rate);
+    }
+
+    public long getRate()
+    {
+        return rate;
+    }
+
+    private double getRefillLevel()
+    {
+        return Math.max(1, rate / REFILL_FRACTION);
+    }
+
+    private void refill()
+    {
+        long now = Clock.get().nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+    }
+
+}
@@ -0,0 +1,136 @@
+package ddb.io.netarbiter;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+/**
+ * How the event loop waits for its channels
+ * Blocking waits park the thread in the selector until a channel is ready
+ * or the next timer is due, using no CPU while idle. Busy polling never
+ * parks, checking the channels over and over, which reacts the fastest at
+ * the cost of a whole core. The hybrid strategy polls for a short while
+ * before parking, so that bursts of traffic are picked up without waking
+ * the thread up, while idle links still leave the core alone.
+ *
+ * The selector only measures timeouts in whole milliseconds, so a wait
+ * only parks for the whole milliseconds until the next timer, and polls
+ * for the rest. Only timers due within a millisecond cost any CPU, such as
+ * output held back for less than that by a coalescing policy.
+ */
+public class WaitStrategy
+{
+    // Default time the hybrid strategy polls for before parking, in
+    // microseconds
+    public static final long SPIN_TIME = 50;
+
+    // Park in the selector until something happens
+    public static final WaitStrategy BLOCKING = new WaitStrategy(0, false);
+    // Never park in the selector
+    public static final WaitStrategy BUSY_POLL = new WaitStrategy(0, true);
+
+    private final long spinTime;
+    private final boolean isBusy;
+
+    /**
+     * Creates a new wait strategy
+     * @param spinTime The time to poll for before parking, in microseconds
+     * @param isBusy True to never park
+     */
+    private WaitStrategy(long spinTime, boolean isBusy)
+    {
+        this.spinTime = spinTime;
+        this.isBusy = isBusy;
+    }
+
+    /**
+     * Gets the strategy for the given name
+     * @param name "block", "poll" or "spin"
+     * @param spinTime The time the "spin" strategy polls for before parking,
+     *                 in microseconds
+     * @return The strategy, or null if the name isn't known
+     */
+    public static WaitStrategy of(String name, long spinTime)
+    {
+        switch (name)
+        {
+            case "block":
+                return BLOCKING;
+            case "poll":
+                return BUSY_POLL;
+            case "spin":
+                return spinTime > 0 ? new WaitStrategy(spinTime, false) : BLOCKING;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Waits for any of the selector's channels to be ready
+     * Selector.wakeup ends the wait early, for events from other threads
+     * @param selector The selector to wait on
+     * @param timeout The longest time to wait, in nanoseconds, or 0 to only
+     *                check the channels
+     * @return The number of keys that were selected
+     * @throws IOException If the selector couldn't be waited on
+     */
+    public int select(Selector selector, long timeout) throws IOException
+    {
+        if (isBusy || timeout <= 0)
+            return selector.selectNow();
+
+        if (spinTime > 0)
+        {
+            // Keep polling until something shows up or the spin runs out
+            long start = System.nanoTime();
+            int ready = poll(selector, Math.min(spinTime * 1000L, timeout));
+
+            if (ready > 0)
+                return ready;
+
+            timeout -= System.nanoTime() - start;
+
+            if (timeout <= 0)
+                return 0;
+        }
+
+        long millis = timeout / 1000000;
+
+        if (millis > 0)
+        {
+            long start = System.nanoTime();
+            int ready = selector.select(millis);
+            long waited = System.nanoTime() - start;
+
+            // Something showed up, or the wait was woken up early
+            if (ready > 0 || waited < millis * 1000000)
+                return ready;
+
+            timeout -= waited;
+        }
+
+        // Poll out what is left, rather than overshooting the timer by up
+        // to a millisecond
+        return poll(selector, timeout);
+    }
+
+    /**
+     * Polls the selector until something shows up or the time runs out
+     * @param selector The selector to poll
+     * @param duration The time to poll for, in nanoseconds
+     * @return The number of keys that were selected
+     * @throws IOException If the selector couldn't be polled
+     */
+    private static int poll(Selector selector, long duration) throws IOException
+    {
+        long start = System.nanoTime();
+        int ready;
+
+        do
+        {
+            ready = selector.selectNow();
+        } while (ready == 0 && System.nanoTime() - start < duration);
+
+        return ready;
+    }
+
+}
@@ -2,6 +2,8 @@ package ddb.io.netarbiter.packet;
 
 import ddb.io.netarbiter.NetArbiter;
 
+import java.nio.ByteBuffer;
+
 public abstract class CommandPacket extends Packet
 {
     CommandPacket(int sequence)
@@ -9,6 +11,24 @@ public abstract class CommandPacket extends Packet
         super(sequence);
     }
 
-    public abstract ResponsePacket execute(NetArbiter arbiter);
+    /**
+     * Carries out the command
+     * The arbiter acks the command with the returned code, encoded straight
+     * into the endpoint's responses
+     * @param arbiter The arbiter to carry the command out on
+     * @return The code to ack the command with (a connection id, port,
+     *         error code or other parameter), or CONNECT_PENDING if the
+     *         ack has to wait for a connection to be made
+     */
+    public abstract int execute(NetArbiter arbiter);
+
+    /**
+     * Gets the data sent back after the ack's code
+     * @return The data, or null if the ack only holds the code
+     */
+    public ByteBuffer getResponseData()
+    {
+        return null;
+    }
 
 }
@@ -1,13 +1,16 @@
 package ddb.io.netarbiter.packet;
 
-import ddb.io.netarbiter.Constants;
+import ddb.io.netarbiter.CoalescePolicy;
 import ddb.io.netarbiter.NetArbiter;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Connection Command Packet
  * Initiates a connection to a remote arbiter
+ * The link is made by the event loop, and the command is only acked once
+ * it is done, holding back the commands after it
  *
  * Packet Format:
  * length:         2 bytes
@@ -16,38 +19,56 @@ import java.nio.charset.StandardCharsets;
  * port:           2 bytes
  * hostlen:        1 byte
  * hostname:       "hostlen" bytes
+ * coalesceBytes:  2 bytes (optional, 0 = send writes immediately)
+ * coalesceDelay:  4 bytes (optional, microseconds, 0 = send writes immediately)
  *
  * | 0    | 1   | 2   | 3    |
  * |     len    |    seq     |
  * | 'C'  |   port    | hLen |
  * |        hostname ...     |
+ * |   cBytes   |  cDelay ...
+ *   ... cDelay |
  */
 public class ConnectPacket extends CommandPacket
 {
     public int port = 0;
     public String hostname = "garb";
+    public CoalescePolicy policy = CoalescePolicy.IMMEDIATE;
 
     public ConnectPacket(int sequence) {
         super(sequence);
     }
 
     @Override
-    public boolean parsePayload(byte[] payload)
+    public boolean parsePayload(ByteBuffer payload)
     {
+        if (payload.remaining() < 3)
+            return false;
+
         // Fetch the port & hostname
-        this.port = (Byte.toUnsignedInt(payload[0]) << 8) | Byte.toUnsignedInt(payload[1]);
-        int hostLen = Byte.toUnsignedInt(payload[2]);
-        this.hostname = new String(payload, 3, hostLen, StandardCharsets.US_ASCII);
+        this.port = Short.toUnsignedInt(payload.getShort());
+        int hostLen = Byte.toUnsignedInt(payload.get());
+
+        if (payload.remaining() < hostLen)
+            return false;
+
+        byte[] host = new byte[hostLen];
+        payload.get(host);
+        this.hostname = new String(host, StandardCharsets.US_ASCII);
+
+        // Optional coalescing policy
+        if (payload.remaining() >= 6)
+            this.policy = CoalescePolicy.of(Short.toUnsignedInt(payload.getShort()), Integer.toUnsignedLong(payload.getInt()));
 
         return true;
     }
 
     @Override
-    public ResponsePacket execute(NetArbiter arbiter)
+    public int execute(NetArbiter arbiter)
     {
-        int response = arbiter.getConnectionManager().addConnection(hostname, port);
+        int response = arbiter.getConnectionManager().addConnection(hostname, port, policy);
 
-        // Response code contains the connection id
-        return new ResponsePacket(this.sequence, Constants.ARB_PACKET_ENDCMD, response);
+        // Response code contains the connection id, once the link is made
+        return response;
     }
 }
@@ -1,8 +1,9 @@
 package ddb.io.netarbiter.packet;
 
-import ddb.io.netarbiter.Constants;
 import ddb.io.netarbiter.NetArbiter;
 
+import java.nio.ByteBuffer;
+
 /**
  * Disconnect Command Packet
  * Initiates the disconnection of a remote connection
@@ -27,19 +28,19 @@ public class DisconnectPacket extends CommandPacket
     }
 
     @Override
-    public boolean parsePayload(byte[] payload)
+    public boolean parsePayload(ByteBuffer payload)
     {
-        if (payload.length != 2)
+        if (payload.remaining() != 2)
             return false;
 
-        this.connID = (Byte.toUnsignedInt(payload[0]) << 8) | Byte.toUnsignedInt(payload[1]);
+        this.connID = Short.toUnsignedInt(payload.getShort());
         return true;
     }
 
     @Override
-    public ResponsePacket execute(NetArbiter arbiter)
+    public int execute(NetArbiter arbiter)
     {
-        return new ResponsePacket(this.sequence, Constants.ARB_PACKET_ENDCMD, arbiter.getConnectionManager().closeConnection(connID));
+        return arbiter.getConnectionManager().closeConnection(connID);
     }
 
 }
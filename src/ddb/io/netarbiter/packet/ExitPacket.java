@@ -1,8 +1,9 @@
 package ddb.io.netarbiter.packet;
 
-import ddb.io.netarbiter.Constants;
 import ddb.io.netarbiter.NetArbiter;
 
+import java.nio.ByteBuffer;
+
 /**
  * Exit Command Packet
  * Initiates the shutdown of the arbiter
@@ -25,17 +26,17 @@ public class ExitPacket extends CommandPacket
     }
 
     @Override
-    public boolean parsePayload(byte[] payload)
+    public boolean parsePayload(ByteBuffer payload)
     {
-        return payload.length == 0;
+        return !payload.hasRemaining();
     }
 
     @Override
-    public ResponsePacket execute(NetArbiter arbiter)
+    public int execute(NetArbiter arbiter)
     {
         arbiter.getConnectionManager().getConnection(-1).closeConnection();
         // Will not be used, but add one just in case
-        return new ResponsePacket(this.sequence, Constants.ARB_PACKET_ENDCMD, 0);
+        return 0;
     }
 
 }
@@ -0,0 +1,58 @@
+package ddb.io.netarbiter.packet;
+
+import ddb.io.netarbiter.Constants;
+import ddb.io.netarbiter.NetArbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Framing Command Packet
+ * Sets whether the responses to the endpoint are packed into super-frames
+ * Once turned on, everything waiting for the endpoint is sent as one
+ * super-frame per flush (split up at 64 KiB), so that the endpoint can
+ * read all of it in with a single call. The ack of this command is the
+ * first response to be packed.
+ *
+ * Packet Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (commands only)
+ * packetID:       1 byte ('M')
+ * superFrames:    1 byte (0 = off, 1 = on)
+ *
+ * | 0   | 1   | 2   | 3    |
+ * |    len    |    seq     |
+ * | 'M' | sprf |
+ *
+ * Super-frame Format:
+ * length:         2 bytes
+ * count:          2 bytes (in place of the sequence)
+ * packetID:       1 byte ('T')
+ * frames:         (length - 5) bytes, "count" frames with their own headers
+ */
+public class FramingPacket extends CommandPacket
+{
+    private boolean isSuperFramed;
+
+    public FramingPacket(int packetSequence)
+    {
+        super(packetSequence);
+    }
+
+    @Override
+    public boolean parsePayload(ByteBuffer payload)
+    {
+        if (payload.remaining() != 1)
+            return false;
+
+        this.isSuperFramed = payload.get() != 0;
+        return true;
+    }
+
+    @Override
+    public int execute(NetArbiter arbiter)
+    {
+        arbiter.getConnectionManager().getConnection(-1).setSuperFramed(isSuperFramed);
+        return Constants.ARB_ERROR_NONE;
+    }
+
+}
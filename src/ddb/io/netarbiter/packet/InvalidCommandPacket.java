@@ -0,0 +1,33 @@
+package ddb.io.netarbiter.packet;
+
+import ddb.io.netarbiter.Constants;
+import ddb.io.netarbiter.NetArbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Invalid Command Packet
+ * Stands in for a command whose payload couldn't be parsed, so that it is
+ * acked with an error in its place among the other commands, instead of
+ * being carried out with missing arguments
+ */
+public class InvalidCommandPacket extends CommandPacket
+{
+    public InvalidCommandPacket(int packetSequence)
+    {
+        super(packetSequence);
+    }
+
+    @Override
+    public boolean parsePayload(ByteBuffer payload)
+    {
+        return true;
+    }
+
+    @Override
+    public int execute(NetArbiter arbiter)
+    {
+        return Constants.ARB_ERROR_INVALID_ARG;
+    }
+
+}
@@ -0,0 +1,66 @@
+package ddb.io.netarbiter.packet;
+
+import ddb.io.netarbiter.CoalescePolicy;
+import ddb.io.netarbiter.NetArbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listen Command Packet
+ * Starts accepting connections from remote arbiters on the given port
+ * Used by endpoints hosted in a shared arbiter daemon, as they can't pass
+ * the listening port on the command line
+ *
+ * Packet Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (commands only)
+ * packetID:       1 byte ('L')
+ * port:           2 bytes (0 for any free port)
+ * coalesceBytes:  2 bytes (optional, 0 = send writes immediately)
+ * coalesceDelay:  4 bytes (optional, microseconds, 0 = send writes immediately)
+ *
+ * | 0   | 1   | 2   | 3    |
+ * |    len    |    seq     |
+ * | 'L' |    port   | cBytes
+ *   ... | cDelay ...       |
+ *
+ * The coalescing policy is given to every accepted connection
+ */
+public class ListenPacket extends CommandPacket
+{
+    private int port;
+    private CoalescePolicy policy = CoalescePolicy.IMMEDIATE;
+
+    public ListenPacket(int packetSequence)
+    {
+        super(packetSequence);
+    }
+
+    @Override
+    public boolean parsePayload(ByteBuffer payload)
+    {
+        if (payload.remaining() != 2 && payload.remaining() != 8)
+            return false;
+
+        this.port = Short.toUnsignedInt(payload.getShort());
+
+        // Optional coalescing policy
+        if (payload.hasRemaining())
+            this.policy = CoalescePolicy.of(Short.toUnsignedInt(payload.getShort()), Integer.toUnsignedLong(payload.getInt()));
+
+        return true;
+    }
+
+    @Override
+    public int execute(NetArbiter arbiter)
+    {
+        int boundPort = arbiter.openListener(port);
+
+        if (boundPort >= 0)
+            arbiter.getConnectionManager().setAcceptPolicy(policy);
+
+        // Response code contains the port being listened on
+        return boundPort;
+    }
+
+}
@@ -1,5 +1,7 @@
 package ddb.io.netarbiter.packet;
 
+import java.nio.ByteBuffer;
+
 public abstract class Packet
 {
 
@@ -10,6 +12,12 @@ public abstract class Packet
         this.sequence = sequence;
     }
 
-    public abstract boolean parsePayload(byte[] payload);
+    /**
+     * Parses the payload of the packet
+     * @param payload The buffer containing the payload, from the current
+     *                position up to the limit
+     * @return True if the payload was valid
+     */
+    public abstract boolean parsePayload(ByteBuffer payload);
 
 }
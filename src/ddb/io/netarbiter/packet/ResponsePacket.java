@@ -1,6 +1,6 @@
 package ddb.io.netarbiter.packet;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * Packet sent from a remote arbiter to transfer data over
@@ -28,16 +28,6 @@ public class ResponsePacket extends Packet
         this.responseID = responseID;
     }
 
-    public ResponsePacket(int sequence, byte responseID, int responseCode)
-    {
-        this(sequence, responseID);
-        this.responseData = new byte[4];
-        this.responseData[0] = (byte) ((responseCode >> 24) & 0xFF);
-        this.responseData[1] = (byte) ((responseCode >> 16) & 0xFF);
-        this.responseData[2] = (byte) ((responseCode >>  8) & 0xFF);
-        this.responseData[3] = (byte) ((responseCode >>  0) & 0xFF);
-    }
-
     public byte[] getPayload()
     {
         return responseData;
@@ -45,9 +35,10 @@ public class ResponsePacket extends Packet
 
     // Response packets can be recieved externally
     @Override
-    public boolean parsePayload(byte[] payload)
+    public boolean parsePayload(ByteBuffer payload)
     {
-        this.responseData = Arrays.copyOf(payload, payload.length);
+        this.responseData = new byte[payload.remaining()];
+        payload.get(this.responseData);
         return true;
     }
 
@@ -0,0 +1,104 @@
+package ddb.io.netarbiter.packet;
+
+import ddb.io.netarbiter.ArbiterLog;
+import ddb.io.netarbiter.Connection;
+import ddb.io.netarbiter.Constants;
+import ddb.io.netarbiter.FileTransfer;
+import ddb.io.netarbiter.NetArbiter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Send File Command Packet
+ * Sends part of a local file to a remote connection, without the data
+ * going through the endpoint
+ * The command is acked as soon as the file is opened (or with an error if
+ * it can't be), and the transfer then goes on alongside other commands.
+ * A payload too short to parse is acked as an invalid argument, like any
+ * other malformed command. Progress reports ('I') follow
+ * every 1 MiB, and one more once the whole file was sent (or the transfer
+ * was aborted). The remote receives the file as ordinary read data, in
+ * chunks of up to 65528 bytes.
+ *
+ * Packet Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (commands only)
+ * packetID:       1 byte ('Y')
+ * dest:           2 bytes
+ * offset:         8 bytes
+ * fileLength:     8 bytes (0 = to the end of the file)
+ * path:           "length" - 23 bytes (UTF-8)
+ *
+ * | 0   | 1   | 2   | 3    |
+ * |    len    |    seq     |
+ * | 'Y' |   dest    | offs |
+ * |         offset         |
+ * |    offset        | fLen |
+ * |       fileLength       |
+ * |   fileLength     | path |
+ * |        path ...        |
+ *
+ * Progress Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (always 0)
+ * packetID:       1 byte ('I')
+ * src:            2 bytes (the destination of the file)
+ * status:         4 bytes (0 = sending, 1 = done, or an error code)
+ * sent:           8 bytes
+ */
+public class SendFilePacket extends CommandPacket
+{
+    private short connID;
+    private long offset;
+    private long length;
+    private String path;
+
+    public SendFilePacket(int packetSequence)
+    {
+        super(packetSequence);
+    }
+
+    @Override
+    public boolean parsePayload(ByteBuffer payload)
+    {
+        if (payload.remaining() < 19)
+            return false;
+
+        this.connID = payload.getShort();
+        this.offset = payload.getLong();
+        this.length = payload.getLong();
+
+        byte[] pathBytes = new byte[payload.remaining()];
+        payload.get(pathBytes);
+        this.path = new String(pathBytes, StandardCharsets.UTF_8);
+
+        return true;
+    }
+
+    @Override
+    public int execute(NetArbiter arbiter)
+    {
+        Connection connection = arbiter.getConnectionManager().getConnection(connID);
+
+        // Only remotes can be sent to
+        if (connection == null || connection.isCommandConnection() || connection.isClosed())
+            return Constants.ARB_ERROR_INVALID_ID;
+
+        try
+        {
+            connection.enqueueFileTransfer(FileTransfer.open(path, offset, length, connection.getWritesAfterTransfers()));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Bad paths are only acked with an error, and never stop the
+            // event loop
+            ArbiterLog.error(connID, "Unable to send a file", e);
+            return Constants.ARB_ERROR_FILE;
+        }
+
+        return Constants.ARB_ERROR_NONE;
+    }
+
+}
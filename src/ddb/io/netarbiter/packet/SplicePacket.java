@@ -0,0 +1,74 @@
+package ddb.io.netarbiter.packet;
+
+import ddb.io.netarbiter.Connection;
+import ddb.io.netarbiter.ConnectionManager;
+import ddb.io.netarbiter.Constants;
+import ddb.io.netarbiter.NetArbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splice Command Packet
+ * Joins two remote connections together inside of the arbiter
+ * Data read from either remote is passed straight on to the other, without
+ * going through the endpoint. When either remote closes, the other one is
+ * closed as well, and the endpoint is notified of both closures.
+ *
+ * Packet Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (commands only)
+ * packetID:       1 byte ('J')
+ * connA:          2 bytes
+ * connB:          2 bytes
+ *
+ * | 0   | 1   | 2   | 3    |
+ * |    len    |    seq     |
+ * | 'J' |   connA   | conB |
+ * | conB |
+ */
+public class SplicePacket extends CommandPacket
+{
+    private int connA;
+    private int connB;
+
+    public SplicePacket(int packetSequence)
+    {
+        super(packetSequence);
+    }
+
+    @Override
+    public boolean parsePayload(ByteBuffer payload)
+    {
+        if (payload.remaining() != 4)
+            return false;
+
+        this.connA = Short.toUnsignedInt(payload.getShort());
+        this.connB = Short.toUnsignedInt(payload.getShort());
+        return true;
+    }
+
+    @Override
+    public int execute(NetArbiter arbiter)
+    {
+        ConnectionManager manager = arbiter.getConnectionManager();
+        Connection remoteA = manager.getConnection(connA);
+        Connection remoteB = manager.getConnection(connB);
+
+        // Both sides need to be distinct, open, and not spliced already
+        if (connA == connB || !canSplice(remoteA) || !canSplice(remoteB))
+            return Constants.ARB_ERROR_INVALID_ID;
+
+        remoteA.spliceWith(remoteB);
+        remoteB.spliceWith(remoteA);
+        return Constants.ARB_ERROR_NONE;
+    }
+
+    private static boolean canSplice(Connection connection)
+    {
+        return connection != null
+                && !connection.isCommandConnection()
+                && !connection.isClosed()
+                && connection.getSplicePeer() == null;
+    }
+
+}
@@ -0,0 +1,176 @@
+package ddb.io.netarbiter.packet;
+
+import ddb.io.netarbiter.Connection;
+import ddb.io.netarbiter.Constants;
+import ddb.io.netarbiter.NetArbiter;
+import ddb.io.netarbiter.SpillQueue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Status Command Packet
+ * Fetches a snapshot of the statistics of one or all remote connections
+ *
+ * Packet Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (commands only)
+ * packetID:       1 byte ('S')
+ * connID:         2 bytes (0xFFFF for all remote connections)
+ *
+ * | 0   | 1   | 2   | 3    |
+ * |    len    |    seq     |
+ * | 'S' |   connID  |
+ *
+ * Response Format (appended after the response code, which holds the
+ * number of entries):
+ * connID:         2 bytes
+ * state:          1 byte (0 = active, 1 = closing, 2 = spliced, 3 = resuming,
+ *                         4 = throttled)
+ * writeDepth:     2 bytes (saturates at 0xFFFF)
+ * responseDepth:  2 bytes (saturates at 0xFFFF)
+ * bytesSent:      4 bytes (wraps around)
+ * bytesReceived:  4 bytes (wraps around)
+ * rtt:            4 bytes (microseconds, 0 if not measured yet)
+ * heartbeatAge:   2 bytes (milliseconds, saturates at 0xFFFF)
+ * weight:         2 bytes (share of the endpoint link)
+ * relayBacklog:   4 bytes (bytes waiting for the endpoint to catch up)
+ * fairShare:      2 bytes (share received in the last window, compared to
+ *                          a fair share, in thousandths)
+ * shedEvents:     4 bytes (times reading was paused by the read limits,
+ *                          wraps around)
+ *
+ * | 0    | 1   | 2     | 3    |
+ * |   connID   | state | wDep |
+ * | wDep | rDep      | sent |
+ * |    sent ...       | recv |
+ * |    recv ...       | rtt  |
+ * |    rtt ...        | age  |
+ * | age  |   weight   | blog |
+ * |   backlog ...     | fair |
+ * | fair |       shed         |
+ * | shed |
+ *
+ * The entries are followed by the fairness index of the endpoint link
+ * (Jain's index over the remotes that had to wait, in thousandths), and the
+ * endpoint link's backlog:
+ * fairness:       2 bytes
+ * backlog:        4 bytes (bytes of bulk output waiting in memory)
+ * spilled:        4 bytes (bytes of bulk output waiting on disk, saturates)
+ * spillTotal:     4 bytes (bytes ever spilled to disk, wraps around)
+ */
+public class StatusPacket extends CommandPacket
+{
+    // Size of a single status entry
+    public static final int ENTRY_SIZE = 33;
+    // Size of the endpoint link's statistics after the entries
+    public static final int TRAILER_SIZE = 14;
+    // Maximum number of entries that can fit inside of a single response
+    private static final int MAX_ENTRIES = (0xFFFF - 7 - 4 - TRAILER_SIZE) / ENTRY_SIZE;
+
+    private int connID;
+    // Entries & endpoint statistics, sent after the number of entries
+    private ByteBuffer snapshot;
+
+    public StatusPacket(int packetSequence)
+    {
+        super(packetSequence);
+    }
+
+    @Override
+    public boolean parsePayload(ByteBuffer payload)
+    {
+        if (payload.remaining() != 2)
+            return false;
+
+        this.connID = Short.toUnsignedInt(payload.getShort());
+        return true;
+    }
+
+    @Override
+    public int execute(NetArbiter arbiter)
+    {
+        List<Connection> connections = new ArrayList<>();
+
+        if (connID == Constants.ARB_STATUS_ALL)
+        {
+            // Gather all of the remote connections
+            for (Connection connection : arbiter.getConnectionManager().getActiveConnections().values())
+            {
+                if (!connection.isCommandConnection() && !connection.isCarrier() && connections.size() < MAX_ENTRIES)
+                    connections.add(connection);
+            }
+        }
+        else
+        {
+            Connection connection = arbiter.getConnectionManager().getConnection(connID);
+
+            // Return an error code for the response
+            if (connection == null || connection.isCommandConnection())
+                return Constants.ARB_ERROR_INVALID_ID;
+
+            connections.add(connection);
+        }
+
+        snapshot = ByteBuffer.allocate(connections.size() * ENTRY_SIZE + TRAILER_SIZE);
+
+        for (Connection connection : connections)
+        {
+            snapshot.putShort(connection.getConnectionID());
+            snapshot.put(getState(connection));
+            snapshot.putShort(saturate(connection.getWriteDepth()));
+            snapshot.putShort(saturate(connection.getResponseDepth()));
+            snapshot.putInt((int) connection.getBytesSent());
+            snapshot.putInt((int) connection.getBytesReceived());
+            snapshot.putInt((int) Math.min(connection.getRTT(), Integer.MAX_VALUE));
+            snapshot.putShort(saturate(connection.getHeartbeatAge()));
+            snapshot.putShort(saturate(connection.getRelayWeight()));
+            snapshot.putInt(connection.getRelayBacklog());
+            snapshot.putShort(saturate(connection.getFairShare()));
+            snapshot.putInt((int) connection.getShedEvents());
+        }
+
+        snapshot.putShort(saturate(arbiter.getRelayScheduler().getFairness()));
+
+        Connection endpoint = arbiter.getCommandConnection();
+        SpillQueue spillQueue = endpoint.getSpillQueue();
+        snapshot.putInt(endpoint.getOutputBacklog());
+        snapshot.putInt(spillQueue != null ? (int) Math.min(spillQueue.getSpilledBytes(), 0xFFFFFFFFL) : 0);
+        snapshot.putInt(spillQueue != null ? (int) spillQueue.getTotalBytes() : 0);
+
+        snapshot.flip();
+
+        // Response code contains the number of entries
+        return connections.size();
+    }
+
+    @Override
+    public ByteBuffer getResponseData()
+    {
+        return snapshot;
+    }
+
+    private static byte getState(Connection connection)
+    {
+        if (connection.isClosed())
+            return Constants.ARB_CONN_CLOSING;
+
+        if (connection.isSuspended())
+            return Constants.ARB_CONN_RESUMING;
+
+        if (connection.getSplicePeer() != null)
+            return Constants.ARB_CONN_SPLICED;
+
+        if (connection.isReadPaused())
+            return Constants.ARB_CONN_THROTTLED;
+
+        return Constants.ARB_CONN_ACTIVE;
+    }
+
+    private static short saturate(long value)
+    {
+        return (short) Math.min(Math.max(value, 0), 0xFFFF);
+    }
+
+}
@@ -0,0 +1,60 @@
+package ddb.io.netarbiter.packet;
+
+import ddb.io.netarbiter.Connection;
+import ddb.io.netarbiter.Constants;
+import ddb.io.netarbiter.NetArbiter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Weight Command Packet
+ * Sets a remote connection's share of the link to the endpoint
+ * While the endpoint is backed up, data from each remote is handed over in
+ * proportion to the remotes' weights. All remotes start with a weight of 1.
+ *
+ * Packet Format:
+ * length:         2 bytes
+ * packetSequence: 2 bytes (commands only)
+ * packetID:       1 byte ('Q')
+ * connID:         2 bytes
+ * weight:         2 bytes (at least 1)
+ *
+ * | 0   | 1   | 2   | 3    |
+ * |    len    |    seq     |
+ * | 'Q' |   connID  | wght |
+ * | wght |
+ */
+public class WeightPacket extends CommandPacket
+{
+    private int connID;
+    private int weight;
+
+    public WeightPacket(int packetSequence)
+    {
+        super(packetSequence);
+    }
+
+    @Override
+    public boolean parsePayload(ByteBuffer payload)
+    {
+        if (payload.remaining() != 4)
+            return false;
+
+        this.connID = Short.toUnsignedInt(payload.getShort());
+        this.weight = Short.toUnsignedInt(payload.getShort());
+        return true;
+    }
+
+    @Override
+    public int execute(NetArbiter arbiter)
+    {
+        Connection connection = arbiter.getConnectionManager().getConnection(connID);
+
+        if (connection == null || connection.isCommandConnection())
+            return Constants.ARB_ERROR_INVALID_ID;
+
+        connection.setRelayWeight(weight);
+        return Constants.ARB_ERROR_NONE;
+    }
+
+}
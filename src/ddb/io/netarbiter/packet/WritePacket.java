@@ -4,7 +4,7 @@ import ddb.io.netarbiter.Connection;
 import ddb.io.netarbiter.Constants;
 import ddb.io.netarbiter.NetArbiter;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * Write Command Packet
@@ -38,28 +38,33 @@ public class WritePacket extends CommandPacket
     }
 
     @Override
-    public boolean parsePayload(byte[] payload)
+    public boolean parsePayload(ByteBuffer payload)
     {
-        this.connID = (short) ((Byte.toUnsignedInt(payload[0]) << 8) | Byte.toUnsignedInt(payload[1]));
-        this.payload = Arrays.copyOfRange(payload, 2, payload.length);
+        if (payload.remaining() < 2)
+            return false;
+
+        // Only copy of the payload data on the way to the remote
+        this.connID = payload.getShort();
+        this.payload = new byte[payload.remaining()];
+        payload.get(this.payload);
 
         return true;
     }
 
     @Override
-    public ResponsePacket execute(NetArbiter arbiter)
+    public int execute(NetArbiter arbiter)
     {
         //System.out.println("Writting packet to #" + connID);
         Connection connection = arbiter.getConnectionManager().getConnection(connID);
 
         // Return an error code for the response
         if (connection == null)
-            return new ResponsePacket(this.sequence, Constants.ARB_PACKET_ENDCMD, Constants.ARB_ERROR_INVALID_ID);
+            return Constants.ARB_ERROR_INVALID_ID;
 
         // Enqueue the write with the appropriate connection
-        connection.enqueueWrite(this);
+        connection.enqueueWrite(ByteBuffer.wrap(payload), 0, payload.length);
         // Return a command success
-        return new ResponsePacket(this.sequence, Constants.ARB_PACKET_ENDCMD, 0);
+        return 0;
     }
 
 }